@@ -27,6 +27,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.transform.OutputKeys;
@@ -37,7 +38,10 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
@@ -159,7 +163,7 @@ public class TestHelpers {
     public static Document responseToDocument(Response response) throws Exception {
         assertNotNull(response);
 
-        String form = (String)response.getEntity();
+        String form = responseToString(response);
         assertNotNull(form);
 
         Document doc = DocumentUtil.getDocument(form);
@@ -168,6 +172,15 @@ public class TestHelpers {
         return doc;
     }
 
+    public static String responseToString(Response response) throws IOException {
+        if (response.getEntity() instanceof StreamingOutput) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ((StreamingOutput) response.getEntity()).write(out);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return (String) response.getEntity();
+    }
+
     public static String nodeToString(Node node) {
         StringWriter sw = new StringWriter();
         try {
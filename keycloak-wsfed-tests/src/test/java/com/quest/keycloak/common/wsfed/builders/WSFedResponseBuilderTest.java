@@ -17,10 +17,25 @@
 package com.quest.keycloak.common.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.WSFedConstants;
+import com.quest.keycloak.common.wsfed.writers.AttributeEscapingOutputStream;
+import com.quest.keycloak.common.wsfed.writers.ContentEncoding;
+import com.quest.keycloak.common.wsfed.writers.WSFedFormTemplate;
 import org.junit.Test;
+import org.keycloak.saml.common.util.DocumentUtil;
 import org.w3c.dom.Document;
 
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.*;
 import static com.quest.keycloak.common.wsfed.TestHelpers.*;
@@ -108,4 +123,170 @@ public class WSFedResponseBuilderTest {
         assertInputNodeMissing(doc, WSFedConstants.WSFED_REPLY);
         assertInputNodeMissing(doc, WSFedConstants.WSFED_CONTEXT);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAttributeEscapingOutputStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream escaping = new AttributeEscapingOutputStream(out)) {
+            escaping.write("<a b=\"c&amp;d\">\u00e9</a>".getBytes(StandardCharsets.UTF_8));
+            escaping.write('>');
+        }
+
+        assertEquals("&#60;a b=&#34;c&#38;amp;d&#34;&#62;\u00e9&#60;/a&#62;&#62;", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testBuildStreamingResponse() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setAction("ACTION")
+                .setDestination("DESTINATION")
+                .setRealm("REALM")
+                .setContext("CONTEXT")
+                .setMethod("METHOD");
+
+        String result = "<wst:RequestSecurityTokenResponseCollection a=\"&amp;\">\u00e9</wst:RequestSecurityTokenResponseCollection>";
+        Response response = builder.buildStreamingResponse(out -> out.write(result.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("no-cache", response.getMetadata().getFirst("Pragma"));
+        assertEquals("no-cache, no-store", response.getMetadata().getFirst("Cache-Control"));
+        assertEquals("UTF-8", response.getMediaType().getParameters().get(MediaType.CHARSET_PARAMETER));
+
+        Document doc = responseToDocument(response);
+
+        assertFormAction(doc, "METHOD", "DESTINATION");
+        assertInputNode(doc, WSFedConstants.WSFED_ACTION, "ACTION");
+        assertInputNode(doc, WSFedConstants.WSFED_REALM, "REALM");
+        assertInputNode(doc, WSFedConstants.WSFED_RESULT, result);
+        assertInputNodeMissing(doc, WSFedConstants.WSFED_REPLY);
+        assertInputNode(doc, WSFedConstants.WSFED_CONTEXT, "CONTEXT");
+    }
+
+    @Test
+    public void testBuildResponseEscapesFields() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setAction("ACTION")
+                .setDestination("https://destination?a=\"b\"&c=<d>")
+                .setContext("rm=0&id=\"passive\"&ru=\u00e9")
+                .setMethod(HttpMethod.POST);
+
+        Response response = builder.buildResponse(null);
+
+        Document doc = responseToDocument(response);
+
+        assertFormAction(doc, HttpMethod.POST, "https://destination?a=\"b\"&c=<d>");
+        assertInputNode(doc, WSFedConstants.WSFED_ACTION, "ACTION");
+        assertInputNode(doc, WSFedConstants.WSFED_CONTEXT, "rm=0&id=\"passive\"&ru=\u00e9");
+        assertInputNodeMissing(doc, WSFedConstants.WSFED_RESULT);
+    }
+
+    @Test
+    public void testFormTemplates() throws Exception {
+        assertSame(WSFedFormTemplate.GET, WSFedFormTemplate.forMethod(HttpMethod.GET));
+        assertSame(WSFedFormTemplate.POST, WSFedFormTemplate.forMethod(HttpMethod.POST));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WSFedFormTemplate.forMethod("METHOD").writeStart(out, "DESTINATION");
+        WSFedFormTemplate.writeInput(out, "NAME", "VALUE");
+        WSFedFormTemplate.writeInput(out, "EMPTY", "");
+        WSFedFormTemplate.writeEnd(out);
+
+        Document doc = DocumentUtil.getDocument(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertFormAction(doc, "METHOD", "DESTINATION");
+        assertInputNode(doc, "NAME", "VALUE");
+        assertInputNodeMissing(doc, "EMPTY");
+    }
+
+    @Test
+    public void testNegotiateContentEncoding() throws Exception {
+        assertNull(ContentEncoding.negotiate(null));
+        assertNull(ContentEncoding.negotiate("identity"));
+        assertNull(ContentEncoding.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("gzip, deflate, br"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("*"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.negotiate("gzip;q=0, *"));
+    }
+
+    @Test
+    public void testBuildCompressedResponse() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setAction("ACTION")
+                .setDestination("DESTINATION")
+                .setAcceptEncoding("gzip, deflate")
+                .setCompressionThreshold(10);
+
+        Response response = builder.buildResponse("<RESULT>\u00e9</RESULT>");
+
+        assertEquals("gzip", response.getMetadata().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getMetadata().getFirst(HttpHeaders.VARY));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        ByteArrayOutputStream form = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            byte[] buffer = new byte[1024];
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                form.write(buffer, 0, read);
+            }
+        }
+
+        Document doc = DocumentUtil.getDocument(new String(form.toByteArray(), StandardCharsets.UTF_8));
+        assertFormAction(doc, HttpMethod.GET, "DESTINATION");
+        assertInputNode(doc, WSFedConstants.WSFED_RESULT, "<RESULT>\u00e9</RESULT>");
+    }
+
+    @Test
+    public void testCompressionThreshold() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setDestination("DESTINATION")
+                .setAcceptEncoding("gzip")
+                .setCompressionThreshold(1024);
+
+        Response response = builder.buildResponse("RESULT");
+
+        assertNull(response.getMetadata().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getMetadata().getFirst(HttpHeaders.VARY));
+        assertInputNode(responseToDocument(response), WSFedConstants.WSFED_RESULT, "RESULT");
+
+        response = builder.setCompressionThreshold(-1).buildResponse("RESULT");
+        assertNull(response.getMetadata().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertNull(response.getMetadata().getFirst(HttpHeaders.VARY));
+    }
+
+    @Test
+    public void testBuildRedirect() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setAction("wsignout1.0")
+                .setDestination("https://destination/logout?tenant=a")
+                .setReplyTo("https://reply/?a=b")
+                .setContext("rm=0&id=passive ru")
+                .setRedirectBinding(true);
+
+        Response response = builder.buildResponse(null);
+
+        assertEquals(Response.Status.FOUND.getStatusCode(), response.getStatus());
+        assertEquals("no-cache", response.getMetadata().getFirst("Pragma"));
+        assertEquals("no-cache, no-store", response.getMetadata().getFirst("Cache-Control"));
+        assertEquals("https://destination/logout?tenant=a&wa=wsignout1.0&wreply=https%3A%2F%2Freply%2F%3Fa%3Db&wctx=rm%3D0%26id%3Dpassive+ru",
+                response.getLocation().toString());
+    }
+
+    @Test
+    public void testBuildRedirectFallsBackToForm() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setDestination("DESTINATION")
+                .setMethod(HttpMethod.POST)
+                .setRedirectBinding(true);
+
+        assertEquals(Response.Status.OK.getStatusCode(), builder.buildResponse(null).getStatus());
+
+        char[] context = new char[WSFedResponseBuilder.MAX_REDIRECT_URL_LENGTH];
+        Arrays.fill(context, 'c');
+        builder.setMethod(HttpMethod.GET).setContext(new String(context));
+
+        Response response = builder.buildResponse(null);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertInputNode(responseToDocument(response), WSFedConstants.WSFED_CONTEXT, new String(context));
+    }
+}
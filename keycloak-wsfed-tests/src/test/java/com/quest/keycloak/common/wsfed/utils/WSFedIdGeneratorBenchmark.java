@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.keycloak.saml.processing.core.saml.v2.common.IDGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Compares the throughput of {@link WSFedIdGenerator} with the generators it replaced: keycloak's
+ * {@code IDGenerator} for the XML ids, and {@code UUID.randomUUID()} for the generated NameIDs.
+ *
+ * This is not a unit test, and isn't run by the build: run its main method from the IDE, with the number of
+ * identifiers drawn by each thread as optional argument. Each generator is measured with one thread, then with as many
+ * threads as processors, as the contention on the shared random source only shows with concurrent logins.
+ */
+public class WSFedIdGeneratorBenchmark {
+
+    private static final int WARMUP_IDS = 50000;
+
+    // keeps the identifiers alive so that their creation isn't optimized away
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int ids = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        List<String> names = new ArrayList<>();
+        List<Supplier<String>> generators = new ArrayList<>();
+        names.add("IDGenerator");
+        generators.add(() -> IDGenerator.create(WSFedIdGenerator.ID_PREFIX));
+        names.add("UUID");
+        generators.add(() -> WSFedIdGenerator.GENERATED_PREFIX + UUID.randomUUID().toString());
+        names.add("WSFedIdGenerator");
+        generators.add(WSFedIdGenerator::createId);
+
+        System.out.printf("%-18s %18s %18s%n", "generator", "1 thread ids/ms", processors + " threads ids/ms");
+        for (int i = 0; i < generators.size(); i++) {
+            measure(generators.get(i), 1, WARMUP_IDS);
+            long single = measure(generators.get(i), 1, ids);
+            long concurrent = measure(generators.get(i), processors, ids);
+            System.out.printf("%-18s %18d %18d%n", names.get(i), single, concurrent);
+        }
+    }
+
+    /**
+     * @return the number of identifiers created per millisecond by all the threads together
+     */
+    private static long measure(Supplier<String> generator, int threads, int ids) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit((Callable<Integer>) () -> {
+                    start.await();
+                    int hash = 0;
+                    for (int i = 0; i < ids; i++) {
+                        hash += generator.get().hashCode();
+                    }
+                    return hash;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<Integer> result : results) {
+                sink += result.get();
+            }
+            long millis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+            return (long) threads * ids / millis;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
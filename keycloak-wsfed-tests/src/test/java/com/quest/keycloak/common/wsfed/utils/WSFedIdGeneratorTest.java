@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WSFedIdGeneratorTest {
+
+    @Test
+    public void testFormat() {
+        String id = WSFedIdGenerator.createId();
+        assertTrue(id.matches("ID_[A-Za-z0-9_-]{22}"));
+        assertTrue(WSFedIdGenerator.createNameId().matches("G-[A-Za-z0-9_-]{22}"));
+    }
+
+    @Test
+    public void testEncode() {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        for (int length = 0; length <= 20; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (i * 37 - 100);
+            }
+            assertEquals("_" + encoder.encodeToString(bytes), WSFedIdGenerator.encode("_", bytes));
+        }
+    }
+
+    @Test
+    public void testThreadConfinement() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            assertSame(WSFedIdGenerator.getRandom(), WSFedIdGenerator.getRandom());
+            assertNotSame(WSFedIdGenerator.getRandom(), executor.submit(WSFedIdGenerator::getRandom).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentUniqueness() throws Exception {
+        int threads = 16;
+        int idsPerThread = 5000;
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < idsPerThread; i++) {
+                        ids.add(WSFedIdGenerator.createId());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * idsPerThread, ids.size());
+    }
+}
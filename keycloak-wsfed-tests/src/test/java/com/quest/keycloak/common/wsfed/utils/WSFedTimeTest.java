@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.junit.Test;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WSFedTimeTest {
+
+    private static final long NOW = 1500000000000L;
+
+    private final WSFedTime time = new WSFedTime(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+
+    @Test
+    public void testConversion() {
+        XMLGregorianCalendar calendar = time.toXMLGregorianCalendar(NOW);
+        assertEquals("2017-07-14T02:40:00.000Z", calendar.toXMLFormat());
+        assertEquals(NOW, WSFedTime.toMillis(calendar));
+    }
+
+    @Test
+    public void testValidityWindow() {
+        XMLGregorianCalendar notBefore = time.toXMLGregorianCalendar(NOW + 5000);
+        XMLGregorianCalendar notOnOrAfter = time.toXMLGregorianCalendar(NOW + 60000);
+
+        assertFalse(time.isValid(notBefore, notOnOrAfter, 0));
+        assertTrue(time.isValid(notBefore, notOnOrAfter, WSFedTime.ASSERTION_CLOCK_SKEW));
+        assertFalse(time.isValid(null, time.toXMLGregorianCalendar(NOW), 0));
+        assertTrue(time.isValid(null, null, 0));
+    }
+
+    @Test
+    public void testInjectedInstance() {
+        try {
+            WSFedTime.setInstance(time);
+            assertEquals(NOW, WSFedTime.getInstance().now());
+        } finally {
+            WSFedTime.setInstance(null);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedKeyTransport;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WSFedConfigCacheTest {
+
+    private WSFedConfigCache cache = new WSFedConfigCache(10, 60000, 10);
+    private RealmModel realm;
+    private ClientModel client;
+
+    @Before
+    public void setUp() {
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+        when(realm.getName()).thenReturn("test");
+        client = mock(ClientModel.class);
+        when(client.getId()).thenReturn(UUID.randomUUID().toString());
+        when(client.getRealm()).thenReturn(realm);
+    }
+
+    @Test
+    public void testDefaults() {
+        WSFedClientConfig config = cache.getConfig(client);
+        assertFalse(config.isJwt());
+        assertFalse(config.isEncrypt());
+        assertEquals(WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT, config.getSamlAssertionTokenFormat());
+        assertEquals(WSFedSignatureAlgorithm.RSA_SHA256, config.getSignatureAlgorithm());
+        assertEquals(Algorithm.RS256, config.getJwtSignatureAlgorithm());
+        assertNull(config.getEncryptionAlgorithm());
+        assertEquals(WSFedKeyTransport.RSA_1_5, config.getKeyTransport());
+        assertEquals(-1, config.getCompressionThreshold());
+    }
+
+    @Test
+    public void testInvalidValues() {
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_SAML_ASSERTION_TOKEN_FORMAT)).thenReturn("SAML 3.0");
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_SIGNATURE_ALGORITHM)).thenReturn("RSA_MD5");
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_COMPRESSION_THRESHOLD)).thenReturn("large");
+
+        WSFedClientConfig config = cache.getConfig(client);
+        assertEquals(WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT, config.getSamlAssertionTokenFormat());
+        assertEquals(WSFedSignatureAlgorithm.RSA_SHA256, config.getSignatureAlgorithm());
+        assertEquals(-1, config.getCompressionThreshold());
+    }
+
+    @Test
+    public void testHmacSecret() {
+        byte[] secret = new byte[48];
+        new SecureRandom().nextBytes(secret);
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_SIGNATURE_ALGORITHM)).thenReturn("HMAC_SHA256");
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_JWT_SIGNATURE_ALGORITHM)).thenReturn(Algorithm.HS512);
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_HMAC_SECRET)).thenReturn(Base64.getEncoder().encodeToString(secret));
+
+        WSFedClientConfig config = cache.getConfig(client);
+        SigningKeyMaterial key = config.getHmacKey(Algorithm.HS256);
+        assertArrayEquals(secret, key.getSecretKey().getEncoded());
+        assertEquals(Algorithm.HS256, key.getAlgorithm());
+        assertNotNull(key.getKid());
+        // 48 bytes are too short for HS512
+        assertNull(config.getHmacKey(Algorithm.HS512));
+
+        // no secret, no fallback to the realm keys
+        cache.invalidate(client.getId());
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_HMAC_SECRET)).thenReturn(null);
+        assertNull(cache.getConfig(client).getHmacKey(Algorithm.HS256));
+    }
+
+    @Test
+    public void testConfigIsParsedOnce() {
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_SAML_ASSERTION_TOKEN_FORMAT)).thenReturn("SAML 1.1");
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_COMPRESSION_THRESHOLD)).thenReturn(" 1024 ");
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_COMPRESS_TOKEN_RESPONSE)).thenReturn("true");
+
+        WSFedClientConfig config = cache.getConfig(client);
+        assertEquals(WsFedSAMLAssertionTokenFormat.SAML11_ASSERTION_TOKEN_FORMAT, config.getSamlAssertionTokenFormat());
+        assertEquals(1024, config.getCompressionThreshold());
+        assertSame(config, cache.getConfig(client));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testCompressionRequiresOptIn() {
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_COMPRESSION_THRESHOLD)).thenReturn("0");
+        assertEquals(-1, cache.getConfig(client).getCompressionThreshold());
+
+        cache.invalidate(client.getId());
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_COMPRESS_TOKEN_RESPONSE)).thenReturn("true");
+        assertEquals(0, cache.getConfig(client).getCompressionThreshold());
+    }
+
+    @Test
+    public void testInvalidation() {
+        WSFedClientConfig config = cache.getConfig(client);
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_JWT)).thenReturn("true");
+        assertSame(config, cache.getConfig(client));
+
+        cache.invalidate(client.getId());
+        assertTrue(cache.getConfig(client).isJwt());
+
+        cache.invalidateRealm(realm.getId());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConfigParsedDuringInvalidationIsNotCached() {
+        // the client is updated, and its configuration invalidated, while it is being parsed
+        AtomicBoolean updated = new AtomicBoolean();
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_JWT)).thenAnswer(invocation -> {
+            if (updated.compareAndSet(false, true)) {
+                cache.invalidate(client.getId());
+                return null;
+            }
+            return "true";
+        });
+
+        assertFalse(cache.getConfig(client).isJwt());
+        assertEquals(0, cache.size());
+        assertTrue(cache.getConfig(client).isJwt());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testExpiredConfigIsParsedAgain() {
+        WSFedConfigCache expiring = new WSFedConfigCache(10, 0, 10);
+        WSFedClientConfig config = expiring.getConfig(client);
+        assertNotSame(config, expiring.getConfig(client));
+    }
+
+    @Test
+    public void testRealmUrls() {
+        UriInfo uriInfo = mock(UriInfo.class);
+        URI baseUri = URI.create("https://sso.example.com/auth/");
+        when(uriInfo.getBaseUri()).thenReturn(baseUri);
+        when(uriInfo.getBaseUriBuilder()).thenAnswer(invocation -> UriBuilder.fromUri(baseUri));
+
+        WSFedConfigCache.RealmUrls urls = cache.getRealmUrls(uriInfo, realm);
+        assertEquals("https://sso.example.com/auth/realms/test", urls.getIssuer());
+        assertEquals("https://sso.example.com/auth/realms/test/protocol/wsfed", urls.getEndpoint());
+        assertSame(urls, cache.getRealmUrls(uriInfo, realm));
+    }
+}
@@ -18,22 +18,30 @@ package com.quest.keycloak.protocol.wsfed;
 
 import com.quest.keycloak.common.wsfed.WSFedConstants;
 import com.quest.keycloak.common.wsfed.MockHelper;
+import com.quest.keycloak.protocol.wsfed.builders.RequestSecurityTokenResponseBuilder;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.junit.Before;
+import org.jboss.resteasy.spi.HttpRequest;
+import org.jboss.resteasy.spi.ResteasyAsynchronousContext;
+import org.jboss.resteasy.spi.ResteasyAsynchronousResponse;
 import org.junit.Test;
 import org.keycloak.connections.httpclient.HttpClientProvider;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmProvider;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.protocol.LoginProtocol;
+import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.services.util.DefaultClientSessionContext;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.w3c.dom.Document;
@@ -43,6 +51,7 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.HashSet;
 
@@ -170,6 +179,86 @@ public class WSFedLoginProtocolTest {
         assertTokenType(wsfedResponse, "http://docs.oasis-open.org/wss/oasis-wss-saml-token-profile-1.1#SAMLV2.0");
     }
 
+    @Test
+    public void testAuthenticatedAsyncSigning() throws Exception {
+        ClientModel client = mockHelper.getClient();
+        doReturn("false").when(client).getAttribute(WSFedLoginProtocol.WSFED_JWT);
+        doReturn("true").when(client).getAttribute(WSFedLoginProtocol.WSFED_ASYNC_SIGNING);
+
+        HttpRequest request = mock(HttpRequest.class);
+        ResteasyAsynchronousContext asyncContext = mock(ResteasyAsynchronousContext.class);
+        ResteasyAsynchronousResponse asyncResponse = mock(ResteasyAsynchronousResponse.class);
+        when(request.getAsyncContext()).thenReturn(asyncContext);
+        when(asyncContext.suspend()).thenReturn(asyncResponse);
+        when(mockHelper.getSession().getContext().getContextObject(HttpRequest.class)).thenReturn(request);
+        WSFedSigningExecutor executor = new WSFedSigningExecutor(1, 4, 1, 30);
+        doReturn(executor).when(loginProtocol).getSigningExecutor();
+
+        try {
+            Response response = loginProtocol.authenticated(mockHelper.getAuthSessionModel(), mockHelper.getUserSessionModel(), DefaultClientSessionContext.fromClientSessionScopeParameter(mockHelper.getClientSessionModel()));
+            assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+
+            ArgumentCaptor<Object> resumed = ArgumentCaptor.forClass(Object.class);
+            verify(asyncResponse, timeout(10000)).resume(resumed.capture());
+            Response signedResponse = (Response) resumed.getValue();
+            assertEquals(Response.Status.OK.getStatusCode(), signedResponse.getStatus());
+            assertEquals(MediaType.TEXT_HTML_TYPE, signedResponse.getMetadata().getFirst("Content-Type"));
+
+            String wsfedResponse = getInputNodeValue(responseToDocument(signedResponse), WSFedConstants.WSFED_RESULT);
+            assertTokenType(wsfedResponse, "http://docs.oasis-open.org/wss/oasis-wss-saml-token-profile-1.1#SAMLV2.0");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAuthenticatedAsyncSigningFailure() throws Exception {
+        ClientModel client = mockHelper.getClient();
+        doReturn("false").when(client).getAttribute(WSFedLoginProtocol.WSFED_JWT);
+        doReturn("true").when(client).getAttribute(WSFedLoginProtocol.WSFED_ASYNC_SIGNING);
+
+        HttpRequest request = mock(HttpRequest.class);
+        ResteasyAsynchronousContext asyncContext = mock(ResteasyAsynchronousContext.class);
+        ResteasyAsynchronousResponse asyncResponse = mock(ResteasyAsynchronousResponse.class);
+        when(request.getAsyncContext()).thenReturn(asyncContext);
+        when(asyncContext.suspend()).thenReturn(asyncResponse);
+        when(mockHelper.getSession().getContext().getContextObject(HttpRequest.class)).thenReturn(request);
+        WSFedSigningExecutor executor = new WSFedSigningExecutor(1, 4, 1, 30);
+        doReturn(executor).when(loginProtocol).getSigningExecutor();
+
+        RequestSecurityTokenResponseBuilder builder = mock(RequestSecurityTokenResponseBuilder.class);
+        when(builder.buildResponse()).thenThrow(new ProcessingException("junit"));
+        doReturn(builder).when(loginProtocol).prepareAuthenticatedResponse(any(WSFedLoginContext.class));
+
+        // the error page is rendered in a session of its own, the one of the request being closed
+        KeycloakSession session = mockHelper.getSession();
+        when(mockHelper.getSessionFactory().create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(session.realms()).thenReturn(mock(RealmProvider.class));
+
+        try {
+            Response response = loginProtocol.authenticated(mockHelper.getAuthSessionModel(), mockHelper.getUserSessionModel(), DefaultClientSessionContext.fromClientSessionScopeParameter(mockHelper.getClientSessionModel()));
+            assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+
+            verify(asyncResponse, timeout(10000)).resume(any(Response.class));
+            assertErrorPage(mockHelper.getLoginFormsProvider(), Messages.FAILED_TO_PROCESS_RESPONSE);
+            verify(session).close();
+            assertEquals(1, executor.getFailedCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAuthenticatedAsyncSigningWithoutRequest() throws Exception {
+        ClientModel client = mockHelper.getClient();
+        doReturn("false").when(client).getAttribute(WSFedLoginProtocol.WSFED_JWT);
+        doReturn("true").when(client).getAttribute(WSFedLoginProtocol.WSFED_ASYNC_SIGNING);
+
+        Response response = loginProtocol.authenticated(mockHelper.getAuthSessionModel(), mockHelper.getUserSessionModel(), DefaultClientSessionContext.fromClientSessionScopeParameter(mockHelper.getClientSessionModel()));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+    }
+
     @Test
     public void testAuthenticatedSaml11() throws Exception {
         ClientModel client = mockHelper.getClient();
@@ -256,6 +345,20 @@ public class WSFedLoginProtocolTest {
         assertInputNode(doc, WSFedConstants.WSFED_REPLY, String.format("%s/realms/%s/protocol/wsfed", mockHelper.getBaseUri(), mockHelper.getRealmName()));
     }
 
+    @Test
+    public void testFrontchannelLogoutRedirectBinding() throws Exception {
+        ClientModel client = mockHelper.getClient();
+        doReturn(new HashSet<String>(Arrays.asList("https://slourl"))).when(client).getRedirectUris();
+        doReturn("true").when(client).getAttribute(WSFedLoginProtocol.WSFED_REDIRECT_BINDING);
+
+        Response response = loginProtocol.frontchannelLogout(mockHelper.getUserSessionModel(), mockHelper.getClientSessionModel());
+
+        assertEquals(Response.Status.FOUND.getStatusCode(), response.getStatus());
+        String reply = String.format("%s/realms/%s/protocol/wsfed", mockHelper.getBaseUri(), mockHelper.getRealmName());
+        assertEquals(String.format("https://slourl?%s=%s&%s=%s", WSFedConstants.WSFED_ACTION, WSFedConstants.WSFED_SIGNOUT_CLEANUP_ACTION,
+                WSFedConstants.WSFED_REPLY, URLEncoder.encode(reply, "UTF-8")), response.getLocation().toString());
+    }
+
     @Test
     public void testFrontchannelLogoutNoUrl() throws Exception {
         Response response = loginProtocol.frontchannelLogout(mockHelper.getUserSessionModel(), mockHelper.getClientSessionModel());
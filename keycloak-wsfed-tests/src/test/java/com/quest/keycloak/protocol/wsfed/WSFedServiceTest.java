@@ -50,6 +50,7 @@ import org.keycloak.services.managers.AuthenticationManager;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.services.resources.RealmsResource;
 import org.keycloak.sessions.AuthenticationSessionModel;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.EndsWith;
@@ -506,8 +507,12 @@ public class WSFedServiceTest {
         catch(NullPointerException ex) {
         }
 
-        verify(mockHelper.getUserSessionModel(), times(1)).setNote(eq(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI), eq(params.getWsfedReply()));
-        verify(mockHelper.getUserSessionModel(), times(1)).setNote(eq(WSFedLoginProtocol.WSFED_CONTEXT), eq(params.getWsfedContext()));
+        ArgumentCaptor<String> packedNotes = ArgumentCaptor.forClass(String.class);
+        verify(mockHelper.getUserSessionModel(), times(1)).setNote(eq(WSFedSessionNotes.PACKED_NOTE), packedNotes.capture());
+        UserSessionModel written = mock(UserSessionModel.class);
+        when(written.getNote(WSFedSessionNotes.PACKED_NOTE)).thenReturn(packedNotes.getValue());
+        assertEquals(params.getWsfedReply(), WSFedSessionNotes.of(written).get(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI));
+        assertEquals(params.getWsfedContext(), WSFedSessionNotes.of(written).get(WSFedLoginProtocol.WSFED_CONTEXT));
         verify(mockHelper.getUserSessionModel(), times(1)).setNote(eq(AuthenticationManager.KEYCLOAK_LOGOUT_PROTOCOL), eq(WSFedLoginProtocol.LOGIN_PROTOCOL));
 
         verify(mockHelper.getClientSessionModel(), times(1)).setAction(eq(AuthenticatedClientSessionModel.Action.LOGGED_OUT.name()));
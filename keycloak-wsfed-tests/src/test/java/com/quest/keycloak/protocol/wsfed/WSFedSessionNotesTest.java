@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.common.wsfed.WSFedConstants;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WSFedSessionNotesTest {
+
+    private final Map<String, String> sessionNotes = new HashMap<>();
+    private int writes;
+
+    private WSFedSessionNotes read() {
+        return new WSFedSessionNotes(sessionNotes::get, (name, value) -> {
+            sessionNotes.put(name, value);
+            writes++;
+        }, sessionNotes::remove);
+    }
+
+    @Test
+    public void testNotesAreWrittenOnce() {
+        read().set(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI, "https://rp/logout")
+                .set(WSFedLoginProtocol.WSFED_CONTEXT, "rm=0&id=1:2")
+                .set(WSFedLoginProtocol.WSFED_REDIRECT_BINDING, "true")
+                .flush();
+        assertEquals(1, writes);
+        assertEquals(1, sessionNotes.size());
+
+        WSFedSessionNotes notes = read();
+        assertEquals("https://rp/logout", notes.get(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI));
+        assertEquals("rm=0&id=1:2", notes.get(WSFedLoginProtocol.WSFED_CONTEXT));
+        assertEquals("true", notes.get(WSFedLoginProtocol.WSFED_REDIRECT_BINDING));
+        assertNull(notes.get(WSFedConstants.WSFED_REALM));
+    }
+
+    @Test
+    public void testUnchangedNotesAreNotWritten() {
+        read().set(WSFedConstants.WSFED_REALM, "client").flush();
+        read().set(WSFedConstants.WSFED_REALM, "client").flush();
+        read().set(WSFedLoginProtocol.WSFED_CONTEXT, null).flush();
+        assertEquals(1, writes);
+
+        read().set(WSFedConstants.WSFED_REALM, "other-client").flush();
+        assertEquals(2, writes);
+        assertEquals("other-client", read().get(WSFedConstants.WSFED_REALM));
+    }
+
+    @Test
+    public void testSeparateNotesAreRead() {
+        sessionNotes.put(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI, "https://rp/logout");
+        sessionNotes.put(WSFedConstants.WSFED_REALM, "client");
+        assertEquals("client", read().get(WSFedConstants.WSFED_REALM));
+
+        // the separate notes are carried over to the packed note, and removed
+        read().set(WSFedLoginProtocol.WSFED_CONTEXT, "context").flush();
+        assertEquals(Collections.singleton(WSFedSessionNotes.PACKED_NOTE), sessionNotes.keySet());
+        WSFedSessionNotes notes = read();
+        assertEquals("https://rp/logout", notes.get(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI));
+        assertEquals("client", notes.get(WSFedConstants.WSFED_REALM));
+        assertEquals("context", notes.get(WSFedLoginProtocol.WSFED_CONTEXT));
+    }
+
+    @Test
+    public void testDecode() {
+        Map<Character, String> notes = new TreeMap<>();
+        notes.put('c', "");
+        notes.put('r', "a:1b2:");
+        assertEquals(notes, WSFedSessionNotes.decode(WSFedSessionNotes.encode(notes)));
+
+        assertNull(WSFedSessionNotes.decode(null));
+        assertNull(WSFedSessionNotes.decode("2r1:a"));
+        assertNull(WSFedSessionNotes.decode("1r5:a"));
+        assertNull(WSFedSessionNotes.decode("1r-1:a"));
+        assertNull(WSFedSessionNotes.decode("1rx:a"));
+    }
+}
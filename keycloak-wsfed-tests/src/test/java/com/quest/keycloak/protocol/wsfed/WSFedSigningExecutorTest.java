@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class WSFedSigningExecutorTest {
+
+    private WSFedSigningExecutor executor = new WSFedSigningExecutor(1, 1, 5, 30);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        Response response = Response.ok().build();
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+
+        executor.submit(() -> response, e -> Response.serverError().build(), asyncResponse);
+
+        verify(asyncResponse, timeout(10000)).resume(response);
+        assertEquals(1, executor.getSubmittedCount());
+    }
+
+    @Test
+    public void testSaturation() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.submit(() -> {
+            latch.await();
+            return Response.ok().build();
+        }, e -> Response.serverError().build(), mock(AsyncResponse.class));
+        // wait for the first task to leave the queue
+        while (executor.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        executor.submit(() -> Response.ok().build(), e -> Response.serverError().build(), mock(AsyncResponse.class));
+        assertTrue(executor.isSaturated());
+
+        Response unavailable = executor.serviceUnavailable();
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), unavailable.getStatus());
+        assertEquals(5, unavailable.getMetadata().getFirst(HttpHeaders.RETRY_AFTER));
+
+        try {
+            executor.submit(() -> Response.ok().build(), e -> Response.serverError().build(), mock(AsyncResponse.class));
+            fail("The queue is full");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getRejectedCount());
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testFailedTask() throws Exception {
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+
+        executor.submit(() -> {
+            throw new IllegalStateException("junit");
+        }, e -> Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build(), asyncResponse);
+
+        ArgumentCaptor<Object> resumed = ArgumentCaptor.forClass(Object.class);
+        verify(asyncResponse, timeout(10000)).resume(resumed.capture());
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ((Response) resumed.getValue()).getStatus());
+        assertEquals("junit", ((Response) resumed.getValue()).getEntity());
+        assertEquals(1, executor.getFailedCount());
+    }
+}
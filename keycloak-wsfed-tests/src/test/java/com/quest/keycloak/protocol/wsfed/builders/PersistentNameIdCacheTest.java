@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.builders;
+
+import io.cloudtrust.exception.CloudtrustRuntimeException;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PersistentNameIdCacheTest {
+
+    private static final String ATTRIBUTE = WsFedSAMLAssertionTypeAbstractBuilder.SAML_PERSISTENT_NAME_ID_FOR + ".client";
+
+    private PersistentNameIdCache cache = new PersistentNameIdCache(10, 60000);
+    private RealmModel realm;
+    private ClientModel client;
+    private UserModel user;
+    private SecretKey secret;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+        client = mock(ClientModel.class);
+        when(client.getClientId()).thenReturn("client");
+        user = mock(UserModel.class);
+        when(user.getId()).thenReturn(UUID.randomUUID().toString());
+
+        secret = KeyGenerator.getInstance("HmacSHA256").generateKey();
+    }
+
+    @Test
+    public void testDerivedNameIdIsNotStored() {
+        String nameId = cache.getNameId(realm, client, user, secret);
+        assertTrue(nameId.matches("G-[A-Za-z0-9_-]{22}"));
+        assertEquals(nameId, cache.getNameId(realm, client, user, secret));
+        assertEquals(PersistentNameIdCache.derive(secret, user.getId(), "client"), nameId);
+
+        verify(user, never()).setSingleAttribute(anyString(), anyString());
+        // the absence of a stored NameID is cached as well
+        verify(user, times(1)).getFirstAttribute(ATTRIBUTE);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testDerivationDependsOnUserAndClient() {
+        String nameId = PersistentNameIdCache.derive(secret, "user", "client");
+        assertNotEquals(nameId, PersistentNameIdCache.derive(secret, "user", "other-client"));
+        assertNotEquals(nameId, PersistentNameIdCache.derive(secret, "other-user", "client"));
+    }
+
+    @Test
+    public void testStoredNameIdTakesPrecedence() {
+        when(user.getFirstAttribute(ATTRIBUTE)).thenReturn("G-stored");
+        assertEquals("G-stored", cache.getNameId(realm, client, user, secret));
+        assertEquals("G-stored", cache.getNameId(realm, client, user, secret));
+        verify(user, times(1)).getFirstAttribute(ATTRIBUTE);
+
+        cache.invalidateUser(realm.getId(), user.getId());
+        assertEquals(0, cache.size());
+        when(user.getFirstAttribute(ATTRIBUTE)).thenReturn(null);
+        assertEquals(PersistentNameIdCache.derive(secret, user.getId(), "client"), cache.getNameId(realm, client, user, secret));
+    }
+
+    @Test
+    public void testMissingKeyFails() {
+        try {
+            cache.getNameId(realm, client, user, null);
+            fail();
+        } catch (CloudtrustRuntimeException e) {
+            verify(user, never()).setSingleAttribute(anyString(), anyString());
+        }
+
+        // the NameIDs already stored don't need the secret
+        cache.clear();
+        when(user.getFirstAttribute(ATTRIBUTE)).thenReturn("G-stored");
+        assertEquals("G-stored", cache.getNameId(realm, client, user, null));
+    }
+}
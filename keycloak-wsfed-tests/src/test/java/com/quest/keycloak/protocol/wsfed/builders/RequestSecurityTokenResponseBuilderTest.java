@@ -19,14 +19,26 @@ package com.quest.keycloak.protocol.wsfed.builders;
 import com.quest.keycloak.common.wsfed.MockHelper;
 import com.quest.keycloak.common.wsfed.TestHelpers;
 import com.quest.keycloak.common.wsfed.WSFedConstants;
+import com.quest.keycloak.common.wsfed.writers.SerializedElement;
+import com.quest.keycloak.protocol.wsfed.sig.SAML11Signature;
+import com.quest.keycloak.protocol.wsfed.sig.StreamingSAMLSignature;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedEncryptionAlgorithm;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedKeyTransport;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.utils.EncryptionConstants;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.saml.common.constants.GeneralConstants;
+import org.keycloak.saml.common.constants.WSTrustConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.common.util.Base64;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
 import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
@@ -34,10 +46,20 @@ import org.picketlink.identity.federation.ws.addressing.EndpointReferenceType;
 import org.picketlink.identity.federation.ws.wss.secext.BinarySecurityTokenType;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.instanceOf;
@@ -121,6 +143,282 @@ public class RequestSecurityTokenResponseBuilderTest {
         assertTrue(AssertionUtil.isSignatureValid(element, mockHelper.getActiveKey().getPublicKey()));
     }
 
+    @Test
+    public void testStreamingSamlTokenSignature() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, "email");
+
+        mockHelper.initializeMockValues();
+
+        RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper).setStreamingSignature(true);
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        builder.setSamlToken(samlBuilder.build());
+
+        RequestSecurityTokenResponse rstr = builder.build();
+        assertThat(rstr.getRequestedSecurityToken().getAny().get(0), instanceOf(SerializedElement.class));
+        Document token = ((SerializedElement) rstr.getRequestedSecurityToken().getAny().get(0)).toDocument();
+        assertTrue(AssertionUtil.isSignatureValid(token.getDocumentElement(), mockHelper.getActiveKey().getPublicKey()));
+
+        //The serialized token must come out of the RSTR writer untouched
+        Document response = DocumentUtil.getDocument(RequestSecurityTokenResponseBuilder.getStringValue(rstr));
+        NodeList assertions = response.getElementsByTagNameNS("urn:oasis:names:tc:SAML:2.0:assertion", "Assertion");
+        assertEquals(1, assertions.getLength());
+        assertTrue(AssertionUtil.isSignatureValid((Element) assertions.item(0), mockHelper.getActiveKey().getPublicKey()));
+    }
+
+    @Test
+    public void testStreamingResponse() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, "email");
+
+        mockHelper.initializeMockValues();
+
+        RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper)
+                .setStreamingSignature(true)
+                .setStreamingResponse(true);
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        builder.setSamlToken(samlBuilder.build());
+
+        Response response = builder.buildResponse();
+        assertThat(response.getEntity(), instanceOf(StreamingOutput.class));
+
+        Document doc = responseToDocument(response);
+        assertFormAction(doc, "POST", builder.getDestination());
+        assertInputNode(doc, WSFedConstants.WSFED_CONTEXT, builder.getContext());
+
+        //The token must survive the escaping of the form
+        Document result = DocumentUtil.getDocument(getInputNodeValue(doc, WSFedConstants.WSFED_RESULT));
+        NodeList assertions = result.getElementsByTagNameNS("urn:oasis:names:tc:SAML:2.0:assertion", "Assertion");
+        assertEquals(1, assertions.getLength());
+        assertTrue(AssertionUtil.isSignatureValid((Element) assertions.item(0), mockHelper.getActiveKey().getPublicKey()));
+    }
+
+    @Test
+    public void testLeanResponse() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, "email");
+
+        mockHelper.initializeMockValues();
+
+        RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper)
+                .setStreamingSignature(true)
+                .setLeanResponse(true);
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        builder.setSamlToken(samlBuilder.build());
+
+        RequestSecurityTokenResponse rstr = builder.build();
+        assertNull(rstr.getLifetime());
+        assertNull(rstr.getRequestedUnattachedReference());
+        String lean = RequestSecurityTokenResponseBuilder.getStringValue(rstr, true);
+        Document response = DocumentUtil.getDocument(lean);
+
+        String trustNamespace = response.getDocumentElement().getNamespaceURI();
+        assertEquals(0, response.getElementsByTagNameNS(trustNamespace, "Lifetime").getLength());
+        assertEquals(0, response.getElementsByTagNameNS(trustNamespace, "RequestedUnattachedReference").getLength());
+        assertEquals(1, response.getElementsByTagNameNS(trustNamespace, "TokenType").getLength());
+
+        //The AppliesTo namespaces are declared on the collection
+        NodeList addresses = response.getElementsByTagNameNS(WSTrustConstants.WSA_NS, "Address");
+        assertEquals(1, addresses.getLength());
+        assertEquals(builder.getRequestIssuer(), addresses.item(0).getTextContent());
+        Element appliesTo = (Element) addresses.item(0).getParentNode().getParentNode();
+        assertEquals("AppliesTo", appliesTo.getLocalName());
+        assertFalse(appliesTo.hasAttributes());
+
+        NodeList assertions = response.getElementsByTagNameNS("urn:oasis:names:tc:SAML:2.0:assertion", "Assertion");
+        assertEquals(1, assertions.getLength());
+        assertTrue(AssertionUtil.isSignatureValid((Element) assertions.item(0), mockHelper.getActiveKey().getPublicKey()));
+
+        RequestSecurityTokenResponse fullResponse = builder.setLeanResponse(false).build();
+        String full = RequestSecurityTokenResponseBuilder.getStringValue(fullResponse, false);
+        assertTrue(lean.length() < full.length());
+
+        long[] sizes = RequestSecurityTokenResponseBuilder.getProfileSizes(fullResponse);
+        assertEquals(full.getBytes(StandardCharsets.UTF_8).length, sizes[0]);
+        assertTrue(sizes[1] < sizes[0]);
+    }
+
+    @Test
+    public void testStreamingSaml11TokenSignature() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.initializeMockValues();
+
+        RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper).setStreamingSignature(true);
+
+        WsFedSAML11AssertionTypeBuilder samlBuilder = new WsFedSAML11AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        SAML11AssertionType token = samlBuilder.build();
+        builder.setSaml11Token(token);
+
+        RequestSecurityTokenResponse rstr = builder.build();
+        assertEquals(URI.create(SAML11Constants.ASSERTION_11_NSURI), rstr.getTokenType());
+        assertThat(rstr.getRequestedSecurityToken().getAny().get(0), instanceOf(SerializedElement.class));
+
+        Document signed = ((SerializedElement) rstr.getRequestedSecurityToken().getAny().get(0)).toDocument();
+        assertEquals(token.getID(), signed.getDocumentElement().getAttribute(SAML11Constants.ASSERTIONID));
+        assertTrue(new SAML11Signature().validate(signed, mockHelper.getActiveKey().getPublicKey()));
+    }
+
+    @Test
+    public void testEcdsaSamlTokenSignature() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, "email");
+
+        mockHelper.initializeMockValues();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        for (boolean streaming : new boolean[]{false, true}) {
+            //EC keys generated by keycloak have no certificate
+            RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper)
+                    .setSigningKeyPair(keyPair)
+                    .setSigningCertificate(null)
+                    .setSignatureAlgorithm(WSFedSignatureAlgorithm.ECDSA_SHA256)
+                    .setStreamingSignature(streaming);
+            builder.setSamlToken(samlBuilder.build());
+
+            Object token = builder.build().getRequestedSecurityToken().getAny().get(0);
+            Element element = streaming ? ((SerializedElement) token).toDocument().getDocumentElement() : (Element) token;
+            assertEquals(WSFedSignatureAlgorithm.ECDSA_SHA256.getXmlSignatureMethod(),
+                    ((Element) element.getElementsByTagNameNS(XMLSignature.XMLNS, "SignatureMethod").item(0)).getAttribute("Algorithm"));
+            assertTrue(AssertionUtil.isSignatureValid(element, keyPair.getPublic()));
+        }
+
+        String keyInfo = StreamingSAMLSignature.buildKeyInfo(null, null, keyPair.getPublic(), true);
+        assertTrue(keyInfo.contains("<dsig11:NamedCurve URI=\"urn:oid:1.2.840.10045.3.1.7\">"));
+    }
+
+    @Test
+    public void testHmacSamlTokenSignature() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, "email");
+
+        mockHelper.initializeMockValues();
+
+        SecretKey secret = KeyGenerator.getInstance("HmacSHA256").generateKey();
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        for (boolean streaming : new boolean[]{false, true}) {
+            RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper)
+                    .setSigningSecretKey(secret)
+                    .setSignatureAlgorithm(WSFedSignatureAlgorithm.HMAC_SHA256)
+                    .setStreamingSignature(streaming);
+            builder.setSamlToken(samlBuilder.build());
+
+            Object token = builder.build().getRequestedSecurityToken().getAny().get(0);
+            Element element = streaming ? ((SerializedElement) token).toDocument().getDocumentElement() : (Element) token;
+            element.setIdAttribute("ID", true);
+
+            //the KeyInfo only names the shared key
+            assertEquals(0, element.getElementsByTagNameNS(XMLSignature.XMLNS, "X509Data").getLength());
+            assertEquals(0, element.getElementsByTagNameNS(XMLSignature.XMLNS, "KeyValue").getLength());
+            assertEquals(mockHelper.getActiveKey().getKid(), element.getElementsByTagNameNS(XMLSignature.XMLNS, "KeyName").item(0).getTextContent());
+
+            DOMValidateContext context = new DOMValidateContext(secret, element.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0));
+            assertTrue(XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context).validate(context));
+        }
+    }
+
+    @Test
+    public void testAesGcmEncryption() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, "email");
+
+        mockHelper.initializeMockValues();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair clientKeyPair = generator.generateKeyPair();
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        RequestSecurityTokenResponseBuilder builder = getSigningBuilder(mockHelper)
+                .encrypt(clientKeyPair.getPublic())
+                .encryptionMethod(WSFedEncryptionAlgorithm.AES256_GCM)
+                .keyTransport(WSFedKeyTransport.RSA_OAEP);
+        builder.setSamlToken(samlBuilder.build());
+
+        Element encryptedData = (Element) builder.build().getRequestedSecurityToken().getAny().get(0);
+        assertEquals("EncryptedData", encryptedData.getLocalName());
+        NodeList methods = encryptedData.getElementsByTagNameNS(EncryptionConstants.EncryptionSpecNS, "EncryptionMethod");
+        assertEquals(2, methods.getLength());
+        assertEquals(XMLCipher.AES_256_GCM, ((Element) methods.item(0)).getAttribute("Algorithm"));
+        assertEquals(XMLCipher.RSA_OAEP, ((Element) methods.item(1)).getAttribute("Algorithm"));
+
+        XMLCipher cipher = XMLCipher.getInstance();
+        cipher.init(XMLCipher.DECRYPT_MODE, null);
+        cipher.setKEK(clientKeyPair.getPrivate());
+        Document decrypted = cipher.doFinal(encryptedData.getOwnerDocument(), encryptedData);
+        assertEquals("Assertion", decrypted.getDocumentElement().getLocalName());
+        assertTrue(AssertionUtil.isSignatureValid(decrypted.getDocumentElement(), mockHelper.getActiveKey().getPublicKey()));
+    }
+
     @Test
     public void testOIDCTokenGeneration() throws Exception {
         MockHelper mockHelper = TestHelpers.getMockHelper();
@@ -220,4 +518,17 @@ public class RequestSecurityTokenResponseBuilderTest {
         assertInputNodeMissing(doc, WSFedConstants.WSFED_REPLY);
         assertInputNode(doc, WSFedConstants.WSFED_CONTEXT, builder.getContext());
     }
-}
\ No newline at end of file
+
+    private RequestSecurityTokenResponseBuilder getSigningBuilder(MockHelper mockHelper) {
+        return new RequestSecurityTokenResponseBuilder()
+                .setRealm(mockHelper.getClientId())
+                .setAction(WSFedConstants.WSFED_SIGNIN_ACTION)
+                .setDestination("https://localhost:8443")
+                .setContext("context")
+                .setTokenExpiration(mockHelper.getAccessTokenLifespan())
+                .setRequestIssuer("https://issuer")
+                .setSigningKeyPair(new KeyPair(mockHelper.getActiveKey().getPublicKey(), mockHelper.getActiveKey().getPrivateKey()))
+                .setSigningCertificate(mockHelper.getActiveKey().getCertificate())
+                .setSigningKeyPairId(mockHelper.getActiveKey().getKid());
+    }
+}
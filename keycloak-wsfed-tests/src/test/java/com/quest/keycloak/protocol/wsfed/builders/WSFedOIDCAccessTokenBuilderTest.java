@@ -19,8 +19,13 @@ package com.quest.keycloak.protocol.wsfed.builders;
 import com.quest.keycloak.common.wsfed.MockHelper;
 import com.quest.keycloak.common.wsfed.TestHelpers;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedOIDCAccessTokenMapper;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import io.cloudtrust.exception.CloudtrustRuntimeException;
 import org.junit.Test;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.jose.jws.JWSHeader;
 import org.keycloak.jose.jws.JWSInput;
 import org.keycloak.models.ProtocolMapperModel;
@@ -32,8 +37,18 @@ import org.keycloak.util.JsonSerialization;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import javax.crypto.Mac;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
 import java.util.UUID;
 
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.eq;
@@ -115,4 +130,115 @@ public class WSFedOIDCAccessTokenBuilderTest {
         assertEquals("JWT", header.getType());
         assertEquals("RS256", header.getAlgorithm().name());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEcdsaSignature() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientSessionNotes().put(OIDCLoginProtocol.ISSUER, String.format("%s/realms/%s", mockHelper.getBaseUri(), mockHelper.getRealmName()));
+
+        mockHelper.initializeMockValues();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        KeyWrapper ecKey = new KeyWrapper();
+        ecKey.setKid(UUID.randomUUID().toString());
+        ecKey.setAlgorithm(Algorithm.ES256);
+        ecKey.setStatus(KeyStatus.ACTIVE);
+        ecKey.setPublicKey(keyPair.getPublic());
+        ecKey.setPrivateKey(keyPair.getPrivate());
+        when(mockHelper.getKeyManager().getActiveKey(eq(mockHelper.getRealm()), any(), eq(Algorithm.ES256))).thenReturn(ecKey);
+
+        WSFedOIDCAccessTokenBuilder oidcBuilder = new WSFedOIDCAccessTokenBuilder();
+        oidcBuilder.setSession(mockHelper.getSession())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClient(mockHelper.getClient())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setRealm(mockHelper.getRealm())
+                .setX5tIncluded(true)
+                .setSignatureAlgorithm(Algorithm.ES256);
+
+        JWSInput jws = new JWSInput(oidcBuilder.build());
+        String header = new String(Base64.decode(jws.getEncodedHeader()), "UTF-8");
+        assertThat(header, containsString("\"alg\":\"ES256\""));
+        assertThat(header, containsString(String.format("\"kid\":\"%s\"", ecKey.getKid())));
+        //no certificate, no thumbprint
+        assertThat(header, not(containsString("x5t")));
+
+        //JWS holds r and s on 32 bytes each
+        byte[] rs = jws.getSignature();
+        assertEquals(64, rs.length);
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(jws.getEncodedSignatureInput().getBytes(StandardCharsets.UTF_8));
+        assertTrue(verifier.verify(toDer(rs)));
+    }
+
+    @Test
+    public void testHmacSignature() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientSessionNotes().put(OIDCLoginProtocol.ISSUER, String.format("%s/realms/%s", mockHelper.getBaseUri(), mockHelper.getRealmName()));
+
+        mockHelper.initializeMockValues();
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        SigningKeyMaterial hmacKey = SigningKeyMaterial.fromSecret("client-secret", Algorithm.HS256, secret);
+
+        WSFedOIDCAccessTokenBuilder oidcBuilder = new WSFedOIDCAccessTokenBuilder();
+        oidcBuilder.setSession(mockHelper.getSession())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClient(mockHelper.getClient())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setRealm(mockHelper.getRealm())
+                .setSignatureAlgorithm(Algorithm.HS256)
+                .setSigningKey(hmacKey);
+
+        JWSInput jws = new JWSInput(oidcBuilder.build());
+        assertEquals("HS256", jws.getHeader().getAlgorithm().name());
+        assertEquals("client-secret", jws.getHeader().getKeyId());
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(hmacKey.getSecretKey());
+        assertArrayEquals(mac.doFinal(jws.getEncodedSignatureInput().getBytes(StandardCharsets.UTF_8)), jws.getSignature());
+    }
+
+    @Test(expected = CloudtrustRuntimeException.class)
+    public void testHmacSignatureRequiresClientSecret() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+
+        mockHelper.getClientSessionNotes().put(OIDCLoginProtocol.ISSUER, String.format("%s/realms/%s", mockHelper.getBaseUri(), mockHelper.getRealmName()));
+
+        mockHelper.initializeMockValues();
+
+        // the realm has an active HS256 key, which must not be used
+        WSFedOIDCAccessTokenBuilder oidcBuilder = new WSFedOIDCAccessTokenBuilder();
+        oidcBuilder.setSession(mockHelper.getSession())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClient(mockHelper.getClient())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setRealm(mockHelper.getRealm())
+                .setSignatureAlgorithm(Algorithm.HS256);
+        oidcBuilder.build();
+    }
+
+    private static byte[] toDer(byte[] rs) {
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(rs, 0, rs.length / 2)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(rs, rs.length / 2, rs.length)).toByteArray();
+        byte[] der = new byte[6 + r.length + s.length];
+        der[0] = 0x30;
+        der[1] = (byte) (4 + r.length + s.length);
+        der[2] = 0x02;
+        der[3] = (byte) r.length;
+        System.arraycopy(r, 0, der, 4, r.length);
+        der[4 + r.length] = 0x02;
+        der[5 + r.length] = (byte) s.length;
+        System.arraycopy(s, 0, der, 6 + r.length, s.length);
+        return der;
+    }
+}
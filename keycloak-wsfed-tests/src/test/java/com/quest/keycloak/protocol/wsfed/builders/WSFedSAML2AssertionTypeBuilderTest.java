@@ -18,6 +18,7 @@ package com.quest.keycloak.protocol.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.MockHelper;
 import com.quest.keycloak.common.wsfed.TestHelpers;
+import com.quest.keycloak.protocol.wsfed.WSFedSessionNotes;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLAttributeStatementMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLRoleListMapper;
 import org.junit.Test;
@@ -29,6 +30,7 @@ import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
+import org.mockito.ArgumentCaptor;
 
 import java.net.URI;
 import java.util.UUID;
@@ -95,8 +97,12 @@ public class WSFedSAML2AssertionTypeBuilderTest {
         assertEquals(mockHelper.getClientId(), ((AudienceRestrictionType) token.getConditions().getConditions().get(0)).getAudience().get(0).toString());
 
         AuthenticatedClientSessionModel clientSession = mockHelper.getClientSessionModel();
-        verify(clientSession, times(1)).setNote(WSFedSAML2AssertionTypeBuilder.WSFED_NAME_ID, mockHelper.getEmail());
-        verify(clientSession, times(1)).setNote(WSFedSAML2AssertionTypeBuilder.WSFED_NAME_ID_FORMAT, mockHelper.getClientSessionNotes().get(GeneralConstants.NAMEID_FORMAT));
+        ArgumentCaptor<String> packedNotes = ArgumentCaptor.forClass(String.class);
+        verify(clientSession, times(1)).setNote(eq(WSFedSessionNotes.PACKED_NOTE), packedNotes.capture());
+        AuthenticatedClientSessionModel written = mock(AuthenticatedClientSessionModel.class);
+        when(written.getNote(WSFedSessionNotes.PACKED_NOTE)).thenReturn(packedNotes.getValue());
+        assertEquals(mockHelper.getEmail(), WSFedSessionNotes.of(written).get(WSFedSAML2AssertionTypeBuilder.WSFED_NAME_ID));
+        assertEquals(mockHelper.getClientSessionNotes().get(GeneralConstants.NAMEID_FORMAT), WSFedSessionNotes.of(written).get(WSFedSAML2AssertionTypeBuilder.WSFED_NAME_ID_FORMAT));
 
         verify(roleListMapper, times(1)).mapRoles(org.mockito.Mockito.any(AttributeStatementType.class), eq(roleMappingModel), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
         verify(attributeMapper, times(1)).transformAttributeStatement(org.mockito.Mockito.any(AttributeStatementType.class), eq(attributeMappingModel), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
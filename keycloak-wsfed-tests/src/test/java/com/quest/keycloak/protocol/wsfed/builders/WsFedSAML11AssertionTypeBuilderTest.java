@@ -20,6 +20,8 @@ package com.quest.keycloak.protocol.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.MockHelper;
 import com.quest.keycloak.common.wsfed.TestHelpers;
+import com.quest.keycloak.protocol.wsfed.WSFedSessionNotes;
+import com.quest.keycloak.protocol.wsfed.mappers.SAMLExpressionMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.SAMLGroupMembershipMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.SAMLRoleListMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.SAMLScriptBasedMapper;
@@ -42,6 +44,7 @@ import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
+import org.mockito.ArgumentCaptor;
 import org.mockito.MockitoAnnotations;
 
 import java.net.URI;
@@ -143,8 +146,12 @@ public class WsFedSAML11AssertionTypeBuilderTest {
         assertEquals(authType.getSubject().getSubjectConfirmation().getConfirmationMethod().get(0), URI.create("urn:oasis:names:tc:SAML:1.0:cm:bearer"));
 
         AuthenticatedClientSessionModel clientSession = mockHelper.getClientSessionModel();
-        verify(clientSession, times(1)).setNote(WsFedSAML11AssertionTypeBuilder.WSFED_NAME_ID, mockHelper.getUserName());
-        verify(clientSession, times(1)).setNote(WSFED_NAME_ID_FORMAT, mockHelper.getClientSessionNotes().get(GeneralConstants.NAMEID_FORMAT));
+        ArgumentCaptor<String> packedNotes = ArgumentCaptor.forClass(String.class);
+        verify(clientSession, times(1)).setNote(eq(WSFedSessionNotes.PACKED_NOTE), packedNotes.capture());
+        AuthenticatedClientSessionModel written = mock(AuthenticatedClientSessionModel.class);
+        when(written.getNote(WSFedSessionNotes.PACKED_NOTE)).thenReturn(packedNotes.getValue());
+        assertEquals(mockHelper.getUserName(), WSFedSessionNotes.of(written).get(WsFedSAML11AssertionTypeBuilder.WSFED_NAME_ID));
+        assertEquals(mockHelper.getClientSessionNotes().get(GeneralConstants.NAMEID_FORMAT), WSFedSessionNotes.of(written).get(WSFED_NAME_ID_FORMAT));
 
         verify(roleListMapper, times(1)).mapRoles(any(AttributeStatementType.class), eq(roleMappingModel), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
         verify(attributeMapper, times(1)).transformAttributeStatement(any(AttributeStatementType.class), eq(attributeMappingModel), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
@@ -552,6 +559,44 @@ public class WsFedSAML11AssertionTypeBuilderTest {
         assertTrue(attributeValues.contains("morph-group3"));
     }
 
+    @Test
+    public void testSAMLTokenGenerationExpressionMorphedGroup() throws ConfigurationException {
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get());
+
+        // same result as the javascript mapper of testSAMLTokenGenerationJSMorphedGroupArrayMultiple
+        WSFedSAMLAttributeStatementMapper expressionMapper = new SAMLExpressionMapper();
+        ProtocolMapperModel attributeExpression = SAMLExpressionMapper.create("Expression mapper", "morphedGroup", "basic", null,
+                "'morph-' + startsWith(groups, 'group')", false);
+        attributeExpression.setId(UUID.randomUUID().toString());
+        mockHelper.getProtocolMappers().put(attributeExpression, expressionMapper);
+
+        mockHelper.initializeMockValues();
+
+        //SAML Token generation
+        WsFedSAML11AssertionTypeBuilder samlBuilder = new WsFedSAML11AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        SAML11AssertionType token = samlBuilder.build();
+
+        assertTrue(token.getStatements().get(0) instanceof SAML11AttributeStatementType);
+        SAML11AttributeStatementType attributesStatements = (SAML11AttributeStatementType)token.getStatements().get(0);
+        assertEquals(3, attributesStatements.get().size());
+        Set<String> attributeNameSet = attributesStatements.get().stream().map(attribute -> attribute.getAttributeName()).collect(Collectors.toSet());
+        assertEquals(Collections.singleton("morphedGroup"), attributeNameSet);
+
+        List<String> attributeValues = attributesStatements.get().stream().flatMap(attributeList ->
+                attributeList.get().stream().map(attributeValue -> (String)attributeValue)).collect(Collectors.toList());
+
+        assertTrue(attributeValues.contains("morph-group1"));
+        assertTrue(attributeValues.contains("morph-group2"));
+        assertTrue(attributeValues.contains("morph-group3"));
+    }
+
     @Test
     public void testSAMLTokenGenerationJSMorphedGroupListSingle() throws ConfigurationException {
         mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get());
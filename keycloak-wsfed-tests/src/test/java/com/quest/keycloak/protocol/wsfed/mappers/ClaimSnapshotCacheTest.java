@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ClaimSnapshotCacheTest {
+
+    private ClaimSnapshotCache cache;
+    private RealmModel realm;
+    private Map<String, String> notes;
+    private UserSessionModel userSession;
+    private UserModel user;
+    private ClientModel client;
+    private RoleModel realmRole;
+    private RoleModel clientRole;
+    private GroupModel group;
+
+    @Before
+    public void setUp() {
+        cache = new ClaimSnapshotCache(2, 60000);
+
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+        when(realm.getEventsListeners()).thenReturn(Collections.singleton(ClaimSnapshotEventListenerProviderFactory.PROVIDER_ID));
+        client = mock(ClientModel.class);
+        when(client.getId()).thenReturn(UUID.randomUUID().toString());
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_CLAIM_SNAPSHOT)).thenReturn("true");
+
+        realmRole = createRole("admin", false, realm.getId());
+        clientRole = createRole("reader", true, client.getId());
+        group = mock(GroupModel.class);
+        when(group.getId()).thenReturn(UUID.randomUUID().toString());
+        when(group.getName()).thenReturn("staff");
+        when(group.getRoleMappings()).thenReturn(Collections.emptySet());
+
+        user = mock(UserModel.class);
+        when(user.getId()).thenReturn(UUID.randomUUID().toString());
+        when(user.getRoleMappings()).thenReturn(new HashSet<>(Arrays.asList(realmRole, clientRole)));
+        when(user.getGroups()).thenReturn(Collections.singleton(group));
+
+        userSession = mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn(UUID.randomUUID().toString());
+        when(userSession.getUser()).thenReturn(user);
+        when(userSession.getRealm()).thenReturn(realm);
+        notes = new HashMap<>();
+        when(userSession.getNote(anyString())).thenAnswer(invocation -> notes.get(invocation.getArguments()[0]));
+        doAnswer(invocation -> notes.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]))
+                .when(userSession).setNote(anyString(), anyString());
+    }
+
+    @Test
+    public void testSnapshotIsReusedAcrossSignIns() {
+        ClaimSnapshot snapshot = cache.getSnapshot(userSession, client);
+
+        assertEquals(Collections.singletonList("admin"), snapshot.getRealmRoles());
+        assertEquals(Collections.singletonList("reader"), snapshot.getClientRoles(client.getId()));
+        assertEquals(Collections.singletonList("staff"), snapshot.getGroups());
+        assertEquals(Collections.singletonList("/staff"), snapshot.getGroupPaths());
+
+        // the next sign-ins only check the direct role mappings and groups, without computing the role closure again
+        String groupId = group.getId();
+        reset(group);
+        when(group.getId()).thenReturn(groupId);
+        assertSame(snapshot, cache.getSnapshot(userSession, client));
+        verify(group, never()).getRoleMappings();
+        verify(group, never()).getName();
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testSnapshotIsStoredInTheUserSession() {
+        ClaimSnapshot snapshot = cache.getSnapshot(userSession, client);
+        assertNotNull(notes.get(ClaimSnapshotCache.SNAPSHOT_NOTE));
+
+        // another node
+        ClaimSnapshot read = new ClaimSnapshotCache(2, 60000).getSnapshot(userSession, client);
+        assertNotSame(snapshot, read);
+        assertEquals(snapshot.getRealmRoles(), read.getRealmRoles());
+        assertEquals(snapshot.getClientRoles(client.getId()), read.getClientRoles(client.getId()));
+        assertEquals(snapshot.getGroupPaths(), read.getGroupPaths());
+        verify(userSession, times(1)).setNote(eq(ClaimSnapshotCache.SNAPSHOT_NOTE), anyString());
+    }
+
+    @Test
+    public void testRevocationOnAnotherNode() {
+        ClaimSnapshot snapshot = cache.getSnapshot(userSession, client);
+        ClaimSnapshotCache otherNode = new ClaimSnapshotCache(2, 60000);
+        assertEquals(snapshot.getRealmRoles(), otherNode.getSnapshot(userSession, client).getRealmRoles());
+
+        // revoked on the first node, without any event on the other one
+        when(user.getRoleMappings()).thenReturn(Collections.singleton(clientRole));
+        assertEquals(Collections.emptyList(), otherNode.getSnapshot(userSession, client).getRealmRoles());
+        // the note written by the other node is up to date
+        ClaimSnapshot read = new ClaimSnapshotCache(2, 60000).getSnapshot(userSession, client);
+        assertEquals(Collections.emptyList(), read.getRealmRoles());
+    }
+
+    @Test
+    public void testSnapshotExpires() {
+        ClaimSnapshotCache expiring = new ClaimSnapshotCache(2, 0);
+        ClaimSnapshot snapshot = expiring.getSnapshot(userSession, client);
+
+        when(user.getRoleMappings()).thenReturn(Collections.singleton(clientRole));
+        ClaimSnapshot changed = expiring.getSnapshot(userSession, client);
+        assertNotSame(snapshot, changed);
+        assertEquals(Collections.emptyList(), changed.getRealmRoles());
+    }
+
+    @Test
+    public void testInvalidateUser() throws Exception {
+        ClaimSnapshot snapshot = cache.getSnapshot(userSession, client);
+        Thread.sleep(2);
+        cache.invalidateUser(user.getId());
+        assertEquals(0, cache.size());
+        // the snapshot stored in the user session is stale as well
+        assertNotSame(snapshot, cache.getSnapshot(userSession, client));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testRealmWithoutEventListener() {
+        when(realm.getEventsListeners()).thenReturn(Collections.singleton("jboss-logging"));
+        assertNull(cache.getSnapshot(userSession, client));
+        assertNull(notes.get(ClaimSnapshotCache.SNAPSHOT_NOTE));
+    }
+
+    @Test
+    public void testDisabledClient() {
+        when(client.getAttribute(WSFedLoginProtocol.WSFED_CLAIM_SNAPSHOT)).thenReturn(null);
+        assertNull(cache.getSnapshot(userSession, client));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testUserIdOfAdminEvents() {
+        String userId = UUID.randomUUID().toString();
+        assertEquals(userId, ClaimSnapshotEventListenerProviderFactory.getUserId("users/" + userId + "/role-mappings/realm"));
+        assertEquals(userId, ClaimSnapshotEventListenerProviderFactory.getUserId("users/" + userId));
+        assertNull(ClaimSnapshotEventListenerProviderFactory.getUserId("roles-by-id/" + userId));
+    }
+
+    private static RoleModel createRole(String name, boolean clientRole, String containerId) {
+        RoleModel role = mock(RoleModel.class);
+        when(role.getId()).thenReturn(UUID.randomUUID().toString());
+        when(role.getName()).thenReturn(name);
+        when(role.isClientRole()).thenReturn(clientRole);
+        when(role.getContainerId()).thenReturn(containerId);
+        return role;
+    }
+}
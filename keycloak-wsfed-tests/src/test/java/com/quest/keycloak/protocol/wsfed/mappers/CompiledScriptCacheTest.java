@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.scripting.DefaultScriptingProviderFactory;
+import org.keycloak.scripting.ScriptingProvider;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CompiledScriptCacheTest {
+
+    private CompiledScriptCache cache;
+    private KeycloakSession session;
+    private RealmModel realm;
+
+    @Before
+    public void setUp() {
+        cache = new CompiledScriptCache(2);
+        session = mock(KeycloakSession.class);
+        when(session.getProvider(ScriptingProvider.class)).thenReturn(new DefaultScriptingProviderFactory().create(session));
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void testScriptIsCompiledOnce() {
+        ProtocolMapperModel mapper = createMapper();
+
+        CompiledScriptCache.CachedScript script = cache.getScript(session, realm, mapper, "'a' + 'b';");
+        assertSame(script, cache.getScript(session, realm, mapper, "'a' + 'b';"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        assertEquals("ab", script.eval(bindings -> { }));
+        assertEquals(1, script.getEvaluationCount());
+    }
+
+    @Test
+    public void testChangedScriptIsCompiledAgain() {
+        ProtocolMapperModel mapper = createMapper();
+        CompiledScriptCache.CachedScript script = cache.getScript(session, realm, mapper, "'a';");
+
+        CompiledScriptCache.CachedScript changed = cache.getScript(session, realm, mapper, "'b';");
+        assertNotSame(script, changed);
+        assertEquals("b", changed.eval(bindings -> { }));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testBindings() {
+        CompiledScriptCache.CachedScript script = cache.getScript(session, realm, createMapper(), "value * 2;");
+
+        assertEquals(4, ((Number) script.eval(bindings -> bindings.put("value", 2))).intValue());
+        assertEquals(6, ((Number) script.eval(bindings -> bindings.put("value", 3))).intValue());
+    }
+
+    @Test
+    public void testEvaluationIsTimedOnce() {
+        CompiledScriptCache.CachedScript script = cache.getScript(session, realm, createMapper(), "'a';");
+        AtomicLong nanos = new AtomicLong(-1);
+
+        assertEquals("a", script.eval(bindings -> { }, nanos::set));
+        assertTrue(nanos.get() >= 0);
+        assertEquals(nanos.get(), script.getEvaluationNanos());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedScriptIsEvicted() {
+        ProtocolMapperModel first = createMapper();
+        ProtocolMapperModel second = createMapper();
+        CompiledScriptCache.CachedScript firstScript = cache.getScript(session, realm, first, "1;");
+        CompiledScriptCache.CachedScript secondScript = cache.getScript(session, realm, second, "2;");
+
+        cache.getScript(session, realm, first, "1;");
+        cache.getScript(session, realm, createMapper(), "3;");
+
+        assertEquals(2, cache.size());
+        assertSame(firstScript, cache.getScript(session, realm, first, "1;"));
+        assertNotSame(secondScript, cache.getScript(session, realm, second, "2;"));
+    }
+
+    @Test
+    public void testInvalidateRealm() {
+        ProtocolMapperModel mapper = createMapper();
+        CompiledScriptCache.CachedScript script = cache.getScript(session, realm, mapper, "1;");
+
+        cache.invalidateRealm(realm.getId());
+        assertEquals(0, cache.size());
+        assertNotSame(script, cache.getScript(session, realm, mapper, "1;"));
+    }
+
+    private static ProtocolMapperModel createMapper() {
+        ProtocolMapperModel mapper = SAMLScriptBasedMapper.create("script mapper", "attribute", "basic", null, "", false);
+        mapper.setId(UUID.randomUUID().toString());
+        return mapper;
+    }
+}
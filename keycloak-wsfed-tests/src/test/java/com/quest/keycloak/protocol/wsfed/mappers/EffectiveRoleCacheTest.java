@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EffectiveRoleCacheTest {
+
+    private RealmModel realm;
+    private UserModel user;
+    private RoleModel composite;
+    private RoleModel child;
+
+    @Before
+    public void setUp() {
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+
+        child = createRole("reader");
+        composite = createRole("admin");
+        when(composite.isComposite()).thenReturn(true);
+        when(composite.getComposites()).thenReturn(Collections.singleton(child));
+
+        user = mock(UserModel.class);
+        when(user.getId()).thenReturn(UUID.randomUUID().toString());
+        when(user.getRoleMappings()).thenReturn(Collections.singleton(composite));
+        when(user.getGroups()).thenReturn(Collections.emptySet());
+    }
+
+    @Test
+    public void testCompositeRolesAreExpandedOnce() {
+        EffectiveRoleCache cache = new EffectiveRoleCache(2, EffectiveRoleCache.DEFAULT_MAX_AGE);
+        EffectiveRoleCache.EffectiveRoles roles = cache.getRoles(realm, user);
+
+        assertEquals(new HashSet<>(Arrays.asList("admin", "reader")), names(roles));
+        assertSame(roles, cache.getRoles(realm, user));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testRoleNamesAreInterned() {
+        EffectiveRoleCache.EffectiveRoles roles = new EffectiveRoleCache(2, EffectiveRoleCache.DEFAULT_MAX_AGE).getRoles(realm, user);
+        for (int i = 0; i < roles.size(); i++) {
+            assertSame(roles.getName(i).intern(), roles.getName(i));
+        }
+    }
+
+    @Test
+    public void testChangedRoleMappingsAreSeen() {
+        EffectiveRoleCache cache = new EffectiveRoleCache(2, EffectiveRoleCache.DEFAULT_MAX_AGE);
+        cache.getRoles(realm, user);
+
+        when(user.getRoleMappings()).thenReturn(Collections.singleton(child));
+        assertEquals(Collections.singleton("reader"), names(cache.getRoles(realm, user)));
+    }
+
+    @Test
+    public void testExpiredRolesAreComputedAgain() {
+        EffectiveRoleCache cache = new EffectiveRoleCache(2, -1);
+        assertNotSame(cache.getRoles(realm, user), cache.getRoles(realm, user));
+    }
+
+    @Test
+    public void testInvalidateUser() {
+        EffectiveRoleCache cache = new EffectiveRoleCache(2, EffectiveRoleCache.DEFAULT_MAX_AGE);
+        cache.getRoles(realm, user);
+        cache.invalidateUser(realm.getId(), user.getId());
+        assertEquals(0, cache.size());
+    }
+
+    private static HashSet<String> names(EffectiveRoleCache.EffectiveRoles roles) {
+        HashSet<String> names = new HashSet<>();
+        for (int i = 0; i < roles.size(); i++) {
+            names.add(roles.getName(i));
+        }
+        return names;
+    }
+
+    private static RoleModel createRole(String name) {
+        RoleModel role = mock(RoleModel.class);
+        when(role.getId()).thenReturn(UUID.randomUUID().toString());
+        // a new string, to check the interning
+        when(role.getName()).thenReturn(new String(name));
+        return role;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GroupPathIndexTest {
+
+    private GroupPathIndex index;
+    private RealmModel realm;
+    private GroupModel root;
+    private GroupModel parent;
+    private GroupModel child1;
+    private GroupModel child2;
+
+    @Before
+    public void setUp() {
+        index = new GroupPathIndex(GroupPathIndex.DEFAULT_MAX_AGE);
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+
+        root = group("applications", null);
+        parent = group("crm", root);
+        child1 = group("readers", parent);
+        child2 = group("writers", parent);
+    }
+
+    @Test
+    public void testPathsAreBuiltFromTheIndexedAncestors() {
+        assertEquals(Arrays.asList("/applications/crm/readers", "/applications/crm/writers"),
+                index.getPaths(realm, Arrays.asList(child1, child2)));
+        assertEquals("/applications", index.getPath(realm, root));
+        assertEquals(4, index.size(realm.getId()));
+
+        // the chain above the children was only walked once
+        verify(parent, times(1)).getParent();
+    }
+
+    @Test
+    public void testRenamedGroupIsIndexedAgain() {
+        index.getPath(realm, child1);
+        when(child1.getName()).thenReturn("viewers");
+        assertEquals("/applications/crm/viewers", index.getPath(realm, child1));
+    }
+
+    @Test
+    public void testInvalidateGroupRemovesTheDescendants() {
+        index.getPaths(realm, Arrays.asList(child1, child2));
+        GroupModel other = group("other", null);
+        index.getPath(realm, other);
+
+        index.invalidateGroup(realm.getId(), parent.getId());
+        assertEquals(2, index.size(realm.getId()));
+
+        when(parent.getName()).thenReturn("sales");
+        assertEquals("/applications/sales/readers", index.getPath(realm, child1));
+    }
+
+    @Test
+    public void testExpiredIndexIsRebuilt() {
+        index = new GroupPathIndex(-1);
+        index.getPath(realm, child1);
+        when(parent.getName()).thenReturn("sales");
+        assertEquals("/applications/sales/readers", index.getPath(realm, child1));
+    }
+
+    @Test
+    public void testRealmWithoutIdIsNotIndexed() {
+        RealmModel transientRealm = mock(RealmModel.class);
+        assertEquals(Collections.singletonList("/applications/crm"), index.getPaths(transientRealm, Collections.singletonList(parent)));
+        assertEquals(0, index.size(realm.getId()));
+    }
+
+    private static GroupModel group(String name, GroupModel parent) {
+        GroupModel group = mock(GroupModel.class);
+        when(group.getId()).thenReturn(UUID.randomUUID().toString());
+        when(group.getName()).thenReturn(name);
+        if (parent != null) {
+            when(group.getParent()).thenReturn(parent);
+            when(group.getParentId()).thenReturn(parent.getId());
+        }
+        return group;
+    }
+}
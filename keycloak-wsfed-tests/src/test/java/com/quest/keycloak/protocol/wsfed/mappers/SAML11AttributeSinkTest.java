@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.junit.Test;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertSame;
+
+public class SAML11AttributeSinkTest {
+
+    @Test
+    public void testAddAttribute() {
+        SAML11AttributeSink sink = new SAML11AttributeSink(new SAML11AttributeStatementType());
+        sink.addAttribute("email", null, "john@example.com");
+        sink.addAttribute("group", "urn:groups", Arrays.asList("a", "b"));
+
+        assertThat(sink.getAttributeStatement().get().size(), is(2));
+        SAML11AttributeType email = sink.getAttributeStatement().get().get(0);
+        assertThat(email.getAttributeName(), is("email"));
+        assertThat(email.getAttributeNamespace(), is(URI.create(SAML11AttributeSink.DEFAULT_NAMESPACE)));
+        assertThat(email.get(), is(Arrays.<Object>asList("john@example.com")));
+
+        SAML11AttributeType group = sink.getAttributeStatement().get().get(1);
+        assertThat(group.getAttributeNamespace(), is(URI.create("urn:groups")));
+        assertThat(group.get(), is(Arrays.<Object>asList("a", "b")));
+    }
+
+    @Test
+    public void testAddAllConvertsTheSAML2Attributes() {
+        AttributeType role = new AttributeType("Role");
+        role.setFriendlyName("urn:roles");
+        role.addAttributeValue("admin");
+        AttributeStatementType saml2 = new AttributeStatementType();
+        saml2.addAttribute(new AttributeStatementType.ASTChoiceType(role));
+
+        SAML11AttributeSink sink = new SAML11AttributeSink(new SAML11AttributeStatementType());
+        sink.addAll(saml2, true);
+
+        SAML11AttributeType attribute = sink.getAttributeStatement().get().get(0);
+        assertThat(attribute.getAttributeName(), is("role"));
+        assertThat(attribute.getAttributeNamespace(), is(URI.create("urn:roles")));
+        assertThat(attribute.get(), is(Arrays.<Object>asList("admin")));
+    }
+
+    @Test
+    public void testNamespacesAreShared() {
+        assertSame(SAML11AttributeSink.getNamespace("urn:shared"), SAML11AttributeSink.getNamespace("urn:shared"));
+        assertSame(SAML11AttributeSink.getNamespace(null), SAML11AttributeSink.getNamespace(""));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SAMLGroupMembershipMapperTest {
+
+    private static final List<String> NAMES = Arrays.asList("readers", "staff", "writers");
+    private static final List<String> PATHS = Arrays.asList("/applications/crm/readers", "/staff", "/applications/crm/writers");
+
+    @Test
+    public void testAllGroupsAreSelectedByDefault() {
+        ProtocolMapperModel mapper = SAMLGroupMembershipMapper.create("groups", "groups", null, null, true);
+        mapper.getConfig().put("full.path", "false");
+        assertEquals(Arrays.asList("readers", "writers", "staff"), SAMLGroupMembershipMapper.selectGroups(mapper, NAMES, PATHS));
+
+        mapper.getConfig().put("full.path", "true");
+        assertEquals(Arrays.asList("/applications/crm/readers", "/applications/crm/writers", "/staff"),
+                SAMLGroupMembershipMapper.selectGroups(mapper, NAMES, PATHS));
+    }
+
+    @Test
+    public void testPrefixAndMaximum() {
+        ProtocolMapperModel mapper = SAMLGroupMembershipMapper.create("groups", "groups", null, null, true);
+        mapper.getConfig().put("full.path", "false");
+        mapper.getConfig().put("group.path_prefix", "/applications/");
+        assertEquals(Arrays.asList("readers", "writers"), SAMLGroupMembershipMapper.selectGroups(mapper, NAMES, PATHS));
+
+        mapper.getConfig().put("group.max_values", "1");
+        assertEquals(Collections.singletonList("readers"), SAMLGroupMembershipMapper.selectGroups(mapper, NAMES, PATHS));
+    }
+
+    @Test
+    public void testMaximumKeepsTheFirstPaths() {
+        ProtocolMapperModel mapper = SAMLGroupMembershipMapper.create("groups", "groups", null, null, true);
+        mapper.getConfig().put("full.path", "false");
+        mapper.getConfig().put("group.max_values", "2");
+        List<String> names = Arrays.asList("writers", "staff", "readers");
+        List<String> paths = Arrays.asList("/applications/crm/writers", "/staff", "/applications/crm/readers");
+        assertEquals(Arrays.asList("readers", "writers"), SAMLGroupMembershipMapper.selectGroups(mapper, names, paths));
+    }
+}
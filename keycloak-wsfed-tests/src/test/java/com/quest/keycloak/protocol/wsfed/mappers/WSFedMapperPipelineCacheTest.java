@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapper;
+import org.keycloak.protocol.saml.mappers.SAMLRoleNameMapper;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class WSFedMapperPipelineCacheTest {
+
+    private final WSFedMapperPipelineCache cache = WSFedMapperPipelineCache.getInstance();
+
+    private KeycloakSession session;
+    private KeycloakSessionFactory sessionFactory;
+    private ClientModel client;
+    private Set<ProtocolMapperModel> mappings;
+
+    @Before
+    public void setUp() {
+        session = mock(KeycloakSession.class);
+        sessionFactory = mock(KeycloakSessionFactory.class);
+        when(session.getKeycloakSessionFactory()).thenReturn(sessionFactory);
+        client = mock(ClientModel.class);
+        when(client.getId()).thenReturn(UUID.randomUUID().toString());
+        mappings = new HashSet<>();
+        when(client.getProtocolMappers()).thenReturn(mappings);
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Test
+    public void testMappersAreSplitByKind() {
+        WSFedSAMLAttributeStatementMapper attributeMapper = mock(WSFedSAMLAttributeStatementMapper.class);
+        WSFedSAMLRoleListMapper roleListMapper = mock(WSFedSAMLRoleListMapper.class);
+        SAMLRoleNameMapper roleNameMapper = mock(SAMLRoleNameMapper.class, withSettings().extraInterfaces(ProtocolMapper.class));
+        WSFedOIDCAccessTokenMapper accessTokenMapper = mock(WSFedOIDCAccessTokenMapper.class);
+        ProtocolMapperModel attributeModel = addMapper(attributeMapper);
+        ProtocolMapperModel roleListModel = addMapper(roleListMapper);
+        ProtocolMapperModel roleNameModel = addMapper((ProtocolMapper) roleNameMapper);
+        ProtocolMapperModel accessTokenModel = addMapper(accessTokenMapper);
+        addMapper(null);
+
+        WSFedMapperPipeline pipeline = cache.getPipeline(session, client);
+
+        assertEquals(1, pipeline.getAttributeStatementMappers().size());
+        assertSame(attributeMapper, pipeline.getAttributeStatementMappers().get(0).mapper);
+        assertSame(attributeModel, pipeline.getAttributeStatementMappers().get(0).model);
+        assertSame(roleListMapper, pipeline.getRoleListMapper().mapper);
+        assertSame(roleListModel, pipeline.getRoleListMapper().model);
+        assertEquals(1, pipeline.getRoleNameMappers().size());
+        assertSame(roleNameMapper, pipeline.getRoleNameMappers().get(0).mapper);
+        assertSame(roleNameModel, pipeline.getRoleNameMappers().get(0).model);
+        assertEquals(1, pipeline.getAccessTokenMappers().size());
+        assertSame(accessTokenMapper, pipeline.getAccessTokenMappers().get(0).mapper);
+        assertSame(accessTokenModel, pipeline.getAccessTokenMappers().get(0).model);
+    }
+
+    @Test
+    public void testPipelineIsResolvedOnce() {
+        ProtocolMapperModel model = addMapper(mock(WSFedSAMLAttributeStatementMapper.class));
+
+        WSFedMapperPipeline pipeline = cache.getPipeline(session, client);
+        assertSame(pipeline, cache.getPipeline(session, client));
+        verify(sessionFactory, times(1)).getProviderFactory(ProtocolMapper.class, model.getProtocolMapper());
+    }
+
+    @Test
+    public void testChangedMappersAreResolvedAgain() {
+        addMapper(mock(WSFedSAMLAttributeStatementMapper.class));
+        WSFedMapperPipeline pipeline = cache.getPipeline(session, client);
+
+        addMapper(mock(WSFedSAMLRoleListMapper.class));
+        WSFedMapperPipeline changed = cache.getPipeline(session, client);
+        assertNotSame(pipeline, changed);
+        assertEquals(1, changed.getAttributeStatementMappers().size());
+        assertSame(changed, cache.getPipeline(session, client));
+    }
+
+    @Test
+    public void testEqualMappersAreNotResolvedAgain() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+        model.setId(UUID.randomUUID().toString());
+        model.setName("email");
+        model.setProtocolMapper(UUID.randomUUID().toString());
+        model.setConfig(Collections.singletonMap("attribute.name", "email"));
+        mappings.add(model);
+        WSFedMapperPipeline pipeline = cache.getPipeline(session, client);
+
+        // the same mapper, loaded again from the database
+        ProtocolMapperModel copy = new ProtocolMapperModel();
+        copy.setId(model.getId());
+        copy.setName(model.getName());
+        copy.setProtocolMapper(model.getProtocolMapper());
+        copy.setConfig(Collections.singletonMap("attribute.name", "email"));
+        mappings.clear();
+        mappings.add(copy);
+        assertSame(pipeline, cache.getPipeline(session, client));
+
+        copy.setConfig(Collections.singletonMap("attribute.name", "mail"));
+        assertNotSame(pipeline, cache.getPipeline(session, client));
+    }
+
+    @Test
+    public void testInvalidate() {
+        addMapper(mock(WSFedSAMLRoleListMapper.class));
+        WSFedMapperPipeline pipeline = cache.getPipeline(session, client);
+
+        cache.invalidate(client.getId());
+        assertNotSame(pipeline, cache.getPipeline(session, client));
+    }
+
+    @Test
+    public void testTransientClientIsNotCached() {
+        when(client.getId()).thenReturn(null);
+
+        WSFedMapperPipeline pipeline = cache.getPipeline(session, client);
+        assertNull(pipeline.getRoleListMapper());
+        assertNotSame(pipeline, cache.getPipeline(session, client));
+    }
+
+    private ProtocolMapperModel addMapper(ProtocolMapper mapper) {
+        ProtocolMapperModel model = mock(ProtocolMapperModel.class);
+        String providerId = UUID.randomUUID().toString();
+        when(model.getProtocolMapper()).thenReturn(providerId);
+        when(sessionFactory.getProviderFactory(eq(ProtocolMapper.class), eq(providerId))).thenReturn(mapper);
+        mappings.add(model);
+        return model;
+    }
+}
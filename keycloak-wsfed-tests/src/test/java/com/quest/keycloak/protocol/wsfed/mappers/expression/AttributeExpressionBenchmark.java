@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers.expression;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compares the evaluation time of the expression mapper with the one of the script mapper, on the same mappings.
+ *
+ * This is not a unit test, and isn't run by the build: run its main method from the IDE, with the number of measured
+ * iterations as optional argument. The script is compiled once and evaluated with new bindings each time, as the
+ * script mapper does with the {@code CompiledScriptCache}. The user is a plain proxy rather than a mock, whose
+ * bookkeeping would dominate the measure.
+ */
+public class AttributeExpressionBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    private static final String[][] SCENARIOS = {
+            {
+                    "email",
+                    "lower(firstName + '.' + lastName) + '@example.com'",
+                    "(user.getFirstName() + '.' + user.getLastName()).toLowerCase() + '@example.com'"
+            },
+            {
+                    "app groups",
+                    "join(sort(substringAfter(startsWith(groups, 'app-'), 'app-')), ';')",
+                    "var names = []; for each (var group in user.getGroups()) { var name = group.getName();"
+                            + " if (name.startsWith('app-')) { names.push(name.substring(4)); } } names.sort().join(';')"
+            },
+            {
+                    "attribute",
+                    "upper(trim(first(attribute('department'))))",
+                    "var values = user.getAttribute('department'); values.isEmpty() ? null : values.get(0).trim().toUpperCase()"
+            }
+    };
+
+    // keeps the results alive so that the evaluations aren't optimized away
+    private static volatile int sink;
+
+    public static void main(String[] args) throws ScriptException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
+        if (engine == null) {
+            System.out.println("No nashorn engine in this JVM, only the expressions are measured");
+        }
+
+        UserModel user = createUser();
+        RealmModel realm = proxy(RealmModel.class, (name, methodArgs) -> "getName".equals(name) ? "test" : null);
+        ClientModel client = proxy(ClientModel.class, (name, methodArgs) -> "getId".equals(name) ? "client-id" : null);
+
+        System.out.printf("%-12s %15s %15s%n", "scenario", "expression ns", "script ns");
+        for (String[] scenario : SCENARIOS) {
+            AttributeExpression expression = AttributeExpression.compile(scenario[1]);
+            long expressionNanos = measure(iterations, () -> expression.evaluate(new ExpressionContext(user, realm, client)));
+
+            String scriptNanos = "-";
+            if (engine != null) {
+                CompiledScript script = ((Compilable) engine).compile(scenario[2]);
+                scriptNanos = String.valueOf(measure(iterations, () -> {
+                    Bindings bindings = engine.createBindings();
+                    bindings.put("user", user);
+                    bindings.put("realm", realm);
+                    return script.eval(bindings);
+                }));
+            }
+            System.out.printf("%-12s %15d %15s%n", scenario[0], expressionNanos, scriptNanos);
+        }
+    }
+
+    /**
+     * @return the mean time of an evaluation, in nanoseconds, after a warm-up
+     */
+    private static long measure(int iterations, Evaluation evaluation) throws ScriptException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += Objects.hashCode(evaluation.run());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += Objects.hashCode(evaluation.run());
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    @FunctionalInterface
+    private interface Evaluation {
+        Object run() throws ScriptException;
+    }
+
+    @FunctionalInterface
+    private interface Stub {
+        Object answer(String method, Object[] args);
+    }
+
+    private static UserModel createUser() {
+        Set<GroupModel> groups = new HashSet<>();
+        for (String name : Arrays.asList("app-crm", "app-erp", "staff", "app-bi", "sales")) {
+            groups.add(proxy(GroupModel.class, (method, args) -> "getName".equals(method) ? name : null));
+        }
+        return proxy(UserModel.class, (method, args) -> {
+            switch (method) {
+                case "getId":
+                    return "user-id";
+                case "getUsername":
+                    return "jdoe";
+                case "getFirstName":
+                    return "John";
+                case "getLastName":
+                    return "Doe";
+                case "getAttribute":
+                    return "department".equals(args[0]) ? Arrays.asList(" Sales ", "IT") : Collections.emptyList();
+                case "getGroups":
+                    return groups;
+                case "getRoleMappings":
+                    return Collections.emptySet();
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Stub stub) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    Object value = stub.answer(method.getName(), args);
+                    if (value == null && method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    return value;
+            }
+        });
+    }
+}
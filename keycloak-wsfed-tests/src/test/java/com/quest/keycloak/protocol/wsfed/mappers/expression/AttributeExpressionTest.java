@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers.expression;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AttributeExpressionTest {
+
+    private ExpressionContext context;
+
+    @Before
+    public void setUp() {
+        UserModel user = mock(UserModel.class);
+        when(user.getUsername()).thenReturn("jdoe");
+        when(user.getFirstName()).thenReturn("John");
+        when(user.getLastName()).thenReturn("Doe");
+        when(user.getAttribute("department")).thenReturn(Arrays.asList(" Sales ", "IT"));
+        when(user.getGroups()).thenReturn(new HashSet<>(Arrays.asList(group("app-crm"), group("app-erp"), group("staff"))));
+
+        RoleModel realmRole = role("admin", false, "realm-id");
+        RoleModel clientRole = role("reader", true, "client-id");
+        RoleModel otherClientRole = role("writer", true, "other-client-id");
+        when(user.getRoleMappings()).thenReturn(new HashSet<>(Arrays.asList(realmRole, clientRole, otherClientRole)));
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getName()).thenReturn("test");
+        ClientModel client = mock(ClientModel.class);
+        when(client.getId()).thenReturn("client-id");
+        when(client.getClientId()).thenReturn("https://rp");
+
+        context = new ExpressionContext(user, realm, client);
+    }
+
+    @Test
+    public void testUserValues() {
+        assertEquals(Collections.singletonList("jdoe"), evaluate("username"));
+        assertEquals(Collections.emptyList(), evaluate("email"));
+        assertEquals(Collections.singletonList("test"), evaluate("realm"));
+        assertEquals(Collections.singletonList("https://rp"), evaluate("clientId"));
+        assertEquals(Arrays.asList(" Sales ", "IT"), evaluate("attribute('department')"));
+    }
+
+    @Test
+    public void testConcatenation() {
+        assertEquals(Collections.singletonList("john.doe@example.com"), evaluate("lower(firstName + '.' + lastName) + \"@example.com\""));
+        assertEquals(Collections.singletonList("John"), evaluate("firstName + email"));
+        assertEquals(Arrays.asList("dep: Sales ", "dep:IT"), evaluate("'dep:' + attribute('department')"));
+    }
+
+    @Test
+    public void testConcatenationLimits() {
+        List<String> many = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            many.add("v" + i);
+        }
+        char[] chars = new char[40000];
+        Arrays.fill(chars, 'x');
+        UserModel user = mock(UserModel.class);
+        when(user.getAttribute("many")).thenReturn(many);
+        when(user.getAttribute("long")).thenReturn(Collections.singletonList(new String(chars)));
+        ExpressionContext limited = new ExpressionContext(user, mock(RealmModel.class), null);
+
+        assertEquals(40, AttributeExpression.compile("attribute('many') + '@example.com'").evaluate(limited).size());
+        assertLimitExceeded("attribute('many') + attribute('many')", limited, "1600 values");
+        assertLimitExceeded("attribute('long') + attribute('long')", limited, "80000 characters");
+    }
+
+    @Test
+    public void testStringFunctions() {
+        assertEquals(Arrays.asList("SALES", "IT"), evaluate("upper(trim(attribute('department')))"));
+        assertEquals(Collections.singletonList("J.Doe"), evaluate("replace(firstName, 'ohn', '.') + lastName"));
+        assertEquals(Collections.singletonList("jd"), evaluate("substringBefore(username, 'oe')"));
+        assertEquals(Collections.singletonList("jdoe"), evaluate("substringAfter(username, '@')"));
+    }
+
+    @Test
+    public void testGroupFilters() {
+        assertEquals(Arrays.asList("crm", "erp"), evaluate("sort(substringAfter(startsWith(groups, 'app-'), 'app-'))"));
+        assertEquals(Collections.singletonList("/staff"), evaluate("endsWith(groupPaths, 'staff')"));
+        assertEquals(Collections.singletonList("app-crm;app-erp"), evaluate("join(sort(contains(groups, '-')), ';')"));
+    }
+
+    @Test
+    public void testRoles() {
+        assertEquals(Collections.singletonList("admin"), evaluate("roles"));
+        assertEquals(Collections.singletonList("reader"), evaluate("clientRoles"));
+    }
+
+    @Test
+    public void testListFunctions() {
+        assertEquals(Collections.singletonList(" Sales "), evaluate("first(attribute('department'))"));
+        assertEquals(Collections.singletonList("none"), evaluate("default(email, 'none')"));
+        assertEquals(Collections.singletonList("a"), evaluate("distinct(lower('A') + '')"));
+    }
+
+    @Test
+    public void testSyntaxErrors() {
+        assertInvalid("", "empty");
+        assertInvalid("lower(username", "Expected ')'");
+        assertInvalid("password", "Unknown value 'password'");
+        assertInvalid("exec('rm')", "Unknown function 'exec'");
+        assertInvalid("lower(username, email)", "lower takes 1 argument");
+        assertInvalid("'unterminated", "Unterminated string at position 1");
+        assertInvalid("username email", "Unexpected 'e' at position 10");
+    }
+
+    @Test
+    public void testDepthIsLimited() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            source.append("lower(");
+        }
+        source.append("username");
+        for (int i = 0; i < 100; i++) {
+            source.append(')');
+        }
+        assertInvalid(source.toString(), "nested too deeply");
+    }
+
+    private List<String> evaluate(String source) {
+        return AttributeExpression.compile(source).evaluate(context);
+    }
+
+    private static void assertLimitExceeded(String source, ExpressionContext context, String message) {
+        try {
+            AttributeExpression.compile(source).evaluate(context);
+            fail("Expected the evaluation to fail: " + source);
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString(message));
+        }
+    }
+
+    private static void assertInvalid(String source, String message) {
+        try {
+            AttributeExpression.compile(source);
+            fail("Expected an invalid expression: " + source);
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(message));
+        }
+    }
+
+    private static GroupModel group(String name) {
+        GroupModel group = mock(GroupModel.class);
+        when(group.getName()).thenReturn(name);
+        return group;
+    }
+
+    private static RoleModel role(String name, boolean clientRole, String containerId) {
+        RoleModel role = mock(RoleModel.class);
+        when(role.getName()).thenReturn(name);
+        when(role.isClientRole()).thenReturn(clientRole);
+        when(role.getContainerId()).thenReturn(containerId);
+        return role;
+    }
+}
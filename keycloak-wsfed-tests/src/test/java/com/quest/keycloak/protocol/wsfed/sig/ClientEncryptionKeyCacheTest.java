@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.common.util.CertificateUtils;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.models.ClientModel;
+import org.keycloak.protocol.saml.SamlConfigAttributes;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ClientEncryptionKeyCacheTest {
+
+    private final ClientEncryptionKeyCache cache = ClientEncryptionKeyCache.getInstance();
+
+    private ClientModel client;
+
+    @Before
+    public void setUp() {
+        client = mock(ClientModel.class);
+        when(client.getId()).thenReturn(UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Test
+    public void testKeyIsParsedOnce() throws Exception {
+        KeyPair keyPair = setCertificate();
+
+        assertEquals(keyPair.getPublic(), cache.getEncryptionKey(client));
+        assertSame(cache.getEncryptionKey(client), cache.getEncryptionKey(client));
+    }
+
+    @Test
+    public void testChangedCertificateIsParsedAgain() throws Exception {
+        setCertificate();
+        cache.getEncryptionKey(client);
+
+        KeyPair keyPair = setCertificate();
+        assertEquals(keyPair.getPublic(), cache.getEncryptionKey(client));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        setCertificate();
+        PublicKey key = cache.getEncryptionKey(client);
+
+        cache.invalidate(client.getId());
+        assertNotSame(key, cache.getEncryptionKey(client));
+        assertEquals(key, cache.getEncryptionKey(client));
+    }
+
+    private KeyPair setCertificate() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String pem = PemUtils.encodeCertificate(CertificateUtils.generateV1SelfSignedCertificate(keyPair, "client"));
+        when(client.getAttribute(SamlConfigAttributes.SAML_ENCRYPTION_CERTIFICATE_ATTRIBUTE)).thenReturn(pem);
+        return keyPair;
+    }
+}
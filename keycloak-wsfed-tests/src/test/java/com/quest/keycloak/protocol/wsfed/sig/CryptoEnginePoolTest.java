@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.junit.Test;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CryptoEnginePoolTest {
+
+    @Test
+    public void testSignatureEngineIsReused() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        KeyPair otherKeyPair = generator.generateKeyPair();
+        byte[] data = "signed data".getBytes(StandardCharsets.UTF_8);
+
+        CryptoEnginePool.sign("SHA256withRSA", keyPair.getPrivate(), data);
+        long hits = CryptoEnginePool.getHits();
+        byte[] signature = CryptoEnginePool.sign("SHA256withRSA", keyPair.getPrivate(), data);
+        byte[] otherSignature = CryptoEnginePool.sign("SHA256withRSA", otherKeyPair.getPrivate(), data);
+        assertEquals(hits + 2, CryptoEnginePool.getHits());
+
+        assertTrue(verify(keyPair, data, signature));
+        assertTrue(verify(otherKeyPair, data, otherSignature));
+    }
+
+    @Test
+    public void testMacEngineIsReused() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("HmacSHA256");
+        SecretKey key = generator.generateKey();
+        SecretKey otherKey = generator.generateKey();
+        byte[] data = "signed data".getBytes(StandardCharsets.UTF_8);
+
+        CryptoEnginePool.mac("HmacSHA256", key, data);
+        long hits = CryptoEnginePool.getHits();
+        byte[] mac = CryptoEnginePool.mac("HmacSHA256", key, data);
+        byte[] otherMac = CryptoEnginePool.mac("HmacSHA256", otherKey, data);
+        assertEquals(hits + 2, CryptoEnginePool.getHits());
+
+        Mac expected = Mac.getInstance("HmacSHA256");
+        expected.init(key);
+        assertArrayEquals(expected.doFinal(data), mac);
+        expected.init(otherKey);
+        assertArrayEquals(expected.doFinal(data), otherMac);
+    }
+
+    @Test
+    public void testIdleEnginesHoldNoKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        SecretKey secret = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        byte[] data = "signed data".getBytes(StandardCharsets.UTF_8);
+        CryptoEnginePool.clear();
+
+        CryptoEnginePool.sign("SHA256withECDSA", generator.generateKeyPair().getPrivate(), data);
+        Signature signature = CryptoEnginePool.borrow("Signature|SHA256withECDSA", () -> Signature.getInstance("SHA256withECDSA"));
+        try {
+            signature.sign();
+            fail("The idle signature engine can still sign");
+        } catch (SignatureException e) {
+            // initialized for verification only
+        }
+
+        byte[] mac = CryptoEnginePool.mac("HmacSHA256", secret, data);
+        Mac engine = CryptoEnginePool.borrow("Mac|HmacSHA256", () -> Mac.getInstance("HmacSHA256"));
+        assertFalse(Arrays.equals(mac, engine.doFinal(data)));
+    }
+
+    @Test
+    public void testDigestIsResetOnRelease() throws Exception {
+        MessageDigest digest = CryptoEnginePool.borrowDigest("SHA-256");
+        // a borrowed engine is not handed out again before being released
+        assertNotSame(digest, CryptoEnginePool.borrowDigest("SHA-256"));
+        digest.update("partial".getBytes(StandardCharsets.UTF_8));
+        CryptoEnginePool.releaseDigest("SHA-256", digest);
+
+        MessageDigest reused = CryptoEnginePool.borrowDigest("SHA-256");
+        assertSame(digest, reused);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), reused.digest());
+    }
+
+    @Test
+    public void testPoolIsBoundedAndCleared() throws Exception {
+        int idle = CryptoEnginePool.getIdleCount();
+        for (int i = 0; i < CryptoEnginePool.MAX_IDLE + 5; i++) {
+            CryptoEnginePool.release("test|bounded", new Object());
+        }
+        assertEquals(idle + CryptoEnginePool.MAX_IDLE, CryptoEnginePool.getIdleCount());
+
+        CryptoEnginePool.clear();
+        assertEquals(0, CryptoEnginePool.getIdleCount());
+        assertNotNull(CryptoEnginePool.generateKey("AES", 128));
+    }
+
+    private static boolean verify(KeyPair keyPair, byte[] data, byte[] signatureValue) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(keyPair.getPublic());
+        signature.update(data);
+        return signature.verify(signatureValue);
+    }
+}
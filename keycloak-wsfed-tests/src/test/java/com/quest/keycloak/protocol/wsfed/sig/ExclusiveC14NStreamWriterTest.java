@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.junit.Test;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExclusiveC14NStreamWriterTest {
+
+    @Test
+    public void testCanonicalForm() throws Exception {
+        StringWriter canonical = new StringWriter();
+        ExclusiveC14NStreamWriter writer = new ExclusiveC14NStreamWriter(canonical, new QName("urn:a", "child"));
+
+        writer.writeStartElement("a", "root", "urn:a");
+        writer.writeNamespace("a", "urn:a");
+        writer.writeNamespace("xs", "urn:xs");
+        writer.writeAttribute("z", "1");
+        writer.writeAttribute("a", "urn:a", "b", "2");
+        writer.writeAttribute("b", "3\t\"");
+        writer.writeStartElement("a", "child", "urn:a");
+        writer.writeNamespace("a", "urn:a");
+        writer.writeCharacters("x<y&>\r");
+        writer.writeEndElement();
+        writer.writeStartElement("", "empty", "");
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.close();
+
+        assertEquals("<a:root xmlns:a=\"urn:a\" b=\"3&#x9;&quot;\" z=\"1\" a:b=\"2\">"
+                + "<a:child>x&lt;y&amp;&gt;&#xD;</a:child><empty></empty></a:root>", canonical.toString());
+
+        String xml = writer.getXml().toString();
+        assertEquals("<a:root xmlns:a=\"urn:a\" xmlns:xs=\"urn:xs\" z=\"1\" a:b=\"2\" b=\"3&#x9;&quot;\">"
+                + "<a:child xmlns:a=\"urn:a\">x&lt;y&amp;&gt;&#xD;</a:child><empty/></a:root>", xml);
+        assertEquals(xml.indexOf("<empty/>"), writer.getSignatureOffset());
+    }
+
+    @Test
+    public void testUndeclaredPrefixesAreBound() throws Exception {
+        StringWriter canonical = new StringWriter();
+        ExclusiveC14NStreamWriter writer = new ExclusiveC14NStreamWriter(canonical, null);
+
+        writer.writeStartElement("p", "root", "urn:p");
+        writer.writeAttribute("q", "urn:q", "attr", "v");
+        writer.writeEndElement();
+        writer.close();
+
+        assertEquals("<p:root xmlns:p=\"urn:p\" xmlns:q=\"urn:q\" q:attr=\"v\"></p:root>", canonical.toString());
+        assertEquals("<p:root xmlns:p=\"urn:p\" xmlns:q=\"urn:q\" q:attr=\"v\"></p:root>", writer.getXml().toString());
+        assertEquals(writer.getXml().indexOf("</p:root>"), writer.getSignatureOffset());
+    }
+
+    @Test
+    public void testNamespaceContext() throws Exception {
+        StringWriter canonical = new StringWriter();
+        ExclusiveC14NStreamWriter writer = new ExclusiveC14NStreamWriter(canonical, null);
+        writer.setNamespaceContext(new NamespaceContext() {
+            @Override
+            public String getNamespaceURI(String prefix) {
+                return "p".equals(prefix) ? "urn:p" : "";
+            }
+
+            @Override
+            public String getPrefix(String namespaceURI) {
+                return "urn:p".equals(namespaceURI) ? "p" : null;
+            }
+
+            @Override
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                return Collections.emptyIterator();
+            }
+        });
+
+        writer.writeStartElement("urn:p", "root");
+        writer.writeStartElement("q", "child", "urn:q");
+        writer.writeAttribute("urn:p", "attr", "v");
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.close();
+
+        assertEquals("<p:root xmlns:p=\"urn:p\"><q:child xmlns:q=\"urn:q\" p:attr=\"v\"></q:child></p:root>", canonical.toString());
+        assertEquals("<p:root xmlns:p=\"urn:p\"><q:child xmlns:q=\"urn:q\" p:attr=\"v\"/></p:root>", writer.getXml().toString());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testNamespaceContextAfterRootElement() throws Exception {
+        ExclusiveC14NStreamWriter writer = new ExclusiveC14NStreamWriter(new StringWriter(), null);
+        writer.writeStartElement("p", "root", "urn:p");
+        writer.setNamespaceContext(writer.getNamespaceContext());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import com.quest.keycloak.common.wsfed.TestHelpers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.common.util.CertificateUtils;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SigningKeyMaterialCacheTest {
+
+    private final SigningKeyMaterialCache cache = SigningKeyMaterialCache.getInstance();
+
+    private KeycloakSession session;
+    private KeyManager keyManager;
+    private RealmModel realm;
+
+    @Before
+    public void setUp() {
+        session = mock(KeycloakSession.class);
+        keyManager = mock(KeyManager.class);
+        realm = mock(RealmModel.class);
+        when(session.keys()).thenReturn(keyManager);
+        when(realm.getId()).thenReturn(UUID.randomUUID().toString());
+        when(realm.getName()).thenReturn("test");
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Test
+    public void testMaterialIsDerivedOnce() throws Exception {
+        KeyWrapper key = generateKey(UUID.randomUUID().toString());
+        setActiveKey(key);
+
+        SigningKeyMaterial material = cache.getActiveKey(session, realm, Algorithm.RS256);
+        assertEquals(key.getKid(), material.getKid());
+        assertEquals(PemUtils.encodeCertificate(key.getCertificate()), material.getPemCertificate());
+        assertEquals(TestHelpers.getThumbPrint(key.getCertificate()), material.getX5t());
+        assertThat(material.getKeyInfo(), containsString("<dsig:KeyName>" + key.getKid() + "</dsig:KeyName>"));
+        // key name, certificate and key value
+        assertEquals(3, material.getDomKeyInfo().getContent().size());
+
+        // the key providers build new wrappers around the same key
+        setActiveKey(copy(key));
+        assertSame(material, cache.getActiveKey(session, realm, Algorithm.RS256));
+    }
+
+    @Test
+    public void testRotatedKeyIsDerivedAgain() throws Exception {
+        setActiveKey(generateKey(UUID.randomUUID().toString()));
+        SigningKeyMaterial material = cache.getActiveKey(session, realm, Algorithm.RS256);
+
+        KeyWrapper rotated = generateKey(UUID.randomUUID().toString());
+        setActiveKey(rotated);
+        SigningKeyMaterial rotatedMaterial = cache.getActiveKey(session, realm, Algorithm.RS256);
+        assertEquals(rotated.getKid(), rotatedMaterial.getKid());
+
+        // same kid, new key
+        KeyWrapper regenerated = generateKey(rotated.getKid());
+        setActiveKey(regenerated);
+        SigningKeyMaterial regeneratedMaterial = cache.getActiveKey(session, realm, Algorithm.RS256);
+        assertNotSame(rotatedMaterial, regeneratedMaterial);
+        assertNotSame(material, regeneratedMaterial);
+        assertEquals(regenerated.getCertificate(), regeneratedMaterial.getCertificate());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        setActiveKey(generateKey(UUID.randomUUID().toString()));
+        SigningKeyMaterial material = cache.getActiveKey(session, realm, Algorithm.RS256);
+
+        cache.invalidate(realm.getId());
+        assertNotSame(material, cache.getActiveKey(session, realm, Algorithm.RS256));
+    }
+
+    private void setActiveKey(KeyWrapper key) {
+        when(keyManager.getActiveKey(eq(realm), any(KeyUse.class), eq(Algorithm.RS256))).thenReturn(key);
+    }
+
+    private KeyWrapper generateKey(String kid) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        KeyWrapper key = new KeyWrapper();
+        key.setKid(kid);
+        key.setAlgorithm(Algorithm.RS256);
+        key.setStatus(KeyStatus.ACTIVE);
+        key.setPublicKey(keyPair.getPublic());
+        key.setPrivateKey(keyPair.getPrivate());
+        key.setCertificate(CertificateUtils.generateV1SelfSignedCertificate(keyPair, realm.getName()));
+        return key;
+    }
+
+    private static KeyWrapper copy(KeyWrapper key) {
+        KeyWrapper copy = new KeyWrapper();
+        copy.setKid(key.getKid());
+        copy.setAlgorithm(key.getAlgorithm());
+        copy.setStatus(key.getStatus());
+        copy.setPublicKey(key.getPublicKey());
+        copy.setPrivateKey(key.getPrivateKey());
+        copy.setCertificate(key.getCertificate());
+        return copy;
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.quest.keycloak.broker.wsfed;
 
+import com.quest.keycloak.common.wsfed.utils.WSFedTime;
 import com.quest.keycloak.protocol.wsfed.sig.SAML11Signature;
 import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v1.assertion.*;
@@ -31,7 +32,6 @@ import org.keycloak.saml.common.exceptions.ParsingException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.common.util.DocumentUtil;
 import org.keycloak.saml.processing.core.parsers.saml.SAMLParser;
-import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
 import org.w3c.dom.Document;
@@ -39,9 +39,6 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.ws.rs.core.Response;
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
-import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
 
@@ -106,11 +103,9 @@ public class SAML11RequestedToken implements RequestedToken {
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
             }
 
-            XMLGregorianCalendar notBefore = samlAssertion.getConditions().getNotBefore();
             //Add in a tiny bit of slop for small clock differences
-            notBefore.add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 0, 10));
-
-            if (AssertionUtil.hasExpired(samlAssertion)) {
+            SAML11ConditionsType conditions = samlAssertion.getConditions();
+            if (conditions != null && !WSFedTime.getInstance().isValid(conditions.getNotBefore(), conditions.getNotOnOrAfter(), WSFedTime.ASSERTION_CLOCK_SKEW)) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.error(Errors.EXPIRED_CODE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
@@ -122,7 +117,7 @@ public class SAML11RequestedToken implements RequestedToken {
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
             }
 
-        } catch (GeneralSecurityException | DatatypeConfigurationException | XPathExpressionException | ParserConfigurationException e) {
+        } catch (GeneralSecurityException | XPathExpressionException | ParserConfigurationException e) {
             logger.error("Unable to validate signature", e);
             event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
             event.error(Errors.INVALID_SAML_RESPONSE);
@@ -20,6 +20,7 @@ package com.quest.keycloak.broker.wsfed;
 import com.quest.keycloak.common.wsfed.WSFedConstants;
 import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
 import com.quest.keycloak.common.wsfed.parsers.WSTrustParser;
+import com.quest.keycloak.common.wsfed.utils.WSFedTime;
 import com.quest.keycloak.common.wsfed.utils.WSFedValidator;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
@@ -37,7 +38,6 @@ import org.keycloak.saml.common.exceptions.NotImplementedException;
 import org.keycloak.saml.common.exceptions.ParsingException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.common.util.StringUtil;
-import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
 import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.managers.AuthenticationManager;
@@ -51,8 +51,6 @@ import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityT
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -191,7 +189,8 @@ public class WSFedEndpoint {
                 .setRealm(config.getWsFedRealm())
                 .setContext(context)
                 .setReplyTo(provider.getEndpoint(uriInfo, realm))
-                .setDestination(config.getSingleLogoutServiceUrl());
+                .setDestination(config.getSingleLogoutServiceUrl())
+                .setRedirectBinding(config.isRedirectBinding());
 
         return builder.buildResponse(null);
     }
@@ -357,26 +356,18 @@ public class WSFedEndpoint {
         }
     }
 
-    protected boolean hasExpired(RequestSecurityTokenResponse rstr) throws DatatypeConfigurationException {
+    protected boolean hasExpired(RequestSecurityTokenResponse rstr) {
         boolean expiry = false;
         Lifetime lifetime = rstr.getLifetime();
         if (lifetime != null) {
-            XMLGregorianCalendar now = XMLTimeUtil.getIssueInstant();
             XMLGregorianCalendar notBefore = lifetime.getCreated();
-
-            if (notBefore != null) {
-                // Add in a tiny bit of slop for small clock differences
-                notBefore.add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 1, 0));
-                logger.trace("RequestSecurityTokenResponse: " + rstr.getContext() + " ::Now=" + now.toXMLFormat() + " ::notBefore="
-                        + notBefore.toXMLFormat());
-            }
-
             XMLGregorianCalendar notOnOrAfter = lifetime.getExpires();
-            if (notOnOrAfter != null) {
-                logger.trace("RequestSecurityTokenResponse: " + rstr.getContext() + " ::Now=" + now.toXMLFormat() + " ::notOnOrAfter=" + notOnOrAfter);
+            if (logger.isTraceEnabled()) {
+                logger.trace("RequestSecurityTokenResponse: " + rstr.getContext() + " ::notBefore=" + notBefore + " ::notOnOrAfter=" + notOnOrAfter);
             }
 
-            expiry = !XMLTimeUtil.isValid(now, notBefore, notOnOrAfter);
+            // Add in a tiny bit of slop for small clock differences
+            expiry = !WSFedTime.getInstance().isValid(notBefore, notOnOrAfter, WSFedTime.RSTR_CLOCK_SKEW);
             if (expiry) {
                 logger.info("RequestSecurityTokenResponse has expired with context=" + rstr.getContext());
             }
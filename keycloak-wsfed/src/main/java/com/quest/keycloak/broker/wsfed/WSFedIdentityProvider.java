@@ -34,6 +34,7 @@ import org.keycloak.models.*;
 import org.keycloak.services.resources.RealmsResource;
 
 import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
@@ -80,7 +81,12 @@ public class WSFedIdentityProvider extends AbstractIdentityProvider<WSFedIdentit
                     .setRealm(wsFedRealm)
                     .setReplyTo(reply)
                     .setDestination(destinationUrl)
-                    .setContext(context);
+                    .setContext(context)
+                    .setCompressionThreshold(getConfig().getCompressionThreshold())
+                    .setRedirectBinding(getConfig().isRedirectBinding());
+            if (request.getHttpRequest() != null && request.getHttpRequest().getHttpHeaders() != null) {
+                builder.setAcceptEncoding(request.getHttpRequest().getHttpHeaders().getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+            }
 
             return builder.buildResponse(null);
         } catch (Exception e) {
@@ -113,6 +119,7 @@ public class WSFedIdentityProvider extends AbstractIdentityProvider<WSFedIdentit
             .setContext(userSession.getId())
             .setReplyTo(getEndpoint(uriInfo, realm))
             .setDestination(singleLogoutServiceUrl)
+            .setRedirectBinding(getConfig().isRedirectBinding())
             .buildResponse(null);
     }
 
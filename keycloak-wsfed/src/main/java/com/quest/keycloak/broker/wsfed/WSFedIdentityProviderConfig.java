@@ -83,4 +83,31 @@ public class WSFedIdentityProviderConfig extends IdentityProviderModel {
     public void setHandleEmptyActionAsLogout(boolean handleAsLogout) {
         getConfig().put("emptyActionHandledAsLogout", String.valueOf(handleAsLogout));
     }
+
+    public boolean isRedirectBinding() {
+        return Boolean.parseBoolean(getConfig().get("redirectBinding"));
+    }
+
+    public void setRedirectBinding(boolean redirectBinding) {
+        getConfig().put("redirectBinding", String.valueOf(redirectBinding));
+    }
+
+    /**
+     * @return the size from which the login form sent to the IdP is compressed, or -1 if it is never compressed
+     */
+    public int getCompressionThreshold() {
+        String threshold = getConfig().get("compressionThreshold");
+        if (threshold == null || threshold.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(threshold.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        getConfig().put("compressionThreshold", String.valueOf(compressionThreshold));
+    }
 }
@@ -17,13 +17,25 @@
 package com.quest.keycloak.common.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.WSFedConstants;
+import com.quest.keycloak.common.wsfed.writers.AttributeEscapingOutputStream;
+import com.quest.keycloak.common.wsfed.writers.ContentEncoding;
+import com.quest.keycloak.common.wsfed.writers.WSFedFormTemplate;
 
-import java.util.stream.Stream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.keycloak.saml.common.util.StringUtil;
 
@@ -35,6 +47,12 @@ import org.keycloak.saml.common.util.StringUtil;
  * follow the same method as for returning security tokens.
  */
 public class WSFedResponseBuilder {
+    /**
+     * The longest URL sent as a redirect. Longer ones are sent with the form, as they may be truncated by browsers or
+     * proxies.
+     */
+    public static final int MAX_REDIRECT_URL_LENGTH = 2048;
+
     protected String destination;
     protected String action;
     protected String realm;
@@ -42,6 +60,9 @@ public class WSFedResponseBuilder {
     protected String replyTo;
     protected String username;
     protected String method = HttpMethod.GET;
+    protected String acceptEncoding;
+    protected int compressionThreshold = -1;
+    protected boolean redirectBinding;
 
     public String getDestination() {
         return destination;
@@ -143,6 +164,52 @@ public class WSFedResponseBuilder {
         return this;
     }
 
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    /**
+     * Sets the content codings accepted by the browser, used if the response is compressed
+     * @param acceptEncoding the Accept-Encoding header of the request
+     * @return this WSFedResponseBuilder
+     */
+    public WSFedResponseBuilder setAcceptEncoding(String acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the size of the wresult value from which the response is compressed, when the browser accepts gzip or
+     * deflate. A streamed wresult of unknown size is always compressed. The form also reflects the wctx value of the
+     * request, so a compressed form carrying a token is open to BREACH-style attacks: only set it for the clients
+     * which accept that risk.
+     * @param compressionThreshold the size in bytes, 0 to compress all the responses, or -1 to never compress them
+     * @return this WSFedResponseBuilder
+     */
+    public WSFedResponseBuilder setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public boolean isRedirectBinding() {
+        return redirectBinding;
+    }
+
+    /**
+     * Sends the GET responses as a redirect to the destination, with the parameters in the query string, instead of a
+     * self-executing form. The form is still used if the URL would be longer than {@link #MAX_REDIRECT_URL_LENGTH}.
+     * @param redirectBinding true to redirect the browser
+     * @return this WSFedResponseBuilder
+     */
+    public WSFedResponseBuilder setRedirectBinding(boolean redirectBinding) {
+        this.redirectBinding = redirectBinding;
+        return this;
+    }
+
     /**
      * Builds the javax Response containing the actual OK response with the self-executing control.
      * FIXME I'm pretty sure that the CacheControl is pretty useless here since it isn't used in any ResponseBuilder.
@@ -152,13 +219,110 @@ public class WSFedResponseBuilder {
      * @return The 200 OK response containing the self-executing form.
      */
     public Response buildResponse(String result) {
-        String str = buildHtml(destination, action, result, realm, context, username);
+        if (redirectBinding) {
+            Response redirect = buildRedirect(result);
+            if (redirect != null) {
+                return redirect;
+            }
+        }
+
+        ResultWriter resultWriter = escapedResult(result);
+        StreamingOutput output = out -> writeForm(out, destination, action, resultWriter, realm, context);
 
         CacheControl cacheControl = new CacheControl();
         cacheControl.setNoCache(true);
-        return Response.ok(str, MediaType.TEXT_HTML_TYPE)
+        return buildFormResponse(output, result != null ? result.length() : 0);
+    }
+
+    /**
+     * Builds a 302 redirect to the destination, the parameters being added to its query string
+     *
+     * @param result the wresult value
+     * @return the redirect, or null if the response can't be sent as a redirect: the method isn't GET, the destination
+     * isn't a valid URI or the URL would be too long
+     */
+    protected Response buildRedirect(String result) {
+        if (!HttpMethod.GET.equals(method) || destination == null || destination.indexOf('#') >= 0) {
+            return null;
+        }
+
+        StringBuilder url = new StringBuilder(destination);
+        char separator = destination.indexOf('?') < 0 ? '?' : '&';
+        String[][] params = new String[][] {
+            { WSFedConstants.WSFED_ACTION, action },
+            { WSFedConstants.WSFED_REALM, realm },
+            { WSFedConstants.WSFED_RESULT, result },
+            { WSFedConstants.WSFED_REPLY, replyTo },
+            { WSFedConstants.WSFED_CONTEXT, context }
+        };
+        try {
+            for (String[] param : params) {
+                if (StringUtil.isNotNull(param[1])) {
+                    url.append(separator).append(param[0]).append('=').append(URLEncoder.encode(param[1], StandardCharsets.UTF_8.name()));
+                    separator = '&';
+                    if (url.length() > MAX_REDIRECT_URL_LENGTH) {
+                        return null;
+                    }
+                }
+            }
+            return Response.status(Response.Status.FOUND)
+                    .location(new URI(url.toString()))
+                    .header("Pragma", "no-cache")
+                    .header("Cache-Control", "no-cache, no-store").build();
+        } catch (UnsupportedEncodingException | URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the response containing the self-executing form like {@link #buildResponse(String)}, but the wresult
+     * value is written straight into the HTTP response instead of being built as a String first. Only the characters
+     * that would end the attribute value are escaped in the result, the others are sent as UTF-8.
+     *
+     * @param result writes the wresult value, a <wst:RequestSecurityTokenResponseCollection> element. It is called
+     *               when the response is sent, on the thread sending it.
+     * @return The 200 OK response containing the self-executing form.
+     */
+    public Response buildStreamingResponse(ResultWriter result) {
+        return buildStreamingResponse(result, -1);
+    }
+
+    /**
+     * Builds the response containing the self-executing form like {@link #buildStreamingResponse(ResultWriter)}
+     *
+     * @param result writes the wresult value
+     * @param resultSize the expected size of the wresult value, compared with the compression threshold, or -1 if it
+     *                   isn't known
+     * @return The 200 OK response containing the self-executing form.
+     */
+    public Response buildStreamingResponse(ResultWriter result, long resultSize) {
+        ResultWriter escapingWriter = out -> {
+            try (OutputStream escaped = new AttributeEscapingOutputStream(out)) {
+                result.write(escaped);
+            }
+        };
+        StreamingOutput output = out -> writeForm(out, destination, action, escapingWriter, realm, context);
+
+        return buildFormResponse(output, resultSize);
+    }
+
+    private Response buildFormResponse(StreamingOutput output, long resultSize) {
+        ContentEncoding encoding = null;
+        if (compressionThreshold >= 0 && (resultSize < 0 || resultSize >= compressionThreshold)) {
+            encoding = ContentEncoding.negotiate(acceptEncoding);
+        }
+
+        Response.ResponseBuilder builder = Response.ok(encoding != null ? encoding.compress(output) : output,
+                MediaType.TEXT_HTML_TYPE.withCharset(StandardCharsets.UTF_8.name()))
                 .header("Pragma", "no-cache")
-                .header("Cache-Control", "no-cache, no-store").build();
+                .header("Cache-Control", "no-cache, no-store");
+        if (compressionThreshold >= 0) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (encoding != null) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, encoding.getCoding());
+        }
+        return builder.build();
     }
 
     /**
@@ -174,34 +338,41 @@ public class WSFedResponseBuilder {
      * @return a string containing the full HTML response form for the response
      */
     protected String buildHtml(String destination, String action, String result, String realm, String context, String username) {
-        StringBuilder builder = new StringBuilder();
-
-        builder.append("<HTML>")
-            .append("<HEAD>")
-            .append("<TITLE>HTTP Binding Response (Response)</TITLE>")
-            .append("</HEAD>")
-            .append("<BODY Onload=\"document.forms[0].submit()\">")
-            .append("<FORM METHOD=\"").append(method).append("\" ACTION=\"").append(destination).append("\">");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeForm(out, destination, action, escapedResult(result), realm, context);
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 
-        String[][] params = new String[][] {
-            { WSFedConstants.WSFED_ACTION, action },
-            //FIXME check if this is necessary (i.e. actually used), as wrealm doesn't seem to be part of the protocol for responses.
-            { WSFedConstants.WSFED_REALM, realm },
-            { WSFedConstants.WSFED_RESULT, result!=null ? escapeAttribute(result) : null },
-            //FIXME check if this is necessary (i.e. actually used), as wreply doesn't seem to be part of the protocol for responses.
-            { WSFedConstants.WSFED_REPLY, replyTo },
-            { WSFedConstants.WSFED_CONTEXT, context }
-        };
-        Stream.of(params)
-            .filter(p -> StringUtil.isNotNull(p[1]))
-            .forEach(p -> builder.append("<INPUT TYPE=\"HIDDEN\" NAME=\"").append(p[0]).append("\" VALUE=\"").append(p[1]).append("\" />"));
+    private static ResultWriter escapedResult(String result) {
+        // once escaped, the result is plain ASCII
+        return StringUtil.isNotNull(result) ? out -> out.write(escapeAttribute(result).getBytes(StandardCharsets.US_ASCII)) : null;
+    }
 
-        return builder.append("<NOSCRIPT>")
-            .append("<P>JavaScript is disabled. We strongly recommend to enable it. Click the button below to continue.</P>")
-            .append("<INPUT TYPE=\"SUBMIT\" VALUE=\"CONTINUE\" />")
-            .append("</NOSCRIPT>")
-            .append("</FORM></BODY></HTML>")
-            .toString();
+    /**
+     * Writes the form from its template. The inputs without value are left out.
+     *
+     * @param result writes the already escaped wresult value, or null to leave it out
+     */
+    private void writeForm(OutputStream out, String destination, String action, ResultWriter result, String realm,
+                           String context) throws IOException {
+        WSFedFormTemplate.forMethod(method).writeStart(out, destination);
+        WSFedFormTemplate.writeInput(out, WSFedConstants.WSFED_ACTION, action);
+        //FIXME check if this is necessary (i.e. actually used), as wrealm doesn't seem to be part of the protocol for responses.
+        WSFedFormTemplate.writeInput(out, WSFedConstants.WSFED_REALM, realm);
+        if (result != null) {
+            WSFedFormTemplate.writeInputStart(out, WSFedConstants.WSFED_RESULT);
+            result.write(out);
+            WSFedFormTemplate.writeInputEnd(out);
+        }
+        //FIXME check if this is necessary (i.e. actually used), as wreply doesn't seem to be part of the protocol for responses.
+        WSFedFormTemplate.writeInput(out, WSFedConstants.WSFED_REPLY, replyTo);
+        WSFedFormTemplate.writeInput(out, WSFedConstants.WSFED_CONTEXT, context);
+        WSFedFormTemplate.writeEnd(out);
     }
 
     /**
@@ -220,4 +391,12 @@ public class WSFedResponseBuilder {
         }
         return out.toString();
     }
+
+    /**
+     * Writes the wresult value of a streamed response
+     */
+    @FunctionalInterface
+    public interface ResultWriter {
+        void write(OutputStream out) throws IOException;
+    }
 }
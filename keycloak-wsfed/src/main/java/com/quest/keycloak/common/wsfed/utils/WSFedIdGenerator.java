@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generator of the random identifiers of the issued tokens: assertion ids, key identifiers and generated NameIDs.
+ *
+ * UUID.randomUUID() and keycloak's IDGenerator draw from a single SecureRandom, and on Linux the default
+ * SecureRandom reads a native source shared by the whole JVM. Both serialize the threads building tokens. Every
+ * thread here has its own DRBG (SHA1PRNG before Java 9), seeded from the system source on first use, so drawing an
+ * identifier doesn't take any shared lock.
+ *
+ * The identifiers hold 128 random bits, encoded in base64url without padding: 22 characters, against 36 for a UUID.
+ * Prefixed with a letter or an underscore, they are valid XML ids.
+ */
+public final class WSFedIdGenerator {
+
+    public static final String ID_PREFIX = "ID_";
+    public static final String GENERATED_PREFIX = "G-";
+
+    private static final int ID_BYTES = 16;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(WSFedIdGenerator::createRandom);
+
+    private WSFedIdGenerator() {
+    }
+
+    /**
+     * @return an identifier usable as an XML id, such as the id of an assertion
+     */
+    public static String createId() {
+        return create(ID_PREFIX);
+    }
+
+    /**
+     * @return an identifier for the generated (transient or persistent) NameIDs
+     */
+    public static String createNameId() {
+        return create(GENERATED_PREFIX);
+    }
+
+    /**
+     * @param prefix the prefix of the identifier, which must start with a letter or an underscore for an XML id
+     * @return the prefix followed by 128 random bits, encoded in base64url
+     */
+    public static String create(String prefix) {
+        byte[] bytes = new byte[ID_BYTES];
+        RANDOMS.get().nextBytes(bytes);
+        return encode(prefix, bytes);
+    }
+
+    /**
+     * @return the random generator of the calling thread, which must not be handed to other threads
+     */
+    public static SecureRandom getRandom() {
+        return RANDOMS.get();
+    }
+
+    /**
+     * @param prefix the prefix of the identifier
+     * @param bytes the bytes to encode
+     * @return the prefix followed by the bytes encoded in base64url, without padding
+     */
+    public static String encode(String prefix, byte[] bytes) {
+        char[] chars = new char[prefix.length() + (bytes.length * 8 + 5) / 6];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        int pos = prefix.length();
+        int i = 0;
+        for (; i + 3 <= bytes.length; i += 3) {
+            int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            chars[pos++] = ALPHABET[bits >>> 18];
+            chars[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+            chars[pos++] = ALPHABET[(bits >>> 6) & 0x3f];
+            chars[pos++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = bytes.length - i;
+        if (remaining > 0) {
+            int bits = (bytes[i] & 0xff) << 16 | (remaining == 2 ? (bytes[i + 1] & 0xff) << 8 : 0);
+            chars[pos++] = ALPHABET[bits >>> 18];
+            chars[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+            if (remaining == 2) {
+                chars[pos++] = ALPHABET[(bits >>> 6) & 0x3f];
+            }
+        }
+        return new String(chars, 0, pos);
+    }
+
+    private static SecureRandom createRandom() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e1) {
+                return new SecureRandom();
+            }
+        }
+        // seeds the generator from the system source now, rather than on the first identifier
+        random.nextBytes(new byte[1]);
+        return random;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.time.Clock;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * The clock of the issued and brokered WS-Fed tokens.
+ *
+ * The validity windows are computed in epoch milliseconds, and only converted to XMLGregorianCalendars, in UTC, when
+ * they are written to a token; the times read from a token are converted to milliseconds before being compared. The
+ * DatatypeFactory is looked up once, rather than through the service loader for every conversion.
+ *
+ * The instance is shared, and can be replaced by one reading a fixed clock to get reproducible tokens in tests and
+ * benchmarks.
+ */
+public class WSFedTime {
+
+    /**
+     * Margin given to the relying parties which clock is behind ours, on the tokens we issue
+     */
+    public static final long ISSUER_CLOCK_SKEW = 2000;
+
+    /**
+     * Margin given to the identity providers which clock is ahead of ours, on the assertions they issue
+     */
+    public static final long ASSERTION_CLOCK_SKEW = 10000;
+
+    /**
+     * Margin given to the identity providers which clock is ahead of ours, on the lifetime of their RSTRs
+     */
+    public static final long RSTR_CLOCK_SKEW = 60000;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    // the JAXP implementation keeps no state in its factory, it is shared by all threads
+    private static final DatatypeFactory DATATYPE_FACTORY;
+
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static volatile WSFedTime instance = new WSFedTime(Clock.systemUTC());
+
+    private final Clock clock;
+
+    public WSFedTime(Clock clock) {
+        this.clock = clock;
+    }
+
+    public static WSFedTime getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the shared instance, with one reading a fixed clock for instance
+     *
+     * @param time the new instance, or null to restore the system clock
+     */
+    public static void setInstance(WSFedTime time) {
+        instance = time != null ? time : new WSFedTime(Clock.systemUTC());
+    }
+
+    /**
+     * @return the current time, in milliseconds since the epoch
+     */
+    public long now() {
+        return clock.millis();
+    }
+
+    /**
+     * @param millis a time, in milliseconds since the epoch
+     * @return the time as a new calendar in UTC, to be written to a token
+     */
+    public XMLGregorianCalendar toXMLGregorianCalendar(long millis) {
+        return DATATYPE_FACTORY.newXMLGregorianCalendar(toGregorianCalendar(millis));
+    }
+
+    /**
+     * @param millis a time, in milliseconds since the epoch
+     * @return the time as a new calendar in UTC
+     */
+    public GregorianCalendar toGregorianCalendar(long millis) {
+        GregorianCalendar calendar = new GregorianCalendar(UTC);
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
+    /**
+     * @param calendar a time read from a token
+     * @return the time, in milliseconds since the epoch
+     */
+    public static long toMillis(XMLGregorianCalendar calendar) {
+        return calendar.toGregorianCalendar().getTimeInMillis();
+    }
+
+    /**
+     * Tells whether the current time is in a validity window: notBefore - clockSkew &lt;= now &lt; notOnOrAfter
+     *
+     * @param notBefore the start of the window, or null if it has none
+     * @param notOnOrAfter the end of the window, or null if it has none
+     * @param clockSkew the margin given to the issuers which clock is ahead of ours, in milliseconds
+     * @return true if the window is open
+     */
+    public boolean isValid(XMLGregorianCalendar notBefore, XMLGregorianCalendar notOnOrAfter, long clockSkew) {
+        long now = now();
+        if (notBefore != null && toMillis(notBefore) - clockSkew > now) {
+            return false;
+        }
+        return notOnOrAfter == null || now < toMillis(notOnOrAfter);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.writers;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Output stream escaping what is written to it for a double quoted HTML attribute value. The quotes, angle brackets
+ * and ampersands are replaced by numeric character references; everything else, including the multi-byte UTF-8
+ * sequences, is passed as is. None of the escaped characters can be part of a multi-byte UTF-8 sequence, so the
+ * escaping can be done on the bytes without decoding them.
+ *
+ * Closing this stream only flushes it: the underlying stream still has to receive the end of the document.
+ */
+public class AttributeEscapingOutputStream extends FilterOutputStream {
+
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    static {
+        for (char c : new char[] { '"', '&', '<', '>' }) {
+            ESCAPES[c] = ("&#" + (int) c + ";").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public AttributeEscapingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] escape = (b & 0x80) == 0 ? ESCAPES[b & 0x7F] : null;
+        if (escape != null) {
+            out.write(escape);
+        } else {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        escape(out, b, off, len);
+    }
+
+    /**
+     * Writes bytes to a stream, escaping them for a double quoted HTML attribute value
+     *
+     * @param out the stream to write to
+     * @param b the UTF-8 encoded value
+     * @param off the offset of the value in b
+     * @param len the length of the value
+     */
+    public static void escape(OutputStream out, byte[] b, int off, int len) throws IOException {
+        // copy the runs of bytes which don't need escaping in one go
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte[] escape = b[i] >= 0 ? ESCAPES[b[i]] : null;
+            if (escape != null) {
+                if (i > start) {
+                    out.write(b, start, i - start);
+                }
+                out.write(escape);
+                start = i + 1;
+            }
+        }
+        if (end > start) {
+            out.write(b, start, end - start);
+        }
+    }
+
+    /**
+     * Writes a string to a stream, encoded in UTF-8 and escaped for a double quoted HTML attribute value
+     *
+     * @param out the stream to write to
+     * @param s the value to write
+     */
+    public static void escape(OutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        escape(out, b, 0, b.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
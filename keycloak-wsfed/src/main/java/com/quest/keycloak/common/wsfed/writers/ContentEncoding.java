@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.writers;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The HTTP content codings the auto-post forms can be compressed with. The forms carrying a signed, and possibly
+ * encrypted, token are large but made of XML and base64, which compress very well.
+ */
+public enum ContentEncoding {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String coding;
+
+    ContentEncoding(String coding) {
+        this.coding = coding;
+    }
+
+    /**
+     * @return the value of the Content-Encoding header
+     */
+    public String getCoding() {
+        return coding;
+    }
+
+    /**
+     * Compresses the output of a response while it is written
+     *
+     * @param output the uncompressed response body
+     * @return the compressed response body
+     */
+    public StreamingOutput compress(StreamingOutput output) {
+        return out -> {
+            // closing the compressing stream releases its native deflater, but the response stream must stay open
+            try (DeflaterOutputStream compressed = newStream(new NonClosingOutputStream(out))) {
+                output.write(compressed);
+            }
+        };
+    }
+
+    private DeflaterOutputStream newStream(OutputStream out) throws IOException {
+        return this == GZIP ? new GZIPOutputStream(out, BUFFER_SIZE) : new ZlibOutputStream(out);
+    }
+
+    /**
+     * Chooses the content coding of a response from the Accept-Encoding header of its request. Gzip is preferred over
+     * deflate when both are equally acceptable.
+     *
+     * @param acceptEncoding the value of the Accept-Encoding header, may be null
+     * @return the preferred coding, or null if the response must not be compressed
+     */
+    public static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            float quality = quality(parts);
+            if (GZIP.coding.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = Math.max(gzip, quality);
+            } else if (DEFLATE.coding.equals(coding)) {
+                deflate = Math.max(deflate, quality);
+            } else if ("*".equals(coding)) {
+                any = quality;
+            }
+        }
+        // the wildcard only applies to the codings which aren't listed
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static float quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * The HTTP "deflate" coding is the zlib format, which is what a default Deflater writes
+     */
+    private static class ZlibOutputStream extends DeflaterOutputStream {
+        ZlibOutputStream(OutputStream out) {
+            super(out, new Deflater(), BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // unlike its default one, the deflater given to a DeflaterOutputStream isn't released on close
+                def.end();
+            }
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.writers;
+
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An XML element that has already been serialized, as UTF-8 bytes without XML declaration. The element declares every
+ * namespace it uses, so it can be copied verbatim into any enclosing document.
+ *
+ * The {@link WSTrustResponseWriter} accepts instances of this class as requested security tokens and copies them to
+ * its output without going through a DOM. This is what allows a signed assertion to reach the response exactly as it
+ * was when its signature was computed.
+ */
+public final class SerializedElement {
+
+    private final byte[] bytes;
+
+    public SerializedElement(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public SerializedElement(String xml) {
+        this(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the number of bytes of the serialized element
+     *
+     * @return the size in bytes
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * Copies the serialized element to the given stream
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Parses the serialized element into a new DOM document, for the consumers that still need one.
+     *
+     * @return a document whose root is this element
+     * @throws ProcessingException if the element cannot be parsed
+     */
+    public Document toDocument() throws ProcessingException {
+        try {
+            return DocumentUtil.getDocument(new ByteArrayInputStream(bytes));
+        } catch (Exception e) {
+            throw new ProcessingException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
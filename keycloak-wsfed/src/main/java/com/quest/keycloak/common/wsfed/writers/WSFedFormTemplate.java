@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.writers;
+
+import com.quest.keycloak.common.wsfed.WSFedConstants;
+import org.keycloak.saml.common.util.StringUtil;
+
+import javax.ws.rs.HttpMethod;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The self-executing HTML form of the WS-Fed passive requestor responses (section 13.2.3 of the WS-Fed
+ * specification). The constant parts of the form are encoded in UTF-8 once, and only the destination and the values
+ * of the fields are encoded and escaped when a form is written.
+ *
+ * A form is written with {@link #writeStart(OutputStream, String)}, the inputs, then {@link #writeEnd(OutputStream)}.
+ * The templates are immutable and can be shared between threads.
+ */
+public final class WSFedFormTemplate {
+
+    public static final WSFedFormTemplate GET = new WSFedFormTemplate(HttpMethod.GET);
+    public static final WSFedFormTemplate POST = new WSFedFormTemplate(HttpMethod.POST);
+
+    private static final byte[] FORM_START_END = utf8("\">");
+    private static final byte[] INPUT_END = utf8("\" />");
+    private static final byte[] FORM_END = utf8("<NOSCRIPT>"
+            + "<P>JavaScript is disabled. We strongly recommend to enable it. Click the button below to continue.</P>"
+            + "<INPUT TYPE=\"SUBMIT\" VALUE=\"CONTINUE\" />"
+            + "</NOSCRIPT>"
+            + "</FORM></BODY></HTML>");
+
+    private static final Map<String, byte[]> INPUT_STARTS = new HashMap<>();
+
+    static {
+        for (String name : new String[] { WSFedConstants.WSFED_ACTION, WSFedConstants.WSFED_REALM, WSFedConstants.WSFED_RESULT,
+                WSFedConstants.WSFED_REPLY, WSFedConstants.WSFED_CONTEXT }) {
+            INPUT_STARTS.put(name, inputStart(name));
+        }
+    }
+
+    private final byte[] formStart;
+
+    private WSFedFormTemplate(String method) {
+        this.formStart = utf8("<HTML>"
+                + "<HEAD>"
+                + "<TITLE>HTTP Binding Response (Response)</TITLE>"
+                + "</HEAD>"
+                + "<BODY Onload=\"document.forms[0].submit()\">"
+                + "<FORM METHOD=\"" + method + "\" ACTION=\"");
+    }
+
+    /**
+     * @param method the method of the form, normally GET or POST
+     * @return the template of the forms using this method
+     */
+    public static WSFedFormTemplate forMethod(String method) {
+        if (HttpMethod.GET.equals(method)) {
+            return GET;
+        }
+        if (HttpMethod.POST.equals(method)) {
+            return POST;
+        }
+        return new WSFedFormTemplate(String.valueOf(method));
+    }
+
+    /**
+     * Writes the beginning of the document, up to the opening form tag
+     *
+     * @param out the stream to write to
+     * @param destination the "action" of the form
+     */
+    public void writeStart(OutputStream out, String destination) throws IOException {
+        out.write(formStart);
+        AttributeEscapingOutputStream.escape(out, String.valueOf(destination));
+        out.write(FORM_START_END);
+    }
+
+    /**
+     * Writes a hidden input, unless its value is null or blank
+     *
+     * @param out the stream to write to
+     * @param name the name of the input
+     * @param value the value of the input, which gets escaped
+     */
+    public static void writeInput(OutputStream out, String name, String value) throws IOException {
+        if (StringUtil.isNotNull(value)) {
+            writeInputStart(out, name);
+            AttributeEscapingOutputStream.escape(out, value);
+            out.write(INPUT_END);
+        }
+    }
+
+    /**
+     * Writes a hidden input, up to the opening quote of its value. The value written next must be escaped, and be
+     * followed by {@link #writeInputEnd(OutputStream)}.
+     *
+     * @param out the stream to write to
+     * @param name the name of the input
+     */
+    public static void writeInputStart(OutputStream out, String name) throws IOException {
+        byte[] start = INPUT_STARTS.get(name);
+        out.write(start != null ? start : inputStart(name));
+    }
+
+    public static void writeInputEnd(OutputStream out) throws IOException {
+        out.write(INPUT_END);
+    }
+
+    /**
+     * Writes the end of the document, from the submit button of the browsers without javascript
+     *
+     * @param out the stream to write to
+     */
+    public static void writeEnd(OutputStream out) throws IOException {
+        out.write(FORM_END);
+    }
+
+    private static byte[] inputStart(String name) {
+        return utf8("<INPUT TYPE=\"HIDDEN\" NAME=\"" + name + "\" VALUE=\"");
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -31,6 +31,8 @@ import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityT
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponseCollection;
 import org.picketlink.identity.federation.core.wstrust.writers.WSPolicyWriter;
 import org.picketlink.identity.federation.core.wstrust.writers.WSSecurityWriter;
+import org.picketlink.identity.federation.ws.addressing.EndpointReferenceType;
+import org.picketlink.identity.federation.ws.policy.AppliesTo;
 import org.picketlink.identity.federation.ws.trust.BinarySecretType;
 import org.picketlink.identity.federation.ws.trust.ComputedKeyType;
 import org.picketlink.identity.federation.ws.trust.EntropyType;
@@ -42,8 +44,10 @@ import org.picketlink.identity.federation.ws.trust.StatusType;
 import org.picketlink.identity.federation.ws.wss.secext.BinarySecurityTokenType;
 import org.w3c.dom.Element;
 
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Result;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -59,8 +63,26 @@ public class WSTrustResponseWriter {
 
     private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
 
+    private static final String WSP_PREFIX = "wsp";
+    private static final String WSA_PREFIX = "wsa";
+    private static final String WSU_PREFIX = "wsu";
+    private static final String APPLIES_TO = "AppliesTo";
+    private static final String ENDPOINT_REFERENCE = "EndpointReference";
+    private static final String ADDRESS = "Address";
+
     private final XMLStreamWriter writer;
 
+    /**
+     * The stream behind {@link #writer}, when known. {@link SerializedElement} tokens are copied to it directly.
+     */
+    private final OutputStream stream;
+
+    /**
+     * Whether the lean profile is used: the optional elements the relying parties don't read are left out, and the
+     * namespaces are declared once on the collection instead of on each element.
+     */
+    private final boolean lean;
+
     /**
      * <p>
      * Creates a {@code WSTrustResponseWriter} instance that writes WS-Trust response messages to the specified
@@ -73,7 +95,27 @@ public class WSTrustResponseWriter {
      * stream.
      */
     public WSTrustResponseWriter(OutputStream stream) throws ProcessingException {
+        this(stream, false);
+    }
+
+    /**
+     * <p>
+     * Creates a {@code WSTrustResponseWriter} instance that writes WS-Trust response messages to the specified
+     * {@code OutputStream}, possibly with the lean profile. The lean responses have neither Lifetime nor token
+     * references, the validity of the token being given by its own conditions, and declare all their namespaces on
+     * the response collection element.
+     * </p>
+     *
+     * @param stream the where the response is to be written.
+     * @param lean true to write lean responses
+     *
+     * @throws ProcessingException if an error occurs when creating the {@code XMLStreamWriter} for the specified
+     * stream.
+     */
+    public WSTrustResponseWriter(OutputStream stream, boolean lean) throws ProcessingException {
         this.writer = StaxUtil.getXMLStreamWriter(stream);
+        this.stream = stream;
+        this.lean = lean;
     }
 
     /**
@@ -89,6 +131,8 @@ public class WSTrustResponseWriter {
      */
     public WSTrustResponseWriter(Result result) throws ProcessingException {
         this.writer = StaxUtil.getXMLStreamWriter(result);
+        this.stream = null;
+        this.lean = false;
     }
 
     /**
@@ -102,6 +146,8 @@ public class WSTrustResponseWriter {
      */
     public WSTrustResponseWriter(XMLStreamWriter writer) {
         this.writer = writer;
+        this.stream = null;
+        this.lean = false;
     }
 
     /**
@@ -125,6 +171,9 @@ public class WSTrustResponseWriter {
         if (responses == null)
             throw new ProcessingException(ErrorCodes.NULL_VALUE + "WS-Trust response message doesn't contain any response");
 
+        if (lean)
+            writeHoistedNameSpaces(responses);
+
         for (RequestSecurityTokenResponse response : responses)
             this.write(response);
 
@@ -148,7 +197,7 @@ public class WSTrustResponseWriter {
         }
 
         // write the token lifetime, if available.
-        if (response.getLifetime() != null) {
+        if (response.getLifetime() != null && !lean) {
             Lifetime lifetime = response.getLifetime();
             StaxUtil.writeStartElement(this.writer, WSTrustConstants.PREFIX, WSTrustConstants.LIFETIME,
                     WSTrustConstants.BASE_NAMESPACE);
@@ -158,8 +207,12 @@ public class WSTrustResponseWriter {
 
         // write the applies-to element, if available.
         if (response.getAppliesTo() != null) {
-            WSPolicyWriter policyWriter = new WSPolicyWriter(this.writer);
-            policyWriter.write(response.getAppliesTo());
+            if (lean && isEndpointReferences(response.getAppliesTo())) {
+                writeAppliesTo(response.getAppliesTo());
+            } else {
+                WSPolicyWriter policyWriter = new WSPolicyWriter(this.writer);
+                policyWriter.write(response.getAppliesTo());
+            }
         }
 
         // write the key size, if available.
@@ -182,7 +235,7 @@ public class WSTrustResponseWriter {
         write(response.getRequestedSecurityToken());
 
         // write the attached reference, if available.
-        if (response.getRequestedAttachedReference() != null) {
+        if (response.getRequestedAttachedReference() != null && !lean) {
             RequestedReferenceType ref = response.getRequestedAttachedReference();
             StaxUtil.writeStartElement(this.writer, WSTrustConstants.PREFIX, WSTrustConstants.REQUESTED_ATTACHED_REFERENCE,
                     WSTrustConstants.BASE_NAMESPACE);
@@ -191,7 +244,7 @@ public class WSTrustResponseWriter {
         }
 
         // write the unattached reference, if available.
-        if (response.getRequestedUnattachedReference() != null) {
+        if (response.getRequestedUnattachedReference() != null && !lean) {
             RequestedReferenceType ref = response.getRequestedUnattachedReference();
             StaxUtil.writeStartElement(this.writer, WSTrustConstants.PREFIX, WSTrustConstants.REQUESTED_UNATTACHED_REFERENCE,
                     WSTrustConstants.BASE_NAMESPACE);
@@ -230,6 +283,59 @@ public class WSTrustResponseWriter {
         StaxUtil.flush(writer);
     }
 
+    /**
+     * Declares on the collection element the namespaces of the elements written by this writer, so that they aren't
+     * declared again on each element. The namespaces of the tokens themselves are left alone.
+     */
+    private void writeHoistedNameSpaces(List<RequestSecurityTokenResponse> responses) throws ProcessingException {
+        boolean policy = false;
+        boolean security = false;
+        for (RequestSecurityTokenResponse response : responses) {
+            policy |= response.getAppliesTo() != null && isEndpointReferences(response.getAppliesTo());
+            if (response.getRequestedSecurityToken() != null) {
+                for (Object token : response.getRequestedSecurityToken().getAny()) {
+                    security |= token instanceof BinarySecurityTokenType;
+                }
+            }
+        }
+
+        if (policy) {
+            StaxUtil.writeNameSpace(this.writer, WSP_PREFIX, WSTrustConstants.WSP_NS);
+            StaxUtil.writeNameSpace(this.writer, WSA_PREFIX, WSTrustConstants.WSA_NS);
+        }
+        if (security) {
+            StaxUtil.writeNameSpace(this.writer, WSTrustConstants.WSSE.PREFIX, WSTrustConstants.WSSE_NS);
+            StaxUtil.writeNameSpace(this.writer, WSU_PREFIX, WSTrustConstants.WSU_NS);
+        }
+    }
+
+    private static boolean isEndpointReferences(AppliesTo appliesTo) {
+        for (Object content : appliesTo.getAny()) {
+            if (!(content instanceof EndpointReferenceType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the AppliesTo element like the WSPolicyWriter, without declaring the namespaces hoisted to the collection
+     */
+    private void writeAppliesTo(AppliesTo appliesTo) throws ProcessingException {
+        StaxUtil.writeStartElement(this.writer, WSP_PREFIX, APPLIES_TO, WSTrustConstants.WSP_NS);
+        for (Object content : appliesTo.getAny()) {
+            EndpointReferenceType endpointReference = (EndpointReferenceType) content;
+            StaxUtil.writeStartElement(this.writer, WSA_PREFIX, ENDPOINT_REFERENCE, WSTrustConstants.WSA_NS);
+            if (endpointReference.getAddress() != null) {
+                StaxUtil.writeStartElement(this.writer, WSA_PREFIX, ADDRESS, WSTrustConstants.WSA_NS);
+                StaxUtil.writeCharacters(this.writer, endpointReference.getAddress().getValue());
+                StaxUtil.writeEndElement(this.writer);
+            }
+            StaxUtil.writeEndElement(this.writer);
+        }
+        StaxUtil.writeEndElement(this.writer);
+    }
+
     private void write(String context) throws ProcessingException {
         if (context != null) {
             StaxUtil.writeAttribute(this.writer, WSTrustConstants.RST_CONTEXT, context);
@@ -248,12 +354,16 @@ public class WSTrustResponseWriter {
                     samlAssertionWriter.write(assertion);
                 } else if (securityToken instanceof Element) {
                     StaxUtil.writeDOMElement(this.writer, (Element) securityToken);
+                } else if (securityToken instanceof SerializedElement) {
+                    write((SerializedElement) securityToken);
                 } else if (securityToken instanceof BinarySecurityTokenType) {
                     BinarySecurityTokenType securityTokenType = (BinarySecurityTokenType) securityToken;
                     StaxUtil.writeStartElement(this.writer, WSTrustConstants.WSSE.PREFIX, WSTrustConstants.WSSE.BINARY_SECURITY_TOKEN, WSTrustConstants.WSSE_NS);
 
-                    StaxUtil.writeNameSpace(this.writer, WSTrustConstants.WSSE.PREFIX, WSTrustConstants.WSSE_NS);
-                    StaxUtil.writeNameSpace(this.writer, "wsu", WSTrustConstants.WSU_NS);
+                    if (!lean) {
+                        StaxUtil.writeNameSpace(this.writer, WSTrustConstants.WSSE.PREFIX, WSTrustConstants.WSSE_NS);
+                        StaxUtil.writeNameSpace(this.writer, WSU_PREFIX, WSTrustConstants.WSU_NS);
+                    }
 
                     StaxUtil.writeAttribute(this.writer, WSTrustConstants.WSSE.ID, securityTokenType.getId());
                     StaxUtil.writeAttribute(this.writer, WSTrustConstants.WSSE.VALUE_TYPE, securityTokenType.getValueType());
@@ -277,6 +387,25 @@ public class WSTrustResponseWriter {
         }
     }
 
+    /**
+     * Copies an already serialized token as is, so that nothing (not even the order of its attributes) differs from
+     * what was signed. When the writer does not know the underlying stream, the token goes through a DOM instead.
+     */
+    private void write(SerializedElement token) throws ProcessingException {
+        if (this.stream == null) {
+            StaxUtil.writeDOMElement(this.writer, token.toDocument().getDocumentElement());
+            return;
+        }
+        try {
+            // close the pending start tag and push everything written so far to the stream before copying the token
+            this.writer.writeCharacters("");
+            this.writer.flush();
+            token.writeTo(this.stream);
+        } catch (XMLStreamException | IOException e) {
+            throw new ProcessingException(e);
+        }
+    }
+
     private void write(RequestedProofTokenType requestedProof) throws ProcessingException {
         if (requestedProof != null) {
             StaxUtil.writeStartElement(this.writer, WSTrustConstants.PREFIX, WSTrustConstants.REQUESTED_PROOF_TOKEN,
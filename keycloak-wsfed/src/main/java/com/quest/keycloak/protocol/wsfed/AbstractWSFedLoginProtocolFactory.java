@@ -19,14 +19,18 @@ package com.quest.keycloak.protocol.wsfed;
 import com.quest.keycloak.protocol.wsfed.mappers.OIDCFullNameMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.OIDCUserPropertyMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.SAMLUserPropertyAttributeStatementMapper;
+import com.quest.keycloak.protocol.wsfed.sig.CryptoEnginePool;
+import org.keycloak.Config;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.RealmModel;
 import org.keycloak.protocol.AbstractLoginProtocolFactory;
 import org.keycloak.protocol.oidc.mappers.AddressMapper;
 import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
 import org.keycloak.protocol.saml.mappers.RoleListMapper;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
 import org.keycloak.representations.idm.ClientRepresentation;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.processing.core.saml.v2.constants.X500SAMLProfileConstants;
@@ -34,13 +38,15 @@ import org.keycloak.saml.processing.core.saml.v2.constants.X500SAMLProfileConsta
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created on 5/19/15.
  */
-public abstract class AbstractWSFedLoginProtocolFactory extends AbstractLoginProtocolFactory {
+public abstract class AbstractWSFedLoginProtocolFactory extends AbstractLoginProtocolFactory implements ServerInfoAwareProviderFactory {
     public static final String USERNAME = "username";
     public static final String UPN = "upn";
     public static final String EMAIL = "email";
@@ -62,6 +68,8 @@ public abstract class AbstractWSFedLoginProtocolFactory extends AbstractLoginPro
     static Map<String, ProtocolMapperModel> builtins = new HashMap<>();
     static List<ProtocolMapperModel> defaultBuiltins = new ArrayList<>();
 
+    private volatile WSFedSigningExecutor signingExecutor;
+
     @Override
     public Map<String, ProtocolMapperModel> getBuiltinMappers() {
         return builtins;
@@ -82,6 +90,63 @@ public abstract class AbstractWSFedLoginProtocolFactory extends AbstractLoginPro
         return "wsfed";
     }
 
+    @Override
+    public void init(Config.Scope config) {
+        super.init(config);
+        int threads = config.getInt("asyncSigningThreads", Runtime.getRuntime().availableProcessors());
+        signingExecutor = new WSFedSigningExecutor(threads,
+                config.getInt("asyncSigningQueueSize", threads * 4),
+                config.getInt("asyncSigningRetryAfter", WSFedSigningExecutor.DEFAULT_RETRY_AFTER),
+                config.getInt("asyncSigningTimeout", WSFedSigningExecutor.DEFAULT_TIMEOUT));
+    }
+
+    /**
+     * @return the executor of the clients using asynchronous signing, or null once the factory is closed
+     */
+    public WSFedSigningExecutor getSigningExecutor() {
+        return signingExecutor;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+        factory.register(new WSFedProviderEventListener());
+    }
+
+    @Override
+    public void close() {
+        WSFedSigningExecutor executor = signingExecutor;
+        signingExecutor = null;
+        if (executor != null) {
+            executor.shutdown();
+        }
+        CryptoEnginePool.clear();
+        super.close();
+    }
+
+    /**
+     * Reports the counters of the engine pool and of the signing executor, shown with the provider on the server info page
+     * of the admin console
+     */
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("cryptoEngineHits", String.valueOf(CryptoEnginePool.getHits()));
+        info.put("cryptoEngineMisses", String.valueOf(CryptoEnginePool.getMisses()));
+        info.put("cryptoEnginesIdle", String.valueOf(CryptoEnginePool.getIdleCount()));
+        WSFedSigningExecutor executor = signingExecutor;
+        if (executor != null) {
+            info.put("asyncSigningQueueDepth", String.valueOf(executor.getQueueDepth()));
+            info.put("asyncSigningSubmitted", String.valueOf(executor.getSubmittedCount()));
+            info.put("asyncSigningRejected", String.valueOf(executor.getRejectedCount()));
+            info.put("asyncSigningCompleted", String.valueOf(executor.getCompletedCount()));
+            info.put("asyncSigningFailed", String.valueOf(executor.getFailedCount()));
+            info.put("asyncSigningQueueWaitMs", String.valueOf(TimeUnit.NANOSECONDS.toMillis(executor.getQueueWaitNanos())));
+            info.put("asyncSigningSignMs", String.valueOf(TimeUnit.NANOSECONDS.toMillis(executor.getSignNanos())));
+        }
+        return info;
+    }
+
     static {
         Arrays.asList(
             //OIDC
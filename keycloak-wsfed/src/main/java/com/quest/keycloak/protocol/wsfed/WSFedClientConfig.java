@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.protocol.wsfed.sig.PooledSignatureSignerContext;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedEncryptionAlgorithm;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedKeyTransport;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.models.ClientModel;
+import org.keycloak.protocol.saml.SamlConfigAttributes;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol.*;
+import static com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE;
+import static com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder.SAML_NAME_ID_FORMAT_ATTRIBUTE;
+
+/**
+ * The WS-Fed configuration of a client, parsed from its attributes. Instances are immutable, and shared by the
+ * requests through the {@link WSFedConfigCache}. The invalid values are logged once, when the configuration is
+ * parsed, and replaced by the defaults.
+ */
+public final class WSFedClientConfig {
+    private static final Logger logger = Logger.getLogger(WSFedClientConfig.class);
+
+    private static final int PERSISTENT_NAME_ID_SECRET_LENGTH = 32;
+
+    private final String realmId;
+    private final long parsedAt;
+
+    private final boolean jwt;
+    private final boolean x5tIncluded;
+    private final WsFedSAMLAssertionTokenFormat samlAssertionTokenFormat;
+    private final WSFedSignatureAlgorithm signatureAlgorithm;
+    private final String jwtSignatureAlgorithm;
+    private final Map<String, SigningKeyMaterial> hmacKeys;
+    private final boolean encrypt;
+    private final WSFedEncryptionAlgorithm encryptionAlgorithm;
+    private final WSFedKeyTransport keyTransport;
+    private final boolean streamingSignature;
+    private final boolean streamingResponse;
+    private final int compressionThreshold;
+    private final boolean leanResponse;
+    private final boolean redirectBinding;
+    private final boolean asyncSigning;
+    private final boolean claimSnapshot;
+    private final String nameIdFormat;
+    private final boolean forceNameIdFormat;
+    private final boolean persistentNameIdDerived;
+    private final SecretKey persistentNameIdKey;
+
+    private WSFedClientConfig(ClientModel client, long parsedAt) {
+        this.realmId = client.getRealm() == null ? null : client.getRealm().getId();
+        this.parsedAt = parsedAt;
+
+        this.jwt = Boolean.parseBoolean(client.getAttribute(WSFED_JWT));
+        this.x5tIncluded = Boolean.parseBoolean(client.getAttribute(WSFED_X5T));
+        this.samlAssertionTokenFormat = parseSamlAssertionTokenFormat(client);
+        this.signatureAlgorithm = parseSignatureAlgorithm(client);
+        this.jwtSignatureAlgorithm = parseJwtSignatureAlgorithm(client);
+        this.hmacKeys = parseHmacKeys(client, signatureAlgorithm, jwtSignatureAlgorithm);
+        this.encrypt = "true".equals(client.getAttribute(SamlConfigAttributes.SAML_ENCRYPT));
+        this.encryptionAlgorithm = parseEncryptionAlgorithm(client);
+        this.keyTransport = parseKeyTransport(client);
+        this.streamingSignature = Boolean.parseBoolean(client.getAttribute(WSFED_STREAMING_SIGNATURE));
+        this.streamingResponse = Boolean.parseBoolean(client.getAttribute(WSFED_STREAMING_RESPONSE));
+        this.compressionThreshold = parseCompressionThreshold(client);
+        this.leanResponse = Boolean.parseBoolean(client.getAttribute(WSFED_LEAN_RESPONSE));
+        this.redirectBinding = Boolean.parseBoolean(client.getAttribute(WSFED_REDIRECT_BINDING));
+        this.asyncSigning = Boolean.parseBoolean(client.getAttribute(WSFED_ASYNC_SIGNING));
+        this.claimSnapshot = Boolean.parseBoolean(client.getAttribute(WSFED_CLAIM_SNAPSHOT));
+        this.nameIdFormat = client.getAttribute(SAML_NAME_ID_FORMAT_ATTRIBUTE);
+        this.forceNameIdFormat = "true".equals(client.getAttribute(SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE));
+        this.persistentNameIdDerived = !isBlank(client.getAttribute(WSFED_PERSISTENT_NAME_ID_SECRET));
+        this.persistentNameIdKey = parsePersistentNameIdKey(client);
+    }
+
+    /**
+     * @param client the client
+     * @return the configuration of the client, parsed now
+     */
+    public static WSFedClientConfig parse(ClientModel client) {
+        return parse(client, System.currentTimeMillis());
+    }
+
+    static WSFedClientConfig parse(ClientModel client, long now) {
+        return new WSFedClientConfig(client, now);
+    }
+
+    String getRealmId() {
+        return realmId;
+    }
+
+    long getParsedAt() {
+        return parsedAt;
+    }
+
+    public boolean isJwt() {
+        return jwt;
+    }
+
+    public boolean isX5tIncluded() {
+        return x5tIncluded;
+    }
+
+    /**
+     * @return the format of the SAML assertions, SAML 2.0 by default
+     */
+    public WsFedSAMLAssertionTokenFormat getSamlAssertionTokenFormat() {
+        return samlAssertionTokenFormat;
+    }
+
+    /**
+     * @return the algorithm of the assertion signatures, RSA_SHA256 by default
+     */
+    public WSFedSignatureAlgorithm getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * @return the JWS algorithm of the JWT tokens, RS256 by default
+     */
+    public String getJwtSignatureAlgorithm() {
+        return jwtSignatureAlgorithm;
+    }
+
+    /**
+     * @param algorithm the JWA name of an HMAC algorithm (HS256, ...)
+     * @return the secret shared with the client (wsfed.hmac_secret) for that algorithm, or null if the client has no
+     * valid secret, or if none of its signature algorithms uses it
+     */
+    public SigningKeyMaterial getHmacKey(String algorithm) {
+        return hmacKeys.get(algorithm);
+    }
+
+    /**
+     * @return true if the SAML assertions are encrypted (saml.encrypt)
+     */
+    public boolean isEncrypt() {
+        return encrypt;
+    }
+
+    /**
+     * @return the block cipher of the encrypted assertions, or null for keycloak's AES-128-CBC
+     */
+    public WSFedEncryptionAlgorithm getEncryptionAlgorithm() {
+        return encryptionAlgorithm;
+    }
+
+    /**
+     * @return the key transport algorithm, RSA_1_5 by default
+     */
+    public WSFedKeyTransport getKeyTransport() {
+        return keyTransport;
+    }
+
+    public boolean isStreamingSignature() {
+        return streamingSignature;
+    }
+
+    public boolean isStreamingResponse() {
+        return streamingResponse;
+    }
+
+    /**
+     * The sign-in forms carry the token along with the wctx and wreply values of the request, so compressing them
+     * exposes the token to BREACH-style attacks. They are only compressed when the client opts in explicitly with
+     * {@link WSFedLoginProtocol#WSFED_COMPRESS_TOKEN_RESPONSE}.
+     * @return the size from which the sign-in forms are compressed, or -1 if they aren't
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public boolean isLeanResponse() {
+        return leanResponse;
+    }
+
+    public boolean isRedirectBinding() {
+        return redirectBinding;
+    }
+
+    public boolean isAsyncSigning() {
+        return asyncSigning;
+    }
+
+    public boolean isClaimSnapshot() {
+        return claimSnapshot;
+    }
+
+    /**
+     * @return the configured NameID format (saml_name_id_format), as named in the admin console, or null
+     */
+    public String getNameIdFormat() {
+        return nameIdFormat;
+    }
+
+    public boolean isForceNameIdFormat() {
+        return forceNameIdFormat;
+    }
+
+    /**
+     * @return true if the persistent NameIDs of the client are derived rather than generated and stored
+     * (wsfed.persistent_name_id_secret), whether its secret is valid or not
+     */
+    public boolean isPersistentNameIdDerived() {
+        return persistentNameIdDerived;
+    }
+
+    /**
+     * @return the secret the persistent NameIDs are derived with, or null if the client has no valid one
+     */
+    public SecretKey getPersistentNameIdKey() {
+        return persistentNameIdKey;
+    }
+
+    private static WsFedSAMLAssertionTokenFormat parseSamlAssertionTokenFormat(ClientModel client) {
+        String value = client.getAttribute(WSFED_SAML_ASSERTION_TOKEN_FORMAT);
+        if (value != null) {
+            for (WsFedSAMLAssertionTokenFormat format : WsFedSAMLAssertionTokenFormat.values()) {
+                if (format.get().equalsIgnoreCase(value)) {
+                    return format;
+                }
+            }
+            logger.errorf("Invalid SAML assertion token format %s for client %s", value, client.getClientId());
+        }
+        return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
+    }
+
+    private static WSFedSignatureAlgorithm parseSignatureAlgorithm(ClientModel client) {
+        String value = client.getAttribute(WSFED_SIGNATURE_ALGORITHM);
+        if (value != null) {
+            try {
+                return WSFedSignatureAlgorithm.valueOf(value);
+            } catch (IllegalArgumentException ex) {
+                logger.errorf("Unsupported signature algorithm %s for client %s", value, client.getClientId());
+            }
+        }
+        return WSFedSignatureAlgorithm.RSA_SHA256;
+    }
+
+    private static String parseJwtSignatureAlgorithm(ClientModel client) {
+        String value = client.getAttribute(WSFED_JWT_SIGNATURE_ALGORITHM);
+        if (value != null) {
+            if (PooledSignatureSignerContext.isSupported(value)) {
+                return value;
+            }
+            logger.errorf("Unsupported JWT signature algorithm %s for client %s", value, client.getClientId());
+        }
+        return Algorithm.RS256;
+    }
+
+    private static WSFedEncryptionAlgorithm parseEncryptionAlgorithm(ClientModel client) {
+        String value = client.getAttribute(WSFED_ENCRYPTION_ALGORITHM);
+        if (value != null) {
+            try {
+                return WSFedEncryptionAlgorithm.valueOf(value);
+            } catch (IllegalArgumentException ex) {
+                logger.errorf("Unsupported encryption algorithm %s for client %s", value, client.getClientId());
+            }
+        }
+        return null;
+    }
+
+    private static WSFedKeyTransport parseKeyTransport(ClientModel client) {
+        String value = client.getAttribute(WSFED_KEY_TRANSPORT);
+        if (value != null) {
+            try {
+                return WSFedKeyTransport.valueOf(value);
+            } catch (IllegalArgumentException ex) {
+                logger.errorf("Unsupported key transport %s for client %s", value, client.getClientId());
+            }
+        }
+        return WSFedKeyTransport.RSA_1_5;
+    }
+
+    /**
+     * The HMAC secret of a client is its own, and never one of the realm keys: those also sign the tokens keycloak
+     * issues for itself, which the relying party could then forge. The secret must be at least as long as the output
+     * of the hash function (RFC 7518 section 3.2).
+     */
+    private static Map<String, SigningKeyMaterial> parseHmacKeys(ClientModel client, WSFedSignatureAlgorithm signatureAlgorithm,
+                                                                 String jwtSignatureAlgorithm) {
+        byte[] secret = decodeSecret(client, WSFED_HMAC_SECRET);
+        if (secret == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, SigningKeyMaterial> keys = new HashMap<>();
+        for (String algorithm : Arrays.asList(signatureAlgorithm.getKeyAlgorithm(), jwtSignatureAlgorithm)) {
+            if (!algorithm.startsWith("HS") || keys.containsKey(algorithm)) {
+                continue;
+            }
+            int minLength = Integer.parseInt(algorithm.substring(2)) / 8;
+            if (secret.length < minLength) {
+                logger.errorf("The HMAC secret of client %s is too short for %s, it must be at least %d bytes long",
+                        client.getClientId(), algorithm, minLength);
+                continue;
+            }
+            try {
+                keys.put(algorithm, SigningKeyMaterial.fromSecret(getSecretKeyId(secret), algorithm, secret));
+            } catch (GeneralSecurityException e) {
+                logger.errorf(e, "Invalid HMAC secret for client %s", client.getClientId());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * The persistent NameIDs are derived with a secret of their own, which is neither shared with the relying parties
+     * nor used for anything else.
+     */
+    private static SecretKey parsePersistentNameIdKey(ClientModel client) {
+        byte[] secret = decodeSecret(client, WSFED_PERSISTENT_NAME_ID_SECRET);
+        if (secret == null) {
+            return null;
+        }
+        if (secret.length < PERSISTENT_NAME_ID_SECRET_LENGTH) {
+            logger.errorf("The persistent NameID secret of client %s is too short, it must be at least %d bytes long",
+                    client.getClientId(), PERSISTENT_NAME_ID_SECRET_LENGTH);
+            return null;
+        }
+        return new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    /**
+     * @return the decoded value of a base64 client attribute, or null if the attribute is unset or invalid
+     */
+    private static byte[] decodeSecret(ClientModel client, String attribute) {
+        String value = client.getAttribute(attribute);
+        if (isBlank(value)) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(value.trim());
+        } catch (IllegalArgumentException ex) {
+            logger.errorf("Invalid %s for client %s, it must be encoded in base64", attribute, client.getClientId());
+            return null;
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    /**
+     * @return the name of a secret, from its SHA-256 thumbprint, so that the relying party can tell which secret
+     * signed a token while a new one is rolled out
+     */
+    private static String getSecretKeyId(byte[] secret) throws GeneralSecurityException {
+        return Base64Url.encode(Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(secret), 12));
+    }
+
+    private static int parseCompressionThreshold(ClientModel client) {
+        String threshold = client.getAttribute(WSFED_COMPRESSION_THRESHOLD);
+        if (threshold == null || threshold.trim().isEmpty()) {
+            return -1;
+        }
+        if (!Boolean.parseBoolean(client.getAttribute(WSFED_COMPRESS_TOKEN_RESPONSE))) {
+            logger.warnf("The compression threshold of client %s is ignored without %s", client.getClientId(), WSFED_COMPRESS_TOKEN_RESPONSE);
+            return -1;
+        }
+        try {
+            return Integer.parseInt(threshold.trim());
+        } catch (NumberFormatException e) {
+            logger.errorf("Invalid compression threshold %s for client %s", threshold, client.getClientId());
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.RealmsResource;
+
+import javax.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU caches of the {@link WSFedClientConfig} of the clients, per client id, and of the URLs of the realms,
+ * per base URI and realm name.
+ *
+ * A configuration is dropped when its client is updated or removed, and when its realm is removed (see
+ * WSFedProviderEventListener). Those events are only fired on the node where the change is made: on the other nodes
+ * of a cluster, a configuration is parsed again once it is older than its maximum age. A configuration parsed while
+ * an invalidation was made is returned, but not cached, as it may have been read from the client before its update.
+ *
+ * The URLs of a realm only depend on the base URI of the request, which can differ between the frontend and the
+ * backend URLs, and on the realm name: they never get stale, a renamed realm gets new entries.
+ */
+public class WSFedConfigCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.SECONDS.toMillis(60);
+    public static final int DEFAULT_MAX_REALM_URLS = 1000;
+
+    private static final WSFedConfigCache INSTANCE = new WSFedConfigCache(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE, DEFAULT_MAX_REALM_URLS);
+
+    private final Map<String, WSFedClientConfig> configs;
+    private final Map<String, RealmUrls> realmUrls;
+    private final long maxAge;
+    // incremented by every invalidation, guarded by configs
+    private long generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    WSFedConfigCache(int maxSize, long maxAge, int maxRealmUrls) {
+        this.maxAge = maxAge;
+        this.configs = new LinkedHashMap<String, WSFedClientConfig>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WSFedClientConfig> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.realmUrls = new LinkedHashMap<String, RealmUrls>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RealmUrls> eldest) {
+                return size() > maxRealmUrls;
+            }
+        };
+    }
+
+    public static WSFedConfigCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param client the client
+     * @return the WS-Fed configuration of the client
+     */
+    public WSFedClientConfig getConfig(ClientModel client) {
+        long now = System.currentTimeMillis();
+        String clientId = client.getId();
+        if (clientId == null) {
+            return WSFedClientConfig.parse(client, now);
+        }
+
+        WSFedClientConfig config;
+        long parsedGeneration;
+        synchronized (configs) {
+            config = configs.get(clientId);
+            parsedGeneration = generation;
+        }
+        if (config != null && now - config.getParsedAt() < maxAge) {
+            hits.increment();
+            return config;
+        }
+
+        misses.increment();
+        config = WSFedClientConfig.parse(client, now);
+        synchronized (configs) {
+            if (generation == parsedGeneration) {
+                configs.put(clientId, config);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @param uriInfo the URI info of the request
+     * @param realm the realm
+     * @return the URLs of the realm, for the base URI of the request
+     */
+    public RealmUrls getRealmUrls(UriInfo uriInfo, RealmModel realm) {
+        URI baseUri = uriInfo.getBaseUri();
+        if (baseUri == null) {
+            return RealmUrls.build(uriInfo, realm);
+        }
+
+        String key = baseUri.toString() + '|' + realm.getName();
+        RealmUrls urls;
+        synchronized (realmUrls) {
+            urls = realmUrls.get(key);
+        }
+        if (urls == null) {
+            urls = RealmUrls.build(uriInfo, realm);
+            synchronized (realmUrls) {
+                realmUrls.put(key, urls);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Forgets the configuration of a client
+     *
+     * @param clientId the id of the client
+     */
+    public void invalidate(String clientId) {
+        if (clientId != null) {
+            synchronized (configs) {
+                configs.remove(clientId);
+                generation++;
+            }
+        }
+    }
+
+    /**
+     * Forgets the configurations of the clients of a realm
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            synchronized (configs) {
+                configs.values().removeIf(config -> realmId.equals(config.getRealmId()));
+                generation++;
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (configs) {
+            configs.clear();
+            generation++;
+        }
+        synchronized (realmUrls) {
+            realmUrls.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (configs) {
+            return configs.size();
+        }
+    }
+
+    /**
+     * @return the number of client configurations served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of client configurations that had to be parsed
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * The URLs of a realm, as seen from a base URI
+     */
+    public static final class RealmUrls {
+        private final String issuer;
+        private final String endpoint;
+
+        private RealmUrls(String issuer, String endpoint) {
+            this.issuer = issuer;
+            this.endpoint = endpoint;
+        }
+
+        static RealmUrls build(UriInfo uriInfo, RealmModel realm) {
+            String issuer = RealmsResource.realmBaseUrl(uriInfo).build(realm.getName()).toString();
+            String endpoint = uriInfo.getBaseUriBuilder()
+                    .path("realms").path(realm.getName())
+                    .path("protocol")
+                    .path(WSFedLoginProtocol.LOGIN_PROTOCOL)
+                    .build().toString();
+            return new RealmUrls(issuer, endpoint);
+        }
+
+        /**
+         * @return the base URL of the realm, the issuer of its tokens
+         */
+        public String getIssuer() {
+            return issuer;
+        }
+
+        /**
+         * @return the URL of the WS-Fed endpoint of the realm
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+    }
+}
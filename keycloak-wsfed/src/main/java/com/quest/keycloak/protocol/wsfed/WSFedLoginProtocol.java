@@ -18,33 +18,42 @@ package com.quest.keycloak.protocol.wsfed;
 
 import com.quest.keycloak.common.wsfed.WSFedConstants;
 import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
+import com.quest.keycloak.protocol.wsfed.builders.RequestSecurityTokenResponseBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WSFedOIDCAccessTokenBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WSFedSAML2AssertionTypeBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WsFedSAML11AssertionTypeBuilder;
-
+import com.quest.keycloak.protocol.wsfed.sig.ClientEncryptionKeyCache;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterialCache;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedEncryptionAlgorithm;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedKeyTransport;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
+
+import io.cloudtrust.exception.CloudtrustRuntimeException;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.jboss.logging.Logger;
+import org.jboss.resteasy.spi.HttpRequest;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.keycloak.connections.httpclient.HttpClientProvider;
-import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.KeyUse;
-import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.*;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.protocol.LoginProtocol;
 import org.keycloak.protocol.oidc.utils.RedirectUtils;
-import org.keycloak.protocol.saml.SamlProtocolUtils;
+import org.keycloak.provider.ProviderFactory;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
 import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
@@ -52,9 +61,9 @@ import javax.xml.datatype.DatatypeConfigurationException;
 
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.security.PrivateKey;
-import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implementation of keycloak's LoginProtocol. The LoginProtocol is used during the authentication steps for login AND
@@ -74,6 +83,20 @@ public class WSFedLoginProtocol implements LoginProtocol {
     public static final String WSFED_JWT = "wsfed.jwt";
     public static final String WSFED_X5T = "wsfed.x5t";
     public static final String WSFED_SAML_ASSERTION_TOKEN_FORMAT = "wsfed.saml_assertion_token_format";
+    public static final String WSFED_STREAMING_SIGNATURE = "wsfed.streaming_signature";
+    public static final String WSFED_ASYNC_SIGNING = "wsfed.async_signing";
+    public static final String WSFED_STREAMING_RESPONSE = "wsfed.streaming_response";
+    public static final String WSFED_COMPRESSION_THRESHOLD = "wsfed.compression_threshold";
+    public static final String WSFED_COMPRESS_TOKEN_RESPONSE = "wsfed.compress_token_response";
+    public static final String WSFED_REDIRECT_BINDING = "wsfed.redirect_binding";
+    public static final String WSFED_LEAN_RESPONSE = "wsfed.lean_response";
+    public static final String WSFED_CLAIM_SNAPSHOT = "wsfed.claim_snapshot";
+    public static final String WSFED_SIGNATURE_ALGORITHM = "wsfed.signature_algorithm";
+    public static final String WSFED_JWT_SIGNATURE_ALGORITHM = "wsfed.jwt_signature_algorithm";
+    public static final String WSFED_HMAC_SECRET = "wsfed.hmac_secret";
+    public static final String WSFED_PERSISTENT_NAME_ID_SECRET = "wsfed.persistent_name_id_secret";
+    public static final String WSFED_ENCRYPTION_ALGORITHM = "wsfed.encryption_algorithm";
+    public static final String WSFED_KEY_TRANSPORT = "wsfed.key_transport";
     public static final String WSFED_LOGOUT_BINDING_URI = "WSFED_LOGOUT_BINDING_URI";
     public static final String WSFED_CONTEXT = "WSFED_CONTEXT";
 
@@ -199,9 +222,10 @@ public class WSFedLoginProtocol implements LoginProtocol {
         AuthenticatedClientSessionModel clientSession = ctx.getClientSession();
         ClientModel client = clientSession.getClient();
         String context = clientSession.getNote(WSFedConstants.WSFED_CONTEXT);
-        userSession.setNote(WSFedConstants.WSFED_REALM, client.getClientId());
+        WSFedSessionNotes.of(userSession).set(WSFedConstants.WSFED_REALM, client.getClientId()).flush();
         try {
-            KeyWrapper activeKey = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+            WSFedSignatureAlgorithm signatureAlgorithm = getSignatureAlgorithm(client);
+            SigningKeyMaterial activeKey = getSigningKey(client, signatureAlgorithm.getKeyAlgorithm());
 
             ctx.getBuilder().setRealm(clientSession.getClient().getClientId())
                     .setAction(WSFedConstants.WSFED_SIGNIN_ACTION)
@@ -209,16 +233,23 @@ public class WSFedLoginProtocol implements LoginProtocol {
                     .setContext(context)
                     .setTokenExpiration(realm.getAccessTokenLifespan())
                     .setRequestIssuer(clientSession.getClient().getClientId())
-                    .setSigningKeyPair(new KeyPair((PublicKey)activeKey.getPublicKey(), (PrivateKey)activeKey.getPrivateKey()))
-                    .setSigningCertificate(activeKey.getCertificate())
-                    .setSigningKeyPairId(activeKey.getKid());
-
-            if ("true".equals(client.getAttribute("saml.encrypt"))) {
-                ctx.getBuilder().encrypt(SamlProtocolUtils.getEncryptionKey(client));
+                    .setSignatureAlgorithm(signatureAlgorithm)
+                    .setSigningKeyMaterial(activeKey)
+                    .setStreamingSignature(isStreamingSignature(client))
+                    .setStreamingResponse(isStreamingResponse(client))
+                    .setLeanResponse(isLeanResponse(client))
+                    .setCompressionThreshold(getCompressionThreshold(client))
+                    .setAcceptEncoding(headers != null ? headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING) : null);
+
+            if (getClientConfig(client).isEncrypt()) {
+                ctx.getBuilder().encrypt(ClientEncryptionKeyCache.getInstance().getEncryptionKey(client))
+                        .encryptionMethod(getEncryptionAlgorithm(client))
+                        .keyTransport(getKeyTransport(client));
             }
 
             if (useJwt(client)) {
                 //JSON webtoken (OIDC) set in client config
+                String jwtSignatureAlgorithm = getJwtSignatureAlgorithm(client);
                 WSFedOIDCAccessTokenBuilder oidcBuilder = new WSFedOIDCAccessTokenBuilder();
                 oidcBuilder.setSession(session)
                         .setUserSession(userSession)
@@ -226,7 +257,9 @@ public class WSFedLoginProtocol implements LoginProtocol {
                         .setClient(client)
                         .setClientSession(clientSession)
                         .setRealm(realm)
-                        .setX5tIncluded(isX5tIncluded(client));
+                        .setX5tIncluded(isX5tIncluded(client))
+                        .setSignatureAlgorithm(jwtSignatureAlgorithm)
+                        .setSigningKey(getHmacKey(client, jwtSignatureAlgorithm));
 
                 String token = oidcBuilder.build();
                 ctx.getBuilder().setJwt(token);
@@ -244,6 +277,9 @@ public class WSFedLoginProtocol implements LoginProtocol {
                 }
             }
 
+            if (isAsyncSigning(client)) {
+                return evaluateAsyncAuthenticatedResponse(ctx);
+            }
             return evaluateAuthenticatedResponse(ctx);
         } catch (Exception e) {
             logger.error("failed", e);
@@ -254,13 +290,91 @@ public class WSFedLoginProtocol implements LoginProtocol {
     /**
      * evaluateAuthenticatedResponse returns the response for calls to authenticated(...) according to a given context.
      * It provides a default behavior and allows different responses by overriding the WSFedLoginProtocol class.
+     * It is not called for the clients using asynchronous signing, which responses are built from
+     * {@link #prepareAuthenticatedResponse(WSFedLoginContext)} alone.
      *
      * @param ctx
      * @return Response
      * @throws GeneralSecurityException
      */
     protected Response evaluateAuthenticatedResponse(WSFedLoginContext ctx) throws GeneralSecurityException {
-        return ctx.getBuilder().buildResponse();
+        return prepareAuthenticatedResponse(ctx).buildResponse();
+    }
+
+    /**
+     * Completes the response builder with everything it needs from the keycloak session and the models. The builder
+     * is then used on its own, possibly on another thread once the session has been closed.
+     *
+     * @param ctx
+     * @return the builder of the response
+     * @throws GeneralSecurityException
+     */
+    protected RequestSecurityTokenResponseBuilder prepareAuthenticatedResponse(WSFedLoginContext ctx) throws GeneralSecurityException {
+        return ctx.getBuilder();
+    }
+
+    /**
+     * Suspends the request and has the response built and signed by the {@link WSFedSigningExecutor}. Only the
+     * prepared builder goes to the executor; the session and the models are not used there. The request is answered
+     * with a 503 if the executor is saturated, and the response is evaluated on the calling thread if the request
+     * cannot be suspended.
+     *
+     * @param ctx
+     * @return a placeholder, ignored by the JAX-RS runtime once the request is suspended
+     * @throws GeneralSecurityException
+     */
+    protected Response evaluateAsyncAuthenticatedResponse(WSFedLoginContext ctx) throws GeneralSecurityException {
+        HttpRequest request = session.getContext().getContextObject(HttpRequest.class);
+        WSFedSigningExecutor executor = getSigningExecutor();
+        if (executor == null || request == null || request.getAsyncContext() == null || request.getAsyncContext().isSuspended()) {
+            return evaluateAuthenticatedResponse(ctx);
+        }
+        if (executor.isSaturated()) {
+            return executor.serviceUnavailable();
+        }
+
+        RequestSecurityTokenResponseBuilder builder = prepareAuthenticatedResponse(ctx);
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        Map<Class<?>, Object> contextData = new HashMap<>(ResteasyProviderFactory.getContextDataMap());
+
+        AsyncResponse asyncResponse = request.getAsyncContext().suspend();
+        try {
+            executor.submit(builder::buildResponse, e -> renderErrorPage(sessionFactory, realmId, contextData), asyncResponse);
+        } catch (RejectedExecutionException e) {
+            asyncResponse.resume(executor.serviceUnavailable());
+        }
+        return Response.accepted().build();
+    }
+
+    /**
+     * @return the executor of the login protocol factory, or null if it is closed
+     */
+    protected WSFedSigningExecutor getSigningExecutor() {
+        ProviderFactory<?> factory = session.getKeycloakSessionFactory().getProviderFactory(LoginProtocol.class, LOGIN_PROTOCOL);
+        return factory instanceof AbstractWSFedLoginProtocolFactory ? ((AbstractWSFedLoginProtocolFactory) factory).getSigningExecutor() : null;
+    }
+
+    /**
+     * Renders the error page of a sign-in response that failed on the signing executor. The session of the request
+     * is closed by then: the page is rendered in a session of its own, with the context data of the suspended request.
+     */
+    private static Response renderErrorPage(KeycloakSessionFactory sessionFactory, String realmId, Map<Class<?>, Object> contextData) {
+        ResteasyProviderFactory.pushContextDataMap(new HashMap<>(contextData));
+        try {
+            Response[] response = new Response[1];
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, errorSession -> {
+                ResteasyProviderFactory.pushContext(KeycloakSession.class, errorSession);
+                errorSession.getContext().setRealm(errorSession.realms().getRealm(realmId));
+                response[0] = ErrorPage.error(errorSession, null, Response.Status.BAD_REQUEST, Messages.FAILED_TO_PROCESS_RESPONSE);
+            });
+            return response[0];
+        } catch (RuntimeException e) {
+            logger.error("failed to render the error page", e);
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        } finally {
+            ResteasyProviderFactory.removeContextDataLevel();
+        }
     }
 
     private SAML11AssertionType buildSAML11AssertionToken(WSFedLoginContext ctx) throws ConfigurationException {
@@ -285,24 +399,106 @@ public class WSFedLoginProtocol implements LoginProtocol {
             .build();
     }
 
+    /**
+     * @param client the client
+     * @return the WS-Fed configuration of the client, parsed from its attributes
+     */
+    protected WSFedClientConfig getClientConfig(ClientModel client) {
+        return WSFedConfigCache.getInstance().getConfig(client);
+    }
+
     public WsFedSAMLAssertionTokenFormat getSamlAssertionTokenFormat(ClientModel client) {
-        String value = client.getAttribute(WSFED_SAML_ASSERTION_TOKEN_FORMAT);
-        try {
-            if (value != null)
-                return WsFedSAMLAssertionTokenFormat.parse(value);
-            return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
-        } catch (RuntimeException ex) {
-            logger.error(ex.toString());
+        return getClientConfig(client).getSamlAssertionTokenFormat();
+    }
+
+    /**
+     * @param client the client
+     * @return the algorithm of the assertion signatures chosen for the client, RSA_SHA256 by default
+     */
+    public WSFedSignatureAlgorithm getSignatureAlgorithm(ClientModel client) {
+        return getClientConfig(client).getSignatureAlgorithm();
+    }
+
+    /**
+     * @param client the client
+     * @return the JWS algorithm of the JWT tokens chosen for the client, RS256 by default
+     */
+    public String getJwtSignatureAlgorithm(ClientModel client) {
+        return getClientConfig(client).getJwtSignatureAlgorithm();
+    }
+
+    /**
+     * @param client the client
+     * @return the block cipher of the encrypted assertions chosen for the client, or null for keycloak's AES-128-CBC
+     */
+    public WSFedEncryptionAlgorithm getEncryptionAlgorithm(ClientModel client) {
+        return getClientConfig(client).getEncryptionAlgorithm();
+    }
+
+    /**
+     * @param client the client
+     * @return the key transport algorithm chosen for the client, RSA_1_5 by default
+     */
+    public WSFedKeyTransport getKeyTransport(ClientModel client) {
+        return getClientConfig(client).getKeyTransport();
+    }
+
+    /**
+     * The HMAC algorithms never fall back to the HMAC keys of the realm, which also sign keycloak's own tokens: without
+     * a valid secret for the client, the sign-in fails.
+     *
+     * @param client the client
+     * @param algorithm the JWA name of the signing key algorithm
+     * @return the secret shared with the client for an HMAC algorithm, or null for the other algorithms, which sign
+     * with the active key of the realm
+     * @throws CloudtrustRuntimeException if the algorithm is an HMAC and the client has no valid secret
+     */
+    protected SigningKeyMaterial getHmacKey(ClientModel client, String algorithm) {
+        if (!algorithm.startsWith("HS")) {
+            return null;
         }
-        return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
+        SigningKeyMaterial key = getClientConfig(client).getHmacKey(algorithm);
+        if (key == null) {
+            throw new CloudtrustRuntimeException("No valid " + WSFED_HMAC_SECRET + " for " + algorithm + " on client " + client.getClientId());
+        }
+        return key;
+    }
+
+    private SigningKeyMaterial getSigningKey(ClientModel client, String algorithm) {
+        SigningKeyMaterial key = getHmacKey(client, algorithm);
+        return key != null ? key : SigningKeyMaterialCache.getInstance().getActiveKey(session, realm, algorithm);
     }
 
     protected boolean useJwt(ClientModel client) {
-        return Boolean.parseBoolean(client.getAttribute(WSFED_JWT));
+        return getClientConfig(client).isJwt();
     }
 
     protected boolean isX5tIncluded(ClientModel client) {
-        return Boolean.parseBoolean(client.getAttribute(WSFED_X5T));
+        return getClientConfig(client).isX5tIncluded();
+    }
+
+    protected boolean isStreamingSignature(ClientModel client) {
+        return getClientConfig(client).isStreamingSignature();
+    }
+
+    protected boolean isStreamingResponse(ClientModel client) {
+        return getClientConfig(client).isStreamingResponse();
+    }
+
+    protected int getCompressionThreshold(ClientModel client) {
+        return getClientConfig(client).getCompressionThreshold();
+    }
+
+    protected boolean isLeanResponse(ClientModel client) {
+        return getClientConfig(client).isLeanResponse();
+    }
+
+    protected boolean isRedirectBinding(ClientModel client) {
+        return getClientConfig(client).isRedirectBinding();
+    }
+
+    protected boolean isAsyncSigning(ClientModel client) {
+        return getClientConfig(client).isAsyncSigning();
     }
 
     @Override
@@ -374,7 +570,8 @@ public class WSFedLoginProtocol implements LoginProtocol {
         builder.setMethod(HttpMethod.GET)
                 .setAction(WSFedConstants.WSFED_SIGNOUT_CLEANUP_ACTION)
                 .setReplyTo(getEndpoint(uriInfo, realm))
-                .setDestination(logoutUrl);
+                .setDestination(logoutUrl)
+                .setRedirectBinding(isRedirectBinding(client));
 
         return builder.buildResponse(null);
     }
@@ -382,7 +579,8 @@ public class WSFedLoginProtocol implements LoginProtocol {
     @Override
     public Response finishLogout(UserSessionModel userSession) {
         logger.debug("finishLogout");
-        String logoutUrl = userSession.getNote(WSFED_LOGOUT_BINDING_URI);
+        WSFedSessionNotes notes = WSFedSessionNotes.of(userSession);
+        String logoutUrl = notes.get(WSFED_LOGOUT_BINDING_URI);
         if (logoutUrl == null) {
             logger.error("Can't finish WS-Fed logout as there is no logout binding set. Has the redirect URI being used been added to the valid redirect URIs in the client?");
             return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.FAILED_LOGOUT);
@@ -390,8 +588,9 @@ public class WSFedLoginProtocol implements LoginProtocol {
 
         return new WSFedResponseBuilder()
                 .setMethod(HttpMethod.GET)
-                .setContext(userSession.getNote(WSFED_CONTEXT))
+                .setContext(notes.get(WSFED_CONTEXT))
                 .setDestination(logoutUrl)
+                .setRedirectBinding(Boolean.parseBoolean(notes.get(WSFED_REDIRECT_BINDING)))
                 .buildResponse(null);
     }
 
@@ -409,10 +608,6 @@ public class WSFedLoginProtocol implements LoginProtocol {
     }
 
     protected String getEndpoint(UriInfo uriInfo, RealmModel realm) {
-        return uriInfo.getBaseUriBuilder()
-                .path("realms").path(realm.getName())
-                .path("protocol")
-                .path(LOGIN_PROTOCOL)
-                .build().toString();
+        return WSFedConfigCache.getInstance().getRealmUrls(uriInfo, realm).getEndpoint();
     }
 }
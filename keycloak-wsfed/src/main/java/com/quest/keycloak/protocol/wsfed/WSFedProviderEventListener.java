@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.protocol.wsfed.builders.PersistentNameIdCache;
+import com.quest.keycloak.protocol.wsfed.mappers.ClaimSnapshotCache;
+import com.quest.keycloak.protocol.wsfed.mappers.CompiledScriptCache;
+import com.quest.keycloak.protocol.wsfed.mappers.EffectiveRoleCache;
+import com.quest.keycloak.protocol.wsfed.mappers.GroupPathIndex;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
+import com.quest.keycloak.protocol.wsfed.sig.ClientEncryptionKeyCache;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterialCache;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+/**
+ * Evicts the node-local WS-Fed caches when the models they were computed from are removed or updated. Registered by
+ * the login protocol factory once the session factory is initialized.
+ */
+public class WSFedProviderEventListener implements ProviderEventListener {
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent) {
+            String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+            SigningKeyMaterialCache.getInstance().invalidate(realmId);
+            WSFedMapperPipelineCache.getInstance().invalidateRealm(realmId);
+            CompiledScriptCache.getInstance().invalidateRealm(realmId);
+            ClaimSnapshotCache.getInstance().invalidateRealm(realmId);
+            EffectiveRoleCache.getInstance().invalidateRealm(realmId);
+            GroupPathIndex.getInstance().invalidateRealm(realmId);
+            PersistentNameIdCache.getInstance().invalidateRealm(realmId);
+            WSFedConfigCache.getInstance().invalidateRealm(realmId);
+        } else if (event instanceof RealmModel.ClientUpdatedEvent) {
+            invalidateClient(((RealmModel.ClientUpdatedEvent) event).getUpdatedClient().getId());
+        } else if (event instanceof RealmModel.ClientRemovedEvent) {
+            invalidateClient(((RealmModel.ClientRemovedEvent) event).getClient().getId());
+        } else if (event instanceof UserModel.UserRemovedEvent) {
+            UserModel.UserRemovedEvent userRemoved = (UserModel.UserRemovedEvent) event;
+            ClaimSnapshotCache.getInstance().invalidateUser(userRemoved.getUser().getId());
+            EffectiveRoleCache.getInstance().invalidateUser(userRemoved.getRealm().getId(), userRemoved.getUser().getId());
+            PersistentNameIdCache.getInstance().invalidateUser(userRemoved.getRealm().getId(), userRemoved.getUser().getId());
+        } else if (event instanceof RoleContainerModel.RoleRemovedEvent) {
+            // a removed role can be part of the closure of any user, and roles are seldom removed
+            ClaimSnapshotCache.getInstance().clear();
+            EffectiveRoleCache.getInstance().clear();
+        }
+    }
+
+    private static void invalidateClient(String clientId) {
+        ClientEncryptionKeyCache.getInstance().invalidate(clientId);
+        WSFedMapperPipelineCache.getInstance().invalidate(clientId);
+        WSFedConfigCache.getInstance().invalidate(clientId);
+    }
+}
@@ -36,7 +36,6 @@ import org.keycloak.services.ErrorPage;
 import org.keycloak.services.ErrorPageException;
 import org.keycloak.services.managers.AuthenticationManager;
 import org.keycloak.services.messages.Messages;
-import org.keycloak.services.resources.RealmsResource;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.sessions.CommonClientSessionModel;
 
@@ -154,7 +153,7 @@ public class WSFedService extends AuthorizationEndpointBase {
                 //have one.
                 if (authResult != null) {
                     UserSessionModel userSession = authResult.getSession();
-                    params.setWsfedRealm(userSession.getNote(WSFedConstants.WSFED_REALM));
+                    params.setWsfedRealm(WSFedSessionNotes.of(userSession).get(WSFedConstants.WSFED_REALM));
                 }
             } else { //If it's not a signout event than wtrealm is required
                 event.event(EventType.LOGIN);
@@ -300,7 +299,7 @@ public class WSFedService extends AuthorizationEndpointBase {
         authSession.setRedirectUri(redirect);
         authSession.setAction(AuthenticationSessionModel.Action.AUTHENTICATE.name());
         authSession.setClientNote(WSFedConstants.WSFED_CONTEXT, params.getWsfedContext());
-        authSession.setClientNote(OIDCLoginProtocol.ISSUER, RealmsResource.realmBaseUrl(session.getContext().getUri()).build(realm.getName()).toString());
+        authSession.setClientNote(OIDCLoginProtocol.ISSUER, WSFedConfigCache.getInstance().getRealmUrls(session.getContext().getUri(), realm).getIssuer());
 
         LoginProtocol wsfedProtocol = new WSFedLoginProtocol().setEventBuilder(event).setHttpHeaders(headers).setRealm(realm).setSession(session).setUriInfo(session.getContext().getUri());
         return handleBrowserAuthenticationRequest(authSession, wsfedProtocol, false, redirectToAuthentication);
@@ -324,9 +323,18 @@ public class WSFedService extends AuthorizationEndpointBase {
         AuthenticationManager.AuthResult authResult = authenticateIdentityCookie();
         if (authResult != null) {
             UserSessionModel userSession = authResult.getSession();
-            userSession.setNote(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI, logoutUrl);
-            userSession.setNote(WSFedLoginProtocol.WSFED_CONTEXT, params.getWsfedContext());
-            userSession.setNote(AuthenticationManager.KEYCLOAK_LOGOUT_PROTOCOL, WSFedLoginProtocol.LOGIN_PROTOCOL);
+            WSFedSessionNotes notes = WSFedSessionNotes.of(userSession)
+                    .set(WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI, logoutUrl)
+                    .set(WSFedLoginProtocol.WSFED_CONTEXT, params.getWsfedContext());
+            if (isRedirectBinding(client)) {
+                // the client isn't known anymore when the logout is finished
+                notes.set(WSFedLoginProtocol.WSFED_REDIRECT_BINDING, Boolean.TRUE.toString());
+            }
+            notes.flush();
+            // read by keycloak itself, it can't be packed
+            if (!WSFedLoginProtocol.LOGIN_PROTOCOL.equals(userSession.getNote(AuthenticationManager.KEYCLOAK_LOGOUT_PROTOCOL))) {
+                userSession.setNote(AuthenticationManager.KEYCLOAK_LOGOUT_PROTOCOL, WSFedLoginProtocol.LOGIN_PROTOCOL);
+            }
 
             // remove client from logout requests
             AuthenticatedClientSessionModel clientSession = userSession.getAuthenticatedClientSessions().get(client.getId());
@@ -347,11 +355,16 @@ public class WSFedService extends AuthorizationEndpointBase {
         WSFedResponseBuilder builder = new WSFedResponseBuilder();
         builder.setMethod(HttpMethod.GET)
                 .setContext(params.getWsfedContext())
-                .setDestination(logoutUrl);
+                .setDestination(logoutUrl)
+                .setRedirectBinding(isRedirectBinding(client));
 
         return builder.buildResponse(null);
     }
 
+    private boolean isRedirectBinding(ClientModel client) {
+        return client != null && WSFedConfigCache.getInstance().getConfig(client).isRedirectBinding();
+    }
+
     protected Response handleLogoutResponse(WSFedProtocolParameters params, ClientModel client) {
         AuthenticationManager.AuthResult authResult = authenticateIdentityCookie();
         if (authResult == null) {
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.common.wsfed.WSFedConstants;
+import com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The WS-Fed notes of a user or client session, packed into a single note.
+ *
+ * With a clustered user session store, every note written is a separate mutation of the session, replicated to the
+ * other nodes. The notes are set here, then written in one go by {@link #flush()}, and only if one of them has
+ * changed: signing in to the same client again writes nothing. They are packed as a version character followed by
+ * one "{code}{length}:{value}" entry per note, the code being a single character standing for the note name.
+ *
+ * The notes written separately by the previous versions are still read, when the session has no packed note yet. The
+ * first flush carries them over to the packed note and removes them. The previous versions only read the separate
+ * notes, so all the nodes of a cluster must be upgraded together.
+ */
+public class WSFedSessionNotes {
+
+    public static final String PACKED_NOTE = "WSFED_NOTES";
+
+    private static final char VERSION = '1';
+
+    private static final Map<String, Character> CODES = new HashMap<>();
+    private static final Map<Character, String> NAMES = new HashMap<>();
+
+    static {
+        register('r', WSFedConstants.WSFED_REALM);
+        register('l', WSFedLoginProtocol.WSFED_LOGOUT_BINDING_URI);
+        register('c', WSFedLoginProtocol.WSFED_CONTEXT);
+        register('b', WSFedLoginProtocol.WSFED_REDIRECT_BINDING);
+        register('n', WsFedSAMLAssertionTypeAbstractBuilder.WSFED_NAME_ID);
+        register('f', WsFedSAMLAssertionTypeAbstractBuilder.WSFED_NAME_ID_FORMAT);
+    }
+
+    private final Function<String, String> reader;
+    private final BiConsumer<String, String> writer;
+    private final Consumer<String> remover;
+    // null when the session has no packed note: the notes are then read from the separate ones
+    private Map<Character, String> notes;
+    private boolean dirty;
+    // the names of the separate notes carried over to the packed note, removed by the next flush
+    private List<String> legacyNames = Collections.emptyList();
+
+    WSFedSessionNotes(Function<String, String> reader, BiConsumer<String, String> writer, Consumer<String> remover) {
+        this.reader = reader;
+        this.writer = writer;
+        this.remover = remover;
+        this.notes = decode(reader.apply(PACKED_NOTE));
+    }
+
+    public static WSFedSessionNotes of(UserSessionModel userSession) {
+        return new WSFedSessionNotes(userSession::getNote, userSession::setNote, userSession::removeNote);
+    }
+
+    public static WSFedSessionNotes of(AuthenticatedClientSessionModel clientSession) {
+        return new WSFedSessionNotes(clientSession::getNote, clientSession::setNote, clientSession::removeNote);
+    }
+
+    /**
+     * @param name the name of the note, one of the WS-Fed note names
+     * @return the value of the note, or null if it isn't set
+     */
+    public String get(String name) {
+        Character code = getCode(name);
+        return notes != null ? notes.get(code) : reader.apply(name);
+    }
+
+    /**
+     * Sets a note, which is only written to the session by {@link #flush()}
+     *
+     * @param name the name of the note, one of the WS-Fed note names
+     * @param value the value of the note, or null to remove it
+     * @return this
+     */
+    public WSFedSessionNotes set(String name, String value) {
+        Character code = getCode(name);
+        if (Objects.equals(get(name), value)) {
+            return this;
+        }
+        if (notes == null) {
+            notes = readLegacyNotes();
+        }
+        if (value == null) {
+            notes.remove(code);
+        } else {
+            notes.put(code, value);
+        }
+        dirty = true;
+        return this;
+    }
+
+    /**
+     * Writes the packed note to the session, if a note has changed since it was read, and removes the separate notes
+     * it replaces
+     */
+    public void flush() {
+        if (dirty) {
+            writer.accept(PACKED_NOTE, encode(notes));
+            for (String name : legacyNames) {
+                remover.accept(name);
+            }
+            legacyNames = Collections.emptyList();
+            dirty = false;
+        }
+    }
+
+    private Map<Character, String> readLegacyNotes() {
+        Map<Character, String> legacy = new TreeMap<>();
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<Character, String> entry : NAMES.entrySet()) {
+            String value = reader.apply(entry.getValue());
+            if (value != null) {
+                legacy.put(entry.getKey(), value);
+                names.add(entry.getValue());
+            }
+        }
+        legacyNames = names;
+        return legacy;
+    }
+
+    static String encode(Map<Character, String> notes) {
+        StringBuilder packed = new StringBuilder().append(VERSION);
+        for (Map.Entry<Character, String> entry : notes.entrySet()) {
+            packed.append(entry.getKey().charValue()).append(entry.getValue().length()).append(':').append(entry.getValue());
+        }
+        return packed.toString();
+    }
+
+    /**
+     * @param packed the packed note
+     * @return the notes, or null if there is no packed note or if it can't be read
+     */
+    static Map<Character, String> decode(String packed) {
+        if (packed == null || packed.isEmpty() || packed.charAt(0) != VERSION) {
+            return null;
+        }
+        Map<Character, String> notes = new TreeMap<>();
+        int pos = 1;
+        while (pos < packed.length()) {
+            char code = packed.charAt(pos++);
+            int separator = packed.indexOf(':', pos);
+            if (separator < 0) {
+                return null;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(packed.substring(pos, separator));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            int end = separator + 1 + length;
+            if (length < 0 || end > packed.length()) {
+                return null;
+            }
+            notes.put(code, packed.substring(separator + 1, end));
+            pos = end;
+        }
+        return notes;
+    }
+
+    private static Character getCode(String name) {
+        Character code = CODES.get(name);
+        if (code == null) {
+            throw new IllegalArgumentException("Not a WS-Fed session note: " + name);
+        }
+        return code;
+    }
+
+    private static void register(char code, String name) {
+        CODES.put(name, code);
+        NAMES.put(code, name);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import org.jboss.logging.Logger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded executor building and signing the sign-in responses of the clients using asynchronous signing, while their
+ * HTTP request is suspended. The HTTP worker threads are then released during the CPU bound part of the response.
+ *
+ * The executor has a fixed number of threads, by default one per core, and a bounded queue. Once the queue is full,
+ * the requests are rejected with a 503 carrying a Retry-After header instead of piling up. The tasks run after the
+ * keycloak session of the request has been closed: they must not use it, nor any model object.
+ *
+ * The executor belongs to the wsfed login protocol factory, which creates it from its SPI configuration
+ * (asyncSigningThreads, asyncSigningQueueSize, asyncSigningRetryAfter and asyncSigningTimeout) and shuts it down
+ * when it is closed.
+ */
+public class WSFedSigningExecutor {
+    private static final Logger logger = Logger.getLogger(WSFedSigningExecutor.class);
+
+    public static final int DEFAULT_RETRY_AFTER = 1;
+    public static final int DEFAULT_TIMEOUT = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final int retryAfter;
+    private final int timeout;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder signNanos = new LongAdder();
+
+    /**
+     * @param threads the number of signing threads
+     * @param queueSize the maximum number of responses waiting for a signing thread
+     * @param retryAfter the Retry-After value of the 503 responses, in seconds
+     * @param timeout the time after which a suspended request is answered with a 503, in seconds
+     */
+    public WSFedSigningExecutor(int threads, int queueSize, int retryAfter, int timeout) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new SigningThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        this.retryAfter = retryAfter;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Builds a response on a signing thread, and resumes the suspended request with it
+     *
+     * @param task builds the response. It must not use the keycloak session of the request.
+     * @param onFailure builds the response sent if the task fails, on the signing thread as well
+     * @param asyncResponse the suspended request
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public void submit(Callable<Response> task, Function<Exception, Response> onFailure, AsyncResponse asyncResponse) {
+        final long submittedAt = System.nanoTime();
+        asyncResponse.setTimeoutHandler(r -> r.resume(serviceUnavailable()));
+        asyncResponse.setTimeout(timeout, TimeUnit.SECONDS);
+        try {
+            executor.execute(() -> run(task, onFailure, asyncResponse, submittedAt));
+            submitted.increment();
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    private void run(Callable<Response> task, Function<Exception, Response> onFailure, AsyncResponse asyncResponse, long submittedAt) {
+        long startedAt = System.nanoTime();
+        queueWaitNanos.add(startedAt - submittedAt);
+        if (asyncResponse.isDone()) {
+            // timed out while queued
+            failed.increment();
+            return;
+        }
+
+        Response response;
+        try {
+            response = task.call();
+            completed.increment();
+        } catch (Exception e) {
+            logger.error("failed", e);
+            failed.increment();
+            response = onFailure.apply(e);
+        } finally {
+            signNanos.add(System.nanoTime() - startedAt);
+        }
+        asyncResponse.resume(response);
+
+        if (logger.isDebugEnabled()) {
+            logger.debugf("Sign-in response built in %d ms, after %d ms in queue", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt),
+                    TimeUnit.NANOSECONDS.toMillis(startedAt - submittedAt));
+        }
+    }
+
+    /**
+     * @return true if a new task would be rejected
+     */
+    public boolean isSaturated() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * @return the 503 response returned when the signing queue is full
+     */
+    public Response serviceUnavailable() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, retryAfter)
+                .header("Cache-Control", "no-cache, no-store").build();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the total time spent by the tasks in the queue, in nanoseconds
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos.sum();
+    }
+
+    /**
+     * @return the total time spent building and signing the responses, in nanoseconds
+     */
+    public long getSignNanos() {
+        return signNanos.sum();
+    }
+
+    private static class SigningThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "wsfed-signing-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.builders;
+
+import com.quest.keycloak.common.wsfed.utils.WSFedIdGenerator;
+import com.quest.keycloak.protocol.wsfed.sig.CryptoEnginePool;
+import io.cloudtrust.exception.CloudtrustRuntimeException;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder.SAML_PERSISTENT_NAME_ID_FOR;
+
+/**
+ * Persistent NameIDs of the clients having a derivation secret (the wsfed.persistent_name_id_secret attribute).
+ *
+ * Instead of generating a random NameID on the first sign-in of a user and storing it in a user attribute, the NameID
+ * is derived from the user id and the client id with an HMAC keyed by the secret of the client. It is the same on
+ * every sign-in and on every node, without any write. The secret is dedicated to the derivation: a realm key could be
+ * shared with a relying party, which could then link the NameIDs of its users at the other clients.
+ *
+ * The NameIDs stored by the previous sign-ins still take precedence, so that the users keep their identity at the
+ * relying party. The lookup of the stored attribute goes through a bounded LRU cache, keyed by realm, user and client,
+ * which also remembers the users without a stored NameID. An entry is evicted when the user is updated or removed, and
+ * read again once it is older than its maximum age.
+ */
+public class PersistentNameIdCache {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int NAME_ID_BYTES = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final PersistentNameIdCache INSTANCE = new PersistentNameIdCache(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+
+    private final Map<String, StoredNameId> entries;
+    private final long maxAge;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    PersistentNameIdCache(int maxSize, long maxAge) {
+        this.maxAge = maxAge;
+        this.entries = new LinkedHashMap<String, StoredNameId>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, StoredNameId> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static PersistentNameIdCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the persistent NameID of a user for a client: the stored one if the user has one, the derived one
+     * otherwise. Without a valid derivation secret, the sign-in fails rather than issuing (and storing) a NameID that
+     * the relying party would take for a new user.
+     *
+     * @param realm the realm of the client
+     * @param client the client
+     * @param user the user
+     * @param key the secret the NameIDs of the client are derived with, null if it is missing or invalid
+     * @return the NameID
+     * @throws CloudtrustRuntimeException if the user has no stored NameID and the secret is null
+     */
+    public String getNameId(RealmModel realm, ClientModel client, UserModel user, SecretKey key) {
+        String attribute = SAML_PERSISTENT_NAME_ID_FOR + "." + client.getClientId();
+        String stored = getStoredNameId(realm, client, user, attribute);
+        if (stored != null) {
+            return stored;
+        }
+        if (key == null) {
+            throw new CloudtrustRuntimeException("No valid secret to derive the persistent NameIDs of client " + client.getClientId());
+        }
+        return derive(key, user.getId(), client.getClientId());
+    }
+
+    /**
+     * @param key the derivation key
+     * @param userId the id of the user
+     * @param clientId the client id of the client, as in the stored NameIDs
+     * @return "G-" followed by the first 128 bits of the HMAC of the user and client ids, in base64url
+     */
+    static String derive(SecretKey key, String userId, String clientId) {
+        byte[] data = (userId + '|' + clientId).getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] mac = CryptoEnginePool.mac(MAC_ALGORITHM, key, data);
+            return WSFedIdGenerator.encode(WSFedIdGenerator.GENERATED_PREFIX, Arrays.copyOf(mac, NAME_ID_BYTES));
+        } catch (GeneralSecurityException e) {
+            throw new CloudtrustRuntimeException(e);
+        }
+    }
+
+    private String getStoredNameId(RealmModel realm, ClientModel client, UserModel user, String attribute) {
+        if (realm.getId() == null || user.getId() == null) {
+            return user.getFirstAttribute(attribute);
+        }
+
+        String key = realm.getId() + '|' + user.getId() + '|' + client.getClientId();
+        long now = System.currentTimeMillis();
+        StoredNameId entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && now - entry.readAt < maxAge) {
+            hits.increment();
+            return entry.value;
+        }
+
+        misses.increment();
+        String stored = user.getFirstAttribute(attribute);
+        synchronized (entries) {
+            entries.put(key, new StoredNameId(stored, now));
+        }
+        return stored;
+    }
+
+    /**
+     * Forgets the stored NameIDs of a user, for all the clients
+     *
+     * @param realmId the id of the realm of the user
+     * @param userId the id of the user
+     */
+    public void invalidateUser(String realmId, String userId) {
+        if (realmId != null && userId != null) {
+            String prefix = realmId + '|' + userId + '|';
+            synchronized (entries) {
+                entries.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        }
+    }
+
+    /**
+     * Forgets the stored NameIDs of the users of a realm
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            String prefix = realmId + '|';
+            synchronized (entries) {
+                entries.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of stored NameID lookups served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of user attributes that had to be read
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static final class StoredNameId {
+        // null if the user has no stored NameID for the client
+        private final String value;
+        private final long readAt;
+
+        StoredNameId(String value, long readAt) {
+            this.value = value;
+            this.readAt = readAt;
+        }
+    }
+}
@@ -17,24 +17,29 @@
 package com.quest.keycloak.protocol.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
+import com.quest.keycloak.common.wsfed.utils.WSFedIdGenerator;
+import com.quest.keycloak.common.wsfed.utils.WSFedTime;
+import com.quest.keycloak.common.wsfed.writers.SerializedElement;
 import com.quest.keycloak.common.wsfed.writers.WSTrustResponseWriter;
+import com.quest.keycloak.protocol.wsfed.sig.CryptoEnginePool;
+import com.quest.keycloak.protocol.wsfed.sig.PooledXMLEncryption;
 import com.quest.keycloak.protocol.wsfed.sig.SAML11Signature;
 import com.quest.keycloak.protocol.wsfed.sig.SAML2SignatureProxy;
 import com.quest.keycloak.protocol.wsfed.sig.SAMLAbstractSignature;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
+import com.quest.keycloak.protocol.wsfed.sig.StreamingSAMLSignature;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedEncryptionAlgorithm;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedKeyTransport;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
 import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.xml.security.keys.KeyInfo;
 import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
-import org.keycloak.saml.RandomSecret;
-import org.keycloak.saml.SignatureAlgorithm;
 import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.common.util.Base64;
 import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
-import org.keycloak.saml.processing.core.saml.v2.common.IDGenerator;
 import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
-import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
 import org.keycloak.saml.processing.core.util.XMLEncryptionUtil;
 import org.picketlink.identity.federation.core.wstrust.wrappers.Lifetime;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
@@ -52,12 +57,13 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.Response;
 import javax.xml.crypto.dsig.CanonicalizationMethod;
-import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.security.KeyPair;
@@ -74,15 +80,23 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
     protected String jwt;
     protected SAML11AssertionType saml11Token;
 
-    protected SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.RSA_SHA256;
+    protected WSFedSignatureAlgorithm signatureAlgorithm = WSFedSignatureAlgorithm.RSA_SHA256;
     protected KeyPair signingKeyPair;
+    protected SecretKey signingSecretKey;
     protected X509Certificate signingCertificate;
     protected String keyId;
+    protected String signingKeyInfo;
+    protected KeyInfo signingDomKeyInfo;
     protected String canonicalizationMethodType = CanonicalizationMethod.EXCLUSIVE;
+    protected boolean streamingSignature;
+    protected boolean streamingResponse;
+    protected boolean leanResponse;
 
     protected int encryptionKeySize = 128;
     protected PublicKey encryptionPublicKey;
     protected String encryptionAlgorithm = "AES";
+    protected WSFedEncryptionAlgorithm encryptionMethod;
+    protected WSFedKeyTransport keyTransport = WSFedKeyTransport.RSA_1_5;
     protected boolean encrypt;
 
     public RequestSecurityTokenResponseBuilder() {
@@ -134,17 +148,69 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return this;
     }
 
+    public WSFedSignatureAlgorithm getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * Sets the algorithm of the assertion signatures. The signing key pair must be of the matching type.
+     *
+     * @param signatureAlgorithm the signature algorithm
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder setSignatureAlgorithm(WSFedSignatureAlgorithm signatureAlgorithm) {
+        this.signatureAlgorithm = signatureAlgorithm;
+        return this;
+    }
+
     public KeyPair getSigningKeyPair() {
         return signingKeyPair;
     }
 
     public RequestSecurityTokenResponseBuilder setSigningKeyPair(KeyPair signingKeyPair) {
         this.signingKeyPair = signingKeyPair;
+        this.signingKeyInfo = null;
+        this.signingDomKeyInfo = null;
+        return this;
+    }
+
+    public SecretKey getSigningSecretKey() {
+        return signingSecretKey;
+    }
+
+    /**
+     * @param signingSecretKey the key shared with the relying party, used instead of the key pair when the signature
+     *                         algorithm is an HMAC
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder setSigningSecretKey(SecretKey signingSecretKey) {
+        this.signingSecretKey = signingSecretKey;
+        this.signingKeyInfo = null;
+        this.signingDomKeyInfo = null;
         return this;
     }
 
     public RequestSecurityTokenResponseBuilder setSigningKeyPairId(String keyId) {
         this.keyId = keyId;
+        this.signingKeyInfo = null;
+        this.signingDomKeyInfo = null;
+        return this;
+    }
+
+    /**
+     * Sets the signing key pair or secret key, certificate and key id at once, from material derived beforehand. The KeyInfo it
+     * holds is reused by the streaming and DOM signatures instead of being built again.
+     *
+     * @param keyMaterial the signing key material
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder setSigningKeyMaterial(SigningKeyMaterial keyMaterial) {
+        this.signingKeyPair = keyMaterial.getKeyPair();
+        this.signingSecretKey = keyMaterial.getSecretKey();
+        this.signingCertificate = keyMaterial.getCertificate();
+        this.keyId = keyMaterial.getKid();
+        this.signingKeyInfo = keyMaterial.getKeyInfo();
+        this.signingDomKeyInfo = keyMaterial.getDomKeyInfo();
         return this;
     }
 
@@ -154,6 +220,8 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
 
     public RequestSecurityTokenResponseBuilder setSigningCertificate(X509Certificate signingCertificate) {
         this.signingCertificate = signingCertificate;
+        this.signingKeyInfo = null;
+        this.signingDomKeyInfo = null;
         return this;
     }
 
@@ -166,6 +234,54 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return this;
     }
 
+    public boolean isStreamingSignature() {
+        return streamingSignature;
+    }
+
+    /**
+     * Signs SAML assertions while they are serialized instead of going through a DOM. This only applies with exclusive
+     * canonicalization, which is the default; other canonicalization methods always use the DOM signatures.
+     *
+     * @param streamingSignature true to sign the assertions with the {@link StreamingSAMLSignature}
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder setStreamingSignature(boolean streamingSignature) {
+        this.streamingSignature = streamingSignature;
+        return this;
+    }
+
+    public boolean isStreamingResponse() {
+        return streamingResponse;
+    }
+
+    /**
+     * Writes the RSTR collection straight into the HTTP response, in a UTF-8 form, instead of building the form as a
+     * String. The token is still built and signed by {@link #buildResponse()}, only its serialization is deferred.
+     *
+     * @param streamingResponse true to stream the sign-in form
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder setStreamingResponse(boolean streamingResponse) {
+        this.streamingResponse = streamingResponse;
+        return this;
+    }
+
+    public boolean isLeanResponse() {
+        return leanResponse;
+    }
+
+    /**
+     * Writes the response with the lean profile: no Lifetime and no token references, which the relying parties don't
+     * use and which aren't built at all, and the namespaces declared once on the response collection.
+     *
+     * @param leanResponse true to use the lean profile
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder setLeanResponse(boolean leanResponse) {
+        this.leanResponse = leanResponse;
+        return this;
+    }
+
     public boolean isEncrypt() {
         return encrypt;
     }
@@ -199,6 +315,32 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return this;
     }
 
+    public WSFedEncryptionAlgorithm getEncryptionMethod() {
+        return encryptionMethod;
+    }
+
+    /**
+     * Sets the block cipher of the encrypted assertions, and the size of the AES key along with it. When not set, the
+     * assertions are encrypted with AES-CBC, the key size and algorithm being the ones of encryptionKeySize and
+     * encryptionAlgorithm.
+     *
+     * @param encryptionMethod the block cipher
+     * @return this builder
+     */
+    public RequestSecurityTokenResponseBuilder encryptionMethod(WSFedEncryptionAlgorithm encryptionMethod) {
+        this.encryptionMethod = encryptionMethod;
+        return this;
+    }
+
+    public WSFedKeyTransport getKeyTransport() {
+        return keyTransport;
+    }
+
+    public RequestSecurityTokenResponseBuilder keyTransport(WSFedKeyTransport keyTransport) {
+        this.keyTransport = keyTransport;
+        return this;
+    }
+
     @Override
     public RequestSecurityTokenResponseBuilder setDestination(String destination) {
         super.setDestination(destination);
@@ -223,18 +365,57 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return this;
     }
 
+    @Override
+    public RequestSecurityTokenResponseBuilder setAcceptEncoding(String acceptEncoding) {
+        super.setAcceptEncoding(acceptEncoding);
+        return this;
+    }
+
+    @Override
+    public RequestSecurityTokenResponseBuilder setCompressionThreshold(int compressionThreshold) {
+        super.setCompressionThreshold(compressionThreshold);
+        return this;
+    }
+
 
     public Response buildResponse() throws ProcessingException, org.picketlink.common.exceptions.ProcessingException, ConfigurationException {
+        if (streamingResponse) {
+            RequestSecurityTokenResponse response = build();
+            return buildStreamingResponse(out -> {
+                try {
+                    writeTo(response, out, leanResponse);
+                } catch (ProcessingException | org.picketlink.common.exceptions.ProcessingException e) {
+                    throw new IOException(e);
+                }
+            }, getTokenSize(response));
+        }
         return buildResponse(getStringValue());
     }
 
+    /**
+     * @return the size of the serialized tokens of a response, or -1 if one of them is still a DOM element
+     */
+    private static long getTokenSize(RequestSecurityTokenResponse response) {
+        long size = 0;
+        for (Object token : response.getRequestedSecurityToken().getAny()) {
+            if (!(token instanceof SerializedElement)) {
+                return -1;
+            }
+            size += ((SerializedElement) token).size();
+        }
+        return size;
+    }
+
     public RequestSecurityTokenResponse build() throws ConfigurationException, ProcessingException {
         RequestSecurityTokenResponse response = new RequestSecurityTokenResponse();
 
         response.setContext(StringEscapeUtils.escapeXml(context));
 
-        XMLGregorianCalendar issueInstance = XMLTimeUtil.getIssueInstant();
-        response.setLifetime(new Lifetime(issueInstance.toGregorianCalendar(), XMLTimeUtil.add(issueInstance, tokenExpiration * 1000L).toGregorianCalendar()));
+        if (!leanResponse) {
+            WSFedTime time = WSFedTime.getInstance();
+            long issueInstant = time.now();
+            response.setLifetime(new Lifetime(time.toGregorianCalendar(issueInstant), time.toGregorianCalendar(issueInstant + tokenExpiration * 1000L)));
+        }
         response.setAppliesTo(new AppliesTo());
         EndpointReferenceType ert = new EndpointReferenceType();
         ert.setAddress(new AttributedURIType());
@@ -246,26 +427,36 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
 
         if(samlToken != null) {
             //Sign token
-            Document doc = AssertionUtil.asDocument(samlToken);
-            doc = signAssertion(doc, new SAML2SignatureProxy());
-            if(encrypt){
-                doc=encryptDocument(doc);
+            if (useStreamingSignature()) {
+                StreamingSAMLSignature signature = createStreamingSignature();
+                SerializedElement signedToken = signatureAlgorithm.isHmac()
+                        ? signature.sign(samlToken, keyId, signingSecretKey)
+                        : signature.sign(samlToken, keyId, signingKeyPair);
+                response.getRequestedSecurityToken().add(encrypt ? encryptDocument(signedToken.toDocument()).getDocumentElement() : signedToken);
+            } else {
+                Document doc = AssertionUtil.asDocument(samlToken);
+                doc = signAssertion(doc, new SAML2SignatureProxy());
+                if(encrypt){
+                    doc=encryptDocument(doc);
+                }
+                response.getRequestedSecurityToken().add(doc.getDocumentElement());
             }
-            response.getRequestedSecurityToken().add(doc.getDocumentElement());
 
-            response.setRequestedUnattachedReference(new RequestedReferenceType());
-            response.getRequestedUnattachedReference().setSecurityTokenReference(new SecurityTokenReferenceType());
-            KeyIdentifierType ki = new KeyIdentifierType();
-            ki.setValue(IDGenerator.create("ID_"));
-            ki.setValueType("http://docs.oasis-open.org/wss/oasis-wss-saml-token-profile-1.1#SAMLID");
-            response.getRequestedUnattachedReference().getSecurityTokenReference().addAny(ki);
+            if (!leanResponse) {
+                response.setRequestedUnattachedReference(new RequestedReferenceType());
+                response.getRequestedUnattachedReference().setSecurityTokenReference(new SecurityTokenReferenceType());
+                KeyIdentifierType ki = new KeyIdentifierType();
+                ki.setValue(WSFedIdGenerator.createId());
+                ki.setValueType("http://docs.oasis-open.org/wss/oasis-wss-saml-token-profile-1.1#SAMLID");
+                response.getRequestedUnattachedReference().getSecurityTokenReference().addAny(ki);
+            }
 
             response.setTokenType(URI.create("http://docs.oasis-open.org/wss/oasis-wss-saml-token-profile-1.1#SAMLV2.0"));
         }
         else if(jwt != null) {
             BinarySecurityTokenType bstt = new BinarySecurityTokenType();
             bstt.setValue(Base64.encodeBytes(jwt.getBytes()));
-            bstt.setId(IDGenerator.create("ID_"));
+            bstt.setId(WSFedIdGenerator.createId());
             bstt.setValueType("urn:ietf:params:oauth:token-type:jwt");
             bstt.setEncodingType("http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-soap-message-security-1.0#Base64Binary");
 
@@ -274,12 +465,20 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         }
         else if (saml11Token != null) {
             //Sign token
-            Document doc = com.quest.keycloak.saml.processing.core.saml.v2.util.AssertionUtil.asDocument(saml11Token);
-            doc = signAssertion(doc, new SAML11Signature());
-            if(encrypt){
-                doc=encryptDocument(doc);
+            if (useStreamingSignature()) {
+                StreamingSAMLSignature signature = createStreamingSignature();
+                SerializedElement signedToken = signatureAlgorithm.isHmac()
+                        ? signature.sign(saml11Token, keyId, signingSecretKey)
+                        : signature.sign(saml11Token, keyId, signingKeyPair);
+                response.getRequestedSecurityToken().add(encrypt ? encryptDocument(signedToken.toDocument()).getDocumentElement() : signedToken);
+            } else {
+                Document doc = com.quest.keycloak.saml.processing.core.saml.v2.util.AssertionUtil.asDocument(saml11Token);
+                doc = signAssertion(doc, new SAML11Signature());
+                if(encrypt){
+                    doc=encryptDocument(doc);
+                }
+                response.getRequestedSecurityToken().add(doc.getDocumentElement());
             }
-            response.getRequestedSecurityToken().add(doc.getDocumentElement());
             response.setTokenType(URI.create(SAML11Constants.ASSERTION_11_NSURI));
         }
         else {
@@ -289,6 +488,20 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return response;
     }
 
+    protected boolean useStreamingSignature() {
+        return streamingSignature && CanonicalizationMethod.EXCLUSIVE.equals(canonicalizationMethodType);
+    }
+
+    protected StreamingSAMLSignature createStreamingSignature() {
+        StreamingSAMLSignature signature = new StreamingSAMLSignature();
+        signature.setSignatureMethod(signatureAlgorithm.getXmlSignatureMethod());
+        signature.setDigestMethod(signatureAlgorithm.getXmlSignatureDigestMethod());
+        // the KeyInfo of an HMAC signature only names the shared key
+        signature.setX509Certificate(signatureAlgorithm.isHmac() ? null : signingCertificate);
+        signature.setKeyInfo(signingKeyInfo);
+        return signature;
+    }
+
     protected Document signAssertion(Document samlDocument, SAMLAbstractSignature signature) throws ProcessingException {
         Element originalAssertionElement = samlDocument.getDocumentElement(); //org.keycloak.saml.common.util.DocumentUtil.getChildElement(samlDocument.getDocumentElement(), new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ASSERTION.get()));
 
@@ -311,39 +524,79 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
     }
 
     protected void signDocument(Document samlDocument, SAMLAbstractSignature samlSignature) throws ProcessingException {
-        String signatureMethod = signatureAlgorithm.getXmlSignatureMethod();
-        String signatureDigestMethod = signatureAlgorithm.getXmlSignatureDigestMethod();
-
-        if (signatureMethod != null) {
-            samlSignature.setSignatureMethod(signatureMethod);
-        }
-
-        if (signatureDigestMethod != null) {
-            samlSignature.setDigestMethod(signatureDigestMethod);
-        }
+        samlSignature.setSignatureAlgorithm(signatureAlgorithm);
 
         Node nextSibling = samlSignature.getNextSiblingOfIssuer(samlDocument);
 
         samlSignature.setNextSibling(nextSibling);
 
-        if (signingCertificate != null) {
+        if (signingCertificate != null && !signatureAlgorithm.isHmac()) {
             samlSignature.setX509Certificate(signingCertificate);
         }
+        samlSignature.setKeyInfo(signingDomKeyInfo);
 
-        samlSignature.signSAMLDocument(samlDocument, keyId, signingKeyPair, canonicalizationMethodType);
+        if (signatureAlgorithm.isHmac()) {
+            samlSignature.signSAMLDocument(samlDocument, keyId, signingSecretKey, canonicalizationMethodType);
+        } else {
+            samlSignature.signSAMLDocument(samlDocument, keyId, signingKeyPair, canonicalizationMethodType);
+        }
     }
 
     public String getStringValue() throws ConfigurationException, ProcessingException, org.picketlink.common.exceptions.ProcessingException {
-        return getStringValue(build());
+        return getStringValue(build(), leanResponse);
     }
 
     public static String getStringValue(RequestSecurityTokenResponse response) throws ProcessingException, org.picketlink.common.exceptions.ProcessingException {
+        return getStringValue(response, false);
+    }
+
+    public static String getStringValue(RequestSecurityTokenResponse response, boolean lean) throws ProcessingException, org.picketlink.common.exceptions.ProcessingException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        WSTrustResponseWriter writer = new WSTrustResponseWriter(bos);
+        writeTo(response, bos, lean);
+        return new String(bos.toByteArray(), Charset.forName(GeneralConstants.SAML_CHARSET_NAME));
+    }
+
+    /**
+     * Writes the RSTR collection holding a response, encoded in UTF-8
+     *
+     * @param response the response to write
+     * @param out the stream to write to. It is flushed, but not closed.
+     * @param lean true to write the response with the lean profile
+     */
+    public static void writeTo(RequestSecurityTokenResponse response, OutputStream out, boolean lean) throws ProcessingException, org.picketlink.common.exceptions.ProcessingException {
+        WSTrustResponseWriter writer = new WSTrustResponseWriter(out, lean);
         RequestSecurityTokenResponseCollection coll = new RequestSecurityTokenResponseCollection();
         coll.addRequestSecurityTokenResponse(response);
         writer.write(coll);
-        return new String(bos.toByteArray(), Charset.forName(GeneralConstants.SAML_CHARSET_NAME));
+    }
+
+    /**
+     * Measures what the lean profile saves on a response, by writing it with both profiles. It writes the response
+     * twice and is never called while responding: it is meant for the tests and for diagnostics.
+     *
+     * @param response the response to measure, built with the full profile
+     * @return the size of the response with the full profile and with the lean profile, in bytes
+     */
+    public static long[] getProfileSizes(RequestSecurityTokenResponse response) throws ProcessingException, org.picketlink.common.exceptions.ProcessingException {
+        CountingOutputStream full = new CountingOutputStream();
+        writeTo(response, full, false);
+        CountingOutputStream lean = new CountingOutputStream();
+        writeTo(response, lean, true);
+        return new long[] { full.count, lean.count };
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
     }
 
     /**
@@ -356,13 +609,15 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
      */
     public Document encryptDocument(Document samlDocument) throws ProcessingException {
         try {
-            byte[] secret = RandomSecret.createRandomSecret(encryptionKeySize / 8);
-            SecretKey secretKey = new SecretKeySpec(secret, encryptionAlgorithm);
+            if (encryptionMethod != null) {
+                return PooledXMLEncryption.encrypt(samlDocument, encryptionPublicKey, encryptionMethod, keyTransport);
+            }
+            SecretKey secretKey = CryptoEnginePool.generateKey(encryptionAlgorithm, encryptionKeySize);
             // encrypt the Assertion element and replace it with a EncryptedAssertion element.
             XMLEncryptionUtil.encryptElement(samlDocument, samlDocument.getDocumentElement(),encryptionPublicKey,
                     secretKey, encryptionKeySize);
             //add keyinfo to the generated EncryptedKey within the encrypted assertion
-            KeyInfo keyInfo=new KeyInfo(samlDocument);
+            org.apache.xml.security.keys.KeyInfo keyInfo = new org.apache.xml.security.keys.KeyInfo(samlDocument);
             keyInfo.add(encryptionPublicKey);
             samlDocument.getElementsByTagName("xenc:EncryptedKey").item(0).appendChild(keyInfo.getElement().cloneNode(true));
             return samlDocument;
@@ -18,22 +18,17 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
+import com.quest.keycloak.common.wsfed.utils.WSFedIdGenerator;
+import com.quest.keycloak.common.wsfed.utils.WSFedTime;
 import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v1.assertion.*;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
-import org.keycloak.saml.common.exceptions.fed.IssueInstantMissingException;
-import org.keycloak.saml.processing.core.saml.v2.common.IDGenerator;
 import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
-import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
-
-import io.cloudtrust.exception.CloudtrustRuntimeException;
 
 import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import java.net.URI;
-import java.util.GregorianCalendar;
 
 /**
  * The purpose of this class is to create an inital SAML 1.1 assertion (essentially, a saml 1.1 token).
@@ -49,7 +44,7 @@ public class SAML11AssertionTypeBuilder {
 
     // ATTRIBUTE_NAMESPACE = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims"
 
-    public static final long CLOCK_SKEW = 2000; // in milliseconds
+    public static final long CLOCK_SKEW = WSFedTime.ISSUER_CLOCK_SKEW; // in milliseconds
 
     protected String requestID;
     protected String issuer;
@@ -113,36 +108,21 @@ public class SAML11AssertionTypeBuilder {
      * @throws ConfigurationException
      */
     public SAML11AssertionType buildModel() throws ConfigurationException {
-        String id = IDGenerator.create("ID_");
+        String id = WSFedIdGenerator.createId();
 
-        XMLGregorianCalendar issuerInstant = XMLTimeUtil.getIssueInstant();
-        SAML11AssertionType assertion = AssertionUtil.createSAML11Assertion(id, issuerInstant, issuer);
+        WSFedTime time = WSFedTime.getInstance();
+        long issueInstant = time.now();
+        SAML11AssertionType assertion = AssertionUtil.createSAML11Assertion(id, time.toXMLGregorianCalendar(issueInstant), issuer);
 
         //Add request issuer as the audience restriction
         SAML11AudienceRestrictionCondition audience = new SAML11AudienceRestrictionCondition();
         audience.add(URI.create(requestIssuer));
 
-        SAML11ConditionsType conditions;
-        if (assertionExpiration <= 0) {
-            conditions = new SAML11ConditionsType();
-
-            XMLGregorianCalendar beforeInstant = XMLTimeUtil.subtract(issuerInstant, CLOCK_SKEW);
-            conditions.setNotBefore(beforeInstant);
-
-            XMLGregorianCalendar assertionValidityLength = XMLTimeUtil.add(issuerInstant, CLOCK_SKEW);
-            conditions.setNotOnOrAfter(assertionValidityLength);
-        } else {
-            try {
-                AssertionUtil.createSAML11TimedConditions(assertion, assertionExpiration * 1000L, CLOCK_SKEW);
-                conditions = assertion.getConditions();
-            }
-            catch(IssueInstantMissingException ex) {
-                throw new CloudtrustRuntimeException(ex);
-            }
-        }
-        if (conditions == null) {
-            throw new CloudtrustRuntimeException("Failed to create timed conditions");
-        }
+        // the same window as keycloak's timed conditions, which don't need the calendar arithmetic here
+        SAML11ConditionsType conditions = new SAML11ConditionsType();
+        conditions.setNotBefore(time.toXMLGregorianCalendar(issueInstant - CLOCK_SKEW));
+        long validity = assertionExpiration <= 0 ? 0 : assertionExpiration * 1000L;
+        conditions.setNotOnOrAfter(time.toXMLGregorianCalendar(issueInstant + validity + CLOCK_SKEW));
         conditions.add(audience);
         assertion.setConditions(conditions);
 
@@ -160,9 +140,8 @@ public class SAML11AssertionTypeBuilder {
     }
 
     protected XMLGregorianCalendar getXMLGregorianCalendarNow() throws DatatypeConfigurationException {
-        GregorianCalendar gregorianCalendar = new GregorianCalendar();
-        DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
-        return datatypeFactory.newXMLGregorianCalendar(gregorianCalendar);
+        WSFedTime time = WSFedTime.getInstance();
+        return time.toXMLGregorianCalendar(time.now());
     }
 
     protected SAML11AuthenticationStatementType getAuthenticationStatement(SAML11SubjectType subject, XMLGregorianCalendar authenticationInstant) {
@@ -16,6 +16,8 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
+import com.quest.keycloak.common.wsfed.utils.WSFedIdGenerator;
+import com.quest.keycloak.common.wsfed.utils.WSFedTime;
 import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AudienceRestrictionType;
@@ -24,15 +26,10 @@ import org.keycloak.dom.saml.v2.assertion.NameIDType;
 import org.keycloak.dom.saml.v2.assertion.SubjectConfirmationDataType;
 import org.keycloak.dom.saml.v2.assertion.SubjectConfirmationType;
 import org.keycloak.dom.saml.v2.assertion.SubjectType;
-import org.keycloak.saml.processing.core.saml.v2.common.IDGenerator;
-import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
-import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
 
 import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import java.net.URI;
-import java.util.GregorianCalendar;
 
 public class SAML2AssertionTypeBuilder {
     protected static final Logger logger = Logger.getLogger(SAML2AssertionTypeBuilder.class);
@@ -91,8 +88,11 @@ public class SAML2AssertionTypeBuilder {
     }
 
     public AssertionType buildModel() throws DatatypeConfigurationException {
-        String id = IDGenerator.create("ID_");
-        AssertionType assertion = AssertionUtil.createAssertion(id, getNameIDType(issuer, null));
+        String id = WSFedIdGenerator.createId();
+        WSFedTime time = WSFedTime.getInstance();
+        long issueInstant = time.now();
+        AssertionType assertion = new AssertionType(id, time.toXMLGregorianCalendar(issueInstant));
+        assertion.setIssuer(getNameIDType(issuer, null));
 
         //Add subjectconfirmation
         assertion.setSubject(getSubjectType());
@@ -101,13 +101,13 @@ public class SAML2AssertionTypeBuilder {
         AudienceRestrictionType audience = new AudienceRestrictionType();
         audience.addAudience(URI.create(requestIssuer));
         assertion.setConditions(new ConditionsType());
-        assertion.getConditions().setNotBefore(getXMLGregorianCalendarNow());
+        assertion.getConditions().setNotBefore(time.toXMLGregorianCalendar(issueInstant));
         assertion.getConditions().addCondition(audience);
 
         //Update Conditions NotOnOrAfter
         if (assertionExpiration > 0) {
             ConditionsType conditions = assertion.getConditions();
-            conditions.setNotOnOrAfter(XMLTimeUtil.add(conditions.getNotBefore(), assertionExpiration * 1000L));
+            conditions.setNotOnOrAfter(time.toXMLGregorianCalendar(issueInstant + assertionExpiration * 1000L));
         }
 
         //Update SubjectConfirmationData NotOnOrAfter
@@ -116,17 +116,16 @@ public class SAML2AssertionTypeBuilder {
             sct.setMethod("urn:oasis:names:tc:SAML:2.0:cm:bearer");
             SubjectConfirmationDataType subjectConfirmationData = new SubjectConfirmationDataType();
             sct.setSubjectConfirmationData(subjectConfirmationData);
-            subjectConfirmationData.setNotBefore(assertion.getConditions().getNotBefore());
-            subjectConfirmationData.setNotOnOrAfter(XMLTimeUtil.add(assertion.getConditions().getNotBefore(), subjectExpiration * 1000L));
+            subjectConfirmationData.setNotBefore(time.toXMLGregorianCalendar(issueInstant));
+            subjectConfirmationData.setNotOnOrAfter(time.toXMLGregorianCalendar(issueInstant + subjectExpiration * 1000L));
         }
 
         return assertion;
     }
 
     public XMLGregorianCalendar getXMLGregorianCalendarNow() throws DatatypeConfigurationException {
-        GregorianCalendar gregorianCalendar = new GregorianCalendar();
-        DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
-        return datatypeFactory.newXMLGregorianCalendar(gregorianCalendar);
+        WSFedTime time = WSFedTime.getInstance();
+        return time.toXMLGregorianCalendar(time.now());
     }
 
     protected NameIDType getNameIDType(String responseIssuer, String nameIdFormat) {
@@ -21,19 +21,21 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
-import java.util.Set;
 
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipeline;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedOIDCAccessTokenMapper;
+import com.quest.keycloak.protocol.wsfed.sig.PooledSignatureSignerContext;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterialCache;
 
+import io.cloudtrust.exception.CloudtrustRuntimeException;
 import org.keycloak.common.util.Base64Url;
 import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.AsymmetricSignatureSignerContext;
-import org.keycloak.crypto.KeyUse;
-import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.jose.jws.JWSBuilder;
 import org.keycloak.models.*;
-import org.keycloak.protocol.ProtocolMapper;
 import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.saml.SamlProtocol;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.services.managers.ClientSessionCode;
 import org.keycloak.services.util.DefaultClientSessionContext;
@@ -46,6 +48,8 @@ public class WSFedOIDCAccessTokenBuilder {
     private RealmModel realm;
     private ClientModel client;
     private boolean x5tIncluded;
+    private String signatureAlgorithm = Algorithm.RS256;
+    private SigningKeyMaterial signingKey;
 
     public KeycloakSession getSession() {
         return session;
@@ -112,13 +116,23 @@ public class WSFedOIDCAccessTokenBuilder {
     private String encodeToken(RealmModel realm, Object token) throws NoSuchAlgorithmException, CertificateEncodingException {
         JWSBuilderExtended builder = new JWSBuilderExtended().type("JWT");
 
-        KeyManager keyManager = session.keys();
-        KeyWrapper activeKey = keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+        SigningKeyMaterial activeKey = signingKey;
+        if (activeKey == null) {
+            if (signatureAlgorithm.startsWith("HS")) {
+                // the realm HMAC keys also sign keycloak's own tokens, they are never shared with a relying party
+                throw new CloudtrustRuntimeException("No secret shared with the client to sign with " + signatureAlgorithm);
+            }
+            activeKey = SigningKeyMaterialCache.getInstance().getActiveKey(session, realm, signatureAlgorithm);
+            if (activeKey == null) {
+                throw new CloudtrustRuntimeException("No active " + signatureAlgorithm + " signing key");
+            }
+        }
+        builder.kid(activeKey.getKid());
         if(isX5tIncluded()) {
-            builder.x5t(activeKey.getCertificate());
+            builder.x5t(activeKey.getX5t());
         }
 
-        return builder.jsonContent(token).sign(new AsymmetricSignatureSignerContext(activeKey));
+        return builder.jsonContent(token).sign(new PooledSignatureSignerContext(activeKey));
     }
 
     public boolean isX5tIncluded() {
@@ -130,9 +144,36 @@ public class WSFedOIDCAccessTokenBuilder {
         return this;
     }
 
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * @param signatureAlgorithm the JWS algorithm of the token (RS256, ES256, ...), the token being signed with the
+     *                           active realm key of that algorithm, or with the signing key set for the HMAC ones
+     */
+    public WSFedOIDCAccessTokenBuilder setSignatureAlgorithm(String signatureAlgorithm) {
+        this.signatureAlgorithm = signatureAlgorithm;
+        return this;
+    }
+
+    public SigningKeyMaterial getSigningKey() {
+        return signingKey;
+    }
+
+    /**
+     * @param signingKey the key to sign with, required for the HMAC algorithms, or null to sign with the active realm
+     *                   key of the algorithm
+     */
+    public WSFedOIDCAccessTokenBuilder setSigningKey(SigningKeyMaterial signingKey) {
+        this.signingKey = signingKey;
+        return this;
+    }
+
     protected static class JWSBuilderExtended extends JWSBuilder {
         String jwsType;
         String jwsContentType;
+        String jwsKid;
         String x5t;
 
         @Override
@@ -149,11 +190,21 @@ public class WSFedOIDCAccessTokenBuilder {
             return this;
         }
 
+        public JWSBuilderExtended kid(String kid) {
+            this.jwsKid = kid;
+            return this;
+        }
+
         public JWSBuilderExtended x5t(X509Certificate certificate) throws NoSuchAlgorithmException, CertificateEncodingException {
             this.x5t = getThumbPrint(certificate);
             return this;
         }
 
+        public JWSBuilderExtended x5t(String thumbPrint) {
+            this.x5t = thumbPrint;
+            return this;
+        }
+
         public String getThumbPrint(X509Certificate cert) throws NoSuchAlgorithmException, CertificateEncodingException {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
             byte[] der = cert.getEncoded();
@@ -167,6 +218,7 @@ public class WSFedOIDCAccessTokenBuilder {
             StringBuilder builder = new StringBuilder("{");
             if (jwsType != null) builder.append("\"typ\":\"").append(jwsType).append("\",");
             builder.append("\"alg\":\"").append(algo).append('"');
+            if (jwsKid != null) builder.append(",\"kid\":\"").append(jwsKid).append('"');
 
             if (jwsContentType != null) builder.append(",\"cty\":\"").append(jwsContentType).append('"');
             if (x5t != null) builder.append(",\"x5t\":\"").append(x5t).append('"');
@@ -177,14 +229,9 @@ public class WSFedOIDCAccessTokenBuilder {
 
     private AccessToken transformAccessToken(KeycloakSession session, AccessToken token, UserSessionModel userSession,
                                             AuthenticatedClientSessionModel clientSession) {
-        Set<ProtocolMapperModel> mappings = clientSession.getClient().getProtocolMappers();
-        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
-        for (ProtocolMapperModel mapping : mappings) {
-
-            ProtocolMapper mapper = (ProtocolMapper)sessionFactory.getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
-            if (!(mapper instanceof WSFedOIDCAccessTokenMapper)) continue;
-            token = ((WSFedOIDCAccessTokenMapper)mapper).transformAccessToken(token, mapping, session, userSession, clientSession);
-
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.getInstance().getPipeline(session, clientSession.getClient());
+        for (SamlProtocol.ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper> processor : pipeline.getAccessTokenMappers()) {
+            token = processor.mapper.transformAccessToken(token, processor.model, session, userSession, clientSession);
         }
         return token;
     }
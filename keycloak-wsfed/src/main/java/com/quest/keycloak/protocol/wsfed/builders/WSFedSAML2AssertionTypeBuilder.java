@@ -16,12 +16,17 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
+import com.quest.keycloak.common.wsfed.utils.WSFedIdGenerator;
+import com.quest.keycloak.protocol.wsfed.WSFedClientConfig;
+import com.quest.keycloak.protocol.wsfed.WSFedConfigCache;
+import com.quest.keycloak.protocol.wsfed.WSFedSessionNotes;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipeline;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLAttributeStatementMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLRoleListMapper;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.models.*;
-import org.keycloak.protocol.ProtocolMapper;
 import org.keycloak.protocol.saml.SamlProtocol;
 import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
@@ -29,11 +34,8 @@ import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import javax.xml.datatype.DatatypeConfigurationException;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
 
 public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstractBuilder<WSFedSAML2AssertionTypeBuilder> {
 
@@ -44,8 +46,10 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
 
         // save NAME_ID and format in clientSession as they may be persistent or transient or email and not username
         // we'll need to send this back on a logout
-        clientSession.setNote(WSFED_NAME_ID, nameId);
-        clientSession.setNote(WSFED_NAME_ID_FORMAT, nameIdFormat);
+        WSFedSessionNotes.of(clientSession)
+                .set(WSFED_NAME_ID, nameId)
+                .set(WSFED_NAME_ID_FORMAT, nameIdFormat)
+                .flush();
 
         SAML2AssertionTypeBuilder builder = new SAML2AssertionTypeBuilder();
         builder.issuer(responseIssuer)
@@ -56,24 +60,9 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
 
         AssertionType assertion = builder.buildModel();
 
-        List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers = new LinkedList<>();
-        SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper = null;
-
-        Set<ProtocolMapperModel> mappings = clientSession.getClient().getProtocolMappers();
-        for (ProtocolMapperModel mapping : mappings) {
-
-            ProtocolMapper mapper = (ProtocolMapper)session.getKeycloakSessionFactory().getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
-            if (mapper == null) continue;
-            if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
-                attributeStatementMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLAttributeStatementMapper)mapper, mapping));
-            }
-            if (mapper instanceof WSFedSAMLRoleListMapper) {
-                roleListMapper = new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLRoleListMapper)mapper, mapping);
-            }
-        }
-
-        transformAttributeStatement(attributeStatementMappers, assertion, session, userSession, clientSession);
-        populateRoles(roleListMapper, assertion, session, userSession, clientSession);
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.getInstance().getPipeline(session, clientSession.getClient());
+        transformAttributeStatement(pipeline.getAttributeStatementMappers(), assertion, session, userSession, clientSession);
+        populateRoles(pipeline.getRoleListMapper(), assertion, session, userSession, clientSession);
 
         return assertion;
     }
@@ -120,8 +109,9 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
     protected String getNameIdFormat(AuthenticatedClientSessionModel clientSession) {
         String nameIdFormat = clientSession.getNote(GeneralConstants.NAMEID_FORMAT);
         ClientModel client = clientSession.getClient();
-        boolean forceFormat = forceNameIdFormat(client);
-        String configuredNameIdFormat = client.getAttribute(SAML_NAME_ID_FORMAT_ATTRIBUTE);
+        WSFedClientConfig config = WSFedConfigCache.getInstance().getConfig(client);
+        boolean forceFormat = config.isForceNameIdFormat();
+        String configuredNameIdFormat = config.getNameIdFormat();
         if ((nameIdFormat == null || forceFormat) && configuredNameIdFormat != null) {
             nameIdFormat = mapConfiguredNameToNameIdFormat.getOrDefault(configuredNameIdFormat, JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get());
         }
@@ -129,7 +119,7 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
     }
 
     protected static boolean forceNameIdFormat(ClientModel client) {
-        return "true".equals(client.getAttribute(SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE));
+        return WSFedConfigCache.getInstance().getConfig(client).isForceNameIdFormat();
     }
 
     protected String getNameId(String nameIdFormat, AuthenticatedClientSessionModel clientSession, UserSessionModel userSession) {
@@ -137,15 +127,20 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
             return userSession.getUser().getEmail();
         } else if(nameIdFormat.equals(JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get())) {
             // "G-" stands for "generated" Add this for the slight possibility of collisions.
-            return "G-" + UUID.randomUUID().toString();
+            return WSFedIdGenerator.createNameId();
         } else if(nameIdFormat.equals(JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get())) {
             // generate a persistent user id specifically for each client.
             UserModel user = userSession.getUser();
+            ClientModel client = clientSession.getClient();
+            WSFedClientConfig config = WSFedConfigCache.getInstance().getConfig(client);
+            if (config.isPersistentNameIdDerived()) {
+                return PersistentNameIdCache.getInstance().getNameId(realm, client, user, config.getPersistentNameIdKey());
+            }
             String name = SAML_PERSISTENT_NAME_ID_FOR + "." + clientSession.getClient().getClientId();
             String samlPersistentId = user.getFirstAttribute(name);
             if (samlPersistentId != null) return samlPersistentId;
             // "G-" stands for "generated"
-            samlPersistentId = "G-" + UUID.randomUUID().toString();
+            samlPersistentId = WSFedIdGenerator.createNameId();
             user.setSingleAttribute(name, samlPersistentId);
             return samlPersistentId;
         } else if(nameIdFormat.equals(JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get())){
@@ -18,36 +18,26 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
-import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
 import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
-import org.keycloak.dom.saml.v1.assertion.SAML11AttributeType;
 import org.keycloak.dom.saml.v1.assertion.SAML11StatementAbstractType;
-import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
-import org.keycloak.dom.saml.v2.assertion.AttributeType;
-import org.keycloak.dom.saml.v2.assertion.EncryptedElementType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserSessionModel;
-import org.keycloak.protocol.ProtocolMapper;
-import org.keycloak.protocol.saml.SamlProtocol;
-import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLAttributeStatementMapper;
-import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLRoleListMapper;
+import com.quest.keycloak.protocol.wsfed.WSFedSessionNotes;
+import com.quest.keycloak.protocol.wsfed.mappers.SAML11AttributeSink;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipeline;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 
-import java.net.URI;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
-import java.util.function.Function;
 
 /**
  * This class handles the creation of a complete SAML 1.1 assertion. By default, all previous processing is done in keycloak's
  * SAML 2.0 classes, an therefore the translation to SAML 1.1 structures is done in this class. However, the SAML
  * 1.1 classes are already a part of keycloak, so all this class needs to do is the translation from one set of
- * classes to another.
+ * classes to another. The mappers implementing the SAML 1.1 mapper interfaces skip that translation.
  *
  * @author <a href="mailto:brat000012001@gmail.com">Peter Nalyvayko</a>
  * @version $Revision: 1 $
@@ -56,43 +46,11 @@ import java.util.function.Function;
 
 public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstractBuilder<WsFedSAML11AssertionTypeBuilder> {
 
-    // TODO eventually make the attribute namespace configurable to support multiple dialects.
-    private static final String ATTRIBUTE_NAMESPACE = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims";
-
-    private static final Logger logger = Logger.getLogger(WsFedSAML11AssertionTypeBuilder.class);
-
     @Override
     protected WsFedSAML11AssertionTypeBuilder getThis() {
         return this;
     }
 
-    private static final class SAML11AttributeArrayMapper {
-        SAML11AttributeStatementType attributeStatement;
-        SAML11AttributeArrayMapper(SAML11AttributeStatementType attributeStatement) {
-            this.attributeStatement = attributeStatement;
-        }
-        void mapAttributes(AttributeStatementType saml2AttributeStatement,
-                       Function<AttributeType, SAML11AttributeType> mapper) {
-
-            if (mapper == null)
-                throw new NullPointerException("Mapper cannot be null");
-
-            for (AttributeStatementType.ASTChoiceType astChoice : saml2AttributeStatement.getAttributes()) {
-                AttributeType attribute = astChoice.getAttribute();
-                EncryptedElementType encryptedElement = astChoice.getEncryptedAssertion();
-
-                if (attribute != null) {
-                    SAML11AttributeType samlAttribute = mapper.apply(attribute);
-                    attributeStatement.add(samlAttribute);
-                }
-
-                if (encryptedElement != null) {
-                    logger.warn("Encrypted assertion attributes are not supported.");
-                }
-            }
-        }
-    }
-
     public SAML11AssertionType build() throws ConfigurationException {
         String responseIssuer = getResponseIssuer(realm);
         String nameIdFormat = JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get();
@@ -101,8 +59,10 @@ public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstr
 
         // save NAME_ID and format in clientSession as they may be persistent or transient or email and not username
         // we'll need to send this back on a logout
-        clientSession.setNote(WSFED_NAME_ID, nameId);
-        clientSession.setNote(WSFED_NAME_ID_FORMAT, nameIdFormat);
+        WSFedSessionNotes.of(clientSession)
+                .set(WSFED_NAME_ID, nameId)
+                .set(WSFED_NAME_ID_FORMAT, nameIdFormat)
+                .flush();
 
         SAML11AssertionTypeBuilder builder = new SAML11AssertionTypeBuilder();
         builder.issuer(responseIssuer)
@@ -112,68 +72,35 @@ public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstr
 
         SAML11AssertionType assertion = builder.buildModel();
 
-        List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers = new LinkedList<>();
-        SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper = null;
-
-        Set<ProtocolMapperModel> mappings = clientSession.getClient().getProtocolMappers();
-        for (ProtocolMapperModel mapping : mappings) {
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.getInstance().getPipeline(session, clientSession.getClient());
+        SAML11AttributeSink attributeSink = new SAML11AttributeSink(getAttributeStatement(assertion));
+        transformAttributeStatement(pipeline.getSaml11AttributeProcessors(), attributeSink, session, userSession, clientSession);
+        populateRoles(pipeline.getSaml11RoleProcessor(), attributeSink, session, userSession, clientSession);
 
-            ProtocolMapper mapper = (ProtocolMapper)session.getKeycloakSessionFactory().getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
-            if (mapper == null) continue;
-            if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
-                attributeStatementMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLAttributeStatementMapper)mapper, mapping));
-            }
-            if (mapper instanceof WSFedSAMLRoleListMapper) {
-                roleListMapper = new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLRoleListMapper)mapper, mapping);
-            }
+        SAML11AttributeStatementType attributeStatement = attributeSink.getAttributeStatement();
+        if (!attributeStatement.get().isEmpty() && assertion.getStatements().isEmpty()) {
+            assertion.add(attributeStatement);
         }
 
-        transformAttributeStatement(attributeStatementMappers, assertion, session, userSession, clientSession);
-        populateRoles(roleListMapper, assertion, session, userSession, clientSession);
-
         return assertion;
     }
 
-    private void populateRoles(SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper,
-                               SAML11AssertionType assertion,
+    /**
+     * Adds the roles to the attribute statement of the assertion, with the role list mapper of the client if it has one.
+     * The SAML 2.0 role mappers write their roles in a SAML 2.0 attribute statement first, which is then converted.
+     *
+     * @param roleProcessor The role list mapper, or null
+     * @param attributeSink The attributes of the SAML 1.1 assertion to build
+     * @param session The current keycloak session
+     * @param userSession The current user session
+     * @param clientSession The current client session
+     */
+    private void populateRoles(WSFedMapperPipeline.SAML11Processor roleProcessor,
+                               SAML11AttributeSink attributeSink,
                                KeycloakSession session,
                                UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
-        if (roleListMapper == null) return;
-
-        AttributeStatementType tempAttributeStatement = new AttributeStatementType();
-
-        // TODO should there be different mappers to support SAML1.0 and SAML2.0 formats? --> only if SAML 2.0 mapper explicitly doesn't support values removed in SAML2.0
-        // For instance, SAML1.0 may need "AttributeNamespace" explicitly specified,
-        // wherease SAML2.0 needs a format specifier which does not map to anything in SAML1.0. Or does it?
-        roleListMapper.mapper.mapRoles(tempAttributeStatement, roleListMapper.model, session, userSession, clientSession);
-
-        SAML11AttributeStatementType attributeStatement = getAttributeStatement(assertion);
-
-        SAML11AttributeArrayMapper samlAttributeMapper = new SAML11AttributeArrayMapper(attributeStatement);
-        samlAttributeMapper.mapAttributes(tempAttributeStatement, attribute -> {
-            // TODO what is there to do with SAML2 attribute name format? Should be set to attributeNameSpace, but value to use is unclear
-
-            // Change the role attribute name to lowercase, i.e. "Role" becomes "role"
-            SAML11AttributeType samlAttribute = null;
-            String namespace = ATTRIBUTE_NAMESPACE;
-            if (attribute.getFriendlyName() != null && !attribute.getFriendlyName().isEmpty()) {
-                namespace = attribute.getFriendlyName();
-            }
-            samlAttribute = new SAML11AttributeType(attribute.getName().toLowerCase(), URI.create(namespace));
-
-            if (!attribute.getAttributeValue().isEmpty()) {
-                for (Object attributeValue : attribute.getAttributeValue()) {
-                    samlAttribute.add(attributeValue.toString());
-                }
-            } else {
-                logger.warnf("The attribute '%s' does not have a value", attribute.getName());
-            }
-            return samlAttribute;
-        });
-
-        if(!attributeStatement.get().isEmpty() && assertion.getStatements().isEmpty()) {
-            assertion.add(attributeStatement);
-        }
+        if (roleProcessor == null) return;
+        roleProcessor.process(attributeSink, session, userSession, clientSession);
     }
 
     /**
@@ -203,48 +130,21 @@ public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstr
      * This method adds attributes to the passed SAML assertion. The values to append are taken from the state of the
      * sessions (keycloak session, user session and client session), and processed via the mappers to get the
      * actual attributes to add to the assertion.
-     * This method will then take the values from the resulting SAML 2.0 classes and set them in SAML 1.1 classes.
+     * The SAML 1.1 mappers write their attributes directly; the attributes of the SAML 2.0 mappers are converted to
+     * SAML 1.1 ones.
      *
-     * @param attributeStatementMappers The list of SAML attribute statement mappers to consider for this transformation.
-     * @param assertion The SAML 1.1 assertion to build
+     * @param attributeProcessors The SAML attribute statement mappers to consider for this transformation.
+     * @param attributeSink The attributes of the SAML 1.1 assertion to build
      * @param session The current keycloak session
      * @param userSession The current user session
      * @param clientSession The current client session
      */
-    private void transformAttributeStatement(List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers,
-                                            SAML11AssertionType assertion,
+    private void transformAttributeStatement(List<WSFedMapperPipeline.SAML11Processor> attributeProcessors,
+                                            SAML11AttributeSink attributeSink,
                                             KeycloakSession session,
                                             UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
-        //This group is still SAML 2.0
-        AttributeStatementType tempAttributeStatement = new AttributeStatementType();
-        for (SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper> processor : attributeStatementMappers) {
-            processor.mapper.transformAttributeStatement(tempAttributeStatement, processor.model, session, userSession, clientSession);
-        }
-        //From here we transform to SAML 1.1
-        SAML11AttributeStatementType attributeStatement = getAttributeStatement(assertion);
-
-        SAML11AttributeArrayMapper samlAttributeMapper = new SAML11AttributeArrayMapper(attributeStatement);
-        samlAttributeMapper.mapAttributes(tempAttributeStatement, attribute -> {
-            // TODO what is there to do with SAML2 attribute name format? Should be set to attributeNameSpace, but value to use is unclear
-            SAML11AttributeType samlAttribute = null;
-            String namespace = ATTRIBUTE_NAMESPACE;
-            if (attribute.getFriendlyName() != null && !attribute.getFriendlyName().isEmpty()) {
-                namespace = attribute.getFriendlyName();
-            }
-            samlAttribute = new SAML11AttributeType(attribute.getName(), URI.create(namespace));
-
-            if (!attribute.getAttributeValue().isEmpty()) {
-                for (Object attributeValue : attribute.getAttributeValue()) {
-                    samlAttribute.add(attributeValue.toString());
-                }
-            } else {
-                logger.warnf("The attribute '%s' does not have a value", attribute.getName());
-            }
-            return samlAttribute;
-        });
-
-        if(!attributeStatement.get().isEmpty() && assertion.getStatements().isEmpty()) {
-            assertion.add(attributeStatement);
+        for (WSFedMapperPipeline.SAML11Processor processor : attributeProcessors) {
+            processor.process(attributeSink, session, userSession, clientSession);
         }
     }
 
@@ -18,13 +18,13 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
+import com.quest.keycloak.protocol.wsfed.WSFedConfigCache;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.services.managers.ClientSessionCode;
-import org.keycloak.services.resources.RealmsResource;
 
 import javax.ws.rs.core.UriInfo;
 
@@ -106,6 +106,6 @@ public abstract class WsFedSAMLAssertionTypeAbstractBuilder<T extends WsFedSAMLA
     }
 
     protected String getResponseIssuer(RealmModel realm) {
-        return RealmsResource.realmBaseUrl(uriInfo).build(realm.getName()).toString();
+        return WSFedConfigCache.getInstance().getRealmUrls(uriInfo, realm).getIssuer();
     }
 }
@@ -18,9 +18,14 @@
 package com.quest.keycloak.protocol.wsfed.installation;
 
 import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterial;
+import com.quest.keycloak.protocol.wsfed.sig.SigningKeyMaterialCache;
+import com.quest.keycloak.protocol.wsfed.sig.StreamingSAMLSignature;
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
+import io.cloudtrust.exception.CloudtrustRuntimeException;
 import org.keycloak.Config;
-import org.keycloak.common.util.PemUtils;
 import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
 import org.keycloak.crypto.KeyUse;
 import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.models.*;
@@ -36,6 +41,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -55,8 +64,7 @@ public class WSFedIDPDescriptorClientInstallation implements ClientInstallationP
      * @throws Exception IOException if there's a problem reading the wsfed-idp-metadata-template.xml
      */
     public static String getIDPDescriptorForClient(KeycloakSession session, RealmModel realm, URI uri) throws IOException {
-        KeyManager keyManager = session.keys();
-        KeyWrapper activeKey = keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+        SigningKeyMaterial activeKey = SigningKeyMaterialCache.getInstance().getActiveKey(session, realm, Algorithm.RS256);
         InputStream is = WSFedIDPDescriptorClientInstallation.class.getClassLoader().getResourceAsStream("wsfed-idp-metadata-template.xml");
         String template = "Error getting descriptor";
         try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))){
@@ -64,11 +72,44 @@ public class WSFedIDPDescriptorClientInstallation implements ClientInstallationP
             template = template.replace("${idp.entityID}", RealmsResource.realmBaseUrl(UriBuilder.fromUri(uri)).build(realm.getName()).toString());
             template = template.replace("${idp.sso.sts}", RealmsResource.protocolUrl(UriBuilder.fromUri(uri)).build(realm.getName(), WSFedLoginProtocol.LOGIN_PROTOCOL).toString());
             template = template.replace("${idp.sso.passive}", RealmsResource.protocolUrl(UriBuilder.fromUri(uri)).build(realm.getName(), WSFedLoginProtocol.LOGIN_PROTOCOL).toString());
-            template = template.replace("${idp.signing.certificate}", PemUtils.encodeCertificate(activeKey.getCertificate()));
+            template = template.replace("${idp.signing.certificate}", activeKey.getPemCertificate());
+            template = template.replace("${idp.signing.ecdsa}", getEcdsaKeyDescriptors(session, realm));
         }
         return template;
     }
 
+    /**
+     * The active EC keys of the realm, used by the clients signing with ECDSA, are advertised after the RSA key so
+     * that the relying parties only reading the first key descriptor keep working. The EC keys generated by keycloak
+     * have no certificate: their KeyInfo then holds the ECKeyValue instead.
+     */
+    private static String getEcdsaKeyDescriptors(KeycloakSession session, RealmModel realm) {
+        Set<String> algorithms = new LinkedHashSet<>();
+        for (WSFedSignatureAlgorithm algorithm : WSFedSignatureAlgorithm.values()) {
+            if (algorithm.isEcdsa()) {
+                algorithms.add(algorithm.getKeyAlgorithm());
+            }
+        }
+
+        StringBuilder descriptors = new StringBuilder();
+        for (String algorithm : algorithms) {
+            // getKeys doesn't generate a fallback key when the realm has none, unlike getActiveKey
+            for (KeyWrapper key : session.keys().getKeys(realm, KeyUse.SIG, algorithm)) {
+                if (key.getStatus() != KeyStatus.ACTIVE || !(key.getPublicKey() instanceof PublicKey)) {
+                    continue;
+                }
+                try {
+                    descriptors.append("<KeyDescriptor use=\"signing\">")
+                            .append(StreamingSAMLSignature.buildKeyInfo(null, key.getCertificate(), (PublicKey) key.getPublicKey(), true))
+                            .append("</KeyDescriptor>");
+                } catch (GeneralSecurityException e) {
+                    throw new CloudtrustRuntimeException(e);
+                }
+            }
+        }
+        return descriptors.toString();
+    }
+
     @Override
     public Response generateInstallation(KeycloakSession session, RealmModel realm, ClientModel client, URI serverBaseUri) {
         String descriptor = null;
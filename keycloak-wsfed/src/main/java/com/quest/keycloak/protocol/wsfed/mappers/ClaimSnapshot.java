@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.RoleUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The role and group claims of a user, computed by the {@link ClaimSnapshotCache} and shared by the sign-ins of the
+ * relying parties of a user session. The snapshot only holds names, never models, so that it can outlive the keycloak
+ * session it was computed in, and be stored in a note of the user session, as JSON.
+ */
+public final class ClaimSnapshot {
+    private static final Logger logger = Logger.getLogger(ClaimSnapshot.class);
+
+    private final String realmId;
+    private final String userId;
+    private final long computedAt;
+    private final String stamp;
+    private final List<String> realmRoles;
+    private final Map<String, List<String>> clientRoles;
+    private final List<String> groups;
+    private final List<String> groupPaths;
+
+    private ClaimSnapshot(String realmId, String userId, long computedAt, String stamp, List<String> realmRoles,
+                          Map<String, List<String>> clientRoles, List<String> groups, List<String> groupPaths) {
+        this.realmId = realmId;
+        this.userId = userId;
+        this.computedAt = computedAt;
+        this.stamp = stamp;
+        this.realmRoles = realmRoles;
+        this.clientRoles = clientRoles;
+        this.groups = groups;
+        this.groupPaths = groupPaths;
+    }
+
+    /**
+     * Computes the claims of a user: the role closure, including the composite and group roles, and the groups
+     *
+     * @param realm the realm of the user
+     * @param user the user
+     * @param computedAt the time of the computation, in milliseconds
+     * @param stamp the stamp of the direct role mappings and groups of the user, see ClaimSnapshotCache.computeStamp
+     * @return the snapshot of the claims
+     */
+    static ClaimSnapshot compute(RealmModel realm, UserModel user, long computedAt, String stamp) {
+        List<String> realmRoles = new ArrayList<>();
+        Map<String, List<String>> clientRoles = new HashMap<>();
+        for (RoleModel role : RoleUtils.getDeepUserRoleMappings(user)) {
+            if (role.isClientRole()) {
+                clientRoles.computeIfAbsent(role.getContainerId(), id -> new ArrayList<>()).add(role.getName());
+            } else {
+                realmRoles.add(role.getName());
+            }
+        }
+        clientRoles.replaceAll((id, names) -> Collections.unmodifiableList(names));
+
+        Set<GroupModel> userGroups = user.getGroups();
+        List<String> groups = new ArrayList<>(userGroups.size());
+        for (GroupModel group : userGroups) {
+            groups.add(group.getName());
+        }
+        List<String> groupPaths = GroupPathIndex.getInstance().getPaths(realm, userGroups);
+
+        return new ClaimSnapshot(realm.getId(), user.getId(), computedAt, stamp, Collections.unmodifiableList(realmRoles),
+                Collections.unmodifiableMap(clientRoles), Collections.unmodifiableList(groups),
+                Collections.unmodifiableList(groupPaths));
+    }
+
+    /**
+     * @return the snapshot as stored in the user session note
+     */
+    String toNote() {
+        Representation representation = new Representation();
+        representation.realmId = realmId;
+        representation.userId = userId;
+        representation.computedAt = computedAt;
+        representation.stamp = stamp;
+        representation.realmRoles = realmRoles;
+        representation.clientRoles = clientRoles;
+        representation.groups = groups;
+        representation.groupPaths = groupPaths;
+        try {
+            return JsonSerialization.writeValueAsString(representation);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param note the user session note written by {@link #toNote()}
+     * @return the snapshot, or null if the note is missing or can't be read
+     */
+    static ClaimSnapshot fromNote(String note) {
+        if (note == null) {
+            return null;
+        }
+        try {
+            Representation representation = JsonSerialization.readValue(note, Representation.class);
+            if (representation.userId == null) {
+                return null;
+            }
+            Map<String, List<String>> clientRoles = new HashMap<>();
+            if (representation.clientRoles != null) {
+                representation.clientRoles.forEach((id, names) -> clientRoles.put(id, Collections.unmodifiableList(names)));
+            }
+            return new ClaimSnapshot(representation.realmId, representation.userId, representation.computedAt,
+                    representation.stamp, unmodifiable(representation.realmRoles), Collections.unmodifiableMap(clientRoles),
+                    unmodifiable(representation.groups), unmodifiable(representation.groupPaths));
+        } catch (IOException e) {
+            logger.debugf(e, "Invalid claim snapshot note, computing it again");
+            return null;
+        }
+    }
+
+    private static List<String> unmodifiable(List<String> list) {
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return the time the snapshot was computed at, in milliseconds
+     */
+    long getComputedAt() {
+        return computedAt;
+    }
+
+    /**
+     * @return the stamp of the direct role mappings and groups the snapshot was computed from, or null if the note
+     * it was read from has none
+     */
+    String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return the names of the realm roles of the user, including the composite and group roles
+     */
+    public List<String> getRealmRoles() {
+        return realmRoles;
+    }
+
+    /**
+     * @param clientId the id (not the client id) of a client
+     * @return the names of the roles of the user for the client, including the composite and group roles
+     */
+    public List<String> getClientRoles(String clientId) {
+        List<String> roles = clientRoles.get(clientId);
+        return roles == null ? Collections.emptyList() : roles;
+    }
+
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    public List<String> getGroupPaths() {
+        return groupPaths;
+    }
+
+    /**
+     * The JSON form of the snapshot
+     */
+    static class Representation {
+        public String realmId;
+        public String userId;
+        public long computedAt;
+        public String stamp;
+        public List<String> realmRoles;
+        public Map<String, List<String>> clientRoles;
+        public List<String> groups;
+        public List<String> groupPaths;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import com.quest.keycloak.protocol.wsfed.WSFedConfigCache;
+import com.quest.keycloak.protocol.wsfed.sig.CryptoEnginePool;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@link ClaimSnapshot}s of the user sessions, for the clients which have the wsfed.claim_snapshot attribute set.
+ *
+ * When a browser session signs into several relying parties, their mappers would otherwise compute the role closure
+ * and the group paths of the same user at each sign-in. The snapshot is stored in a note of the user session, so that
+ * it is shared by the nodes of a cluster, and the parsed snapshots are kept in a bounded LRU cache, keyed by user
+ * session id. A snapshot is used for at most its maximum age, then computed again and written back to the note: the
+ * sign-ins in between don't compute the role closure or the group paths again.
+ *
+ * Each snapshot holds the stamp of the direct role mappings and groups of the user it was computed from, checked
+ * against the user at each use: a role mapping or a group membership granted or revoked on any node of a cluster
+ * makes the snapshot stale at once. The other changes, to the composite roles or to the roles of the groups, are seen
+ * through the {@link ClaimSnapshotEventListenerProviderFactory wsfed-claim-snapshot} event listener and the provider
+ * events on the node they happen on, and on the other nodes once the snapshot has expired. The snapshots are only
+ * used in the realms having that event listener: in the others, the mappers read the user storage as they used to.
+ */
+public class ClaimSnapshotCache {
+    private static final Logger logger = Logger.getLogger(ClaimSnapshotCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.SECONDS.toMillis(60);
+
+    public static final String SNAPSHOT_NOTE = "WSFED_CLAIM_SNAPSHOT";
+
+    private static final ClaimSnapshotCache INSTANCE = new ClaimSnapshotCache(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+
+    private final Map<String, ClaimSnapshot> snapshots;
+    private final long maxAge;
+    // when the users and realms were last invalidated, the snapshots computed before being stale
+    private final Map<String, Long> invalidatedUsers = new HashMap<>();
+    private final Map<String, Long> invalidatedRealms = new HashMap<>();
+    private long invalidatedAll;
+    // the realms already logged as missing the event listener
+    private final Set<String> realmsWithoutListener = ConcurrentHashMap.newKeySet();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ClaimSnapshotCache(int maxSize, long maxAge) {
+        this.maxAge = maxAge;
+        this.snapshots = new LinkedHashMap<String, ClaimSnapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ClaimSnapshot> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static ClaimSnapshotCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param client a client
+     * @return true if the mappers of the client read the roles and groups from the claim snapshot
+     */
+    public static boolean isEnabled(ClientModel client) {
+        return client != null && WSFedConfigCache.getInstance().getConfig(client).isClaimSnapshot();
+    }
+
+    /**
+     * Returns the claims of the user of a session: the snapshot of the session if it is recent enough and no change
+     * was seen since it was computed, a new snapshot otherwise
+     *
+     * @param userSession the user session
+     * @param client the client the token is issued for
+     * @return the snapshot, or null if the client doesn't use the claim snapshots or if the realm of the session
+     * doesn't have the wsfed-claim-snapshot event listener
+     */
+    public ClaimSnapshot getSnapshot(UserSessionModel userSession, ClientModel client) {
+        if (!isEnabled(client) || !hasEventListener(userSession.getRealm())) {
+            return null;
+        }
+
+        UserModel user = userSession.getUser();
+        long now = System.currentTimeMillis();
+        String stamp = computeStamp(user);
+        ClaimSnapshot snapshot;
+        synchronized (snapshots) {
+            snapshot = snapshots.get(userSession.getId());
+        }
+        if (snapshot == null || !isValid(snapshot, user, stamp, now)) {
+            // computed by another node, or before a restart
+            snapshot = ClaimSnapshot.fromNote(userSession.getNote(SNAPSHOT_NOTE));
+        }
+        if (snapshot != null && isValid(snapshot, user, stamp, now)) {
+            hits.increment();
+        } else {
+            misses.increment();
+            snapshot = ClaimSnapshot.compute(userSession.getRealm(), user, now, stamp);
+            userSession.setNote(SNAPSHOT_NOTE, snapshot.toNote());
+        }
+        synchronized (snapshots) {
+            snapshots.put(userSession.getId(), snapshot);
+        }
+        return snapshot;
+    }
+
+    private boolean isValid(ClaimSnapshot snapshot, UserModel user, String stamp, long now) {
+        long computedAt = snapshot.getComputedAt();
+        if (!snapshot.getUserId().equals(user.getId()) || !stamp.equals(snapshot.getStamp())
+                || now - computedAt >= maxAge || computedAt > now) {
+            return false;
+        }
+        synchronized (snapshots) {
+            Long userInvalidation = invalidatedUsers.get(snapshot.getUserId());
+            Long realmInvalidation = snapshot.getRealmId() == null ? null : invalidatedRealms.get(snapshot.getRealmId());
+            return computedAt > invalidatedAll
+                    && (userInvalidation == null || computedAt > userInvalidation)
+                    && (realmInvalidation == null || computedAt > realmInvalidation);
+        }
+    }
+
+    /**
+     * Without the event listener, the changes to the roles of the users would only be seen once the snapshots have
+     * expired: the realm then doesn't use the snapshots at all, which is logged once.
+     */
+    private boolean hasEventListener(RealmModel realm) {
+        Set<String> listeners = realm.getEventsListeners();
+        if (listeners != null && listeners.contains(ClaimSnapshotEventListenerProviderFactory.PROVIDER_ID)) {
+            return true;
+        }
+        if (realm.getId() != null && realmsWithoutListener.add(realm.getId())) {
+            logger.warnf("The claim snapshots are disabled in realm %s, which doesn't have the %s event listener",
+                    realm.getName(), ClaimSnapshotEventListenerProviderFactory.PROVIDER_ID);
+        }
+        return false;
+    }
+
+    /**
+     * Makes the snapshots of a user stale, after a change of its roles, groups or attributes
+     *
+     * @param userId the id of the user
+     */
+    public void invalidateUser(String userId) {
+        if (userId != null) {
+            long now = System.currentTimeMillis();
+            synchronized (snapshots) {
+                snapshots.values().removeIf(snapshot -> userId.equals(snapshot.getUserId()));
+                purgeInvalidations(now);
+                invalidatedUsers.put(userId, now);
+            }
+        }
+    }
+
+    /**
+     * Makes the snapshots of the users of a realm stale, after a change of its roles or groups
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            long now = System.currentTimeMillis();
+            synchronized (snapshots) {
+                snapshots.values().removeIf(snapshot -> realmId.equals(snapshot.getRealmId()));
+                purgeInvalidations(now);
+                invalidatedRealms.put(realmId, now);
+            }
+        }
+    }
+
+    /**
+     * The snapshots computed before an invalidation older than the maximum age have expired anyway
+     */
+    private void purgeInvalidations(long now) {
+        invalidatedUsers.values().removeIf(time -> now - time >= maxAge);
+        invalidatedRealms.values().removeIf(time -> now - time >= maxAge);
+    }
+
+    /**
+     * Makes all the snapshots stale
+     */
+    public void clear() {
+        long now = System.currentTimeMillis();
+        synchronized (snapshots) {
+            snapshots.clear();
+            invalidatedUsers.clear();
+            invalidatedRealms.clear();
+            invalidatedAll = now;
+        }
+        realmsWithoutListener.clear();
+    }
+
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+
+    /**
+     * @return the number of sign-ins served from a snapshot
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of snapshots that had to be computed
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return a digest of the direct role mappings and groups of the user, which order doesn't matter, used as the
+     * version stamp of the {@link ClaimSnapshot}s and of the {@link EffectiveRoleCache}
+     */
+    static String computeStamp(UserModel user) {
+        List<String> ids = new ArrayList<>();
+        for (RoleModel role : user.getRoleMappings()) {
+            ids.add("r:" + role.getId());
+        }
+        for (GroupModel group : user.getGroups()) {
+            ids.add("g:" + group.getId());
+        }
+        Collections.sort(ids);
+
+        try {
+            MessageDigest digest = CryptoEnginePool.borrowDigest("SHA-256");
+            try {
+                for (String id : ids) {
+                    digest.update(id.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                }
+                return Base64Url.encode(digest.digest());
+            } finally {
+                CryptoEnginePool.releaseDigest("SHA-256", digest);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import com.quest.keycloak.protocol.wsfed.builders.PersistentNameIdCache;
+import org.keycloak.Config;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Event listener invalidating the {@link ClaimSnapshotCache}, the {@link EffectiveRoleCache} and the
+ * {@link GroupPathIndex} when the roles, groups or attributes of the users are changed. It has to be added to the event listeners of the realms using the claim
+ * snapshots, and is advised for those with composite roles; it is stateless, so the factory is its own provider.
+ *
+ * A change to the mappings of a user only evicts the entries of that user, while a change to a role or a group evicts
+ * all the entries of the realm, as it can affect any of its users.
+ *
+ * An update of a user also evicts the persistent NameIDs read from its attributes (see {@link PersistentNameIdCache}).
+ */
+public class ClaimSnapshotEventListenerProviderFactory implements EventListenerProviderFactory, EventListenerProvider {
+
+    public static final String PROVIDER_ID = "wsfed-claim-snapshot";
+
+    private static final String USERS_PATH = "users/";
+    private static final String GROUPS_PATH = "groups/";
+
+    @Override
+    public void onEvent(Event event) {
+        if (event.getType() == EventType.UPDATE_PROFILE || event.getType() == EventType.UPDATE_EMAIL) {
+            ClaimSnapshotCache.getInstance().invalidateUser(event.getUserId());
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        ResourceType type = event.getResourceType();
+        if (type == null) {
+            return;
+        }
+        switch (type) {
+            case USER:
+            case REALM_ROLE_MAPPING:
+            case CLIENT_ROLE_MAPPING:
+            case GROUP_MEMBERSHIP:
+                String userId = getUserId(event.getResourcePath());
+                if (userId != null) {
+                    ClaimSnapshotCache.getInstance().invalidateUser(userId);
+                    EffectiveRoleCache.getInstance().invalidateUser(event.getRealmId(), userId);
+                    if (type == ResourceType.USER) {
+                        PersistentNameIdCache.getInstance().invalidateUser(event.getRealmId(), userId);
+                    }
+                } else {
+                    invalidateRealm(event.getRealmId());
+                }
+                break;
+            case GROUP:
+                invalidateRealm(event.getRealmId());
+                invalidateGroup(event.getRealmId(), event.getResourcePath());
+                break;
+            case REALM_ROLE:
+            case CLIENT_ROLE:
+            case REALM:
+            case CLIENT:
+                invalidateRealm(event.getRealmId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Removes the group an admin event is about from the group path index: "groups/{id}" is a renamed, moved or
+     * deleted group. The other paths are a new group or a group moved under another, which previous path isn't known.
+     */
+    private static void invalidateGroup(String realmId, String resourcePath) {
+        if (resourcePath != null && resourcePath.startsWith(GROUPS_PATH) && resourcePath.indexOf('/', GROUPS_PATH.length()) < 0) {
+            GroupPathIndex.getInstance().invalidateGroup(realmId, resourcePath.substring(GROUPS_PATH.length()));
+        } else {
+            GroupPathIndex.getInstance().invalidateRealm(realmId);
+        }
+    }
+
+    private static void invalidateRealm(String realmId) {
+        ClaimSnapshotCache.getInstance().invalidateRealm(realmId);
+        EffectiveRoleCache.getInstance().invalidateRealm(realmId);
+    }
+
+    /**
+     * @param resourcePath the path of an admin event, "users/{id}/role-mappings/realm" for instance
+     * @return the id of the user the path is about, or null if it isn't a user path
+     */
+    static String getUserId(String resourcePath) {
+        if (resourcePath == null || !resourcePath.startsWith(USERS_PATH)) {
+            return null;
+        }
+        int end = resourcePath.indexOf('/', USERS_PATH.length());
+        String userId = end < 0 ? resourcePath.substring(USERS_PATH.length()) : resourcePath.substring(USERS_PATH.length(), end);
+        return userId.isEmpty() ? null : userId;
+    }
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return this;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.scripting.EvaluatableScriptAdapter;
+import org.keycloak.scripting.ScriptBindingsConfigurer;
+import org.keycloak.scripting.ScriptExecutionException;
+import org.keycloak.scripting.ScriptModel;
+import org.keycloak.scripting.ScriptingProvider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Bounded LRU cache of the compiled scripts of the script based mappers, per realm and mapper.
+ *
+ * Preparing an evaluatable script compiles its source, which is by far the most expensive part of running a mapper.
+ * A cached script is only returned while the source and name of its mapper are the ones it was compiled from: a
+ * mapper which script is edited, on this node or on another one, is compiled again at the next login and replaces
+ * the previous version. The least recently used scripts are evicted once the cache is full.
+ *
+ * The compiled scripts don't keep the keycloak session they were prepared with, and every evaluation gets its own
+ * bindings, so they are shared by the concurrent logins.
+ */
+public class CompiledScriptCache {
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final CompiledScriptCache INSTANCE = new CompiledScriptCache(DEFAULT_MAX_SIZE);
+
+    private final Map<String, CachedScript> scripts;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    CompiledScriptCache(int maxSize) {
+        this.scripts = new LinkedHashMap<String, CachedScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedScript> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static CompiledScriptCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the compiled script of a mapper, compiling it if it isn't cached yet or if its source has changed
+     *
+     * @param session the current keycloak session, which scripting provider compiles the script
+     * @param realm the realm of the mapper
+     * @param mappingModel the mapper
+     * @param source the source of the script
+     * @return the compiled script
+     */
+    public CachedScript getScript(KeycloakSession session, RealmModel realm, ProtocolMapperModel mappingModel, String source) {
+        String name = "attribute-mapper-script_" + mappingModel.getName();
+        // the mappers built outside of the database have no id, their name has to do
+        String key = realm.getId() + '|' + (mappingModel.getId() != null ? mappingModel.getId() : name);
+
+        CachedScript cached;
+        synchronized (scripts) {
+            cached = scripts.get(key);
+        }
+        if (cached != null && cached.matches(name, source)) {
+            hits.increment();
+            return cached;
+        }
+
+        // compiled outside of the lock: at worst, two logins compile the same new script
+        misses.increment();
+        ScriptingProvider scripting = session.getProvider(ScriptingProvider.class);
+        ScriptModel scriptModel = scripting.createScript(realm.getId(), ScriptModel.TEXT_JAVASCRIPT, name, source, null);
+        cached = new CachedScript(name, source, scripting.prepareEvaluatableScript(scriptModel));
+        synchronized (scripts) {
+            scripts.put(key, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Forgets the scripts of the mappers of a realm
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            String prefix = realmId + '|';
+            synchronized (scripts) {
+                scripts.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    /**
+     * @return the number of scripts served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of scripts that had to be compiled
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * A compiled script, with the time spent evaluating it
+     */
+    public static class CachedScript {
+        private final String name;
+        private final String source;
+        private final EvaluatableScriptAdapter script;
+        private final LongAdder evaluations = new LongAdder();
+        private final LongAdder evaluationNanos = new LongAdder();
+
+        CachedScript(String name, String source, EvaluatableScriptAdapter script) {
+            this.name = name;
+            this.source = source;
+            this.script = script;
+        }
+
+        boolean matches(String name, String source) {
+            return this.name.equals(name) && Objects.equals(this.source, source);
+        }
+
+        /**
+         * Evaluates the script
+         *
+         * @param bindingsConfigurer sets the variables of this evaluation
+         * @return the value of the last statement of the script
+         * @throws ScriptExecutionException if the script fails
+         */
+        public Object eval(ScriptBindingsConfigurer bindingsConfigurer) throws ScriptExecutionException {
+            return eval(bindingsConfigurer, null);
+        }
+
+        /**
+         * Evaluates the script, and hands the time it took to the caller
+         *
+         * @param bindingsConfigurer sets the variables of this evaluation
+         * @param evaluationListener receives the time of this evaluation, in nanoseconds, even when it fails; may be null
+         * @return the value of the last statement of the script
+         * @throws ScriptExecutionException if the script fails
+         */
+        public Object eval(ScriptBindingsConfigurer bindingsConfigurer, LongConsumer evaluationListener) throws ScriptExecutionException {
+            long start = System.nanoTime();
+            try {
+                return script.eval(bindingsConfigurer);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                evaluations.increment();
+                evaluationNanos.add(nanos);
+                if (evaluationListener != null) {
+                    evaluationListener.accept(nanos);
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getEvaluationCount() {
+            return evaluations.sum();
+        }
+
+        /**
+         * @return the total time spent evaluating the script, in nanoseconds
+         */
+        public long getEvaluationNanos() {
+            return evaluationNanos.sum();
+        }
+    }
+}
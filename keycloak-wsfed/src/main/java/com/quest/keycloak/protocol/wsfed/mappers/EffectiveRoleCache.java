@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.RoleUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the effective roles of the users, used by the role list mapper of the full scope clients.
+ *
+ * Expanding the composite and group roles of a user walks the whole role hierarchy, one model lookup per role. The
+ * expanded set is kept here as two arrays, the role ids and their interned names, and reused while the version stamp
+ * of the user (see {@link ClaimSnapshotCache}) hasn't changed, that is while the direct role mappings and groups are
+ * the same. The changes to the composite roles and to the roles of the groups don't change the stamp: they evict the
+ * entries through the events, and an entry is anyway computed again once it is older than its maximum age.
+ */
+public class EffectiveRoleCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.SECONDS.toMillis(60);
+
+    private static final EffectiveRoleCache INSTANCE = new EffectiveRoleCache(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+
+    private final Map<String, EffectiveRoles> entries;
+    private final long maxAge;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    EffectiveRoleCache(int maxSize, long maxAge) {
+        this.maxAge = maxAge;
+        this.entries = new LinkedHashMap<String, EffectiveRoles>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EffectiveRoles> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static EffectiveRoleCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the effective roles of a user, including the composite and group roles
+     *
+     * @param realm the realm of the user
+     * @param user the user
+     * @return the roles, which must not be modified
+     */
+    public EffectiveRoles getRoles(RealmModel realm, UserModel user) {
+        String key = realm.getId() + '|' + user.getId();
+        String stamp = ClaimSnapshotCache.computeStamp(user);
+        long now = System.currentTimeMillis();
+        EffectiveRoles roles;
+        synchronized (entries) {
+            roles = entries.get(key);
+        }
+        if (roles != null && roles.stamp.equals(stamp) && now - roles.computedAt < maxAge) {
+            hits.increment();
+            return roles;
+        }
+
+        misses.increment();
+        roles = EffectiveRoles.compute(RoleUtils.getDeepUserRoleMappings(user), stamp, now);
+        synchronized (entries) {
+            entries.put(key, roles);
+        }
+        return roles;
+    }
+
+    /**
+     * Forgets the roles of a user
+     *
+     * @param realmId the id of the realm of the user
+     * @param userId the id of the user
+     */
+    public void invalidateUser(String realmId, String userId) {
+        if (realmId != null && userId != null) {
+            synchronized (entries) {
+                entries.remove(realmId + '|' + userId);
+            }
+        }
+    }
+
+    /**
+     * Forgets the roles of the users of a realm, after a change of its roles or groups
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            String prefix = realmId + '|';
+            synchronized (entries) {
+                entries.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of role sets served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of role sets that had to be expanded
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * The expanded roles of a user. The names are interned: the same role names are shared by many users.
+     */
+    public static final class EffectiveRoles {
+        private final String[] ids;
+        private final String[] names;
+        private final String stamp;
+        private final long computedAt;
+
+        private EffectiveRoles(String[] ids, String[] names, String stamp, long computedAt) {
+            this.ids = ids;
+            this.names = names;
+            this.stamp = stamp;
+            this.computedAt = computedAt;
+        }
+
+        static EffectiveRoles compute(Set<RoleModel> roles, String stamp, long computedAt) {
+            String[] ids = new String[roles.size()];
+            String[] names = new String[roles.size()];
+            int i = 0;
+            for (RoleModel role : roles) {
+                ids[i] = role.getId();
+                names[i] = role.getName().intern();
+                i++;
+            }
+            return new EffectiveRoles(ids, names, stamp, computedAt);
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public String getId(int index) {
+            return ids[index];
+        }
+
+        public String getName(int index) {
+            return names[index];
+        }
+    }
+}
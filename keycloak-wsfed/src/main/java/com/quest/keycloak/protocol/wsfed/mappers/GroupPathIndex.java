@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the full paths of the groups ("/parent/child"), per realm.
+ *
+ * Building the path of a group walks its parent chain, one model lookup per level. The index maps the group ids to
+ * their paths, so that a path is built from the already known path of its closest indexed ancestor. The map of a realm
+ * is immutable and replaced as a whole when groups are added, which lets the logins read it without locking.
+ *
+ * The name and parent of an indexed group are checked against its model at each lookup. A renamed or moved ancestor
+ * isn't seen that way: the group events remove the group and its descendants from the index (see
+ * {@link #invalidateGroup(String, String)}), and the index of a realm is anyway rebuilt once older than its maximum
+ * age.
+ */
+public class GroupPathIndex {
+
+    public static final long DEFAULT_MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+    private static final GroupPathIndex INSTANCE = new GroupPathIndex(DEFAULT_MAX_AGE);
+
+    private final ConcurrentMap<String, RealmIndex> realms = new ConcurrentHashMap<>();
+    private final long maxAge;
+
+    GroupPathIndex(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public static GroupPathIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param realm the realm of the group
+     * @param group a group
+     * @return the full path of the group
+     */
+    public String getPath(RealmModel realm, GroupModel group) {
+        return getPaths(realm, Collections.singletonList(group)).get(0);
+    }
+
+    /**
+     * Returns the full paths of groups, indexing those which weren't yet
+     *
+     * @param realm the realm of the groups
+     * @param groups the groups
+     * @return the paths, in the iteration order of the groups
+     */
+    public List<String> getPaths(RealmModel realm, Collection<GroupModel> groups) {
+        // the realms built outside of the database have no id, their paths are built without being indexed
+        RealmIndex index = realm.getId() == null ? new RealmIndex(0) : getIndex(realm.getId());
+        Map<String, Entry> entries = index.entries;
+        Map<String, Entry> added = null;
+
+        List<String> paths = new ArrayList<>(groups.size());
+        for (GroupModel group : groups) {
+            Entry entry = lookup(entries, added, group.getId());
+            if (entry == null || !entry.matches(group)) {
+                if (added == null) {
+                    added = new HashMap<>();
+                }
+                entry = index(entries, added, group);
+            }
+            paths.add(entry.path);
+        }
+
+        if (added != null) {
+            index.add(added);
+        }
+        return paths;
+    }
+
+    /**
+     * Removes a group, renamed, moved or deleted, and its descendants from the index
+     *
+     * @param realmId the id of the realm of the group
+     * @param groupId the id of the group
+     */
+    public void invalidateGroup(String realmId, String groupId) {
+        RealmIndex index = realmId == null ? null : realms.get(realmId);
+        if (index != null) {
+            Entry entry = index.entries.get(groupId);
+            if (entry != null) {
+                index.remove(entry.path);
+            }
+        }
+    }
+
+    /**
+     * Forgets the paths of the groups of a realm
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            realms.remove(realmId);
+        }
+    }
+
+    public void clear() {
+        realms.clear();
+    }
+
+    /**
+     * @param realmId the id of a realm
+     * @return the number of indexed groups of the realm
+     */
+    public int size(String realmId) {
+        RealmIndex index = realms.get(realmId);
+        return index == null ? 0 : index.entries.size();
+    }
+
+    private RealmIndex getIndex(String realmId) {
+        long now = System.currentTimeMillis();
+        RealmIndex index = realms.get(realmId);
+        if (index == null || now - index.createdAt >= maxAge) {
+            index = realms.compute(realmId, (id, current) -> current == null || now - current.createdAt >= maxAge ? new RealmIndex(now) : current);
+        }
+        return index;
+    }
+
+    /**
+     * Indexes a group, and its ancestors which aren't indexed yet. The chain is walked up to the closest indexed
+     * ancestor, then the paths are built down from it.
+     */
+    private static Entry index(Map<String, Entry> entries, Map<String, Entry> added, GroupModel group) {
+        Deque<GroupModel> chain = new ArrayDeque<>();
+        String parentPath = "";
+        for (GroupModel current = group; current != null; current = current.getParent()) {
+            Entry known = current == group ? null : lookup(entries, added, current.getId());
+            if (known != null) {
+                parentPath = known.path;
+                break;
+            }
+            chain.push(current);
+        }
+
+        Entry entry = null;
+        while (!chain.isEmpty()) {
+            GroupModel current = chain.pop();
+            entry = new Entry(current.getName(), current.getParentId(), parentPath + '/' + current.getName());
+            added.put(current.getId(), entry);
+            parentPath = entry.path;
+        }
+        return entry;
+    }
+
+    private static Entry lookup(Map<String, Entry> entries, Map<String, Entry> added, String groupId) {
+        Entry entry = added == null ? null : added.get(groupId);
+        return entry != null ? entry : entries.get(groupId);
+    }
+
+    private static class RealmIndex {
+        private final long createdAt;
+        private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+        RealmIndex(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        synchronized void add(Map<String, Entry> added) {
+            Map<String, Entry> copy = new HashMap<>(entries);
+            copy.putAll(added);
+            entries = Collections.unmodifiableMap(copy);
+        }
+
+        synchronized void remove(String path) {
+            String descendants = path + '/';
+            Map<String, Entry> copy = new HashMap<>(entries);
+            copy.values().removeIf(entry -> entry.path.equals(path) || entry.path.startsWith(descendants));
+            entries = Collections.unmodifiableMap(copy);
+        }
+    }
+
+    private static class Entry {
+        private final String name;
+        private final String parentId;
+        private final String path;
+
+        Entry(String name, String parentId, String path) {
+            this.name = name;
+            this.parentId = parentId;
+            this.path = path;
+        }
+
+        boolean matches(GroupModel group) {
+            return name.equals(group.getName()) && Objects.equals(parentId, group.getParentId());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Receives the attributes of a SAML 1.1 assertion from the mappers. The {@link WSFedSAML11AttributeStatementMapper}s
+ * and {@link WSFedSAML11RoleListMapper}s write into it directly; the attribute statements of the other mappers are
+ * converted with {@link #addAll(AttributeStatementType, boolean)}.
+ *
+ * In SAML 1.1, the friendly name of a SAML 2.0 attribute is used as its namespace. The namespace URIs are parsed once
+ * and shared.
+ */
+public final class SAML11AttributeSink {
+
+    // TODO eventually make the attribute namespace configurable to support multiple dialects.
+    public static final String DEFAULT_NAMESPACE = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims";
+
+    private static final Logger logger = Logger.getLogger(SAML11AttributeSink.class);
+    private static final int MAX_CACHED_NAMESPACES = 256;
+    private static final ConcurrentMap<String, URI> namespaces = new ConcurrentHashMap<>();
+
+    private final SAML11AttributeStatementType attributeStatement;
+
+    public SAML11AttributeSink(SAML11AttributeStatementType attributeStatement) {
+        this.attributeStatement = attributeStatement;
+    }
+
+    /**
+     * Adds an attribute with a single value
+     *
+     * @param name the name of the attribute
+     * @param namespace the namespace of the attribute, or null for the default namespace
+     * @param value the value of the attribute
+     */
+    public void addAttribute(String name, String namespace, String value) {
+        SAML11AttributeType attribute = new SAML11AttributeType(name, getNamespace(namespace));
+        attribute.add(value);
+        attributeStatement.add(attribute);
+    }
+
+    /**
+     * Adds an attribute with multiple values
+     *
+     * @param name the name of the attribute
+     * @param namespace the namespace of the attribute, or null for the default namespace
+     * @param values the values of the attribute
+     */
+    public void addAttribute(String name, String namespace, Collection<String> values) {
+        SAML11AttributeType attribute = new SAML11AttributeType(name, getNamespace(namespace));
+        if (values.isEmpty()) {
+            logger.warnf("The attribute '%s' does not have a value", name);
+        }
+        for (String value : values) {
+            attribute.add(value);
+        }
+        attributeStatement.add(attribute);
+    }
+
+    /**
+     * Converts the attributes of a SAML 2.0 statement, the friendly names becoming the namespaces
+     *
+     * @param saml2AttributeStatement the SAML 2.0 attributes
+     * @param lowerCaseNames true to lower case the names of the attributes, as done for the roles
+     */
+    public void addAll(AttributeStatementType saml2AttributeStatement, boolean lowerCaseNames) {
+        for (AttributeStatementType.ASTChoiceType astChoice : saml2AttributeStatement.getAttributes()) {
+            AttributeType attribute = astChoice.getAttribute();
+            if (attribute != null) {
+                // TODO what is there to do with SAML2 attribute name format? Should be set to attributeNameSpace, but value to use is unclear
+                String name = lowerCaseNames ? attribute.getName().toLowerCase() : attribute.getName();
+                SAML11AttributeType samlAttribute = new SAML11AttributeType(name, getNamespace(attribute.getFriendlyName()));
+                if (!attribute.getAttributeValue().isEmpty()) {
+                    for (Object attributeValue : attribute.getAttributeValue()) {
+                        samlAttribute.add(attributeValue.toString());
+                    }
+                } else {
+                    logger.warnf("The attribute '%s' does not have a value", attribute.getName());
+                }
+                attributeStatement.add(samlAttribute);
+            }
+
+            if (astChoice.getEncryptedAssertion() != null) {
+                logger.warn("Encrypted assertion attributes are not supported.");
+            }
+        }
+    }
+
+    public SAML11AttributeStatementType getAttributeStatement() {
+        return attributeStatement;
+    }
+
+    /**
+     * @param namespace a namespace, or null or empty for the default one
+     * @return the URI of the namespace
+     * @throws IllegalArgumentException if the namespace is not a valid URI
+     */
+    static URI getNamespace(String namespace) {
+        String value = namespace == null || namespace.isEmpty() ? DEFAULT_NAMESPACE : namespace;
+        URI uri = namespaces.get(value);
+        if (uri == null) {
+            uri = URI.create(value);
+            // the namespaces come from the mapper configurations, the bound only matters if they are abused
+            if (namespaces.size() < MAX_CACHED_NAMESPACES) {
+                namespaces.putIfAbsent(value, uri);
+            }
+        }
+        return uri;
+    }
+}
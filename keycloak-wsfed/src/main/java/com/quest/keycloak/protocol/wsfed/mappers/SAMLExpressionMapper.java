@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
+import com.quest.keycloak.protocol.wsfed.mappers.expression.AttributeExpression;
+import com.quest.keycloak.protocol.wsfed.mappers.expression.ExpressionContext;
+import org.jboss.logging.Logger;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperContainerModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
+import org.keycloak.provider.ProviderConfigProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the values of a SAML attribute from an {@link AttributeExpression}: concatenations of user attributes,
+ * filters over the roles and groups, string functions. It covers what most javascript mappers do, without the
+ * scripting engine: the expressions are compiled once to plain Java code, and can't reach beyond the user and its
+ * client.
+ *
+ * The expressions are compiled when the mapper is saved, to report the syntax errors, and kept in a bounded cache
+ * keyed by their source.
+ */
+public class SAMLExpressionMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLAttributeStatementMapper,
+        WSFedSAML11AttributeStatementMapper {
+
+    public static final String PROVIDER_ID = "wsfed-saml-expression-mapper";
+    public static final String EXPRESSION = "expression";
+    private static final String SINGLE_ATTRIBUTE = "single";
+    private static final int MAX_CACHED_EXPRESSIONS = 512;
+    private static final Logger LOGGER = Logger.getLogger(SAMLExpressionMapper.class);
+
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+    private static final Map<String, AttributeExpression> expressions = new LinkedHashMap<String, AttributeExpression>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AttributeExpression> eldest) {
+            return size() > MAX_CACHED_EXPRESSIONS;
+        }
+    };
+
+    static {
+        ProviderConfigProperty property;
+        property = new ProviderConfigProperty();
+        property.setName(AttributeStatementHelper.SAML_ATTRIBUTE_NAME);
+        property.setLabel("Attribute name");
+        property.setHelpText("Name of the SAML attribute you want to put the values of the expression into");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(EXPRESSION);
+        property.setLabel("Expression");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Expression computing the attribute values, e.g. lower(firstName + '.' + lastName) or "
+                + "substringAfter(startsWith(groups, 'app-'), 'app-').\n"
+                + "Values: username, email, firstName, lastName, userId, attribute('name'), roles, clientRoles, groups, "
+                + "groupPaths, realm, clientId, 'literals'.\n"
+                + "Functions: lower, upper, trim, replace, substringBefore, substringAfter, startsWith, endsWith, "
+                + "contains, join, first, distinct, sort, default. Values are concatenated with +.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(AttributeStatementHelper.FRIENDLY_NAME);
+        property.setLabel(AttributeStatementHelper.FRIENDLY_NAME_LABEL + " / Namespace");
+        property.setHelpText(FRIENDLY_NAMESPACE_HELP_TEXT);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(AttributeStatementHelper.SAML_ATTRIBUTE_NAMEFORMAT);
+        property.setLabel("SAML Attribute NameFormat");
+        property.setHelpText("SAML Attribute NameFormat.  Can be basic, URI reference, or unspecified.");
+        List<String> types = new ArrayList<>(3);
+        types.add(AttributeStatementHelper.BASIC);
+        types.add(AttributeStatementHelper.URI_REFERENCE);
+        types.add(AttributeStatementHelper.UNSPECIFIED);
+        property.setType(ProviderConfigProperty.LIST_TYPE);
+        property.setOptions(types);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SINGLE_ATTRIBUTE);
+        property.setLabel("Single Attribute");
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue("true");
+        property.setHelpText("If true, all the values will be stored under one attribute with multiple attribute values.");
+        configProperties.add(property);
+    }
+
+    /**
+     * Adds the values of the expression of the mapper to the attribute statement. Nothing is added if the expression
+     * has no value for the user.
+     *
+     * @param attributeStatement The attribute statements to be added to a token
+     * @param mappingModel       The mapping model reflects the values that are actually input in the GUI
+     * @param session            The current session
+     * @param userSession        The current user session
+     * @param clientSession      The current client session
+     */
+    @Override
+    public void transformAttributeStatement(AttributeStatementType attributeStatement, ProtocolMapperModel mappingModel, KeycloakSession session,
+                                            UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        List<String> values = evaluate(mappingModel, userSession, clientSession);
+        if (values.isEmpty()) {
+            return;
+        }
+
+        if (Boolean.parseBoolean(mappingModel.getConfig().get(SINGLE_ATTRIBUTE))) {
+            AttributeType attribute = AttributeStatementHelper.createAttributeType(mappingModel);
+            for (String value : values) {
+                attribute.addAttributeValue(value);
+            }
+            attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute));
+        } else {
+            for (String value : values) {
+                AttributeStatementHelper.addAttribute(attributeStatement, mappingModel, value);
+            }
+        }
+    }
+
+    /**
+     * Adds the values of the expression of the mapper to a SAML 1.1 assertion, the friendly name being the namespace
+     * of the attribute.
+     */
+    @Override
+    public void transformAttributeStatement(SAML11AttributeSink attributeSink, ProtocolMapperModel mappingModel, KeycloakSession session,
+                                            UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        List<String> values = evaluate(mappingModel, userSession, clientSession);
+        if (values.isEmpty()) {
+            return;
+        }
+
+        String name = mappingModel.getConfig().get(AttributeStatementHelper.SAML_ATTRIBUTE_NAME);
+        String namespace = mappingModel.getConfig().get(AttributeStatementHelper.FRIENDLY_NAME);
+        if (Boolean.parseBoolean(mappingModel.getConfig().get(SINGLE_ATTRIBUTE))) {
+            attributeSink.addAttribute(name, namespace, values);
+        } else {
+            for (String value : values) {
+                attributeSink.addAttribute(name, namespace, value);
+            }
+        }
+    }
+
+    private static List<String> evaluate(ProtocolMapperModel mappingModel, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        try {
+            AttributeExpression expression = getExpression(mappingModel.getConfig().get(EXPRESSION));
+            ClaimSnapshot snapshot = ClaimSnapshotCache.getInstance().getSnapshot(userSession, clientSession.getClient());
+            return expression.evaluate(new ExpressionContext(userSession.getUser(), userSession.getRealm(), clientSession.getClient(), snapshot));
+        } catch (RuntimeException ex) {
+            LOGGER.errorf(ex, "Error during the evaluation of the expression of the mapper %s", mappingModel.getName());
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client, ProtocolMapperModel mapperModel)
+            throws ProtocolMapperConfigException {
+        try {
+            getExpression(mapperModel.getConfig().get(EXPRESSION));
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolMapperConfigException("Invalid expression: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param source the source of an expression
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static AttributeExpression getExpression(String source) {
+        AttributeExpression expression;
+        synchronized (expressions) {
+            expression = expressions.get(source);
+        }
+        if (expression == null) {
+            expression = AttributeExpression.compile(source);
+            synchronized (expressions) {
+                expressions.put(source, expression);
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * Creates a protocol mapper model for this expression mapper. Mainly used for testing, but can also be used to
+     * add default mappers to a client.
+     *
+     * @param name              The name of the mapper (this has no functional use)
+     * @param samlAttributeName The name of the attribute in the SAML attribute
+     * @param nameFormat        can be "basic", "URI reference" or "unspecified"
+     * @param friendlyName      a display name, only useful for the keycloak GUI
+     * @param expression        the expression computing the attribute values
+     * @param singleAttribute   If true, all values will be stored under one attribute with multiple attribute values
+     * @return a protocol mapper for an expression
+     */
+    public static ProtocolMapperModel create(String name, String samlAttributeName, String nameFormat, String friendlyName, String expression,
+                                             boolean singleAttribute) {
+        ProtocolMapperModel mapper = new ProtocolMapperModel();
+        mapper.setName(name);
+        mapper.setProtocolMapper(PROVIDER_ID);
+        mapper.setProtocol(WSFedLoginProtocol.LOGIN_PROTOCOL);
+        Map<String, String> config = new HashMap<>();
+        config.put(AttributeStatementHelper.SAML_ATTRIBUTE_NAME, samlAttributeName);
+        if (friendlyName != null) {
+            config.put(AttributeStatementHelper.FRIENDLY_NAME, friendlyName);
+        }
+        if (nameFormat != null) {
+            config.put(AttributeStatementHelper.SAML_ATTRIBUTE_NAMEFORMAT, nameFormat);
+        }
+        config.put(EXPRESSION, expression);
+        config.put(SINGLE_ATTRIBUTE, Boolean.toString(singleAttribute));
+        mapper.setConfig(config);
+        return mapper;
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return "SAML " + AttributeStatementHelper.ATTRIBUTE_STATEMENT_CATEGORY;
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "SAML expression mapper";
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Evaluates an expression over the user, its roles and groups to produce attribute values. A faster alternative to the javascript mapper.";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
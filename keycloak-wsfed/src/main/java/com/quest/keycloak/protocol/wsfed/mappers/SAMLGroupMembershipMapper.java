@@ -1,16 +1,25 @@
 package com.quest.keycloak.protocol.wsfed.mappers;
 
 import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
+import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperContainerModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
 import org.keycloak.protocol.saml.mappers.GroupMembershipMapper;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This class handles the mapping of groups to attributes for the WSFed protocol. Groups are handled like any other
@@ -21,14 +30,28 @@ import java.util.List;
 public class SAMLGroupMembershipMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLAttributeStatementMapper {
 
     public static final String PROVIDER_ID = "wsfed-saml-group-membership-mapper";
-    //The mapper can be static as it holds no state. No reason to have multiple instances
-    private static final GroupMembershipMapper mapper;
+    private static final String FULL_PATH = "full.path";
+    private static final String PATH_PREFIX = "group.path_prefix";
+    private static final String MAX_VALUES = "group.max_values";
+    private static final Logger LOGGER = Logger.getLogger(SAMLGroupMembershipMapper.class);
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
     static {
-        mapper = new GroupMembershipMapper();
-        configProperties.addAll(mapper.getConfigProperties());
+        configProperties.addAll(new GroupMembershipMapper().getConfigProperties());
         addNamespaceToFriendlyProperty(configProperties);
+
+        ProviderConfigProperty property = new ProviderConfigProperty();
+        property.setName(PATH_PREFIX);
+        property.setLabel("Group path prefix");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Only the groups which full path starts with this prefix are mapped, i.e. '/applications/'. Leave empty to map all the groups.");
+        configProperties.add(property);
+        property = new ProviderConfigProperty();
+        property.setName(MAX_VALUES);
+        property.setLabel("Maximum number of groups");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("The groups after this number are left out of the token, to bound its size. Leave empty to map all the groups.");
+        configProperties.add(property);
     }
 
     @Override
@@ -57,10 +80,12 @@ public class SAMLGroupMembershipMapper extends AbstractWsfedProtocolMapper imple
     }
 
     /**
-     * This method directly calls the keycloak group mapper to add the group attributes to the passed attribute statement.
+     * This method adds the group attributes to the passed attribute statement, as the keycloak group mapper does.
      * The result is therefore in SAML 2.0 by default.
      * The mapper itself uses the mapping model (normally the mapper created in the GUI) and the state of the sessions
-     * to get the values to add to the attributes.
+     * to get the values to add to the attributes. The group paths come from the {@link GroupPathIndex}, or from the
+     * snapshot of the user session when the client uses the claim snapshots. The groups can be filtered by a path
+     * prefix, and their number bounded.
      *
      * @param attributeStatement The attribute statements to be added to a token
      * @param mappingModel       The mapping model reflects the values that are actually input in the GUI
@@ -70,7 +95,100 @@ public class SAMLGroupMembershipMapper extends AbstractWsfedProtocolMapper imple
      */
     @Override
     public void transformAttributeStatement(AttributeStatementType attributeStatement, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
-        mapper.transformAttributeStatement(attributeStatement, mappingModel, session, userSession, clientSession);
+        List<String> names;
+        List<String> paths;
+        ClaimSnapshot snapshot = ClaimSnapshotCache.getInstance().getSnapshot(userSession, clientSession.getClient());
+        if (snapshot != null) {
+            names = snapshot.getGroups();
+            paths = snapshot.getGroupPaths();
+        } else {
+            Set<GroupModel> groups = userSession.getUser().getGroups();
+            names = new ArrayList<>(groups.size());
+            for (GroupModel group : groups) {
+                names.add(group.getName());
+            }
+            paths = GroupPathIndex.getInstance().getPaths(userSession.getRealm(), groups);
+        }
+
+        boolean singleAttribute = Boolean.parseBoolean(mappingModel.getConfig().get(GroupMembershipMapper.SINGLE_GROUP_ATTRIBUTE));
+        AttributeType singleAttributeType = null;
+        for (String group : selectGroups(mappingModel, names, paths)) {
+            AttributeType attributeType;
+            if (singleAttribute) {
+                if (singleAttributeType == null) {
+                    singleAttributeType = AttributeStatementHelper.createAttributeType(mappingModel);
+                    attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(singleAttributeType));
+                }
+                attributeType = singleAttributeType;
+            } else {
+                attributeType = AttributeStatementHelper.createAttributeType(mappingModel);
+                attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attributeType));
+            }
+            attributeType.addAttributeValue(group);
+        }
+    }
+
+    /**
+     * Keeps the groups which path starts with the prefix of the mapper, up to its maximum number of values. The groups
+     * are sorted by path first, so that the same groups are kept from one login to the next.
+     *
+     * @param mappingModel the mapper
+     * @param names the names of the groups of the user
+     * @param paths the full paths of the same groups
+     * @return the names or the paths of the selected groups, depending on the mapper's full path option
+     */
+    static List<String> selectGroups(ProtocolMapperModel mappingModel, List<String> names, List<String> paths) {
+        boolean fullPath = "true".equals(mappingModel.getConfig().get(FULL_PATH));
+        String prefix = mappingModel.getConfig().get(PATH_PREFIX);
+        int maxValues = getMaxValues(mappingModel);
+
+        List<Integer> matching = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            if (prefix == null || prefix.isEmpty() || paths.get(i).startsWith(prefix)) {
+                matching.add(i);
+            }
+        }
+        matching.sort(Comparator.comparing(paths::get));
+
+        if (matching.size() > maxValues) {
+            LOGGER.debugf("Dropping %d of the %d groups selected by the mapper %s", matching.size() - maxValues,
+                    matching.size(), mappingModel.getName());
+            matching = matching.subList(0, Math.max(maxValues, 0));
+        }
+
+        List<String> selected = new ArrayList<>(matching.size());
+        for (int i : matching) {
+            selected.add(fullPath ? paths.get(i) : names.get(i));
+        }
+        return selected;
+    }
+
+    private static int getMaxValues(ProtocolMapperModel mappingModel) {
+        String maxValues = mappingModel.getConfig().get(MAX_VALUES);
+        if (maxValues == null || maxValues.trim().isEmpty()) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Integer.parseInt(maxValues.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.errorf("Invalid maximum number of groups %s for the mapper %s", maxValues, mappingModel.getName());
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client, ProtocolMapperModel mapperModel)
+            throws ProtocolMapperConfigException {
+        String maxValues = mapperModel.getConfig().get(MAX_VALUES);
+        if (maxValues != null && !maxValues.trim().isEmpty()) {
+            try {
+                if (Integer.parseInt(maxValues.trim()) < 1) {
+                    throw new ProtocolMapperConfigException("The maximum number of groups must be positive");
+                }
+            } catch (NumberFormatException e) {
+                throw new ProtocolMapperConfigException("Invalid maximum number of groups: " + maxValues);
+            }
+        }
     }
 
     /**
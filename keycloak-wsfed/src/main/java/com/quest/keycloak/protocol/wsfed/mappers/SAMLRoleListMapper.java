@@ -18,22 +18,30 @@ package com.quest.keycloak.protocol.wsfed.mappers;
 
 import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
 import org.keycloak.protocol.saml.mappers.RoleListMapper;
+import org.keycloak.protocol.saml.mappers.SAMLRoleNameMapper;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.services.util.DefaultClientSessionContext;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
- * This class handles the mapping of roles to attributes for the WSFed protocol. This is handled by calling the
- * existing keycloak SAML 2.0 role mapper.
+ * This class handles the mapping of roles to attributes for the WSFed protocol, as the keycloak SAML 2.0 role mapper
+ * does. The roles of the SAML 1.1 assertions are written directly.
  */
-public class SAMLRoleListMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLRoleListMapper {
+public class SAMLRoleListMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLRoleListMapper, WSFedSAML11RoleListMapper {
     public static final String PROVIDER_ID = "wsfed-saml-role-list-mapper";
 
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
@@ -70,19 +78,107 @@ public class SAMLRoleListMapper extends AbstractWsfedProtocolMapper implements W
     }
 
     /**
-     * Calls keycloak's role mapper to perform the mapping from the sessions' attributes using the parameters
-     * defined in the mapping model.
+     * Performs the mapping of keycloak's role mapper, from the sessions' attributes using the parameters defined in
+     * the mapping model. The roles of the full scope clients come from the {@link EffectiveRoleCache}.
      *
      * @param roleAttributeStatement The attribute statement to enrich with the roles
      * @param mappingModel the mapping model with the information on how to map
      * @param session The keycloak session
-     * @param userSession The user's session. Not actually used, astonishingly
+     * @param userSession The user's session
      * @param clientSession The client session. The role information is gathered from here as all roles for the user-client session is actually attached to this object during authentication
      */
     @Override
     public void mapRoles(AttributeStatementType roleAttributeStatement, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
-        RoleListMapper samlMapper = new RoleListMapper();
-        samlMapper.mapRoles(roleAttributeStatement, mappingModel, session, userSession, DefaultClientSessionContext.fromClientSessionScopeParameter(clientSession));
+        boolean singleAttribute = Boolean.parseBoolean(mappingModel.getConfig().get(RoleListMapper.SINGLE_ROLE_ATTRIBUTE));
+        AttributeType singleAttributeType = null;
+        for (String roleName : getRoleNames(session, userSession, clientSession)) {
+            AttributeType attributeType;
+            if (singleAttribute) {
+                if (singleAttributeType == null) {
+                    singleAttributeType = AttributeStatementHelper.createAttributeType(mappingModel);
+                    roleAttributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(singleAttributeType));
+                }
+                attributeType = singleAttributeType;
+            } else {
+                attributeType = AttributeStatementHelper.createAttributeType(mappingModel);
+                roleAttributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attributeType));
+            }
+            attributeType.addAttributeValue(roleName);
+        }
+    }
+
+    /**
+     * Writes the roles straight into the SAML 1.1 assertion. It does what keycloak's role mapper does, followed by the
+     * translation to SAML 1.1, without building the SAML 2.0 attributes first.
+     *
+     * @param attributeSink The attributes of the SAML 1.1 assertion
+     * @param mappingModel the mapping model with the information on how to map
+     * @param session The keycloak session
+     * @param userSession The user's session
+     * @param clientSession The client session, holding the roles of the user for the client
+     */
+    @Override
+    public void mapRoles(SAML11AttributeSink attributeSink, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        boolean singleAttribute = Boolean.parseBoolean(mappingModel.getConfig().get(RoleListMapper.SINGLE_ROLE_ATTRIBUTE));
+        // as for the other role mappers, the role attribute name is lower-cased, i.e. "Role" becomes "role"
+        String name = mappingModel.getConfig().get(AttributeStatementHelper.SAML_ATTRIBUTE_NAME).toLowerCase();
+        String namespace = mappingModel.getConfig().get(AttributeStatementHelper.FRIENDLY_NAME);
+
+        List<String> roleNames = getRoleNames(session, userSession, clientSession);
+        if (singleAttribute) {
+            if (!roleNames.isEmpty()) {
+                attributeSink.addAttribute(name, namespace, roleNames);
+            }
+        } else {
+            for (String roleName : roleNames) {
+                attributeSink.addAttribute(name, namespace, roleName);
+            }
+        }
+    }
+
+    /**
+     * Lists the roles of the user for the client, translated by the role name mappers of the client. A full scope
+     * client gets all the effective roles of the user, which are cached; the roles of the other clients are limited to
+     * their scope, and computed by the client session context. The role name mappers come from the cached
+     * {@link WSFedMapperPipeline} of the client.
+     */
+    private static List<String> getRoleNames(KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        List<SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper>> roleNameMappers =
+                WSFedMapperPipelineCache.getInstance().getPipeline(session, clientSession.getClient()).getRoleNameMappers();
+
+        if (clientSession.getClient().isFullScopeAllowed()) {
+            RealmModel realm = userSession.getRealm();
+            EffectiveRoleCache.EffectiveRoles roles = EffectiveRoleCache.getInstance().getRoles(realm, userSession.getUser());
+            List<String> roleNames = new ArrayList<>(roles.size());
+            for (int i = 0; i < roles.size(); i++) {
+                if (roleNameMappers.isEmpty()) {
+                    roleNames.add(roles.getName(i));
+                } else {
+                    // the role name mappers need the models, which are only looked up by id
+                    RoleModel role = realm.getRoleById(roles.getId(i));
+                    if (role != null) {
+                        roleNames.add(mapName(roleNameMappers, role));
+                    }
+                }
+            }
+            return roleNames;
+        }
+
+        ClientSessionContext clientSessionCtx = DefaultClientSessionContext.fromClientSessionScopeParameter(clientSession);
+        Set<RoleModel> roles = clientSessionCtx.getRoles();
+        List<String> roleNames = new ArrayList<>(roles.size());
+        for (RoleModel role : roles) {
+            roleNames.add(mapName(roleNameMappers, role));
+        }
+        return roleNames;
+    }
+
+    private static String mapName(List<SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper>> roleNameMappers, RoleModel role) {
+        String roleName = role.getName();
+        for (SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper> entry : roleNameMappers) {
+            roleName = entry.mapper.mapName(entry.model, role);
+        }
+        return roleName;
     }
 
     /**
@@ -4,13 +4,13 @@ import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.models.*;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.saml.SamlProtocol;
 import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
 import org.keycloak.provider.ProviderConfigProperty;
-import org.keycloak.scripting.EvaluatableScriptAdapter;
-import org.keycloak.scripting.ScriptingProvider;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class provides a mapper that uses javascript to attach a value to an attribute for SAML tokens.
@@ -26,6 +26,7 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
     public static final String PROVIDER_ID = "wsfed-saml-javascript-mapper";
     private static final Logger LOGGER = Logger.getLogger(SAMLScriptBasedMapper.class);
     private static final String SINGLE_GROUP_ATTRIBUTE = "single";
+    private static final String TIME_BUDGET = "script.time_budget";
 
     /*
      * This static property block is used to determine the elements available to the mapper. This is determinant
@@ -90,6 +91,12 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
         property.setDefaultValue("true");
         property.setHelpText("If true, all groups will be stored under one attribute with multiple attribute values.");
         configProperties.add(property);
+        property = new ProviderConfigProperty();
+        property.setName(TIME_BUDGET);
+        property.setLabel("Evaluation time budget");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Time, in milliseconds, after which an evaluation of the script is reported as too slow in the logs. Leave empty to disable.");
+        configProperties.add(property);
     }
 
     /**
@@ -114,10 +121,8 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
         String single = mappingModel.getConfig().get(SINGLE_GROUP_ATTRIBUTE);
         boolean singleAttribute = Boolean.parseBoolean(single);
 
-        ScriptingProvider scripting = session.getProvider(ScriptingProvider.class);
-        ScriptModel scriptModel = scripting.createScript(realm.getId(), ScriptModel.TEXT_JAVASCRIPT, "attribute-mapper-script_" + mappingModel.getName(), scriptSource, null);
-
-        EvaluatableScriptAdapter script = scripting.prepareEvaluatableScript(scriptModel);
+        CompiledScriptCache.CachedScript script = CompiledScriptCache.getInstance().getScript(session, realm, mappingModel, scriptSource);
+        long timeBudget = getTimeBudget(mappingModel);
         Object attributeValue;
         try {
             attributeValue = script.eval(bindings -> {
@@ -126,7 +131,7 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
                 bindings.put("clientSession", clientSession);
                 bindings.put("userSession", userSession);
                 bindings.put("keycloakSession", session);
-            });
+            }, nanos -> checkTimeBudget(script, timeBudget, nanos));
             //If the result is a an array or is iterable, get all values
             if (attributeValue.getClass().isArray()) {
                 attributeValue = Arrays.asList((Object[]) attributeValue);
@@ -153,6 +158,51 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
         }
     }
 
+    /**
+     * Logs the evaluation time of a script, as a warning if it went over the time budget of the mapper. The evaluation
+     * is not interrupted: the script runs on the thread of the login, with its keycloak session.
+     */
+    private static void checkTimeBudget(CompiledScriptCache.CachedScript script, long timeBudget, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (timeBudget >= 0 && millis > timeBudget) {
+            LOGGER.warnf("Script %s took %d ms, over its %d ms budget (%d evaluations, %d ms in total)", script.getName(), millis,
+                    timeBudget, script.getEvaluationCount(), TimeUnit.NANOSECONDS.toMillis(script.getEvaluationNanos()));
+        } else if (LOGGER.isDebugEnabled()) {
+            LOGGER.debugf("Script %s evaluated in %d ms", script.getName(), millis);
+        }
+    }
+
+    /**
+     * @return the time budget of the mapper in milliseconds, or -1 if it has none. An invalid value, rejected by
+     * {@link #validateConfig}, can only come from an older configuration and is ignored.
+     */
+    private static long getTimeBudget(ProtocolMapperModel mappingModel) {
+        String budget = mappingModel.getConfig().get(TIME_BUDGET);
+        if (budget == null || budget.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(budget.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client, ProtocolMapperModel mapperModel)
+            throws ProtocolMapperConfigException {
+        String budget = mapperModel.getConfig().get(TIME_BUDGET);
+        if (budget != null && !budget.trim().isEmpty()) {
+            try {
+                if (Long.parseLong(budget.trim()) < 0) {
+                    throw new ProtocolMapperConfigException("The evaluation time budget can't be negative");
+                }
+            } catch (NumberFormatException e) {
+                throw new ProtocolMapperConfigException("Invalid evaluation time budget: " + budget);
+            }
+        }
+    }
+
     /**
      * Creates an protocol mapper model for the this script based mapper. This mapper model is meant to be used for
      * testing, as normally such objects are created in a different manner through the keycloak GUI.
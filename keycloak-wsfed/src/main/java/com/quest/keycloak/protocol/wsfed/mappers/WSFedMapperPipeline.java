@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapper;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.protocol.saml.mappers.SAMLRoleNameMapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The protocol mappers of a client, resolved to their provider factories and split by the part of the token they
+ * contribute to. The mappers of each kind are kept in the order the client returned them.
+ *
+ * For the SAML 1.1 assertions, the mappers are also resolved to {@link SAML11Processor}s: the SAML 1.1 mappers write
+ * into the assertion directly, and the attribute statements of the others are converted.
+ *
+ * A pipeline is immutable, and is shared by the logins of its client through the {@link WSFedMapperPipelineCache}.
+ */
+public final class WSFedMapperPipeline {
+
+    private final List<ProtocolMapperModel> models;
+    private final List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers;
+    private final SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper;
+    private final List<SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper>> roleNameMappers;
+    private final List<SamlProtocol.ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> accessTokenMappers;
+    private final List<SAML11Processor> saml11AttributeProcessors;
+    private final SAML11Processor saml11RoleProcessor;
+
+    private WSFedMapperPipeline(List<ProtocolMapperModel> models,
+                                List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers,
+                                SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper,
+                                List<SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper>> roleNameMappers,
+                                List<SamlProtocol.ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> accessTokenMappers,
+                                List<SAML11Processor> saml11AttributeProcessors, SAML11Processor saml11RoleProcessor) {
+        this.models = models;
+        this.attributeStatementMappers = attributeStatementMappers;
+        this.roleListMapper = roleListMapper;
+        this.roleNameMappers = roleNameMappers;
+        this.accessTokenMappers = accessTokenMappers;
+        this.saml11AttributeProcessors = saml11AttributeProcessors;
+        this.saml11RoleProcessor = saml11RoleProcessor;
+    }
+
+    /**
+     * Resolves the protocol mappers of a client. The mappers which provider is not deployed are ignored.
+     *
+     * @param sessionFactory the session factory the mapper providers are looked up from
+     * @param client the client
+     * @return the pipeline of the client
+     */
+    public static WSFedMapperPipeline resolve(KeycloakSessionFactory sessionFactory, ClientModel client) {
+        Collection<ProtocolMapperModel> mappings = client.getProtocolMappers();
+        List<ProtocolMapperModel> models = new ArrayList<>(mappings.size());
+        List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers = new ArrayList<>();
+        SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper = null;
+        List<SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper>> roleNameMappers = new ArrayList<>();
+        List<SamlProtocol.ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> accessTokenMappers = new ArrayList<>();
+        List<SAML11Processor> saml11AttributeProcessors = new ArrayList<>();
+        SAML11Processor saml11RoleProcessor = null;
+
+        for (ProtocolMapperModel mapping : mappings) {
+            models.add(mapping);
+            ProtocolMapper mapper = (ProtocolMapper) sessionFactory.getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
+            if (mapper == null) continue;
+            if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
+                attributeStatementMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLAttributeStatementMapper) mapper, mapping));
+            }
+            if (mapper instanceof WSFedSAML11AttributeStatementMapper) {
+                WSFedSAML11AttributeStatementMapper saml11Mapper = (WSFedSAML11AttributeStatementMapper) mapper;
+                saml11AttributeProcessors.add((sink, session, userSession, clientSession) ->
+                        saml11Mapper.transformAttributeStatement(sink, mapping, session, userSession, clientSession));
+            } else if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
+                WSFedSAMLAttributeStatementMapper saml2Mapper = (WSFedSAMLAttributeStatementMapper) mapper;
+                saml11AttributeProcessors.add((sink, session, userSession, clientSession) -> {
+                    AttributeStatementType attributeStatement = new AttributeStatementType();
+                    saml2Mapper.transformAttributeStatement(attributeStatement, mapping, session, userSession, clientSession);
+                    sink.addAll(attributeStatement, false);
+                });
+            }
+            if (mapper instanceof WSFedSAMLRoleListMapper) {
+                // as before, the last role list mapper wins
+                roleListMapper = new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLRoleListMapper) mapper, mapping);
+            }
+            if (mapper instanceof WSFedSAML11RoleListMapper) {
+                WSFedSAML11RoleListMapper saml11Mapper = (WSFedSAML11RoleListMapper) mapper;
+                saml11RoleProcessor = (sink, session, userSession, clientSession) ->
+                        saml11Mapper.mapRoles(sink, mapping, session, userSession, clientSession);
+            } else if (mapper instanceof WSFedSAMLRoleListMapper) {
+                WSFedSAMLRoleListMapper saml2Mapper = (WSFedSAMLRoleListMapper) mapper;
+                saml11RoleProcessor = (sink, session, userSession, clientSession) -> {
+                    AttributeStatementType attributeStatement = new AttributeStatementType();
+                    saml2Mapper.mapRoles(attributeStatement, mapping, session, userSession, clientSession);
+                    sink.addAll(attributeStatement, true);
+                };
+            }
+            if (mapper instanceof SAMLRoleNameMapper) {
+                roleNameMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((SAMLRoleNameMapper) mapper, mapping));
+            }
+            if (mapper instanceof WSFedOIDCAccessTokenMapper) {
+                accessTokenMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((WSFedOIDCAccessTokenMapper) mapper, mapping));
+            }
+        }
+
+        return new WSFedMapperPipeline(Collections.unmodifiableList(models), Collections.unmodifiableList(attributeStatementMappers),
+                roleListMapper, Collections.unmodifiableList(roleNameMappers), Collections.unmodifiableList(accessTokenMappers), Collections.unmodifiableList(saml11AttributeProcessors),
+                saml11RoleProcessor);
+    }
+
+    /**
+     * Tells whether the pipeline was resolved from the given mappers. The models of the client cache are compared by
+     * identity, the others by contents.
+     *
+     * @param mappings the current protocol mappers of the client
+     * @return true if the pipeline can still be used for them
+     */
+    public boolean isResolvedFrom(Collection<ProtocolMapperModel> mappings) {
+        if (mappings.size() != models.size()) {
+            return false;
+        }
+        Iterator<ProtocolMapperModel> resolved = models.iterator();
+        for (ProtocolMapperModel mapping : mappings) {
+            if (!sameMapping(resolved.next(), mapping)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameMapping(ProtocolMapperModel resolved, ProtocolMapperModel mapping) {
+        return resolved == mapping || (mapping != null
+                && Objects.equals(resolved.getId(), mapping.getId())
+                && Objects.equals(resolved.getName(), mapping.getName())
+                && Objects.equals(resolved.getProtocolMapper(), mapping.getProtocolMapper())
+                && Objects.equals(resolved.getConfig(), mapping.getConfig()));
+    }
+
+    public List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> getAttributeStatementMappers() {
+        return attributeStatementMappers;
+    }
+
+    /**
+     * @return the role list mapper of the client, or null if it has none
+     */
+    public SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> getRoleListMapper() {
+        return roleListMapper;
+    }
+
+    /**
+     * @return the mappers translating the role names written by the role list mapper
+     */
+    public List<SamlProtocol.ProtocolMapperProcessor<SAMLRoleNameMapper>> getRoleNameMappers() {
+        return roleNameMappers;
+    }
+
+    public List<SamlProtocol.ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> getAccessTokenMappers() {
+        return accessTokenMappers;
+    }
+
+    /**
+     * @return the attribute statement mappers of the SAML 1.1 assertions
+     */
+    public List<SAML11Processor> getSaml11AttributeProcessors() {
+        return saml11AttributeProcessors;
+    }
+
+    /**
+     * @return the role list mapper of the SAML 1.1 assertions, or null if the client has none
+     */
+    public SAML11Processor getSaml11RoleProcessor() {
+        return saml11RoleProcessor;
+    }
+
+    /**
+     * A mapper contributing to the attributes of a SAML 1.1 assertion
+     */
+    @FunctionalInterface
+    public interface SAML11Processor {
+        void process(SAML11AttributeSink attributeSink, KeycloakSession session, UserSessionModel userSession,
+                     AuthenticatedClientSessionModel clientSession);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the {@link WSFedMapperPipeline} of the clients, per client id, so the mapper providers aren't looked up on
+ * every login.
+ *
+ * Updating a protocol mapper doesn't fire any event, and the clients can be changed on another node of the cluster:
+ * a cached pipeline is only returned while the mappers of the client are still the ones it was resolved from. With
+ * the keycloak model cache, that check is one identity comparison per mapper. The entries are also dropped when
+ * their client is updated or removed, and when their realm is removed (see WSFedProviderEventListener).
+ */
+public class WSFedMapperPipelineCache {
+
+    private static final WSFedMapperPipelineCache INSTANCE = new WSFedMapperPipelineCache();
+
+    private final ConcurrentMap<String, CachedPipeline> pipelines = new ConcurrentHashMap<>();
+
+    public static WSFedMapperPipelineCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param session the current keycloak session
+     * @param client the client
+     * @return the mapper pipeline of the client
+     */
+    public WSFedMapperPipeline getPipeline(KeycloakSession session, ClientModel client) {
+        String clientId = client.getId();
+        CachedPipeline cached = clientId == null ? null : pipelines.get(clientId);
+        if (cached != null && cached.pipeline.isResolvedFrom(client.getProtocolMappers())) {
+            return cached.pipeline;
+        }
+
+        WSFedMapperPipeline pipeline = WSFedMapperPipeline.resolve(session.getKeycloakSessionFactory(), client);
+        if (clientId != null) {
+            String realmId = client.getRealm() == null ? null : client.getRealm().getId();
+            pipelines.put(clientId, new CachedPipeline(realmId, pipeline));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Forgets the pipeline of a client
+     *
+     * @param clientId the id of the client
+     */
+    public void invalidate(String clientId) {
+        if (clientId != null) {
+            pipelines.remove(clientId);
+        }
+    }
+
+    /**
+     * Forgets the pipelines of the clients of a realm
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidateRealm(String realmId) {
+        if (realmId != null) {
+            pipelines.values().removeIf(cached -> realmId.equals(cached.realmId));
+        }
+    }
+
+    public void clear() {
+        pipelines.clear();
+    }
+
+    private static class CachedPipeline {
+        private final String realmId;
+        private final WSFedMapperPipeline pipeline;
+
+        CachedPipeline(String realmId, WSFedMapperPipeline pipeline) {
+            this.realmId = realmId;
+            this.pipeline = pipeline;
+        }
+    }
+}
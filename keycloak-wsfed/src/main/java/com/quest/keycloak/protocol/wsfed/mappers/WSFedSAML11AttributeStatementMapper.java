@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapper;
+
+/**
+ * An attribute statement mapper writing the attributes of the SAML 1.1 assertions directly, rather than through a SAML
+ * 2.0 attribute statement. It must also implement {@link WSFedSAMLAttributeStatementMapper} for the SAML 2.0
+ * assertions.
+ */
+public interface WSFedSAML11AttributeStatementMapper extends ProtocolMapper {
+    void transformAttributeStatement(SAML11AttributeSink attributeSink, ProtocolMapperModel mappingModel, KeycloakSession session,
+                                     UserSessionModel userSession, AuthenticatedClientSessionModel clientSession);
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers.expression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * An attribute value expression, compiled to a tree of lambdas.
+ *
+ * The language only reads the user and its client, and has no loops, so an expression can neither change anything
+ * nor run away. Every value is a list of strings: a missing single value is an empty list, and the functions working
+ * on strings apply to each value of their first argument.
+ * <ul>
+ *     <li>literals: <code>'text'</code> or <code>"text"</code>, with <code>\</code> escaping the quote and itself</li>
+ *     <li>user data: <code>username</code>, <code>email</code>, <code>firstName</code>, <code>lastName</code>,
+ *     <code>userId</code>, <code>attribute('name')</code></li>
+ *     <li>memberships: <code>roles</code> (realm roles), <code>clientRoles</code> (roles of the client),
+ *     <code>groups</code> (names), <code>groupPaths</code>, the composite and inherited ones included</li>
+ *     <li>context: <code>realm</code> (name), <code>clientId</code></li>
+ *     <li>concatenation: <code>a + b</code>, of every value of a with every value of b, an empty operand counting
+ *     as an empty string</li>
+ *     <li>string functions: <code>lower(x)</code>, <code>upper(x)</code>, <code>trim(x)</code>,
+ *     <code>replace(x, target, replacement)</code>, <code>substringBefore(x, separator)</code> and
+ *     <code>substringAfter(x, separator)</code>, which keep the values without the separator</li>
+ *     <li>filters: <code>startsWith(x, prefix)</code>, <code>endsWith(x, suffix)</code>,
+ *     <code>contains(x, text)</code></li>
+ *     <li>lists: <code>join(x, separator)</code>, <code>first(x)</code>, <code>distinct(x)</code>,
+ *     <code>sort(x)</code>, <code>default(x, fallback)</code></li>
+ * </ul>
+ * The arguments other than the first one use their first value. For instance,
+ * <code>lower(substringAfter(startsWith(groups, 'app-'), 'app-'))</code> gives the names of the app groups of the
+ * user, lower-cased and without their prefix.
+ *
+ * A concatenation can multiply the number of values: it fails the evaluation when it would give more than
+ * {@link #MAX_VALUES} values, or more than {@link #MAX_OUTPUT_LENGTH} characters in total.
+ *
+ * A compiled expression is immutable and can be shared.
+ */
+public final class AttributeExpression {
+
+    public static final int MAX_LENGTH = 4096;
+    public static final int MAX_VALUES = 1000;
+    public static final int MAX_OUTPUT_LENGTH = 65536;
+    private static final int MAX_DEPTH = 32;
+
+    private final String source;
+    private final Term root;
+
+    private AttributeExpression(String source, Term root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * @param source the expression
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static AttributeExpression compile(String source) {
+        if (source == null || source.trim().isEmpty()) {
+            throw new IllegalArgumentException("The expression is empty");
+        }
+        if (source.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("The expression is longer than " + MAX_LENGTH + " characters");
+        }
+        return new AttributeExpression(source, new Parser(source).parse());
+    }
+
+    /**
+     * @param context the user and client to evaluate the expression for
+     * @return the values of the expression, possibly none
+     * @throws IllegalStateException if a concatenation exceeds {@link #MAX_VALUES} or {@link #MAX_OUTPUT_LENGTH}
+     */
+    public List<String> evaluate(ExpressionContext context) {
+        return root.evaluate(context);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @FunctionalInterface
+    private interface Term {
+        List<String> evaluate(ExpressionContext context);
+    }
+
+    private static final class Literal implements Term {
+        private final String value;
+        private final List<String> values;
+
+        Literal(String value) {
+            this.value = value;
+            this.values = Collections.singletonList(value);
+        }
+
+        @Override
+        public List<String> evaluate(ExpressionContext context) {
+            return values;
+        }
+    }
+
+    private static List<String> single(String value) {
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    private static Term concat(Term left, Term right) {
+        return context -> {
+            List<String> prefixes = left.evaluate(context);
+            List<String> suffixes = right.evaluate(context);
+            if (prefixes.isEmpty()) {
+                return suffixes;
+            }
+            if (suffixes.isEmpty()) {
+                return prefixes;
+            }
+            checkConcatSize(prefixes, suffixes);
+            List<String> values = new ArrayList<>(prefixes.size() * suffixes.size());
+            for (String prefix : prefixes) {
+                for (String suffix : suffixes) {
+                    values.add(prefix + suffix);
+                }
+            }
+            return values;
+        };
+    }
+
+    /**
+     * Checks the size of the cartesian product of two lists before building it: each prefix is repeated once per
+     * suffix, and each suffix once per prefix
+     */
+    private static void checkConcatSize(List<String> prefixes, List<String> suffixes) {
+        long count = (long) prefixes.size() * suffixes.size();
+        if (count > MAX_VALUES) {
+            throw new IllegalStateException("The concatenation gives " + count + " values, more than " + MAX_VALUES);
+        }
+        long length = totalLength(prefixes) * suffixes.size() + totalLength(suffixes) * prefixes.size();
+        if (length > MAX_OUTPUT_LENGTH) {
+            throw new IllegalStateException("The concatenation gives " + length + " characters, more than " + MAX_OUTPUT_LENGTH);
+        }
+    }
+
+    private static long totalLength(List<String> values) {
+        long length = 0;
+        for (String value : values) {
+            length += value.length();
+        }
+        return length;
+    }
+
+    /**
+     * @return the argument as a single string, resolved at compile time for the literals
+     */
+    private static Function<ExpressionContext, String> scalar(Term term) {
+        if (term instanceof Literal) {
+            String value = ((Literal) term).value;
+            return context -> value;
+        }
+        return context -> {
+            List<String> values = term.evaluate(context);
+            return values.isEmpty() ? "" : values.get(0);
+        };
+    }
+
+    private static Term map(Term term, UnaryOperator<String> operator) {
+        return context -> {
+            List<String> values = term.evaluate(context);
+            List<String> mapped = new ArrayList<>(values.size());
+            for (String value : values) {
+                mapped.add(operator.apply(value));
+            }
+            return mapped;
+        };
+    }
+
+    private static Term map(Term term, Term argument, StringFunction function) {
+        Function<ExpressionContext, String> scalar = scalar(argument);
+        return context -> {
+            String arg = scalar.apply(context);
+            List<String> values = term.evaluate(context);
+            List<String> mapped = new ArrayList<>(values.size());
+            for (String value : values) {
+                mapped.add(function.apply(value, arg));
+            }
+            return mapped;
+        };
+    }
+
+    private static Term filter(Term term, Term argument, StringPredicate predicate) {
+        Function<ExpressionContext, String> scalar = scalar(argument);
+        return context -> {
+            String arg = scalar.apply(context);
+            List<String> values = term.evaluate(context);
+            List<String> kept = new ArrayList<>(values.size());
+            for (String value : values) {
+                if (predicate.test(value, arg)) {
+                    kept.add(value);
+                }
+            }
+            return kept;
+        };
+    }
+
+    /**
+     * @return a term applying a function to the values of another, unless they are already in the expected shape
+     */
+    private static Term transform(Term term, Predicate<List<String>> unchanged, UnaryOperator<List<String>> function) {
+        return context -> {
+            List<String> values = term.evaluate(context);
+            return unchanged.test(values) ? values : function.apply(values);
+        };
+    }
+
+    @FunctionalInterface
+    private interface StringFunction {
+        String apply(String value, String argument);
+    }
+
+    @FunctionalInterface
+    private interface StringPredicate {
+        boolean test(String value, String argument);
+    }
+
+    private static String substringBefore(String value, String separator) {
+        int index = value.indexOf(separator);
+        return index < 0 ? value : value.substring(0, index);
+    }
+
+    private static String substringAfter(String value, String separator) {
+        int index = value.indexOf(separator);
+        return index < 0 ? value : value.substring(index + separator.length());
+    }
+
+    /**
+     * Recursive descent parser of the expressions:
+     * <pre>
+     * expression := term ('+' term)*
+     * term       := STRING | NAME | NAME '(' [expression (',' expression)*] ')' | '(' expression ')'
+     * </pre>
+     */
+    private static final class Parser {
+        private final String source;
+        private int position;
+        private int depth;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        Term parse() {
+            Term term = expression();
+            skipWhitespace();
+            if (position < source.length()) {
+                throw error("Unexpected '" + source.charAt(position) + "'");
+            }
+            return term;
+        }
+
+        private Term expression() {
+            if (++depth > MAX_DEPTH) {
+                throw error("The expression is nested too deeply");
+            }
+            Term term = term();
+            while (accept('+')) {
+                Term right = term();
+                if (term instanceof Literal && right instanceof Literal) {
+                    term = new Literal(((Literal) term).value + ((Literal) right).value);
+                } else {
+                    term = concat(term, right);
+                }
+            }
+            depth--;
+            return term;
+        }
+
+        private Term term() {
+            skipWhitespace();
+            if (position >= source.length()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = source.charAt(position);
+            if (c == '\'' || c == '"') {
+                return new Literal(string(c));
+            }
+            if (accept('(')) {
+                Term term = expression();
+                expect(')');
+                return term;
+            }
+            if (!Character.isJavaIdentifierStart(c)) {
+                throw error("Unexpected '" + c + "'");
+            }
+
+            int start = position;
+            String name = name();
+            if (!accept('(')) {
+                return reference(name, start);
+            }
+            List<Term> arguments = new ArrayList<>();
+            if (!accept(')')) {
+                do {
+                    arguments.add(expression());
+                } while (accept(','));
+                expect(')');
+            }
+            return function(name, arguments, start);
+        }
+
+        private Term reference(String name, int start) {
+            switch (name) {
+                case "username":
+                    return context -> single(context.getUser().getUsername());
+                case "email":
+                    return context -> single(context.getUser().getEmail());
+                case "firstName":
+                    return context -> single(context.getUser().getFirstName());
+                case "lastName":
+                    return context -> single(context.getUser().getLastName());
+                case "userId":
+                    return context -> single(context.getUser().getId());
+                case "realm":
+                    return context -> single(context.getRealm().getName());
+                case "clientId":
+                    return context -> context.getClient() == null ? Collections.emptyList() : single(context.getClient().getClientId());
+                case "roles":
+                    return ExpressionContext::getRealmRoles;
+                case "clientRoles":
+                    return ExpressionContext::getClientRoles;
+                case "groups":
+                    return ExpressionContext::getGroups;
+                case "groupPaths":
+                    return ExpressionContext::getGroupPaths;
+                default:
+                    throw error("Unknown value '" + name + "'", start);
+            }
+        }
+
+        private Term function(String name, List<Term> args, int start) {
+            switch (name) {
+                case "attribute":
+                    checkArguments(name, args, 1, start);
+                    Function<ExpressionContext, String> attribute = scalar(args.get(0));
+                    return context -> context.getAttribute(attribute.apply(context));
+                case "lower":
+                    checkArguments(name, args, 1, start);
+                    return map(args.get(0), value -> value.toLowerCase(Locale.ROOT));
+                case "upper":
+                    checkArguments(name, args, 1, start);
+                    return map(args.get(0), value -> value.toUpperCase(Locale.ROOT));
+                case "trim":
+                    checkArguments(name, args, 1, start);
+                    return map(args.get(0), String::trim);
+                case "replace":
+                    checkArguments(name, args, 3, start);
+                    Term replaced = args.get(0);
+                    Function<ExpressionContext, String> target = scalar(args.get(1));
+                    Function<ExpressionContext, String> replacement = scalar(args.get(2));
+                    return context -> {
+                        String t = target.apply(context);
+                        List<String> values = replaced.evaluate(context);
+                        if (t.isEmpty()) {
+                            return values;
+                        }
+                        String r = replacement.apply(context);
+                        List<String> mapped = new ArrayList<>(values.size());
+                        for (String v : values) {
+                            mapped.add(v.replace(t, r));
+                        }
+                        return mapped;
+                    };
+                case "substringBefore":
+                    checkArguments(name, args, 2, start);
+                    return map(args.get(0), args.get(1), AttributeExpression::substringBefore);
+                case "substringAfter":
+                    checkArguments(name, args, 2, start);
+                    return map(args.get(0), args.get(1), AttributeExpression::substringAfter);
+                case "startsWith":
+                    checkArguments(name, args, 2, start);
+                    return filter(args.get(0), args.get(1), String::startsWith);
+                case "endsWith":
+                    checkArguments(name, args, 2, start);
+                    return filter(args.get(0), args.get(1), String::endsWith);
+                case "contains":
+                    checkArguments(name, args, 2, start);
+                    return filter(args.get(0), args.get(1), String::contains);
+                case "join":
+                    checkArguments(name, args, 2, start);
+                    Term joined = args.get(0);
+                    Function<ExpressionContext, String> separator = scalar(args.get(1));
+                    return context -> {
+                        List<String> values = joined.evaluate(context);
+                        return values.isEmpty() ? values : Collections.singletonList(String.join(separator.apply(context), values));
+                    };
+                case "first":
+                    checkArguments(name, args, 1, start);
+                    return transform(args.get(0), values -> values.size() <= 1, values -> Collections.singletonList(values.get(0)));
+                case "distinct":
+                    checkArguments(name, args, 1, start);
+                    return transform(args.get(0), values -> values.size() <= 1, values -> new ArrayList<>(new LinkedHashSet<>(values)));
+                case "sort":
+                    checkArguments(name, args, 1, start);
+                    return transform(args.get(0), values -> values.size() <= 1, values -> {
+                        List<String> sorted = new ArrayList<>(values);
+                        Collections.sort(sorted);
+                        return sorted;
+                    });
+                case "default":
+                    checkArguments(name, args, 2, start);
+                    Term value = args.get(0);
+                    Term fallback = args.get(1);
+                    return context -> {
+                        List<String> values = value.evaluate(context);
+                        return values.isEmpty() ? fallback.evaluate(context) : values;
+                    };
+                default:
+                    throw error("Unknown function '" + name + "'", start);
+            }
+        }
+
+        private void checkArguments(String name, List<Term> args, int count, int start) {
+            if (args.size() != count) {
+                throw error(name + " takes " + count + (count == 1 ? " argument" : " arguments"), start);
+            }
+        }
+
+        private String name() {
+            int start = position;
+            while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position))) {
+                position++;
+            }
+            return source.substring(start, position);
+        }
+
+        private String string(char quote) {
+            int start = position++;
+            StringBuilder value = new StringBuilder();
+            while (position < source.length()) {
+                char c = source.charAt(position++);
+                if (c == quote) {
+                    return value.toString();
+                }
+                if (c == '\\' && position < source.length()) {
+                    c = source.charAt(position++);
+                }
+                value.append(c);
+            }
+            throw error("Unterminated string", start);
+        }
+
+        private boolean accept(char c) {
+            skipWhitespace();
+            if (position < source.length() && source.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return error(message, position);
+        }
+
+        private IllegalArgumentException error(String message, int at) {
+            return new IllegalArgumentException(message + " at position " + (at + 1));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers.expression;
+
+import com.quest.keycloak.protocol.wsfed.mappers.ClaimSnapshot;
+import com.quest.keycloak.protocol.wsfed.mappers.GroupPathIndex;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.RoleUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The user and client an {@link AttributeExpression} is evaluated for. The roles and groups of the user are only
+ * looked up when the expression uses them, and at most once per context. They are read from the claim snapshot of the
+ * user session instead when there is one.
+ */
+public class ExpressionContext {
+
+    private final UserModel user;
+    private final RealmModel realm;
+    private final ClientModel client;
+    private final ClaimSnapshot snapshot;
+
+    private Set<RoleModel> roleMappings;
+    private List<String> groups;
+    private List<String> groupPaths;
+
+    /**
+     * @param user the user
+     * @param realm the realm of the user
+     * @param client the client the token is issued for, may be null
+     */
+    public ExpressionContext(UserModel user, RealmModel realm, ClientModel client) {
+        this(user, realm, client, null);
+    }
+
+    /**
+     * @param user the user
+     * @param realm the realm of the user
+     * @param client the client the token is issued for, may be null
+     * @param snapshot the claims of the user, or null to look them up
+     */
+    public ExpressionContext(UserModel user, RealmModel realm, ClientModel client, ClaimSnapshot snapshot) {
+        this.user = user;
+        this.realm = realm;
+        this.client = client;
+        this.snapshot = snapshot;
+    }
+
+    public UserModel getUser() {
+        return user;
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    public ClientModel getClient() {
+        return client;
+    }
+
+    List<String> getAttribute(String name) {
+        List<String> values = user.getAttribute(name);
+        return values == null ? Collections.emptyList() : values;
+    }
+
+    /**
+     * @return the names of the realm roles of the user, including the composite and group roles
+     */
+    List<String> getRealmRoles() {
+        if (snapshot != null) {
+            return snapshot.getRealmRoles();
+        }
+        List<String> names = new ArrayList<>();
+        for (RoleModel role : getRoleMappings()) {
+            if (!role.isClientRole()) {
+                names.add(role.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the names of the roles of the user for the client, including the composite and group roles
+     */
+    List<String> getClientRoles() {
+        if (snapshot != null) {
+            return client == null ? Collections.emptyList() : snapshot.getClientRoles(client.getId());
+        }
+        List<String> names = new ArrayList<>();
+        if (client != null) {
+            for (RoleModel role : getRoleMappings()) {
+                if (role.isClientRole() && client.getId().equals(role.getContainerId())) {
+                    names.add(role.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    List<String> getGroups() {
+        if (snapshot != null) {
+            return snapshot.getGroups();
+        }
+        if (groups == null) {
+            List<String> names = new ArrayList<>();
+            for (GroupModel group : user.getGroups()) {
+                names.add(group.getName());
+            }
+            groups = names;
+        }
+        return groups;
+    }
+
+    List<String> getGroupPaths() {
+        if (snapshot != null) {
+            return snapshot.getGroupPaths();
+        }
+        if (groupPaths == null) {
+            groupPaths = GroupPathIndex.getInstance().getPaths(realm, user.getGroups());
+        }
+        return groupPaths;
+    }
+
+    private Set<RoleModel> getRoleMappings() {
+        if (roleMappings == null) {
+            roleMappings = RoleUtils.getDeepUserRoleMappings(user);
+        }
+        return roleMappings;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.common.VerificationException;
+import org.keycloak.models.ClientModel;
+import org.keycloak.protocol.saml.SamlConfigAttributes;
+import org.keycloak.protocol.saml.SamlProtocolUtils;
+
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the public keys parsed from the encryption certificates of the clients, per client id.
+ *
+ * A cached key is only returned while the certificate attribute of the client is still the one it was parsed from,
+ * so a certificate changed on another node of the cluster is picked up at the next login. The entries are also
+ * dropped when their client is updated or removed on this node (see WSFedProviderEventListener).
+ */
+public class ClientEncryptionKeyCache {
+
+    private static final ClientEncryptionKeyCache INSTANCE = new ClientEncryptionKeyCache();
+
+    private final ConcurrentMap<String, EncryptionKey> keys = new ConcurrentHashMap<>();
+
+    public static ClientEncryptionKeyCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param client the client
+     * @return the public key of the encryption certificate of the client
+     * @throws VerificationException if the client has no encryption certificate
+     */
+    public PublicKey getEncryptionKey(ClientModel client) throws VerificationException {
+        String certificate = client.getAttribute(SamlConfigAttributes.SAML_ENCRYPTION_CERTIFICATE_ATTRIBUTE);
+        EncryptionKey cached = client.getId() == null ? null : keys.get(client.getId());
+        if (cached != null && cached.certificate.equals(certificate)) {
+            return cached.publicKey;
+        }
+
+        PublicKey publicKey = SamlProtocolUtils.getEncryptionKey(client);
+        if (client.getId() != null && certificate != null) {
+            keys.put(client.getId(), new EncryptionKey(certificate, publicKey));
+        }
+        return publicKey;
+    }
+
+    /**
+     * Forgets the key of a client
+     *
+     * @param clientId the id of the client
+     */
+    public void invalidate(String clientId) {
+        if (clientId != null) {
+            keys.remove(clientId);
+        }
+    }
+
+    public void clear() {
+        keys.clear();
+    }
+
+    private static class EncryptionKey {
+        private final String certificate;
+        private final PublicKey publicKey;
+
+        EncryptionKey(String certificate, PublicKey publicKey) {
+            this.certificate = certificate;
+            this.publicKey = publicKey;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import com.quest.keycloak.common.wsfed.utils.WSFedIdGenerator;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of the cryptographic engines used to sign and encrypt the WS-Fed tokens.
+ *
+ * Looking up a JCA engine goes through the synchronized provider list and instantiates a new SPI each time, which
+ * shows under load. The engines are borrowed from the pool for the duration of one operation and given back
+ * afterwards, so a few of them per algorithm serve all the request threads. None of these engines is thread-safe:
+ * what is borrowed must not be used after having been released. An engine that failed is not given back, as its
+ * state is then unknown.
+ *
+ * The idle engines don't hold on to the keys they were used with: a signature engine is initialized again for
+ * verification with a placeholder public key, which replaces the private key, and a MAC engine with a placeholder
+ * secret. A rotated-out realm key or a client secret is thus not kept alive by the pool. The XML ciphers, which keep
+ * the content-encryption key and the document they last encrypted, are not pooled at all.
+ *
+ * At most {@link #MAX_IDLE} idle engines are kept per algorithm, the extra ones being left to the garbage collector.
+ * The pool is shared rather than thread-local, so that it doesn't outlive the deployment on the worker threads of the
+ * server: it is emptied when the login protocol factory is closed (see AbstractWSFedLoginProtocolFactory).
+ */
+public final class CryptoEnginePool {
+
+    public static final int MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ConcurrentMap<String, BlockingQueue<Object>> idle = new ConcurrentHashMap<>();
+
+    // the public keys the idle signature engines are initialized with, per key algorithm
+    private static final ConcurrentMap<String, PublicKey> placeholderKeys = new ConcurrentHashMap<>();
+    private static final byte[] PLACEHOLDER_SECRET = new byte[32];
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private CryptoEnginePool() {
+    }
+
+    /**
+     * Signs data with a pooled engine
+     *
+     * @param algorithm the JCA name of the signature algorithm
+     * @param key the signing key
+     * @param data the data to sign
+     * @return the signature value
+     * @throws GeneralSecurityException if the algorithm is unknown or the key cannot be used with it
+     */
+    public static byte[] sign(String algorithm, PrivateKey key, byte[] data) throws GeneralSecurityException {
+        String id = "Signature|" + algorithm;
+        Signature engine = borrow(id, () -> Signature.getInstance(algorithm));
+        engine.initSign(key);
+        engine.update(data);
+        byte[] signature = engine.sign();
+
+        PublicKey placeholder = getPlaceholderKey(key.getAlgorithm());
+        if (placeholder != null) {
+            // drops the private key before the engine goes idle
+            engine.initVerify(placeholder);
+            release(id, engine);
+        }
+        return signature;
+    }
+
+    /**
+     * Computes a MAC with a pooled engine
+     *
+     * @param algorithm the JCA name of the MAC algorithm
+     * @param key the secret key
+     * @param data the data to authenticate
+     * @return the MAC value
+     * @throws GeneralSecurityException if the algorithm is unknown or the key cannot be used with it
+     */
+    public static byte[] mac(String algorithm, SecretKey key, byte[] data) throws GeneralSecurityException {
+        String id = "Mac|" + algorithm;
+        Mac engine = borrow(id, () -> Mac.getInstance(algorithm));
+        engine.init(key);
+        byte[] mac = engine.doFinal(data);
+        // drops the secret before the engine goes idle
+        engine.init(new SecretKeySpec(PLACEHOLDER_SECRET, algorithm));
+        release(id, engine);
+        return mac;
+    }
+
+    /**
+     * Borrows a digest engine, which must be given back with {@link #releaseDigest} once the digest is computed
+     *
+     * @param algorithm the JCA name of the digest algorithm
+     * @return a reset digest engine
+     * @throws GeneralSecurityException if the algorithm is unknown
+     */
+    public static MessageDigest borrowDigest(String algorithm) throws GeneralSecurityException {
+        return borrow("MessageDigest|" + algorithm, () -> MessageDigest.getInstance(algorithm));
+    }
+
+    /**
+     * @param algorithm the algorithm the digest was borrowed for
+     * @param digest the digest engine, which is reset
+     */
+    public static void releaseDigest(String algorithm, MessageDigest digest) {
+        digest.reset();
+        release("MessageDigest|" + algorithm, digest);
+    }
+
+    /**
+     * @param algorithm the JCA name of the key algorithm
+     * @param keySize the size of the key, in bits
+     * @return a new secret key, drawn from the random generator of the thread
+     * @throws GeneralSecurityException if the algorithm is unknown or doesn't support the key size
+     */
+    public static SecretKey generateKey(String algorithm, int keySize) throws GeneralSecurityException {
+        String id = "KeyGenerator|" + algorithm;
+        KeyGenerator generator = borrow(id, () -> KeyGenerator.getInstance(algorithm));
+        // the generator is initialized again to draw from the random generator of the current thread
+        generator.init(keySize, WSFedIdGenerator.getRandom());
+        SecretKey key = generator.generateKey();
+        release(id, generator);
+        return key;
+    }
+
+    /**
+     * Borrows an engine, or creates it if none is idle
+     *
+     * @param id identifies the kind of engine and its algorithm
+     * @param factory creates the engine
+     * @return an engine that only the calling thread uses until it is released
+     */
+    @SuppressWarnings("unchecked")
+    static <T, E extends Exception> T borrow(String id, EngineFactory<T, E> factory) throws E {
+        BlockingQueue<Object> queue = idle.get(id);
+        Object engine = queue == null ? null : queue.poll();
+        if (engine != null) {
+            hits.increment();
+            return (T) engine;
+        }
+        misses.increment();
+        return factory.create();
+    }
+
+    /**
+     * Gives an engine back to the pool, or drops it if enough engines of its kind are idle already
+     */
+    static void release(String id, Object engine) {
+        idle.computeIfAbsent(id, k -> new ArrayBlockingQueue<>(MAX_IDLE)).offer(engine);
+    }
+
+    /**
+     * @param keyAlgorithm the algorithm of a private key, such as RSA or EC
+     * @return a public key of the same algorithm, generated once, or null if none can be generated
+     */
+    private static PublicKey getPlaceholderKey(String keyAlgorithm) {
+        return placeholderKeys.computeIfAbsent(keyAlgorithm, algorithm -> {
+            try {
+                return KeyPairGenerator.getInstance(algorithm).generateKeyPair().getPublic();
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Drops all the idle engines
+     */
+    public static void clear() {
+        idle.clear();
+    }
+
+    /**
+     * @return the number of engines served from the pool
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of engines that had to be created
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of engines currently idle in the pool
+     */
+    public static int getIdleCount() {
+        int count = 0;
+        for (BlockingQueue<Object> queue : idle.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public static void resetCounters() {
+        hits.reset();
+        misses.reset();
+    }
+
+    interface EngineFactory<T, E extends Exception> {
+        T create() throws E;
+    }
+}
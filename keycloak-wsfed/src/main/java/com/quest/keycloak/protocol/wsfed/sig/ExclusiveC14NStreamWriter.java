@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An {@link XMLStreamWriter} that serializes a single element twice while it is being written: once in exclusive
+ * canonical form (http://www.w3.org/2001/10/xml-exc-c14n#, without comments) to a canonical sink, and once as plain
+ * XML into an in-memory buffer.
+ *
+ * The two forms only differ by the namespace declarations that exclusive canonicalization leaves out (typically the
+ * ones only used inside xsi:type values), so canonicalizing the buffered XML gives back exactly the characters that
+ * went through the canonical sink. This is what lets {@link StreamingSAMLSignature} digest an assertion while it is
+ * written instead of building and canonicalizing a DOM afterwards.
+ *
+ * The writer also remembers where the end tag of a given child of the root element ended, which is where an
+ * enveloped signature has to be inserted. It is not thread safe and can only be used once.
+ */
+public class ExclusiveC14NStreamWriter implements XMLStreamWriter {
+
+    private static final String DEFAULT_PREFIX = XMLConstants.DEFAULT_NS_PREFIX;
+
+    private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+        @Override
+        public int compare(Attribute a1, Attribute a2) {
+            int result = a1.namespaceURI.compareTo(a2.namespaceURI);
+            return result != 0 ? result : a1.localName.compareTo(a2.localName);
+        }
+    };
+
+    private final Writer canonical;
+    private final StringBuilder xml = new StringBuilder(4096);
+    private final StringBuilder scratch = new StringBuilder(256);
+    private final QName anchor;
+
+    private NamespaceContext rootContext;
+    private Element current;
+    private boolean startTagOpen;
+    private int anchorOffset = -1;
+    private int rootEndOffset = -1;
+
+    /**
+     * @param canonical the sink receiving the canonical form of the element
+     * @param anchor the child of the root element after which {@link #getSignatureOffset()} points, if present
+     */
+    public ExclusiveC14NStreamWriter(Writer canonical, QName anchor) {
+        this.canonical = canonical;
+        this.anchor = anchor;
+    }
+
+    /**
+     * Returns the plain serialization of the element written so far
+     *
+     * @return the buffer holding the plain XML
+     */
+    public StringBuilder getXml() {
+        return xml;
+    }
+
+    /**
+     * Returns the position in {@link #getXml()} where an enveloped signature belongs: right after the anchor element
+     * if the root had one, or just before the end tag of the root otherwise.
+     *
+     * @return an offset in the plain XML buffer, or -1 if the root element has not been closed yet
+     */
+    public int getSignatureOffset() {
+        return anchorOffset >= 0 ? anchorOffset : rootEndOffset;
+    }
+
+    @Override
+    public void writeStartElement(String localName) throws XMLStreamException {
+        writeStartElement(DEFAULT_PREFIX, localName, lookupNamespaceURI(DEFAULT_PREFIX));
+    }
+
+    @Override
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(prefixFor(namespaceURI), localName, namespaceURI);
+    }
+
+    @Override
+    public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        closeStartTag(false);
+        if (current == null && rootEndOffset >= 0) {
+            throw new XMLStreamException("Only one root element can be written");
+        }
+        current = new Element(current, nullToEmpty(prefix), localName, nullToEmpty(namespaceURI));
+        startTagOpen = true;
+    }
+
+    @Override
+    public void writeEmptyElement(String localName) throws XMLStreamException {
+        writeStartElement(localName);
+        writeEndElement();
+    }
+
+    @Override
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(namespaceURI, localName);
+        writeEndElement();
+    }
+
+    @Override
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        writeStartElement(prefix, localName, namespaceURI);
+        writeEndElement();
+    }
+
+    @Override
+    public void writeEndElement() throws XMLStreamException {
+        if (current == null) {
+            throw new XMLStreamException("No element to end");
+        }
+        Element element = current;
+        boolean empty = startTagOpen && element.parent != null;
+        closeStartTag(empty);
+
+        if (element.parent == null) {
+            rootEndOffset = xml.length();
+        }
+        if (!empty) {
+            xml.append("</").append(element.qualifiedName()).append('>');
+        }
+        write("</", element.qualifiedName(), ">");
+
+        if (anchorOffset < 0 && anchor != null && element.parent != null && element.parent.parent == null
+                && anchor.getLocalPart().equals(element.localName) && anchor.getNamespaceURI().equals(element.namespaceURI)) {
+            anchorOffset = xml.length();
+        }
+        current = element.parent;
+    }
+
+    @Override
+    public void writeEndDocument() throws XMLStreamException {
+        while (current != null) {
+            writeEndElement();
+        }
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        flush();
+    }
+
+    @Override
+    public void flush() throws XMLStreamException {
+        try {
+            canonical.flush();
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    @Override
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+        writeAttribute(DEFAULT_PREFIX, XMLConstants.NULL_NS_URI, localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+        if (!startTagOpen) {
+            throw new XMLStreamException("Attribute " + localName + " written outside of a start tag");
+        }
+        current.attributes.add(new Attribute(nullToEmpty(prefix), nullToEmpty(namespaceURI), localName, nullToEmpty(value)));
+    }
+
+    @Override
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+        String ns = nullToEmpty(namespaceURI);
+        writeAttribute(ns.isEmpty() ? DEFAULT_PREFIX : prefixFor(ns), ns, localName, value);
+    }
+
+    @Override
+    public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+        if (prefix == null || prefix.isEmpty() || XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+            writeDefaultNamespace(namespaceURI);
+            return;
+        }
+        if (!startTagOpen) {
+            throw new XMLStreamException("Namespace " + prefix + " written outside of a start tag");
+        }
+        if (!XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            current.declare(prefix, nullToEmpty(namespaceURI));
+        }
+    }
+
+    @Override
+    public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+        if (!startTagOpen) {
+            throw new XMLStreamException("Default namespace written outside of a start tag");
+        }
+        current.declare(DEFAULT_PREFIX, nullToEmpty(namespaceURI));
+    }
+
+    @Override
+    public void writeComment(String data) throws XMLStreamException {
+        // comments are not part of the canonical form, and there is no point in sending them either
+        closeStartTag(false);
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target) throws XMLStreamException {
+        writeProcessingInstruction(target, null);
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+        closeStartTag(false);
+        if (current == null) {
+            return;
+        }
+        String pi = data == null || data.isEmpty() ? "<?" + target + "?>" : "<?" + target + " " + data + "?>";
+        xml.append(pi);
+        write(pi);
+    }
+
+    @Override
+    public void writeCData(String data) throws XMLStreamException {
+        // canonical XML replaces CDATA sections by their (escaped) character content
+        writeCharacters(data);
+    }
+
+    @Override
+    public void writeDTD(String dtd) throws XMLStreamException {
+        throw new XMLStreamException("DTDs are not supported in a signed element");
+    }
+
+    @Override
+    public void writeEntityRef(String name) throws XMLStreamException {
+        throw new XMLStreamException("Entity references are not supported in a signed element");
+    }
+
+    @Override
+    public void writeStartDocument() {
+        // the element is serialized without XML declaration
+    }
+
+    @Override
+    public void writeStartDocument(String version) {
+        // the element is serialized without XML declaration
+    }
+
+    @Override
+    public void writeStartDocument(String encoding, String version) {
+        // the element is serialized without XML declaration
+    }
+
+    @Override
+    public void writeCharacters(String text) throws XMLStreamException {
+        closeStartTag(false);
+        if (current == null || text == null || text.isEmpty()) {
+            // character content outside of the root element is not part of it
+            return;
+        }
+        int start = xml.length();
+        escapeText(xml, text);
+        write(xml, start);
+    }
+
+    @Override
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+        writeCharacters(new String(text, start, len));
+    }
+
+    @Override
+    public String getPrefix(String uri) {
+        for (Element element = current; element != null; element = element.parent) {
+            for (Map.Entry<String, String> declaration : element.declared.entrySet()) {
+                if (declaration.getValue().equals(uri)) {
+                    return declaration.getKey();
+                }
+            }
+        }
+        if (XMLConstants.XML_NS_URI.equals(uri)) {
+            return XMLConstants.XML_NS_PREFIX;
+        }
+        if (rootContext != null) {
+            String prefix = rootContext.getPrefix(uri);
+            // the prefix may have been bound to another namespace by one of the elements
+            if (prefix != null && (current == null || current.lookup(prefix) == null)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String uri) {
+        // prefixes are bound by the namespace declarations written on the elements
+    }
+
+    @Override
+    public void setDefaultNamespace(String uri) {
+        // the default namespace is bound by the declarations written on the elements
+    }
+
+    /**
+     * Sets the bindings the namespaces of the element are resolved against when its elements don't declare them. The
+     * element is still written standalone: the prefixes it uses from this context get declared on it, as if they
+     * had been used without being declared.
+     */
+    @Override
+    public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+        if (current != null || rootEndOffset >= 0) {
+            throw new XMLStreamException("The namespace context must be set before the root element is written");
+        }
+        rootContext = context;
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        return new NamespaceContext() {
+            @Override
+            public String getNamespaceURI(String prefix) {
+                return lookupNamespaceURI(prefix);
+            }
+
+            @Override
+            public String getPrefix(String namespaceURI) {
+                return ExclusiveC14NStreamWriter.this.getPrefix(namespaceURI);
+            }
+
+            @Override
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                String prefix = getPrefix(namespaceURI);
+                return prefix == null ? Collections.<String>emptyIterator() : Collections.singletonList(prefix).iterator();
+            }
+        };
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        throw new IllegalArgumentException("Property " + name + " is not supported");
+    }
+
+    /**
+     * Writes the pending start tag, if there is one. Prefixes that were used without being declared get a declaration,
+     * as a repairing writer would do. The canonical form only gets the declarations that are visibly utilized by the
+     * element and were not already output by an ancestor, in the order mandated by the specification.
+     */
+    private void closeStartTag(boolean empty) throws XMLStreamException {
+        if (!startTagOpen) {
+            return;
+        }
+        startTagOpen = false;
+        Element element = current;
+
+        element.bind(element.prefix, element.namespaceURI);
+        for (Attribute attribute : element.attributes) {
+            if (!attribute.prefix.isEmpty()) {
+                element.bind(attribute.prefix, attribute.namespaceURI);
+            }
+        }
+
+        String qualifiedName = element.qualifiedName();
+
+        xml.append('<').append(qualifiedName);
+        if (element.parent == null && element.prefix.isEmpty() && !element.declared.containsKey(DEFAULT_PREFIX)) {
+            // make sure the root does not inherit the default namespace of the document it ends up in
+            xml.append(" xmlns=\"\"");
+        }
+        for (Map.Entry<String, String> declaration : element.declared.entrySet()) {
+            appendNamespace(xml, declaration.getKey(), declaration.getValue());
+        }
+        for (Attribute attribute : element.attributes) {
+            appendAttribute(xml, attribute);
+        }
+        xml.append(empty ? "/>" : ">");
+
+        element.rendered = new TreeMap<>();
+        element.render(element.prefix);
+        for (Attribute attribute : element.attributes) {
+            if (!attribute.prefix.isEmpty()) {
+                element.render(attribute.prefix);
+            }
+        }
+        List<Attribute> attributes = element.attributes;
+        if (attributes.size() > 1) {
+            attributes = new ArrayList<>(attributes);
+            Collections.sort(attributes, ATTRIBUTE_ORDER);
+        }
+
+        scratch.setLength(0);
+        scratch.append('<').append(qualifiedName);
+        for (Map.Entry<String, String> declaration : element.rendered.entrySet()) {
+            appendNamespace(scratch, declaration.getKey(), declaration.getValue());
+        }
+        for (Attribute attribute : attributes) {
+            appendAttribute(scratch, attribute);
+        }
+        scratch.append('>');
+        write(scratch, 0);
+    }
+
+    private String lookupNamespaceURI(String prefix) {
+        if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            return XMLConstants.XML_NS_URI;
+        }
+        String uri = current == null ? null : current.lookup(prefix);
+        if (uri == null && rootContext != null) {
+            uri = rootContext.getNamespaceURI(prefix);
+            if (XMLConstants.NULL_NS_URI.equals(uri) && !DEFAULT_PREFIX.equals(prefix)) {
+                // NamespaceContext returns the empty namespace for unbound prefixes
+                uri = null;
+            }
+        }
+        return uri == null && DEFAULT_PREFIX.equals(prefix) ? XMLConstants.NULL_NS_URI : uri;
+    }
+
+    private String prefixFor(String namespaceURI) throws XMLStreamException {
+        String ns = nullToEmpty(namespaceURI);
+        String prefix = getPrefix(ns);
+        if (prefix == null) {
+            if (!ns.equals(lookupNamespaceURI(DEFAULT_PREFIX))) {
+                throw new XMLStreamException("No prefix bound to namespace " + ns);
+            }
+            prefix = DEFAULT_PREFIX;
+        }
+        return prefix;
+    }
+
+    private void write(String... parts) throws XMLStreamException {
+        try {
+            for (String part : parts) {
+                canonical.write(part);
+            }
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    private void write(StringBuilder buffer, int start) throws XMLStreamException {
+        try {
+            canonical.append(buffer, start, buffer.length());
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    private static void appendNamespace(StringBuilder out, String prefix, String uri) {
+        out.append(" xmlns");
+        if (!prefix.isEmpty()) {
+            out.append(':').append(prefix);
+        }
+        out.append("=\"");
+        escapeAttribute(out, uri);
+        out.append('"');
+    }
+
+    private static void appendAttribute(StringBuilder out, Attribute attribute) {
+        out.append(' ');
+        if (!attribute.prefix.isEmpty()) {
+            out.append(attribute.prefix).append(':');
+        }
+        out.append(attribute.localName).append("=\"");
+        escapeAttribute(out, attribute.value);
+        out.append('"');
+    }
+
+    private static void escapeText(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '\r': out.append("&#xD;"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static void escapeAttribute(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '"': out.append("&quot;"); break;
+                case '\t': out.append("&#x9;"); break;
+                case '\n': out.append("&#xA;"); break;
+                case '\r': out.append("&#xD;"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static final class Attribute {
+        private final String prefix;
+        private final String namespaceURI;
+        private final String localName;
+        private final String value;
+
+        private Attribute(String prefix, String namespaceURI, String localName, String value) {
+            this.prefix = prefix;
+            this.namespaceURI = namespaceURI;
+            this.localName = localName;
+            this.value = value;
+        }
+    }
+
+    private static final class Element {
+        private final Element parent;
+        private final String prefix;
+        private final String localName;
+        private final String namespaceURI;
+        private final Map<String, String> declared = new LinkedHashMap<>(4);
+        private final List<Attribute> attributes = new ArrayList<>(4);
+        private Map<String, String> rendered;
+
+        private Element(Element parent, String prefix, String localName, String namespaceURI) {
+            this.parent = parent;
+            this.prefix = prefix;
+            this.localName = localName;
+            this.namespaceURI = namespaceURI;
+        }
+
+        private String qualifiedName() {
+            return prefix.isEmpty() ? localName : prefix + ":" + localName;
+        }
+
+        private void declare(String prefix, String uri) {
+            declared.put(prefix, uri);
+        }
+
+        private String lookup(String prefix) {
+            for (Element element = this; element != null; element = element.parent) {
+                String uri = element.declared.get(prefix);
+                if (uri != null) {
+                    return uri;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Declares the prefix on this element unless it is already bound to the right namespace
+         */
+        private void bind(String prefix, String uri) {
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                return;
+            }
+            String bound = lookup(prefix);
+            if (bound == null && prefix.isEmpty()) {
+                bound = XMLConstants.NULL_NS_URI;
+            }
+            if (!uri.equals(bound)) {
+                declare(prefix, uri);
+            }
+        }
+
+        /**
+         * Outputs the declaration of a visibly utilized prefix in the canonical form, unless the nearest output
+         * ancestor already rendered it with the same value.
+         */
+        private void render(String prefix) {
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix) || rendered.containsKey(prefix)) {
+                return;
+            }
+            String uri = lookup(prefix);
+            if (uri == null) {
+                uri = XMLConstants.NULL_NS_URI;
+            }
+            String renderedUri = null;
+            for (Element element = parent; element != null && renderedUri == null; element = element.parent) {
+                renderedUri = element.rendered.get(prefix);
+            }
+            if (renderedUri == null && prefix.isEmpty()) {
+                renderedUri = XMLConstants.NULL_NS_URI;
+            }
+            if (!uri.equals(renderedUri)) {
+                rendered.put(prefix, uri);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.SignatureException;
+import org.keycloak.crypto.SignatureSignerContext;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.interfaces.ECKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Signer of the WS-Fed JWT tokens, signing or computing the MAC with the engines of the {@link CryptoEnginePool}.
+ *
+ * Unlike keycloak 8's AsymmetricSignatureSignerContext, the ECDSA signatures are encoded as the concatenation of r and
+ * s required by JWS (RFC 7518 section 3.4), and not as the DER sequence returned by the JCA.
+ */
+public class PooledSignatureSignerContext implements SignatureSignerContext {
+
+    private static final Map<String, String> JCA_ALGORITHMS = new HashMap<>();
+
+    static {
+        JCA_ALGORITHMS.put(Algorithm.RS256, "SHA256withRSA");
+        JCA_ALGORITHMS.put(Algorithm.RS384, "SHA384withRSA");
+        JCA_ALGORITHMS.put(Algorithm.RS512, "SHA512withRSA");
+        JCA_ALGORITHMS.put(Algorithm.ES256, "SHA256withECDSA");
+        JCA_ALGORITHMS.put(Algorithm.ES384, "SHA384withECDSA");
+        JCA_ALGORITHMS.put(Algorithm.ES512, "SHA512withECDSA");
+        JCA_ALGORITHMS.put(Algorithm.HS256, "HmacSHA256");
+        JCA_ALGORITHMS.put(Algorithm.HS384, "HmacSHA384");
+        JCA_ALGORITHMS.put(Algorithm.HS512, "HmacSHA512");
+    }
+
+    private final SigningKeyMaterial key;
+    private final String jcaAlgorithm;
+
+    /**
+     * @param key the signing key, which algorithm must be one of the supported JWS algorithms
+     * @throws IllegalArgumentException if the algorithm of the key is not supported
+     */
+    public PooledSignatureSignerContext(SigningKeyMaterial key) {
+        this.key = key;
+        this.jcaAlgorithm = JCA_ALGORITHMS.get(key.getAlgorithm());
+        if (jcaAlgorithm == null || (key.getKeyPair() == null && key.getSecretKey() == null)) {
+            throw new IllegalArgumentException("Unsupported JWS signature algorithm " + key.getAlgorithm());
+        }
+    }
+
+    /**
+     * @param algorithm a JWS algorithm name
+     * @return true if the tokens can be signed with that algorithm
+     */
+    public static boolean isSupported(String algorithm) {
+        return JCA_ALGORITHMS.containsKey(algorithm);
+    }
+
+    @Override
+    public String getKid() {
+        return key.getKid();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return key.getAlgorithm();
+    }
+
+    @Override
+    public byte[] sign(byte[] data) throws SignatureException {
+        try {
+            if (key.getKeyPair() == null) {
+                return CryptoEnginePool.mac(jcaAlgorithm, key.getSecretKey(), data);
+            }
+            PrivateKey privateKey = key.getKeyPair().getPrivate();
+            byte[] signature = CryptoEnginePool.sign(jcaAlgorithm, privateKey, data);
+            if (privateKey instanceof ECKey) {
+                signature = StreamingSAMLSignature.toConcatenatedRS(signature,
+                        StreamingSAMLSignature.getFieldLength(((ECKey) privateKey).getParams()));
+            }
+            return signature;
+        } catch (GeneralSecurityException e) {
+            throw new SignatureException("Signing failed", e);
+        }
+    }
+}
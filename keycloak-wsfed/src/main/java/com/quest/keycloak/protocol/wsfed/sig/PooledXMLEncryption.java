@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.apache.xml.security.encryption.EncryptedKey;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.encryption.XMLEncryptionException;
+import org.apache.xml.security.keys.KeyInfo;
+import org.w3c.dom.Document;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+
+/**
+ * XML encryption of a DOM document, with an AES key generated by the {@link CryptoEnginePool}. The root element is
+ * replaced by an EncryptedData, holding in its KeyInfo the EncryptedKey of the generated AES key. The KeyInfo of the EncryptedKey
+ * holds the public key it was encrypted with, as XMLEncryptionUtil based encryption used to.
+ *
+ * The XML ciphers are created for each encryption rather than pooled: they keep the key and the document they last
+ * encrypted, which an idle cipher must not hold on to.
+ */
+public final class PooledXMLEncryption {
+
+    static {
+        org.apache.xml.security.Init.init();
+    }
+
+    private PooledXMLEncryption() {
+    }
+
+    /**
+     * Encrypts the root element of a document
+     *
+     * @param doc the document to encrypt
+     * @param publicKey the public key of the relying party
+     * @param encryptionAlgorithm the block cipher encrypting the element
+     * @param keyTransport the algorithm encrypting the AES key with the public key
+     * @return the document, which root element is now the EncryptedData
+     */
+    public static Document encrypt(Document doc, PublicKey publicKey, WSFedEncryptionAlgorithm encryptionAlgorithm,
+                                   WSFedKeyTransport keyTransport) throws GeneralSecurityException, XMLEncryptionException {
+        SecretKey secretKey = CryptoEnginePool.generateKey("AES", encryptionAlgorithm.getKeySize());
+
+        String keyTransportMethod = keyTransport.getXmlEncryptionMethod();
+        XMLCipher keyCipher = XMLCipher.getInstance(keyTransportMethod);
+        keyCipher.init(XMLCipher.WRAP_MODE, publicKey);
+        EncryptedKey encryptedKey = keyCipher.encryptKey(doc, secretKey);
+        KeyInfo publicKeyInfo = new KeyInfo(doc);
+        publicKeyInfo.add(publicKey);
+        encryptedKey.setKeyInfo(publicKeyInfo);
+
+        String encryptionMethod = encryptionAlgorithm.getXmlEncryptionMethod();
+        XMLCipher dataCipher = XMLCipher.getInstance(encryptionMethod);
+        dataCipher.init(XMLCipher.ENCRYPT_MODE, secretKey);
+        KeyInfo keyInfo = new KeyInfo(doc);
+        keyInfo.add(encryptedKey);
+        dataCipher.getEncryptedData().setKeyInfo(keyInfo);
+        try {
+            return dataCipher.doFinal(doc, doc.getDocumentElement(), false);
+        } catch (XMLEncryptionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new XMLEncryptionException(e);
+        }
+    }
+}
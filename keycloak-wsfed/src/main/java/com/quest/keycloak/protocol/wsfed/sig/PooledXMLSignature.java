@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.XMLStructure;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Enveloped XML signature of a DOM document. The JSR-105 factory and method objects, including the JCA engine of the
+ * signature method, are borrowed from the {@link CryptoEnginePool}; the reference and the SignedInfo are built for
+ * each signature, and the JSR-105 implementation digests the reference with an engine of its own. The resulting signature is the same as the one of XMLSignatureUtil: "dsig" prefix,
+ * enveloped and exclusive c14n transforms, and a KeyInfo holding the key name, the certificate and the key value.
+ */
+public final class PooledXMLSignature {
+
+    private static final String PREFIX = "dsig";
+
+    private PooledXMLSignature() {
+    }
+
+    /**
+     * Signs a document, the signature being added to its root element
+     *
+     * @param doc the document to sign
+     * @param nextSibling the node before which the signature is inserted, or null to append it to the root element
+     * @param referenceId the id of the signed element, which IDness must have been established
+     * @param keyName the name of the signing key, added to the KeyInfo if not null
+     * @param signingKey the private key, or the secret key of the HMAC signatures
+     * @param publicKey the public key added to the KeyInfo, null for the HMAC signatures
+     * @param certificate the certificate added to the KeyInfo, if not null
+     * @param includeKeyInfo false to only have the key name in the KeyInfo
+     * @param signatureMethod the URI of the signature method
+     * @param digestMethod the URI of the digest method
+     * @param canonicalizationMethod the URI of the canonicalization method
+     */
+    public static void sign(Document doc, Node nextSibling, String referenceId, String keyName, Key signingKey,
+                            PublicKey publicKey, X509Certificate certificate, boolean includeKeyInfo, String signatureMethod,
+                            String digestMethod, String canonicalizationMethod)
+            throws GeneralSecurityException, MarshalException, XMLSignatureException {
+        KeyInfo keyInfo = includeKeyInfo ? createKeyInfo(keyName, publicKey, certificate) : createKeyInfo(keyName, null, null);
+        sign(doc, nextSibling, referenceId, signingKey, keyInfo, signatureMethod, digestMethod, canonicalizationMethod);
+    }
+
+    /**
+     * Signs a document with a KeyInfo built beforehand, see {@link #createKeyInfo}
+     *
+     * @param doc the document to sign
+     * @param nextSibling the node before which the signature is inserted, or null to append it to the root element
+     * @param referenceId the id of the signed element, which IDness must have been established
+     * @param signingKey the private key, or the secret key of the HMAC signatures
+     * @param keyInfo the KeyInfo of the signature, or null to leave it out
+     * @param signatureMethod the URI of the signature method
+     * @param digestMethod the URI of the digest method
+     * @param canonicalizationMethod the URI of the canonicalization method
+     */
+    public static void sign(Document doc, Node nextSibling, String referenceId, Key signingKey, KeyInfo keyInfo,
+                            String signatureMethod, String digestMethod, String canonicalizationMethod)
+            throws GeneralSecurityException, MarshalException, XMLSignatureException {
+        String id = "XMLSignature|" + signatureMethod + '|' + digestMethod + '|' + canonicalizationMethod;
+        MethodSet methods = CryptoEnginePool.borrow(id, () -> new MethodSet(signatureMethod, digestMethod, canonicalizationMethod));
+
+        DOMSignContext context = nextSibling == null
+                ? new DOMSignContext(signingKey, doc.getDocumentElement())
+                : new DOMSignContext(signingKey, doc.getDocumentElement(), nextSibling);
+        context.setDefaultNamespacePrefix(PREFIX);
+
+        XMLSignatureFactory factory = methods.factory;
+        Reference reference = factory.newReference("#" + referenceId, methods.digestMethod, methods.transforms, null, null);
+        SignedInfo signedInfo = factory.newSignedInfo(methods.canonicalizationMethod, methods.signatureMethod,
+                Collections.singletonList(reference));
+
+        factory.newXMLSignature(signedInfo, keyInfo).sign(context);
+        CryptoEnginePool.release(id, methods);
+    }
+
+    /**
+     * Builds the KeyInfo of a signature. The resulting structure is immutable, it can be shared between threads and
+     * reused for all the signatures made with the same key.
+     *
+     * @param keyName the name of the signing key, or null
+     * @param publicKey the public key, or null for the HMAC signatures
+     * @param certificate the certificate, or null
+     * @return the KeyInfo, or null if it would be empty
+     * @throws GeneralSecurityException if the public key cannot be represented as a KeyValue
+     */
+    public static KeyInfo createKeyInfo(String keyName, PublicKey publicKey, X509Certificate certificate) throws GeneralSecurityException {
+        KeyInfoFactory factory = KeyInfoFactory.getInstance("DOM");
+        List<XMLStructure> items = new ArrayList<>(3);
+        if (keyName != null) {
+            items.add(factory.newKeyName(keyName));
+        }
+        if (certificate != null) {
+            items.add(factory.newX509Data(Collections.singletonList(certificate)));
+        }
+        if (publicKey != null) {
+            items.add(factory.newKeyValue(publicKey));
+        }
+        return items.isEmpty() ? null : factory.newKeyInfo(items);
+    }
+
+    /**
+     * The JSR-105 factory and method objects of one combination of algorithms, pooled together. The signature method
+     * holds the JCA engine computing the signature value, it is reused along with it.
+     */
+    private static final class MethodSet {
+        private final XMLSignatureFactory factory;
+        private final SignatureMethod signatureMethod;
+        private final DigestMethod digestMethod;
+        private final CanonicalizationMethod canonicalizationMethod;
+        private final List<Transform> transforms;
+
+        private MethodSet(String signatureMethod, String digestMethod, String canonicalizationMethod) throws GeneralSecurityException {
+            this.factory = XMLSignatureFactory.getInstance("DOM");
+            this.signatureMethod = factory.newSignatureMethod(signatureMethod, null);
+            this.digestMethod = factory.newDigestMethod(digestMethod, null);
+            this.canonicalizationMethod = factory.newCanonicalizationMethod(canonicalizationMethod, (C14NMethodParameterSpec) null);
+            this.transforms = Arrays.asList(factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+                    factory.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null));
+        }
+    }
+}
@@ -25,19 +25,18 @@ import org.keycloak.saml.common.PicketLinkLoggerFactory;
 import org.keycloak.saml.common.constants.JBossSAMLConstants;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
-import org.keycloak.saml.processing.core.util.SignatureUtilTransferObject;
 import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.crypto.SecretKey;
 import javax.xml.crypto.MarshalException;
-import javax.xml.crypto.dsig.DigestMethod;
-import javax.xml.crypto.dsig.SignatureMethod;
 import javax.xml.crypto.dsig.XMLSignatureException;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
@@ -54,17 +53,21 @@ public class SAML11Signature implements SAMLAbstractSignature {
 
     private static final String CONDITIONS = "Conditions";
 
-    private String signatureMethod = SignatureMethod.RSA_SHA1;
+    private String signatureMethod = WSFedSignatureAlgorithm.RSA_SHA256.getXmlSignatureMethod();
 
-    private String digestMethod = DigestMethod.SHA1;
+    private String digestMethod = WSFedSignatureAlgorithm.RSA_SHA256.getXmlSignatureDigestMethod();
 
     private Node sibling;
 
+    private boolean includeKeyInfo = true;
+
     /**
      * Set the X509Certificate if X509Data is needed in signed info
      */
     private X509Certificate x509Certificate;
 
+    private KeyInfo keyInfo;
+
     public String getSignatureMethod() {
         return signatureMethod;
     }
@@ -95,9 +98,7 @@ public class SAML11Signature implements SAMLAbstractSignature {
      * @since v2.0.1
      */
     public void setSignatureIncludeKeyInfo(boolean val) {
-        if (!val) {
-            XMLSignatureUtil.setIncludeKeyInfoInSignature(false);
-        }
+        this.includeKeyInfo = val;
     }
 
     /**
@@ -114,38 +115,37 @@ public class SAML11Signature implements SAMLAbstractSignature {
         this.x509Certificate = x509Certificate;
     }
 
+    /**
+     * Set a KeyInfo built beforehand, used instead of the key name, certificate and public key unless the KeyInfo
+     * has been turned off with {@link #setSignatureIncludeKeyInfo(boolean)}
+     */
+    @Override
+    public void setKeyInfo(KeyInfo keyInfo) {
+        this.keyInfo = keyInfo;
+    }
+
     /**
      * Sign an Document at the root
      *
-     * @param keyPair Key Pair
+     * @param signingKey the private or secret key
+     * @param publicKey the public key, null for a secret key
      * @return
-     * @throws ParserConfigurationException
      * @throws XMLSignatureException
      * @throws MarshalException
      * @throws GeneralSecurityException
      */
-    private Document sign(Document doc, String keyName, String referenceID, KeyPair keyPair, String canonicalizationMethodType) throws GeneralSecurityException,
-            MarshalException, XMLSignatureException {
-        String referenceURI = "#" + referenceID;
-
+    private Document sign(Document doc, String keyName, String referenceID, Key signingKey, PublicKey publicKey,
+                          String canonicalizationMethodType) throws GeneralSecurityException, MarshalException, XMLSignatureException {
         configureIdAttribute(doc);
 
-        if (sibling != null) {
-            SignatureUtilTransferObject dto = new SignatureUtilTransferObject();
-            dto.setDocumentToBeSigned(doc);
-            dto.setKeyPair(keyPair);
-            dto.setDigestMethod(digestMethod);
-            dto.setSignatureMethod(signatureMethod);
-            dto.setReferenceURI(referenceURI);
-            dto.setNextSibling(sibling);
-
-            if (x509Certificate != null) {
-                dto.setX509Certificate(x509Certificate);
-            }
-
-            return XMLSignatureUtil.sign(dto, canonicalizationMethodType);
+        if (keyInfo != null && includeKeyInfo) {
+            PooledXMLSignature.sign(doc, sibling, referenceID, signingKey, keyInfo, signatureMethod, digestMethod,
+                    canonicalizationMethodType);
+        } else {
+            PooledXMLSignature.sign(doc, sibling, referenceID, keyName, signingKey, publicKey, x509Certificate, includeKeyInfo,
+                    signatureMethod, digestMethod, canonicalizationMethodType);
         }
-        return XMLSignatureUtil.sign(doc, keyName, keyPair, digestMethod, signatureMethod, referenceURI, canonicalizationMethodType);
+        return doc;
     }
 
     /**
@@ -161,7 +161,17 @@ public class SAML11Signature implements SAMLAbstractSignature {
         // Get the ID from the root
         String id = samlDocument.getDocumentElement().getAttribute(SAML11Constants.ASSERTIONID);
         try {
-            sign(samlDocument, keyName, id, keypair, canonicalizationMethodType);
+            sign(samlDocument, keyName, id, keypair.getPrivate(), keypair.getPublic(), canonicalizationMethodType);
+        } catch (Exception e) {
+            throw new ProcessingException(logger.signatureError(e));
+        }
+    }
+
+    @Override
+    public void signSAMLDocument(Document samlDocument, String keyName, SecretKey secretKey, String canonicalizationMethodType) throws ProcessingException {
+        String id = samlDocument.getDocumentElement().getAttribute(SAML11Constants.ASSERTIONID);
+        try {
+            sign(samlDocument, keyName, id, secretKey, null, canonicalizationMethodType);
         } catch (Exception e) {
             throw new ProcessingException(logger.signatureError(e));
         }
@@ -18,15 +18,33 @@
 
 package com.quest.keycloak.protocol.wsfed.sig;
 
+import org.keycloak.saml.common.PicketLinkLogger;
+import org.keycloak.saml.common.PicketLinkLoggerFactory;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.processing.api.saml.v2.sig.SAML2Signature;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
+import javax.crypto.SecretKey;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 
 /**
+ * SAML 2.0 counterpart of {@link SAML11Signature}. The location of the signature is still found by keycloak's
+ * {@link SAML2Signature}, the signature itself is made by {@link PooledXMLSignature}: the method objects and the
+ * signature engine come from the {@link CryptoEnginePool}, the digest of the reference is still computed with an
+ * engine created by the JSR-105 implementation.
+ *
  * @author <a href="mailto:brat000012001@gmail.com">Peter Nalyvayko</a>
  * @version $Revision: 1 $
  * @date 10/4/2016
@@ -34,20 +52,32 @@ import java.security.cert.X509Certificate;
 
 public class SAML2SignatureProxy implements SAMLAbstractSignature {
 
+    private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
+
     SAML2Signature samlSignature;
 
+    private String signatureMethod = WSFedSignatureAlgorithm.RSA_SHA256.getXmlSignatureMethod();
+
+    private String digestMethod = WSFedSignatureAlgorithm.RSA_SHA256.getXmlSignatureDigestMethod();
+
+    private Node sibling;
+
+    private X509Certificate x509Certificate;
+
+    private KeyInfo keyInfo;
+
     public SAML2SignatureProxy() {
         samlSignature = new SAML2Signature();
     }
 
     @Override
     public void setSignatureMethod(String signatureMethod) {
-        samlSignature.setSignatureMethod(signatureMethod);
+        this.signatureMethod = signatureMethod;
     }
 
     @Override
     public void setDigestMethod(String digestMethod) {
-        samlSignature.setDigestMethod(digestMethod);
+        this.digestMethod = digestMethod;
     }
 
     @Override
@@ -57,16 +87,63 @@ public class SAML2SignatureProxy implements SAMLAbstractSignature {
 
     @Override
     public void setNextSibling(Node sibling) {
-        samlSignature.setNextSibling(sibling);
+        this.sibling = sibling;
     }
 
     @Override
     public void setX509Certificate(X509Certificate x509Certificate) {
-        samlSignature.setX509Certificate(x509Certificate);
+        this.x509Certificate = x509Certificate;
+    }
+
+    @Override
+    public void setKeyInfo(KeyInfo keyInfo) {
+        this.keyInfo = keyInfo;
     }
 
     @Override
     public void signSAMLDocument(Document samlDocument, String keyName, KeyPair keypair, String canonicalizationMethodType) throws ProcessingException {
-        samlSignature.signSAMLDocument(samlDocument, keyName, keypair, canonicalizationMethodType);
+        sign(samlDocument, keyName, keypair.getPrivate(), keypair.getPublic(), canonicalizationMethodType);
+    }
+
+    @Override
+    public void signSAMLDocument(Document samlDocument, String keyName, SecretKey secretKey, String canonicalizationMethodType) throws ProcessingException {
+        sign(samlDocument, keyName, secretKey, null, canonicalizationMethodType);
+    }
+
+    private void sign(Document samlDocument, String keyName, Key signingKey, PublicKey publicKey, String canonicalizationMethodType) throws ProcessingException {
+        // Get the ID from the root
+        String id = samlDocument.getDocumentElement().getAttribute(JBossSAMLConstants.ID.get());
+        try {
+            configureIdAttribute(samlDocument);
+            if (keyInfo != null) {
+                PooledXMLSignature.sign(samlDocument, sibling, id, signingKey, keyInfo, signatureMethod, digestMethod,
+                        canonicalizationMethodType);
+            } else {
+                PooledXMLSignature.sign(samlDocument, sibling, id, keyName, signingKey, publicKey, x509Certificate, true,
+                        signatureMethod, digestMethod, canonicalizationMethodType);
+            }
+        } catch (GeneralSecurityException | MarshalException | XMLSignatureException e) {
+            throw new ProcessingException(logger.signatureError(e));
+        }
+    }
+
+    /**
+     * Sets the IDness of the ID attribute of the root element and of the assertions it contains, which santuario
+     * needs to resolve the reference of the signature.
+     *
+     * @param document SAML document to have its ID attribute configured.
+     */
+    private void configureIdAttribute(Document document) {
+        document.getDocumentElement().setIdAttribute(JBossSAMLConstants.ID.get(), true);
+
+        NodeList nodes = document.getElementsByTagNameNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(),
+                JBossSAMLConstants.ASSERTION.get());
+
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node n = nodes.item(i);
+            if (n instanceof Element) {
+                ((Element) n).setIdAttribute(JBossSAMLConstants.ID.get(), true);
+            }
+        }
     }
 }
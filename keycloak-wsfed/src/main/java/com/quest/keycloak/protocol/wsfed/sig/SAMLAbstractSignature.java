@@ -22,6 +22,8 @@ import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
+import javax.crypto.SecretKey;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import java.security.KeyPair;
 import java.security.cert.X509Certificate;
 
@@ -35,8 +37,27 @@ public interface SAMLAbstractSignature {
 
     void setSignatureMethod(String signatureMethod);
     void setDigestMethod(String digestMethod);
+
+    default void setSignatureAlgorithm(WSFedSignatureAlgorithm algorithm) {
+        setSignatureMethod(algorithm.getXmlSignatureMethod());
+        setDigestMethod(algorithm.getXmlSignatureDigestMethod());
+    }
+
     Node getNextSiblingOfIssuer(Document doc);
     void setNextSibling(Node sibling);
     void setX509Certificate(X509Certificate x509Certificate);
+
+    /**
+     * Sets a KeyInfo built beforehand for the signing key, used instead of building it from the key name, the
+     * certificate and the public key
+     */
+    void setKeyInfo(KeyInfo keyInfo);
+
     void signSAMLDocument(Document samlDocument, String keyName, KeyPair keypair, String canonicalizationMethodType) throws ProcessingException;
+
+    /**
+     * Signs a SAML document with a MAC, the signature method being one of the HMAC methods. The KeyInfo then only
+     * holds the key name.
+     */
+    void signSAMLDocument(Document samlDocument, String keyName, SecretKey secretKey, String canonicalizationMethodType) throws ProcessingException;
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+
+/**
+ * Everything the WS-Fed token paths derive from a realm signing key, computed once per key: the key pair, the DER and
+ * PEM encodings of the certificate, its x5t thumbprint and the KeyInfo of the XML signatures, both serialized for the
+ * streaming signatures and as a JSR-105 structure for the DOM ones.
+ *
+ * Instances are immutable and shared between threads through the {@link SigningKeyMaterialCache}.
+ */
+public final class SigningKeyMaterial {
+
+    private final KeyWrapper key;
+    private final KeyPair keyPair;
+    private final byte[] encodedCertificate;
+    private final String pemCertificate;
+    private final String x5t;
+    private final String keyInfo;
+    private final KeyInfo domKeyInfo;
+
+    private SigningKeyMaterial(KeyWrapper key) throws GeneralSecurityException {
+        this.key = key;
+        if (key.getPublicKey() instanceof PublicKey && key.getPrivateKey() instanceof PrivateKey) {
+            this.keyPair = new KeyPair((PublicKey) key.getPublicKey(), (PrivateKey) key.getPrivateKey());
+        } else {
+            this.keyPair = null;
+        }
+
+        X509Certificate certificate = key.getCertificate();
+        if (certificate != null) {
+            this.encodedCertificate = certificate.getEncoded();
+            this.pemCertificate = PemUtils.encodeCertificate(certificate);
+            this.x5t = Base64Url.encode(MessageDigest.getInstance("SHA-1").digest(encodedCertificate));
+        } else {
+            this.encodedCertificate = null;
+            this.pemCertificate = null;
+            this.x5t = null;
+        }
+        PublicKey publicKey = keyPair == null ? null : keyPair.getPublic();
+        this.keyInfo = StreamingSAMLSignature.buildKeyInfo(key.getKid(), certificate, publicKey);
+        this.domKeyInfo = PooledXMLSignature.createKeyInfo(key.getKid(), publicKey, certificate);
+    }
+
+    /**
+     * Derives the material of a key
+     *
+     * @param key the key, as returned by the keycloak KeyManager
+     * @return the derived key material
+     * @throws GeneralSecurityException if the certificate cannot be encoded
+     */
+    public static SigningKeyMaterial from(KeyWrapper key) throws GeneralSecurityException {
+        return new SigningKeyMaterial(key);
+    }
+
+    /**
+     * Derives the material of a secret shared with a single relying party, kept outside of the realm keys
+     *
+     * @param kid the name of the secret, in the KeyName of the XML signatures and the kid of the JWT tokens
+     * @param algorithm the JWA name of the HMAC algorithm (HS256, HS384 or HS512)
+     * @param secret the secret
+     * @return the derived key material
+     * @throws GeneralSecurityException never, the secret keys have neither certificate nor public key
+     */
+    public static SigningKeyMaterial fromSecret(String kid, String algorithm, byte[] secret) throws GeneralSecurityException {
+        KeyWrapper key = new KeyWrapper();
+        key.setKid(kid);
+        key.setAlgorithm(algorithm);
+        key.setType(KeyType.OCT);
+        key.setUse(KeyUse.SIG);
+        key.setStatus(KeyStatus.ACTIVE);
+        key.setSecretKey(new SecretKeySpec(secret, "HmacSHA" + algorithm.substring(2)));
+        return new SigningKeyMaterial(key);
+    }
+
+    /**
+     * Checks that this material was derived from the given key. The KeyWrapper instances are rebuilt by the key
+     * providers, so this compares the key contents rather than the instances.
+     *
+     * @param other the key to compare with
+     * @return true if the material can be used for the given key
+     */
+    public boolean matches(KeyWrapper other) {
+        return other != null
+                && Objects.equals(key.getKid(), other.getKid())
+                && Objects.equals(key.getAlgorithm(), other.getAlgorithm())
+                && Objects.equals(key.getCertificate(), other.getCertificate())
+                && Objects.equals(key.getPublicKey(), other.getPublicKey())
+                && Objects.equals(key.getSecretKey(), other.getSecretKey());
+    }
+
+    public KeyWrapper getKey() {
+        return key;
+    }
+
+    public String getKid() {
+        return key.getKid();
+    }
+
+    public String getAlgorithm() {
+        return key.getAlgorithm();
+    }
+
+    /**
+     * @return the key pair, or null for symmetric keys
+     */
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    /**
+     * @return the secret key, or null for asymmetric keys
+     */
+    public SecretKey getSecretKey() {
+        return key.getSecretKey();
+    }
+
+    public X509Certificate getCertificate() {
+        return key.getCertificate();
+    }
+
+    /**
+     * @return the DER encoding of the certificate, or null if the key has none. The array is shared and must not be
+     * modified.
+     */
+    public byte[] getEncodedCertificate() {
+        return encodedCertificate;
+    }
+
+    /**
+     * @return the certificate as encoded by {@link PemUtils#encodeCertificate(X509Certificate)}, or null if the key
+     * has none
+     */
+    public String getPemCertificate() {
+        return pemCertificate;
+    }
+
+    /**
+     * @return the base64url encoded SHA-1 thumbprint of the certificate, or null if the key has none
+     */
+    public String getX5t() {
+        return x5t;
+    }
+
+    /**
+     * @return the KeyInfo element of the XML signatures made with this key, see
+     * {@link StreamingSAMLSignature#buildKeyInfo}
+     */
+    public String getKeyInfo() {
+        return keyInfo;
+    }
+
+    /**
+     * @return the KeyInfo of the DOM signatures made with this key, see {@link PooledXMLSignature#createKeyInfo}
+     */
+    public KeyInfo getDomKeyInfo() {
+        return domKeyInfo;
+    }
+}
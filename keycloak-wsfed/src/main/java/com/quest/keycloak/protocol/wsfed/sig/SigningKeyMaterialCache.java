@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import io.cloudtrust.exception.CloudtrustRuntimeException;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the {@link SigningKeyMaterial} of the active realm signing keys, per realm and per algorithm.
+ *
+ * The keycloak KeyManager is still asked for the active key on every call, so a key rotation is picked up as soon as
+ * the new key becomes active: the cached material doesn't match it, the material of the new key gets derived and
+ * replaces the one of the key it rotated out. A key that keeps its kid but changes its contents is derived again as
+ * well. The entries of a realm are removed when the realm is (see WSFedProviderEventListener).
+ */
+public class SigningKeyMaterialCache {
+
+    private static final SigningKeyMaterialCache INSTANCE = new SigningKeyMaterialCache();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, SigningKeyMaterial>> realms = new ConcurrentHashMap<>();
+
+    public static SigningKeyMaterialCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the material of the active signing key of a realm for the given algorithm
+     *
+     * @param session the current keycloak session
+     * @param realm the realm
+     * @param algorithm the JWA name of the algorithm (RS256, ...)
+     * @return the key material, or null if the realm has no such key
+     */
+    public SigningKeyMaterial getActiveKey(KeycloakSession session, RealmModel realm, String algorithm) {
+        KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.SIG, algorithm);
+        if (key == null) {
+            return null;
+        }
+        if (realm.getId() == null || key.getKid() == null) {
+            // transient models can't be told apart, don't cache them
+            return derive(key);
+        }
+
+        ConcurrentMap<String, SigningKeyMaterial> keys = realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        SigningKeyMaterial material = keys.get(algorithm);
+        if (material == null || !material.matches(key)) {
+            material = derive(key);
+            keys.put(algorithm, material);
+        }
+        return material;
+    }
+
+    /**
+     * Forgets the key material of a realm
+     *
+     * @param realmId the id of the realm
+     */
+    public void invalidate(String realmId) {
+        if (realmId != null) {
+            realms.remove(realmId);
+        }
+    }
+
+    public void clear() {
+        realms.clear();
+    }
+
+    private static SigningKeyMaterial derive(KeyWrapper key) {
+        try {
+            return SigningKeyMaterial.from(key);
+        } catch (GeneralSecurityException e) {
+            throw new CloudtrustRuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import com.quest.keycloak.common.wsfed.writers.SerializedElement;
+import org.jboss.logging.Logger;
+import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.saml.common.PicketLinkLogger;
+import org.keycloak.saml.common.PicketLinkLoggerFactory;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
+import org.keycloak.saml.processing.core.saml.v1.writers.SAML11AssertionWriter;
+import org.keycloak.saml.processing.core.saml.v2.writers.SAMLAssertionWriter;
+
+import javax.crypto.SecretKey;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.EllipticCurve;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signs SAML assertions without going through a DOM. The assertion is written once by the regular keycloak writers
+ * into an {@link ExclusiveC14NStreamWriter}, which feeds the canonical form straight into the reference digest while
+ * keeping the serialized assertion in memory. The enveloped signature is then computed and spliced into that
+ * serialization, at the same place the DOM based signatures put it (after the Issuer for SAML 2.0, after the
+ * Conditions for SAML 1.1).
+ *
+ * The signature always uses exclusive canonicalization, an enveloped-signature and an exclusive canonicalization
+ * transform, exactly like {@link SAML2SignatureProxy} and {@link SAML11Signature} do by default.
+ */
+public class StreamingSAMLSignature {
+
+    private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
+
+    private static final Logger LOGGER = Logger.getLogger(StreamingSAMLSignature.class);
+
+    private static final String PREFIX = "dsig";
+
+    private static final String XMLDSIG11_NS = "http://www.w3.org/2009/xmldsig11#";
+
+    private static final String SHA384 = "http://www.w3.org/2001/04/xmldsig-more#sha384";
+
+    /**
+     * The OIDs of the NIST curves, keyed by the curve itself: the field size alone would also match other curves of
+     * the same size, like secp256k1
+     */
+    private static final Map<EllipticCurve, String> NAMED_CURVES = new HashMap<>();
+
+    static {
+        addNamedCurve("secp256r1", "1.2.840.10045.3.1.7");
+        addNamedCurve("secp384r1", "1.3.132.0.34");
+        addNamedCurve("secp521r1", "1.3.132.0.35");
+    }
+
+    /**
+     * The unsupported curves already logged, so that a misconfigured key is reported once and not on every signature
+     */
+    private static final Set<EllipticCurve> UNSUPPORTED_CURVES = ConcurrentHashMap.newKeySet();
+
+    private static final QName SAML2_ISSUER = new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ISSUER.get());
+    private static final QName SAML11_CONDITIONS = new QName(SAML11Constants.ASSERTION_11_NSURI, "Conditions");
+
+    private String signatureMethod = WSFedSignatureAlgorithm.RSA_SHA256.getXmlSignatureMethod();
+
+    private String digestMethod = DigestMethod.SHA256;
+
+    private X509Certificate x509Certificate;
+
+    private String keyInfo;
+
+    public String getSignatureMethod() {
+        return signatureMethod;
+    }
+
+    public void setSignatureMethod(String signatureMethod) {
+        this.signatureMethod = signatureMethod;
+    }
+
+    public String getDigestMethod() {
+        return digestMethod;
+    }
+
+    public void setDigestMethod(String digestMethod) {
+        this.digestMethod = digestMethod;
+    }
+
+    /**
+     * Set the {@link X509Certificate} to have the KeyInfo hold X509 data instead of the public key value
+     *
+     * @param x509Certificate
+     */
+    public void setX509Certificate(X509Certificate x509Certificate) {
+        this.x509Certificate = x509Certificate;
+    }
+
+    /**
+     * Set a KeyInfo element built beforehand with {@link #buildKeyInfo}, to be used instead of building it from the
+     * key name, certificate and public key at each signature
+     *
+     * @param keyInfo the serialized KeyInfo, or null to build it
+     */
+    public void setKeyInfo(String keyInfo) {
+        this.keyInfo = keyInfo;
+    }
+
+    /**
+     * Serializes and signs a SAML 2.0 assertion
+     *
+     * @param assertion the assertion to sign
+     * @param keyName the name of the signing key, added to the KeyInfo if not null
+     * @param keyPair the signing key pair
+     * @return the signed assertion
+     * @throws ProcessingException if the assertion cannot be serialized or signed
+     */
+    public SerializedElement sign(AssertionType assertion, String keyName, KeyPair keyPair) throws ProcessingException {
+        return sign(assertion, keyName, keyPair.getPrivate(), keyPair.getPublic());
+    }
+
+    /**
+     * Serializes and signs a SAML 2.0 assertion with a MAC, the signature method being one of the HMAC methods
+     *
+     * @param assertion the assertion to sign
+     * @param keyName the name of the secret key, which is the only content of the KeyInfo
+     * @param secretKey the secret key shared with the relying party
+     * @return the signed assertion
+     * @throws ProcessingException if the assertion cannot be serialized or signed
+     */
+    public SerializedElement sign(AssertionType assertion, String keyName, SecretKey secretKey) throws ProcessingException {
+        return sign(assertion, keyName, secretKey, null);
+    }
+
+    private SerializedElement sign(final AssertionType assertion, String keyName, Key signingKey, PublicKey publicKey) throws ProcessingException {
+        return sign(new AssertionSerializer() {
+            @Override
+            public void write(XMLStreamWriter writer) throws ProcessingException {
+                new SAMLAssertionWriter(writer).write(assertion);
+            }
+        }, SAML2_ISSUER, assertion.getID(), keyName, signingKey, publicKey);
+    }
+
+    /**
+     * Serializes and signs a SAML 1.1 assertion
+     *
+     * @param assertion the assertion to sign
+     * @param keyName the name of the signing key, added to the KeyInfo if not null
+     * @param keyPair the signing key pair
+     * @return the signed assertion
+     * @throws ProcessingException if the assertion cannot be serialized or signed
+     */
+    public SerializedElement sign(SAML11AssertionType assertion, String keyName, KeyPair keyPair) throws ProcessingException {
+        return sign(assertion, keyName, keyPair.getPrivate(), keyPair.getPublic());
+    }
+
+    /**
+     * Serializes and signs a SAML 1.1 assertion with a MAC, the signature method being one of the HMAC methods
+     *
+     * @param assertion the assertion to sign
+     * @param keyName the name of the secret key, which is the only content of the KeyInfo
+     * @param secretKey the secret key shared with the relying party
+     * @return the signed assertion
+     * @throws ProcessingException if the assertion cannot be serialized or signed
+     */
+    public SerializedElement sign(SAML11AssertionType assertion, String keyName, SecretKey secretKey) throws ProcessingException {
+        return sign(assertion, keyName, secretKey, null);
+    }
+
+    private SerializedElement sign(final SAML11AssertionType assertion, String keyName, Key signingKey, PublicKey publicKey) throws ProcessingException {
+        return sign(new AssertionSerializer() {
+            @Override
+            public void write(XMLStreamWriter writer) throws ProcessingException {
+                new SAML11AssertionWriter(writer).write(assertion);
+            }
+        }, SAML11_CONDITIONS, assertion.getID(), keyName, signingKey, publicKey);
+    }
+
+    private SerializedElement sign(AssertionSerializer serializer, QName anchor, String referenceId, String keyName,
+                                   Key signingKey, PublicKey publicKey) throws ProcessingException {
+        try {
+            String digestAlgorithm = getDigestAlgorithm(digestMethod);
+            MessageDigest digest = CryptoEnginePool.borrowDigest(digestAlgorithm);
+            ExclusiveC14NStreamWriter writer;
+            String digestValue;
+            try {
+                Writer canonical = new OutputStreamWriter(new DigestingOutputStream(digest), StandardCharsets.UTF_8);
+                writer = new ExclusiveC14NStreamWriter(canonical, anchor);
+                serializer.write(writer);
+                writer.close();
+                digestValue = Base64.getEncoder().encodeToString(digest.digest());
+            } finally {
+                CryptoEnginePool.releaseDigest(digestAlgorithm, digest);
+            }
+
+            String signedInfo = buildSignedInfo(referenceId, digestValue);
+
+            WSFedSignatureAlgorithm algorithm = WSFedSignatureAlgorithm.fromXmlSignatureMethod(signatureMethod);
+            byte[] data = signedInfo.getBytes(StandardCharsets.UTF_8);
+            byte[] signatureValue;
+            if (algorithm.isHmac()) {
+                signatureValue = CryptoEnginePool.mac(algorithm.getJavaSignatureAlgorithm(), (SecretKey) signingKey, data);
+            } else {
+                signatureValue = CryptoEnginePool.sign(algorithm.getJavaSignatureAlgorithm(), (PrivateKey) signingKey, data);
+            }
+            if (algorithm.isEcdsa()) {
+                // XML signatures hold the raw r and s values, not the DER sequence of the JCA
+                signatureValue = toConcatenatedRS(signatureValue, getFieldLength(((ECKey) signingKey).getParams()));
+            }
+
+            StringBuilder xml = writer.getXml();
+            xml.insert(writer.getSignatureOffset(), buildSignature(signedInfo, signatureValue,
+                    keyInfo != null ? keyInfo : buildKeyInfo(keyName, x509Certificate, publicKey)));
+            return new SerializedElement(xml.toString());
+        } catch (ProcessingException e) {
+            throw e;
+        } catch (GeneralSecurityException | XMLStreamException e) {
+            throw new ProcessingException(logger.signatureError(e));
+        }
+    }
+
+    /**
+     * Builds the SignedInfo in its exclusive canonical form, which is also how it is sent.
+     */
+    private String buildSignedInfo(String referenceId, String digestValue) {
+        StringBuilder signedInfo = new StringBuilder(1024);
+        signedInfo.append('<').append(PREFIX).append(":SignedInfo xmlns:").append(PREFIX).append("=\"").append(XMLSignature.XMLNS).append("\">");
+        appendAlgorithm(signedInfo, "CanonicalizationMethod", CanonicalizationMethod.EXCLUSIVE);
+        appendAlgorithm(signedInfo, "SignatureMethod", signatureMethod);
+        signedInfo.append('<').append(PREFIX).append(":Reference URI=\"#");
+        appendEscaped(signedInfo, referenceId, true);
+        signedInfo.append("\">");
+        appendStart(signedInfo, "Transforms");
+        appendAlgorithm(signedInfo, "Transform", Transform.ENVELOPED);
+        appendAlgorithm(signedInfo, "Transform", CanonicalizationMethod.EXCLUSIVE);
+        appendEnd(signedInfo, "Transforms");
+        appendAlgorithm(signedInfo, "DigestMethod", digestMethod);
+        appendText(signedInfo, "DigestValue", digestValue);
+        appendEnd(signedInfo, "Reference");
+        appendEnd(signedInfo, "SignedInfo");
+        return signedInfo.toString();
+    }
+
+    private static String buildSignature(String signedInfo, byte[] signatureValue, String keyInfo) {
+        StringBuilder signature = new StringBuilder(signedInfo.length() + keyInfo.length() + 512);
+        signature.append('<').append(PREFIX).append(":Signature xmlns:").append(PREFIX).append("=\"").append(XMLSignature.XMLNS).append("\">");
+        signature.append(signedInfo);
+        appendText(signature, "SignatureValue", Base64.getEncoder().encodeToString(signatureValue));
+        signature.append(keyInfo);
+        appendEnd(signature, "Signature");
+        return signature.toString();
+    }
+
+    /**
+     * Builds the KeyInfo element of a signature. It holds the key name, if any, and either the certificate or, when
+     * there is no certificate, the RSA or EC public key value.
+     *
+     * @param keyName the name of the key, may be null
+     * @param certificate the certificate of the key, may be null
+     * @param publicKey the public key, used when there is no certificate
+     * @return the serialized KeyInfo, relying on the enclosing Signature for the declaration of its namespace
+     * @throws GeneralSecurityException if the certificate cannot be encoded
+     */
+    public static String buildKeyInfo(String keyName, X509Certificate certificate, PublicKey publicKey) throws GeneralSecurityException {
+        return buildKeyInfo(keyName, certificate, publicKey, false);
+    }
+
+    /**
+     * Same as {@link #buildKeyInfo(String, X509Certificate, PublicKey)}, the KeyInfo declaring its own namespace if
+     * standalone is true, for use outside of a signature
+     */
+    public static String buildKeyInfo(String keyName, X509Certificate certificate, PublicKey publicKey, boolean standalone) throws GeneralSecurityException {
+        StringBuilder keyInfo = new StringBuilder(2048);
+        if (standalone) {
+            keyInfo.append('<').append(PREFIX).append(":KeyInfo xmlns:").append(PREFIX).append("=\"").append(XMLSignature.XMLNS).append("\">");
+        } else {
+            appendStart(keyInfo, "KeyInfo");
+        }
+        if (keyName != null) {
+            appendText(keyInfo, "KeyName", keyName);
+        }
+        if (certificate != null) {
+            appendStart(keyInfo, "X509Data");
+            appendText(keyInfo, "X509Certificate", Base64.getEncoder().encodeToString(certificate.getEncoded()));
+            appendEnd(keyInfo, "X509Data");
+        } else if (publicKey instanceof RSAPublicKey) {
+            RSAPublicKey rsaKey = (RSAPublicKey) publicKey;
+            appendStart(keyInfo, "KeyValue");
+            appendStart(keyInfo, "RSAKeyValue");
+            appendText(keyInfo, "Modulus", encodeCryptoBinary(rsaKey.getModulus()));
+            appendText(keyInfo, "Exponent", encodeCryptoBinary(rsaKey.getPublicExponent()));
+            appendEnd(keyInfo, "RSAKeyValue");
+            appendEnd(keyInfo, "KeyValue");
+        } else if (publicKey instanceof ECPublicKey) {
+            appendECKeyValue(keyInfo, (ECPublicKey) publicKey);
+        }
+        appendEnd(keyInfo, "KeyInfo");
+        return keyInfo.toString();
+    }
+
+    /**
+     * Appends the XML Signature 1.1 ECKeyValue of a key on one of the NIST curves
+     */
+    private static void appendECKeyValue(StringBuilder keyInfo, ECPublicKey publicKey) {
+        int length = getFieldLength(publicKey.getParams());
+        String curve = NAMED_CURVES.get(publicKey.getParams().getCurve());
+        if (curve == null) {
+            if (UNSUPPORTED_CURVES.add(publicKey.getParams().getCurve())) {
+                LOGGER.warnf("Unsupported curve of %d bits for the EC key, its ECKeyValue is left out of the KeyInfo. " +
+                        "Only the NIST P-256, P-384 and P-521 curves are supported", publicKey.getParams().getCurve().getField().getFieldSize());
+            }
+            return;
+        }
+        byte[] point = new byte[1 + 2 * length];
+        point[0] = 0x04;
+        copyUnsigned(publicKey.getW().getAffineX(), point, 1, length);
+        copyUnsigned(publicKey.getW().getAffineY(), point, 1 + length, length);
+
+        appendStart(keyInfo, "KeyValue");
+        keyInfo.append("<dsig11:ECKeyValue xmlns:dsig11=\"").append(XMLDSIG11_NS).append("\">")
+                .append("<dsig11:NamedCurve URI=\"urn:oid:").append(curve).append("\"></dsig11:NamedCurve>")
+                .append("<dsig11:PublicKey>").append(Base64.getEncoder().encodeToString(point)).append("</dsig11:PublicKey>")
+                .append("</dsig11:ECKeyValue>");
+        appendEnd(keyInfo, "KeyValue");
+    }
+
+    private static void addNamedCurve(String name, String oid) {
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(name));
+            NAMED_CURVES.put(parameters.getParameterSpec(ECParameterSpec.class).getCurve(), oid);
+        } catch (GeneralSecurityException e) {
+            LOGGER.warnf("The curve %s is not available, the keys on that curve have no ECKeyValue", name);
+        }
+    }
+
+    private static String encodeCryptoBinary(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static void copyUnsigned(BigInteger value, byte[] out, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int start = bytes.length > length ? bytes.length - length : 0;
+        System.arraycopy(bytes, start, out, offset + length - (bytes.length - start), bytes.length - start);
+    }
+
+    static int getFieldLength(ECParameterSpec params) {
+        return (params.getCurve().getField().getFieldSize() + 7) / 8;
+    }
+
+    /**
+     * Converts the DER encoded ECDSA signature of the JCA, SEQUENCE { INTEGER r, INTEGER s }, to the concatenation of
+     * r and s, each on the length of the curve field
+     */
+    static byte[] toConcatenatedRS(byte[] der, int length) throws SignatureException {
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new SignatureException("Invalid ECDSA signature");
+        }
+        int offset = (der[1] & 0x80) == 0 ? 2 : 2 + (der[1] & 0x7f);
+        byte[] raw = new byte[2 * length];
+        offset = copyInteger(der, offset, raw, 0, length);
+        copyInteger(der, offset, raw, length, length);
+        return raw;
+    }
+
+    private static int copyInteger(byte[] der, int offset, byte[] out, int outOffset, int length) throws SignatureException {
+        if (offset + 2 > der.length || der[offset] != 0x02) {
+            throw new SignatureException("Invalid ECDSA signature");
+        }
+        int integerLength = der[offset + 1] & 0xff;
+        int start = offset + 2;
+        if (start + integerLength > der.length) {
+            throw new SignatureException("Invalid ECDSA signature");
+        }
+        int skip = 0;
+        while (integerLength - skip > length && der[start + skip] == 0) {
+            skip++;
+        }
+        if (integerLength - skip > length) {
+            throw new SignatureException("Invalid ECDSA signature");
+        }
+        System.arraycopy(der, start + skip, out, outOffset + length - (integerLength - skip), integerLength - skip);
+        return start + integerLength;
+    }
+
+    private static void appendStart(StringBuilder out, String name) {
+        out.append('<').append(PREFIX).append(':').append(name).append('>');
+    }
+
+    private static void appendEnd(StringBuilder out, String name) {
+        out.append("</").append(PREFIX).append(':').append(name).append('>');
+    }
+
+    private static void appendText(StringBuilder out, String name, String text) {
+        appendStart(out, name);
+        appendEscaped(out, text, false);
+        appendEnd(out, name);
+    }
+
+    private static void appendAlgorithm(StringBuilder out, String name, String algorithm) {
+        out.append('<').append(PREFIX).append(':').append(name).append(" Algorithm=\"");
+        appendEscaped(out, algorithm, true);
+        out.append("\">");
+        appendEnd(out, name);
+    }
+
+    /**
+     * Escapes a value the way canonical XML does, so that the SignedInfo can be signed as it is built
+     */
+    private static void appendEscaped(StringBuilder out, String value, boolean attribute) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&') {
+                out.append("&amp;");
+            } else if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>' && !attribute) {
+                out.append("&gt;");
+            } else if (c == '"' && attribute) {
+                out.append("&quot;");
+            } else if (c == '\r') {
+                out.append("&#xD;");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    static String getDigestAlgorithm(String digestMethod) throws NoSuchAlgorithmException {
+        switch (digestMethod) {
+            case DigestMethod.SHA1: return "SHA-1";
+            case DigestMethod.SHA256: return "SHA-256";
+            case SHA384: return "SHA-384";
+            case DigestMethod.SHA512: return "SHA-512";
+            default: throw new NoSuchAlgorithmException("Unsupported digest method " + digestMethod);
+        }
+    }
+
+    private interface AssertionSerializer {
+        void write(XMLStreamWriter writer) throws ProcessingException;
+    }
+
+    /**
+     * Feeds everything written to it into a message digest
+     */
+    private static final class DigestingOutputStream extends OutputStream {
+        private final MessageDigest digest;
+
+        private DigestingOutputStream(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+        }
+    }
+}
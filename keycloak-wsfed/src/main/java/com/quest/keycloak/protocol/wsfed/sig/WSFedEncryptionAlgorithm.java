@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.apache.xml.security.encryption.XMLCipher;
+
+/**
+ * The block ciphers encrypting the issued SAML assertions. The CBC ciphers are the ones keycloak's XMLEncryptionUtil
+ * uses; the GCM ones are both authenticated and faster on processors with AES and carry-less multiplication
+ * instructions.
+ */
+public enum WSFedEncryptionAlgorithm {
+    AES128_CBC(XMLCipher.AES_128, 128),
+    AES256_CBC(XMLCipher.AES_256, 256),
+    AES128_GCM(XMLCipher.AES_128_GCM, 128),
+    AES256_GCM(XMLCipher.AES_256_GCM, 256);
+
+    private final String xmlEncryptionMethod;
+    private final int keySize;
+
+    WSFedEncryptionAlgorithm(String xmlEncryptionMethod, int keySize) {
+        this.xmlEncryptionMethod = xmlEncryptionMethod;
+        this.keySize = keySize;
+    }
+
+    public String getXmlEncryptionMethod() {
+        return xmlEncryptionMethod;
+    }
+
+    /**
+     * @return the size of the AES key, in bits
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.apache.xml.security.encryption.XMLCipher;
+
+/**
+ * The algorithms encrypting the AES key of an encrypted assertion with the public key of the relying party.
+ */
+public enum WSFedKeyTransport {
+    RSA_1_5(XMLCipher.RSA_v1dot5),
+    RSA_OAEP(XMLCipher.RSA_OAEP);
+
+    private final String xmlEncryptionMethod;
+
+    WSFedKeyTransport(String xmlEncryptionMethod) {
+        this.xmlEncryptionMethod = xmlEncryptionMethod;
+    }
+
+    public String getXmlEncryptionMethod() {
+        return xmlEncryptionMethod;
+    }
+}
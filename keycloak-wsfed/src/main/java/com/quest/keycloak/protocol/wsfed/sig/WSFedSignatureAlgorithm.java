@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.crypto.Algorithm;
+
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.SignatureMethod;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The XML signature algorithms of the issued SAML assertions. Unlike keycloak's SignatureAlgorithm, it includes the
+ * ECDSA and HMAC algorithms, and tells which realm key each algorithm is used with.
+ */
+public enum WSFedSignatureAlgorithm {
+    RSA_SHA1(SignatureMethod.RSA_SHA1, DigestMethod.SHA1, "SHA1withRSA", Algorithm.RS256),
+    RSA_SHA256("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", DigestMethod.SHA256, "SHA256withRSA", Algorithm.RS256),
+    RSA_SHA512("http://www.w3.org/2001/04/xmldsig-more#rsa-sha512", DigestMethod.SHA512, "SHA512withRSA", Algorithm.RS256),
+    ECDSA_SHA256("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256", DigestMethod.SHA256, "SHA256withECDSA", Algorithm.ES256),
+    ECDSA_SHA384("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384", "http://www.w3.org/2001/04/xmldsig-more#sha384", "SHA384withECDSA", Algorithm.ES384),
+    ECDSA_SHA512("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512", DigestMethod.SHA512, "SHA512withECDSA", Algorithm.ES512),
+    HMAC_SHA256("http://www.w3.org/2001/04/xmldsig-more#hmac-sha256", DigestMethod.SHA256, "HmacSHA256", Algorithm.HS256);
+
+    private final String xmlSignatureMethod;
+    private final String xmlSignatureDigestMethod;
+    private final String javaSignatureAlgorithm;
+    private final String keyAlgorithm;
+
+    WSFedSignatureAlgorithm(String xmlSignatureMethod, String xmlSignatureDigestMethod, String javaSignatureAlgorithm, String keyAlgorithm) {
+        this.xmlSignatureMethod = xmlSignatureMethod;
+        this.xmlSignatureDigestMethod = xmlSignatureDigestMethod;
+        this.javaSignatureAlgorithm = javaSignatureAlgorithm;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    public String getXmlSignatureMethod() {
+        return xmlSignatureMethod;
+    }
+
+    public String getXmlSignatureDigestMethod() {
+        return xmlSignatureDigestMethod;
+    }
+
+    public String getJavaSignatureAlgorithm() {
+        return javaSignatureAlgorithm;
+    }
+
+    /**
+     * @return the algorithm of the realm key to sign with (RS256, ES256, ...)
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public boolean isEcdsa() {
+        return keyAlgorithm.startsWith("ES");
+    }
+
+    /**
+     * @return true if the algorithm is a MAC, signing with a secret key shared with the relying party
+     */
+    public boolean isHmac() {
+        return keyAlgorithm.startsWith("HS");
+    }
+
+    /**
+     * @param xmlSignatureMethod the URI of an XML signature method
+     * @return the matching algorithm
+     * @throws NoSuchAlgorithmException if the signature method is not supported
+     */
+    public static WSFedSignatureAlgorithm fromXmlSignatureMethod(String xmlSignatureMethod) throws NoSuchAlgorithmException {
+        for (WSFedSignatureAlgorithm algorithm : values()) {
+            if (algorithm.xmlSignatureMethod.equals(xmlSignatureMethod)) {
+                return algorithm;
+            }
+        }
+        throw new NoSuchAlgorithmException("Unsupported signature method " + xmlSignatureMethod);
+    }
+}